@@ -0,0 +1,58 @@
+package com.booking.benchmark;
+
+import com.booking.config.BookingProperties;
+import com.booking.metrics.BookingMetrics;
+import com.booking.replica.ReplicaRouting;
+import com.booking.repository.BookingRepository;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory HSQLDB initialized from the application's schema.sql, with a repository on top of it.
+ * Every instance gets its own database, so benchmarks do not see each other's bookings.
+ */
+public class BookingDatabase implements AutoCloseable {
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private final HikariDataSource dataSource;
+    private final ReplicaRouting replicaRouting;
+    private final BookingRepository bookingRepository;
+
+    public BookingDatabase(int poolSize) {
+        dataSource = new HikariDataSource();
+        dataSource.setDriverClassName("org.hsqldb.jdbc.JDBCDriver");
+        dataSource.setJdbcUrl("jdbc:hsqldb:mem:benchmark" + DATABASES.incrementAndGet());
+        dataSource.setUsername("sa");
+        dataSource.setPassword("");
+        dataSource.setMaximumPoolSize(poolSize);
+
+        new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(dataSource);
+        // no replica URLs, every read goes to this database
+        replicaRouting = new ReplicaRouting(dataSource, new DataSourceProperties(), new BookingProperties(), new SimpleMeterRegistry());
+        bookingRepository = new BookingRepository(dataSource, new BookingProperties(),
+                new BookingMetrics(new SimpleMeterRegistry()), replicaRouting);
+    }
+
+    public HikariDataSource getDataSource() {
+        return dataSource;
+    }
+
+    public ReplicaRouting getReplicaRouting() {
+        return replicaRouting;
+    }
+
+    public BookingRepository getBookingRepository() {
+        return bookingRepository;
+    }
+
+    @Override
+    public void close() {
+        replicaRouting.shutdown();
+        dataSource.close();
+    }
+}
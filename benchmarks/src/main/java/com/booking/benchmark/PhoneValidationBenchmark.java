@@ -0,0 +1,84 @@
+package com.booking.benchmark;
+
+import com.booking.cache.AvailabilityCache;
+import com.booking.cache.AvailabilityVersions;
+import com.booking.catalog.DeviceCatalog;
+import com.booking.config.BookingProperties;
+import com.booking.metrics.BookingMetrics;
+import com.booking.model.Phone;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The device id check {@code BookingController} runs before every book and return, for a known id
+ * and an unknown one: the {@link DeviceCatalog} array lookup, against the scan of the {@code Phone} enum
+ * it replaced (the known id is found half way through the enum, the unknown one scans all the constants).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhoneValidationBenchmark {
+    private short knownDeviceId = Phone.APPLE_IPHONE_13.getId();
+    private short unknownDeviceId = 42;
+    private BookingDatabase database;
+    private DeviceCatalog deviceCatalog;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = new BookingDatabase(1);
+        BookingProperties bookingProperties = new BookingProperties();
+        bookingProperties.getCatalog().setReloadInterval(Duration.ZERO);
+        AvailabilityVersions availabilityVersions = new AvailabilityVersions();
+        deviceCatalog = new DeviceCatalog(database.getBookingRepository(),
+                new BookingMetrics(new SimpleMeterRegistry()), bookingProperties, database.getReplicaRouting(),
+                availabilityVersions, new AvailabilityCache<>(availabilityVersions, bookingProperties),
+                new AvailabilityCache<>(availabilityVersions, bookingProperties));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean knownPhone() {
+        return !deviceCatalog.contains(knownDeviceId);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean unknownPhone() {
+        return !deviceCatalog.contains(unknownDeviceId);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean knownPhoneContended() {
+        return !deviceCatalog.contains(knownDeviceId);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean knownPhoneEnumScan() {
+        return isUnknownByEnumScan(knownDeviceId);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean unknownPhoneEnumScan() {
+        return isUnknownByEnumScan(unknownDeviceId);
+    }
+
+    // the expression BookingController used before the device catalog
+    private static boolean isUnknownByEnumScan(short deviceId) {
+        return Arrays.stream(Phone.values()).noneMatch(device -> device.getId() == deviceId);
+    }
+}
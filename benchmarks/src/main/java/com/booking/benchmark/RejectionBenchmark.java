@@ -0,0 +1,93 @@
+package com.booking.benchmark;
+
+import com.booking.dto.BookingDto;
+import com.booking.model.BookingOutcome;
+import com.booking.model.Phone;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of rejecting a booking of a sold-out device.
+ * {@code exceptionRejection} replays the former path: an unconditional update that violates the quantity
+ * check constraint, wrapped into a RuntimeException whose stack trace is rendered as the error log did.
+ * {@code outcomeRejection} is the current conditional update with a row count check.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RejectionBenchmark {
+    private static final String UNCONDITIONAL_DECREASE = "update availability set quantity = quantity - 1 where device_id = ?";
+    private static final short SOLD_OUT_DEVICE = Phone.APPLE_IPHONE_13.getId();
+
+    private BookingDatabase database;
+    private BookingDto bookingDto;
+
+    @Setup
+    public void setUp() {
+        database = new BookingDatabase(Runtime.getRuntime().availableProcessors());
+        bookingDto = BookingDto.builder()
+                .deviceId(SOLD_OUT_DEVICE)
+                .userName("holder")
+                .timestamp(System.currentTimeMillis())
+                .build();
+        if (database.getBookingRepository().bookPhone(bookingDto) != BookingOutcome.BOOKED) {
+            throw new IllegalStateException("Device " + SOLD_OUT_DEVICE + " could not be sold out");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        database.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void exceptionRejection(Blackhole blackhole) {
+        blackhole.consume(rejectWithException());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void exceptionRejectionContended(Blackhole blackhole) {
+        blackhole.consume(rejectWithException());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public BookingOutcome outcomeRejection() {
+        return database.getBookingRepository().bookPhone(bookingDto);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public BookingOutcome outcomeRejectionContended() {
+        return database.getBookingRepository().bookPhone(bookingDto);
+    }
+
+    private String rejectWithException() {
+        try (Connection connection = database.getDataSource().getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(UNCONDITIONAL_DECREASE)) {
+                statement.setShort(1, SOLD_OUT_DEVICE);
+                statement.executeUpdate();
+            }
+            connection.commit();
+            throw new IllegalStateException("Device " + SOLD_OUT_DEVICE + " was expected to be sold out");
+        } catch (SQLException e) {
+            RuntimeException rejection = new RuntimeException(e);
+            StringWriter log = new StringWriter();
+            rejection.printStackTrace(new PrintWriter(log));
+            return log.toString();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.booking.benchmark;
+
+import com.booking.dto.BookingAvailabilityDto;
+import com.booking.dto.BookingDto;
+import com.booking.model.BookingOutcome;
+import com.booking.model.Phone;
+import com.booking.repository.BookingRepository;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link BookingRepository} against the in-memory schema. A booking is always followed by its return, so the
+ * stock never runs out and the database stays in the same state between iterations.
+ * The {@code Spread} variants give every thread its own device, the {@code Contended} ones share a single device,
+ * so most of the bookings are rejected and the threads compete for the same availability row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBenchmark {
+    private static final Phone[] SINGLE_UNIT_PHONES = {
+            Phone.SAMSUNG_GALAXY_S9, Phone.MOTOROLA_NEXUS_6, Phone.ONEPLUS_9, Phone.APPLE_IPHONE_13
+    };
+    private static final Phone CONTENDED_PHONE = Phone.APPLE_IPHONE_12;
+
+    private BookingDatabase database;
+    private BookingRepository bookingRepository;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        database = new BookingDatabase(SINGLE_UNIT_PHONES.length);
+        bookingRepository = database.getBookingRepository();
+    }
+
+    @TearDown
+    public void tearDown() {
+        database.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Booker {
+        private String userName;
+        private short spreadDeviceId;
+        private long timestamp;
+
+        @Setup
+        public void setUp(RepositoryBenchmark benchmark) {
+            int thread = benchmark.threads.getAndIncrement();
+            userName = "user" + thread;
+            spreadDeviceId = SINGLE_UNIT_PHONES[thread % SINGLE_UNIT_PHONES.length].getId();
+            timestamp = System.currentTimeMillis();
+        }
+
+        BookingDto next(short deviceId) {
+            return BookingDto.builder()
+                    .deviceId(deviceId)
+                    .userName(userName)
+                    .timestamp(++timestamp)
+                    .build();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public BookingOutcome bookAndReturn(Booker booker) {
+        return bookAndReturn(booker.next(booker.spreadDeviceId));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public BookingOutcome bookAndReturnSpread(Booker booker) {
+        return bookAndReturn(booker.next(booker.spreadDeviceId));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public BookingOutcome bookAndReturnContended(Booker booker) {
+        return bookAndReturn(booker.next(CONTENDED_PHONE.getId()));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public List<BookingAvailabilityDto> findByPhoneId() {
+        return bookingRepository.findByPhoneId(Phone.SAMSUNG_GALAXY_S8.getId());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<BookingAvailabilityDto> findByPhoneIdContended() {
+        return bookingRepository.findByPhoneId(Phone.SAMSUNG_GALAXY_S8.getId());
+    }
+
+    private BookingOutcome bookAndReturn(BookingDto bookingDto) {
+        BookingOutcome outcome = bookingRepository.bookPhone(bookingDto);
+        if (outcome == BookingOutcome.BOOKED) {
+            return bookingRepository.returnPhone(bookingDto);
+        }
+        return outcome;
+    }
+}
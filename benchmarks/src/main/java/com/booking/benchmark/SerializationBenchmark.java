@@ -0,0 +1,66 @@
+package com.booking.benchmark;
+
+import com.booking.dto.BookingAvailabilityDto;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson serialization of availability lists as the controller returns them, using an object mapper
+ * built with the same defaults as the one Spring Boot configures.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    private int size;
+
+    private ObjectMapper objectMapper;
+    private ObjectWriter listWriter;
+    private List<BookingAvailabilityDto> availability;
+
+    @Setup
+    public void setUp() {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        listWriter = objectMapper.writerFor(objectMapper.getTypeFactory()
+                .constructCollectionType(List.class, BookingAvailabilityDto.class));
+        long now = System.currentTimeMillis();
+        availability = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            availability.add(BookingAvailabilityDto.builder()
+                    .deviceId((short) 2)
+                    .userName("user" + i)
+                    .timestamp(now - i)
+                    .available(false)
+                    .build());
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] objectMapper() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(availability);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] listWriter() throws JsonProcessingException {
+        return listWriter.writeValueAsBytes(availability);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] objectMapperContended() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(availability);
+    }
+}
@@ -0,0 +1,43 @@
+package com.booking.benchmark.load;
+
+import lombok.Value;
+import org.springframework.core.env.Environment;
+
+import java.time.Duration;
+
+/**
+ * Load test settings, read from {@code load.} properties of the application environment,
+ * so they can be given as program arguments like {@code --load.rate=1000}.
+ */
+@Value
+public class LoadOptions {
+    /** Mean arrival rate of requests per second; arrivals are Poisson distributed. */
+    double rate;
+    Duration warmup;
+    Duration duration;
+    /** Requests in flight above which new arrivals are dropped and counted as such. */
+    int maxInFlight;
+    int users;
+    int bookWeight;
+    int returnWeight;
+    int availabilityWeight;
+    /** Number of devices, from the lowest id, that get {@link #hotShare} of the traffic. */
+    int hotDevices;
+    double hotShare;
+    String resultFile;
+
+    public static LoadOptions from(Environment environment) {
+        return new LoadOptions(
+                environment.getProperty("load.rate", Double.class, 200d),
+                environment.getProperty("load.warmup", Duration.class, Duration.ofSeconds(5)),
+                environment.getProperty("load.duration", Duration.class, Duration.ofSeconds(30)),
+                environment.getProperty("load.max-in-flight", Integer.class, 1000),
+                environment.getProperty("load.users", Integer.class, 10000),
+                environment.getProperty("load.book", Integer.class, 30),
+                environment.getProperty("load.return", Integer.class, 30),
+                environment.getProperty("load.availability", Integer.class, 40),
+                environment.getProperty("load.hot-devices", Integer.class, 2),
+                environment.getProperty("load.hot-share", Double.class, 0.8),
+                environment.getProperty("load.result-file", "target/load-result.json"));
+    }
+}
@@ -0,0 +1,192 @@
+package com.booking.benchmark.load;
+
+import com.booking.Application;
+import com.booking.dto.BookingDto;
+import com.booking.model.Phone;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-model load test of the REST API. Starts the application on a random port in this JVM and sends
+ * a book/return/availability mix at a fixed mean arrival rate, independent of how fast responses come back.
+ * Program arguments go to the application, so they carry both the {@link LoadOptions} and the
+ * configuration under test, e.g. {@code --load.rate=1000 --booking.engine=memory}.
+ */
+@Slf4j
+public class LoadTest {
+    private static final Phone[] PHONES = Phone.values();
+
+    private final LoadOptions options;
+    private final String url;
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .build();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Semaphore inFlight;
+    private final AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+    private final Queue<BookingDto> activeBookings = new ConcurrentLinkedQueue<>();
+    private final Map<String, OperationStats> stats = new LinkedHashMap<>();
+
+    LoadTest(LoadOptions options, int port) {
+        this.options = options;
+        this.url = "http://localhost:" + port + "/api/v1/phone";
+        this.inFlight = new Semaphore(options.getMaxInFlight());
+        stats.put("book", new OperationStats());
+        stats.put("return", new OperationStats());
+        stats.put("availability", new OperationStats());
+    }
+
+    public static void main(String[] args) throws Exception {
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class)
+                .properties("server.port=0", "spring.datasource.url=jdbc:hsqldb:mem:loadtest")
+                .run(args)) {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            new LoadTest(LoadOptions.from(context.getEnvironment()), port).run(context.getEnvironment().getProperty("booking.engine"));
+        }
+    }
+
+    void run(String engine) throws InterruptedException, IOException {
+        log.warn("Running {} requests/s for {} after {} warmup against the {} engine",
+                options.getRate(), options.getDuration(), options.getWarmup(), engine);
+        drive(options.getWarmup().toNanos());
+        stats.values().forEach(OperationStats::reset);
+
+        long start = System.nanoTime();
+        drive(options.getDuration().toNanos());
+        // responses still in flight belong to the measured interval
+        inFlight.acquire(options.getMaxInFlight());
+        double seconds = (System.nanoTime() - start) / 1e9;
+        inFlight.release(options.getMaxInFlight());
+
+        report(engine, seconds);
+    }
+
+    private void drive(long durationNanos) {
+        long start = System.nanoTime();
+        double meanIntervalNanos = TimeUnit.SECONDS.toNanos(1) / options.getRate();
+        double next = start;
+        while (next - start < durationNanos) {
+            next += -Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanIntervalNanos;
+            long intendedStart = (long) next;
+            long wait = intendedStart - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            send(intendedStart);
+        }
+    }
+
+    private void send(long intendedStart) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int pick = random.nextInt(options.getBookWeight() + options.getReturnWeight() + options.getAvailabilityWeight());
+        String operation;
+        HttpRequest request;
+        BookingDto booking;
+        if (pick < options.getBookWeight()) {
+            operation = "book";
+            booking = BookingDto.builder()
+                    .deviceId(pickDevice(random))
+                    .userName("user" + random.nextInt(options.getUsers()))
+                    .timestamp(clock.incrementAndGet())
+                    .build();
+            request = post("/book", booking);
+        } else if (pick < options.getBookWeight() + options.getReturnWeight()) {
+            operation = "return";
+            BookingDto active = activeBookings.poll();
+            booking = BookingDto.builder()
+                    .deviceId(active != null ? active.getDeviceId() : pickDevice(random))
+                    .userName(active != null ? active.getUserName() : "user" + random.nextInt(options.getUsers()))
+                    .timestamp(clock.incrementAndGet())
+                    .build();
+            request = post("/return", booking);
+        } else {
+            operation = "availability";
+            booking = null;
+            request = HttpRequest.newBuilder(URI.create(url + "/" + pickDevice(random))).GET().build();
+        }
+
+        OperationStats operationStats = stats.get(operation);
+        if (!inFlight.tryAcquire()) {
+            operationStats.dropped();
+            return;
+        }
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    long latency = System.nanoTime() - intendedStart;
+                    inFlight.release();
+                    if (error != null) {
+                        operationStats.record(latency, error.getClass().getSimpleName());
+                        return;
+                    }
+                    if (response.statusCode() == 200 && "book".equals(operation)) {
+                        activeBookings.add(booking);
+                    }
+                    operationStats.record(latency, String.valueOf(response.statusCode()));
+                });
+    }
+
+    private short pickDevice(ThreadLocalRandom random) {
+        int hotDevices = Math.min(options.getHotDevices(), PHONES.length);
+        if (hotDevices > 0 && random.nextDouble() < options.getHotShare()) {
+            return PHONES[random.nextInt(hotDevices)].getId();
+        }
+        return PHONES[random.nextInt(PHONES.length)].getId();
+    }
+
+    private HttpRequest post(String path, BookingDto booking) {
+        try {
+            return HttpRequest.newBuilder(URI.create(url + path))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(booking)))
+                    .build();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void report(String engine, double seconds) throws IOException {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("engine", engine);
+        result.put("options", options);
+        result.put("seconds", seconds);
+        Map<String, OperationStats.Summary> summaries = new LinkedHashMap<>();
+        stats.forEach((operation, operationStats) -> summaries.put(operation, operationStats.summarize(seconds)));
+        result.put("operations", summaries);
+
+        System.out.printf("%-13s %9s %10s %9s %9s %9s %9s  %s%n",
+                "operation", "count", "req/s", "p50 us", "p99 us", "p99.9 us", "max us", "outcomes");
+        summaries.forEach((operation, summary) -> System.out.printf("%-13s %9d %10.1f %9d %9d %9d %9d  %s%n",
+                operation, summary.getCount(), summary.getThroughput(), summary.getP50Micros(),
+                summary.getP99Micros(), summary.getP999Micros(), summary.getMaxMicros(), summary.getOutcomes()));
+
+        File resultFile = new File(options.getResultFile());
+        if (resultFile.getParentFile() != null) {
+            resultFile.getParentFile().mkdirs();
+        }
+        objectMapper.copy()
+                .findAndRegisterModules()
+                .enable(SerializationFeature.INDENT_OUTPUT)
+                .writeValue(resultFile, result);
+        System.out.println("Load test result is saved to " + resultFile);
+    }
+}
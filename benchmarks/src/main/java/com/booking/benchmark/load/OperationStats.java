@@ -0,0 +1,67 @@
+package com.booking.benchmark.load;
+
+import lombok.Builder;
+import lombok.Value;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and outcomes of one request type. Latencies are recorded in microseconds from the
+ * intended start of the request, so a stalled server is not hidden by the generator waiting for it.
+ */
+class OperationStats {
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+    private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+
+    void record(long latencyNanos, String outcome) {
+        recorder.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(latencyNanos), HIGHEST_TRACKABLE_MICROS));
+        outcomes.computeIfAbsent(outcome, key -> new LongAdder()).increment();
+    }
+
+    void dropped() {
+        outcomes.computeIfAbsent("dropped", key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Discards everything recorded so far, used at the end of the warmup.
+     */
+    void reset() {
+        recorder.getIntervalHistogram();
+        outcomes.clear();
+    }
+
+    Summary summarize(double seconds) {
+        Histogram histogram = recorder.getIntervalHistogram();
+        Map<String, Long> counts = new TreeMap<>();
+        outcomes.forEach((outcome, count) -> counts.put(outcome, count.sum()));
+        return Summary.builder()
+                .count(histogram.getTotalCount())
+                .throughput(histogram.getTotalCount() / seconds)
+                .p50Micros(histogram.getValueAtPercentile(50))
+                .p99Micros(histogram.getValueAtPercentile(99))
+                .p999Micros(histogram.getValueAtPercentile(99.9))
+                .maxMicros(histogram.getMaxValue())
+                .outcomes(counts)
+                .build();
+    }
+
+    @Value
+    @Builder
+    static class Summary {
+        long count;
+        double throughput;
+        long p50Micros;
+        long p99Micros;
+        long p999Micros;
+        long maxMicros;
+        Map<String, Long> outcomes;
+    }
+}
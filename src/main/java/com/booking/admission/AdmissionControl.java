@@ -0,0 +1,371 @@
+package com.booking.admission;
+
+import com.booking.config.BookingProperties;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Sheds book and return requests before they reach the database, answering them with 429.
+ * <ul>
+ * <li>Token buckets per user and per device cap the request rate of each. Buckets live in fixed arrays
+ * of packed longs updated by compare-and-set, so memory does not grow with the number of user ids;
+ * users hashing to the same stripe share a bucket.</li>
+ * <li>A global limit caps the operations running at once. It follows the latency of the admitted
+ * operations: while recent latency stays close to the long-term average the limit grows, and it shrinks
+ * as latency climbs, so a database that slows down is given less concurrent work. It never drops below
+ * the connection pool size.</li>
+ * </ul>
+ */
+@Slf4j
+@Component
+public class AdmissionControl {
+    private static final int DEFAULT_POOL_SIZE = 10;
+    // a bucket packs the time of its last refill, in millis since start, above its tokens in thousandths
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long TOKEN = 1000;
+    // recent latency may exceed the long-term one by this much before the limit shrinks
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+
+    private final boolean enabled;
+    // one millisecond back, so a used bucket never packs to 0
+    private final long startMillis = System.currentTimeMillis() - 1;
+    private final Buckets users;
+    private final Buckets devices;
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ReentrantLock sampling = new ReentrantLock();
+    private volatile double limit;
+    // guarded by sampling
+    private double shortRttNanos;
+    private double longRttNanos;
+    private final LongAdder rejectedByUser = new LongAdder();
+    private final LongAdder rejectedByDevice = new LongAdder();
+    private final LongAdder rejectedByLimit = new LongAdder();
+
+    public AdmissionControl(@Autowired BookingProperties bookingProperties,
+                            @Autowired DataSource dataSource,
+                            @Autowired MeterRegistry registry) {
+        BookingProperties.Admission admission = bookingProperties.getAdmission();
+        this.enabled = admission.isEnabled();
+        this.users = new Buckets(admission.getUserStripes(), admission.getUserRate(), admission.getUserBurst());
+        this.devices = new Buckets(admission.getDeviceStripes(), admission.getDeviceRate(), admission.getDeviceBurst());
+        int poolSize = connectionPoolSize(dataSource);
+        this.minLimit = admission.getMinLimit() > 0 ? admission.getMinLimit() : poolSize;
+        this.maxLimit = Math.max(admission.getMaxLimit(), minLimit);
+        this.limit = Math.min(minLimit * 2, maxLimit);
+
+        Gauge.builder("booking.admission.limit", this, AdmissionControl::getLimit)
+                .description("Book and return operations allowed to run at once")
+                .register(registry);
+        Gauge.builder("booking.admission.in-flight", inFlight, AtomicInteger::get)
+                .description("Book and return operations running")
+                .register(registry);
+        bindRejections("user", rejectedByUser, registry);
+        bindRejections("device", rejectedByDevice, registry);
+        bindRejections("limit", rejectedByLimit, registry);
+    }
+
+    /**
+     * Takes a token of the user's and the device's buckets. When the device has none, the user's token
+     * is given back, so a rejected request does not count against the user.
+     *
+     * @return 0 when admitted, otherwise the milliseconds until a token is available
+     */
+    public long admit(String userName, short deviceId) {
+        if (!enabled) {
+            return 0;
+        }
+        long now = System.currentTimeMillis() - startMillis;
+        int userHash = spread(userName.hashCode());
+        long wait = users.take(userHash, now);
+        if (wait > 0) {
+            rejectedByUser.increment();
+            return wait;
+        }
+        wait = devices.take(deviceId, now);
+        if (wait > 0) {
+            users.refund(userHash);
+            rejectedByDevice.increment();
+        }
+        return wait;
+    }
+
+    /**
+     * Admits a bulk request as one request of each distinct user and one for each distinct device. Every
+     * bucket is checked before any token is taken, so a rejected request costs nobody a token.
+     *
+     * @return 0 when admitted, otherwise the milliseconds until the tokens are available
+     */
+    public long admitAll(Collection<String> userNames, Collection<Short> deviceIds) {
+        if (!enabled) {
+            return 0;
+        }
+        long now = System.currentTimeMillis() - startMillis;
+        List<Integer> userHashes = new ArrayList<>(userNames.size());
+        userNames.forEach(userName -> userHashes.add(spread(userName.hashCode())));
+        List<Integer> deviceHashes = new ArrayList<>(deviceIds.size());
+        deviceIds.forEach(deviceId -> deviceHashes.add((int) deviceId));
+        Map<Integer, Long> userDemand = users.demand(userHashes);
+        Map<Integer, Long> deviceDemand = devices.demand(deviceHashes);
+
+        long wait = users.wait(userDemand, now);
+        if (wait > 0) {
+            rejectedByUser.increment();
+            return wait;
+        }
+        wait = devices.wait(deviceDemand, now);
+        if (wait > 0) {
+            rejectedByDevice.increment();
+            return wait;
+        }
+        // a take only fails when a concurrent request emptied a bucket since the check
+        wait = users.take(userDemand, now);
+        if (wait > 0) {
+            rejectedByUser.increment();
+            return wait;
+        }
+        wait = devices.take(deviceDemand, now);
+        if (wait > 0) {
+            users.refund(userDemand);
+            rejectedByDevice.increment();
+        }
+        return wait;
+    }
+
+    /**
+     * Runs the handler unless the concurrency limit is reached, and feeds its latency to the limit.
+     */
+    public <T> ResponseEntity<T> limit(Supplier<ResponseEntity<T>> handler) {
+        if (!enabled) {
+            return handler.get();
+        }
+        if (inFlight.incrementAndGet() > (int) limit) {
+            inFlight.decrementAndGet();
+            rejectedByLimit.increment();
+            return tooManyRequests(TimeUnit.SECONDS.toMillis(1));
+        }
+        long start = System.nanoTime();
+        try {
+            return handler.get();
+        } finally {
+            record(System.nanoTime() - start);
+            inFlight.decrementAndGet();
+        }
+    }
+
+    public double getLimit() {
+        return limit;
+    }
+
+    public static <T> ResponseEntity<T> tooManyRequests(long retryAfterMillis) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max((retryAfterMillis + 999) / 1000, 1)))
+                .build();
+    }
+
+    /**
+     * Moves the limit by the ratio of long-term to recent latency. A sample that arrives while another
+     * is being applied is dropped rather than waited for.
+     */
+    void record(long rttNanos) {
+        if (!sampling.tryLock()) {
+            return;
+        }
+        try {
+            if (longRttNanos == 0) {
+                shortRttNanos = rttNanos;
+                longRttNanos = rttNanos;
+            }
+            shortRttNanos = shortRttNanos * 0.9 + rttNanos * 0.1;
+            longRttNanos = longRttNanos * 0.99 + rttNanos * 0.01;
+            if (longRttNanos > shortRttNanos * 2) {
+                // latency recovered; let the long-term average catch up faster
+                longRttNanos *= 0.95;
+            }
+            double current = limit;
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRttNanos / shortRttNanos));
+            double next = current * gradient + Math.sqrt(current);
+            if (next > current && inFlight.get() < current / 2) {
+                // the limit is not what holds the load back, so there is nothing to learn from growing it
+                next = current;
+            }
+            limit = Math.max(minLimit, Math.min(maxLimit, current * (1 - SMOOTHING) + next * SMOOTHING));
+        } finally {
+            sampling.unlock();
+        }
+    }
+
+    /**
+     * Size of the connection pool; Hikari reports -1 until it applies its default on first use.
+     */
+    private static int connectionPoolSize(DataSource dataSource) {
+        int size = dataSource instanceof HikariDataSource ? ((HikariDataSource) dataSource).getMaximumPoolSize() : -1;
+        return size > 0 ? size : DEFAULT_POOL_SIZE;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    private static void bindRejections(String reason, LongAdder rejected, MeterRegistry registry) {
+        FunctionCounter.builder("booking.admission.rejected", rejected, LongAdder::sum)
+                .description("Book and return requests answered with 429")
+                .tag("reason", reason)
+                .register(registry);
+    }
+
+    /**
+     * Token buckets indexed by stripe; a rate of 0 admits everything.
+     */
+    static final class Buckets {
+        private final AtomicLongArray state;
+        private final int mask;
+        // tokens per second are thousandths of a token per millisecond
+        private final long rate;
+        private final long capacity;
+
+        Buckets(int stripes, int ratePerSecond, int burst) {
+            if (Integer.bitCount(stripes) != 1) {
+                throw new IllegalArgumentException("stripes must be a power of two");
+            }
+            if ((long) burst * TOKEN > TOKEN_MASK) {
+                throw new IllegalArgumentException("burst must be at most " + TOKEN_MASK / TOKEN);
+            }
+            this.state = new AtomicLongArray(ratePerSecond > 0 ? stripes : 0);
+            this.mask = stripes - 1;
+            this.rate = ratePerSecond;
+            this.capacity = Math.max(burst, 1) * TOKEN;
+        }
+
+        /**
+         * @return 0 when a token was taken, otherwise the milliseconds until one is available
+         */
+        long take(int hash, long nowMillis) {
+            return rate == 0 ? 0 : take(hash & mask, TOKEN, nowMillis);
+        }
+
+        /**
+         * Thousandths of a token each stripe is charged for the hashes, one token per hash but never more
+         * than a full bucket, so a request that needs the whole burst can still be admitted.
+         */
+        Map<Integer, Long> demand(Collection<Integer> hashes) {
+            Map<Integer, Long> demand = new HashMap<>();
+            if (rate > 0) {
+                for (int hash : hashes) {
+                    demand.merge(hash & mask, TOKEN, (a, b) -> Math.min(a + b, capacity));
+                }
+            }
+            return demand;
+        }
+
+        /**
+         * @return 0 when every stripe holds its demand, otherwise the milliseconds until all do
+         */
+        long wait(Map<Integer, Long> demand, long nowMillis) {
+            long wait = 0;
+            for (Map.Entry<Integer, Long> entry : demand.entrySet()) {
+                wait = Math.max(wait, wait(state.get(entry.getKey()), entry.getValue(), nowMillis));
+            }
+            return wait;
+        }
+
+        /**
+         * Takes the demand of every stripe, or none of it: a stripe emptied by a concurrent request since it
+         * was checked gives back what the others had taken.
+         *
+         * @return 0 when the tokens were taken, otherwise the milliseconds until they are available
+         */
+        long take(Map<Integer, Long> demand, long nowMillis) {
+            Map<Integer, Long> taken = new HashMap<>();
+            for (Map.Entry<Integer, Long> entry : demand.entrySet()) {
+                long wait = take(entry.getKey(), entry.getValue(), nowMillis);
+                if (wait > 0) {
+                    refund(taken);
+                    return wait;
+                }
+                taken.put(entry.getKey(), entry.getValue());
+            }
+            return 0;
+        }
+
+        /**
+         * Gives the token taken by {@link #take(int, long)} for a request that was rejected after all back.
+         */
+        void refund(int hash) {
+            if (rate > 0) {
+                refund(hash & mask, TOKEN);
+            }
+        }
+
+        /**
+         * Gives tokens taken for a request that was rejected after all back to their stripes.
+         */
+        void refund(Map<Integer, Long> demand) {
+            for (Map.Entry<Integer, Long> entry : demand.entrySet()) {
+                refund(entry.getKey(), entry.getValue());
+            }
+        }
+
+        private void refund(int index, long amount) {
+            while (true) {
+                long current = state.get(index);
+                long tokens = Math.min(capacity, (current & TOKEN_MASK) + amount);
+                if (state.compareAndSet(index, current, current & ~TOKEN_MASK | tokens)) {
+                    return;
+                }
+            }
+        }
+
+        private long take(int index, long amount, long nowMillis) {
+            while (true) {
+                long current = state.get(index);
+                long wait = wait(current, amount, nowMillis);
+                if (wait > 0) {
+                    return wait;
+                }
+                if (state.compareAndSet(index, current, nowMillis << TOKEN_BITS | (tokens(current, nowMillis) - amount))) {
+                    return 0;
+                }
+            }
+        }
+
+        private long wait(long current, long amount, long nowMillis) {
+            long tokens = tokens(current, nowMillis);
+            return tokens < amount ? (amount - tokens + rate - 1) / rate : 0;
+        }
+
+        private long tokens(long current, long nowMillis) {
+            // 0 is a bucket nobody used yet, which starts full
+            long tokens = current == 0 ? capacity : current & TOKEN_MASK;
+            long elapsed = Math.max(nowMillis - (current >>> TOKEN_BITS), 0);
+            return Math.min(capacity, tokens + Math.min(elapsed, capacity) * rate);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.booking.analytics;
+
+import com.booking.dto.UserBookingsDto;
+import com.booking.dto.UtilizationDto;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utilization of one device in a ring of fixed-size time buckets: an event lands in the bucket of its time,
+ * overwriting whatever the slot held a whole window earlier. Hold times go to a histogram of bins a fourth of
+ * an octave wide, users to a space-saving summary of the most frequent bookers, so a bucket has the same size
+ * however busy the device is and a report costs the same however long the history is.
+ * <p>
+ * Also follows the units held, to time the periods without a free unit. Not thread-safe.
+ */
+class DeviceUtilization {
+    static final int HOLD_BINS = 80;
+    // bin 0 holds everything under a second, bin i up to 2^(i/4) seconds
+    private static final long FIRST_BIN_MILLIS = 1000;
+    private static final int BINS_PER_OCTAVE = 4;
+
+    private final long bucketMillis;
+    private final int topUsersCapacity;
+    // start time of the bucket in each slot, Long.MIN_VALUE while the slot is empty
+    private final long[] starts;
+    private final int[] bookings;
+    private final int[] returns;
+    private final long[] holdMillis;
+    private final int[][] holds;
+    private final long[] soldOutMillis;
+    private final TopUsers[] topUsers;
+
+    int capacity;
+    int active;
+    // start of the current period without a free unit, -1 when a unit is free
+    long soldOutSince = -1;
+
+    DeviceUtilization(long bucketMillis, int buckets, int topUsersCapacity, int capacity) {
+        this.bucketMillis = bucketMillis;
+        this.topUsersCapacity = topUsersCapacity;
+        this.starts = new long[buckets];
+        this.bookings = new int[buckets];
+        this.returns = new int[buckets];
+        this.holdMillis = new long[buckets];
+        this.holds = new int[buckets][HOLD_BINS];
+        this.soldOutMillis = new long[buckets];
+        this.topUsers = new TopUsers[buckets];
+        this.capacity = capacity;
+        Arrays.fill(starts, Long.MIN_VALUE);
+    }
+
+    void booked(String userName, long time, long windowStart) {
+        int slot = slot(time, windowStart);
+        if (slot >= 0) {
+            bookings[slot]++;
+            topUsers[slot].add(userName);
+        }
+        active++;
+        if (capacity > 0 && active >= capacity && soldOutSince < 0) {
+            soldOutSince = time;
+        }
+    }
+
+    /**
+     * @param heldSince booking time of the returned unit, -1 when unknown
+     */
+    void returned(long time, long heldSince, long windowStart) {
+        int slot = slot(time, windowStart);
+        if (slot >= 0) {
+            returns[slot]++;
+            if (heldSince >= 0) {
+                long held = Math.max(time - heldSince, 0);
+                holdMillis[slot] += held;
+                holds[slot][bin(held)]++;
+            }
+        }
+        if (soldOutSince >= 0) {
+            addSoldOut(soldOutSince, time, windowStart);
+            soldOutSince = -1;
+        }
+        active = Math.max(active - 1, 0);
+    }
+
+    /**
+     * Books the current period without a free unit up to {@code now} into the buckets, so a checkpoint has it.
+     */
+    void closeSoldOut(long now, long windowStart) {
+        if (soldOutSince >= 0 && soldOutSince < now) {
+            addSoldOut(soldOutSince, now, windowStart);
+            soldOutSince = now;
+        }
+    }
+
+    /**
+     * Resets the units held as of {@code time}, for a device whose events are replayed from then on.
+     */
+    void startAt(int active, long time) {
+        this.active = Math.max(active, 0);
+        this.soldOutSince = capacity > 0 && this.active >= capacity ? time : -1;
+    }
+
+    UtilizationDto report(short deviceId, long now, long windowStart, int topUsersLimit) {
+        long bookingCount = 0;
+        long returnCount = 0;
+        long heldCount = 0;
+        long heldMillis = 0;
+        long soldOut = soldOutSince >= 0 ? now - Math.max(soldOutSince, windowStart) : 0;
+        int[] mergedHolds = new int[HOLD_BINS];
+        Map<String, Long> users = new HashMap<>();
+        for (int slot = 0; slot < starts.length; slot++) {
+            if (starts[slot] < windowStart || starts[slot] > now) {
+                continue;
+            }
+            bookingCount += bookings[slot];
+            returnCount += returns[slot];
+            heldMillis += holdMillis[slot];
+            soldOut += soldOutMillis[slot];
+            for (int bin = 0; bin < HOLD_BINS; bin++) {
+                mergedHolds[bin] += holds[slot][bin];
+                heldCount += holds[slot][bin];
+            }
+            topUsers[slot].addTo(users);
+        }
+
+        List<UserBookingsDto> top = new ArrayList<>(users.size());
+        users.forEach((userName, count) -> top.add(new UserBookingsDto(userName, count)));
+        top.sort((a, b) -> a.getBookings() != b.getBookings()
+                ? Long.compare(b.getBookings(), a.getBookings())
+                : a.getUserName().compareTo(b.getUserName()));
+
+        long windowMillis = Math.max(now - windowStart, 1);
+        return UtilizationDto.builder()
+                .deviceId(deviceId)
+                .from(windowStart)
+                .to(now)
+                .bookings(bookingCount)
+                .bookingsPerHour(bookingCount * 3_600_000.0 / windowMillis)
+                .returns(returnCount)
+                .averageHoldMillis(heldCount == 0 ? null : heldMillis / heldCount)
+                .p95HoldMillis(heldCount == 0 ? null : percentile(mergedHolds, heldCount, 0.95))
+                .soldOutMillis(Math.max(soldOut, 0))
+                .topUsers(top.subList(0, Math.min(topUsersLimit, top.size())))
+                .build();
+    }
+
+    /**
+     * Writes the buckets still in the window.
+     */
+    void write(DataOutputStream output, long windowStart) throws IOException {
+        int kept = 0;
+        for (long start : starts) {
+            if (start >= windowStart) {
+                kept++;
+            }
+        }
+        output.writeInt(kept);
+        for (int slot = 0; slot < starts.length; slot++) {
+            if (starts[slot] < windowStart) {
+                continue;
+            }
+            output.writeLong(starts[slot]);
+            output.writeInt(bookings[slot]);
+            output.writeInt(returns[slot]);
+            output.writeLong(holdMillis[slot]);
+            output.writeLong(soldOutMillis[slot]);
+            int bins = HOLD_BINS;
+            while (bins > 0 && holds[slot][bins - 1] == 0) {
+                bins--;
+            }
+            output.writeByte(bins);
+            for (int bin = 0; bin < bins; bin++) {
+                output.writeInt(holds[slot][bin]);
+            }
+            topUsers[slot].write(output);
+        }
+    }
+
+    /**
+     * Reads buckets written by {@link #write}, dropping those that left the window since.
+     */
+    void read(DataInputStream input, long windowStart) throws IOException {
+        int kept = input.readInt();
+        for (int i = 0; i < kept; i++) {
+            long start = input.readLong();
+            int bookingCount = input.readInt();
+            int returnCount = input.readInt();
+            long held = input.readLong();
+            long soldOut = input.readLong();
+            int[] bins = new int[HOLD_BINS];
+            int binCount = input.readUnsignedByte();
+            if (binCount > HOLD_BINS) {
+                throw new IOException("too many hold time bins: " + binCount);
+            }
+            for (int bin = 0; bin < binCount; bin++) {
+                bins[bin] = input.readInt();
+            }
+            TopUsers users = TopUsers.read(input, topUsersCapacity);
+
+            int slot = slot(start, windowStart);
+            if (slot < 0) {
+                continue;
+            }
+            bookings[slot] = bookingCount;
+            returns[slot] = returnCount;
+            holdMillis[slot] = held;
+            soldOutMillis[slot] = soldOut;
+            holds[slot] = bins;
+            topUsers[slot] = users;
+        }
+    }
+
+    static int bin(long heldMillis) {
+        if (heldMillis < FIRST_BIN_MILLIS) {
+            return 0;
+        }
+        double octaves = Math.log((double) heldMillis / FIRST_BIN_MILLIS) / Math.log(2);
+        return (int) Math.min(1 + (long) Math.floor(octaves * BINS_PER_OCTAVE), HOLD_BINS - 1);
+    }
+
+    /**
+     * @return upper bound of the bin, the hold time a percentile falling in it is reported as
+     */
+    static long binLimit(int bin) {
+        return Math.round(FIRST_BIN_MILLIS * Math.pow(2, (double) bin / BINS_PER_OCTAVE));
+    }
+
+    private static long percentile(int[] bins, long count, double quantile) {
+        long rank = (long) Math.ceil(count * quantile);
+        long seen = 0;
+        for (int bin = 0; bin < bins.length; bin++) {
+            seen += bins[bin];
+            if (seen >= rank) {
+                return binLimit(bin);
+            }
+        }
+        return binLimit(bins.length - 1);
+    }
+
+    /**
+     * @return slot of the bucket the time falls in, cleared first if it held an older bucket, or -1 when the
+     * time is before the window or the slot already moved on to a later bucket
+     */
+    private int slot(long time, long windowStart) {
+        if (time < windowStart) {
+            return -1;
+        }
+        long bucket = Math.floorDiv(time, bucketMillis);
+        long start = bucket * bucketMillis;
+        int slot = (int) Math.floorMod(bucket, (long) starts.length);
+        if (starts[slot] == start) {
+            return slot;
+        }
+        if (starts[slot] > start) {
+            return -1;
+        }
+        starts[slot] = start;
+        bookings[slot] = 0;
+        returns[slot] = 0;
+        holdMillis[slot] = 0;
+        soldOutMillis[slot] = 0;
+        Arrays.fill(holds[slot], 0);
+        topUsers[slot] = new TopUsers(topUsersCapacity);
+        return slot;
+    }
+
+    private void addSoldOut(long from, long to, long windowStart) {
+        for (long time = Math.max(from, windowStart); time < to; ) {
+            long bucketEnd = (Math.floorDiv(time, bucketMillis) + 1) * bucketMillis;
+            long end = Math.min(bucketEnd, to);
+            int slot = slot(time, windowStart);
+            if (slot >= 0) {
+                soldOutMillis[slot] += end - time;
+            }
+            time = end;
+        }
+    }
+
+    /**
+     * Space-saving summary: counts the users it tracks exactly, and a new user takes the place of the least
+     * counted one, starting from that count. Any user booking more than a {@code 1/capacity} share of the
+     * bucket is tracked.
+     */
+    static class TopUsers {
+        private final String[] users;
+        private final int[] counts;
+        private int size;
+
+        TopUsers(int capacity) {
+            this.users = new String[capacity];
+            this.counts = new int[capacity];
+        }
+
+        void add(String userName) {
+            int least = 0;
+            for (int i = 0; i < size; i++) {
+                if (users[i].equals(userName)) {
+                    counts[i]++;
+                    return;
+                }
+                if (counts[i] < counts[least]) {
+                    least = i;
+                }
+            }
+            if (size < users.length) {
+                users[size] = userName;
+                counts[size++] = 1;
+            } else {
+                users[least] = userName;
+                counts[least]++;
+            }
+        }
+
+        void addTo(Map<String, Long> totals) {
+            for (int i = 0; i < size; i++) {
+                totals.merge(users[i], (long) counts[i], Long::sum);
+            }
+        }
+
+        void write(DataOutputStream output) throws IOException {
+            output.writeShort(size);
+            for (int i = 0; i < size; i++) {
+                output.writeUTF(users[i]);
+                output.writeInt(counts[i]);
+            }
+        }
+
+        static TopUsers read(DataInputStream input, int capacity) throws IOException {
+            TopUsers topUsers = new TopUsers(capacity);
+            int size = input.readUnsignedShort();
+            for (int i = 0; i < size; i++) {
+                String userName = input.readUTF();
+                int count = input.readInt();
+                if (i < capacity) {
+                    topUsers.users[i] = userName;
+                    topUsers.counts[i] = count;
+                    topUsers.size++;
+                }
+            }
+            return topUsers;
+        }
+    }
+}
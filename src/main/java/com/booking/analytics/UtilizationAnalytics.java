@@ -0,0 +1,386 @@
+package com.booking.analytics;
+
+import com.booking.config.BookingProperties;
+import com.booking.dto.BookingDto;
+import com.booking.dto.UtilizationDto;
+import com.booking.engine.ActiveBookings;
+import com.booking.model.ActiveBooking;
+import com.booking.model.Availability;
+import com.booking.model.BookingPeriod;
+import com.booking.repository.BookingRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Per-device utilization over a rolling window: bookings per hour, average and 95th percentile hold time,
+ * time without a free unit and the users booking most. Fed by every admitted book and return, kept in a
+ * fixed ring of time buckets per device ({@link DeviceUtilization}), so a report never touches the
+ * {@code booking} table.
+ * <p>
+ * On start the window is rebuilt from the bookings made or returned in it. With a checkpoint file, the
+ * buckets are written there periodically and on shutdown, and a restart only replays the bookings after
+ * each device's checkpoint. Events are placed by the timestamps the clients sent, the ones stored in the
+ * table, so a replay lands them in the same buckets as when they happened.
+ */
+@Slf4j
+@Component
+@DependsOnDatabaseInitialization
+public class UtilizationAnalytics {
+    private static final int CHECKPOINT_VERSION = 1;
+
+    private final BookingRepository bookingRepository;
+    private final ActiveBookings activeBookings;
+    private final boolean enabled;
+    private final long bucketMillis;
+    private final int buckets;
+    private final int topUsers;
+    private final Path checkpointFile;
+    private final Map<Short, DeviceUtilization> devices = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService checkpointer;
+
+    public UtilizationAnalytics(@Autowired BookingRepository bookingRepository,
+                                @Autowired ActiveBookings activeBookings,
+                                @Autowired BookingProperties bookingProperties) {
+        BookingProperties.Analytics config = bookingProperties.getAnalytics();
+        this.bookingRepository = bookingRepository;
+        this.activeBookings = activeBookings;
+        this.enabled = config.isEnabled();
+        this.bucketMillis = config.getBucket().toMillis();
+        this.buckets = config.getBuckets();
+        this.topUsers = config.getTopUsers();
+        this.checkpointFile = config.getCheckpointFile();
+        if (bucketMillis <= 0 || buckets <= 0) {
+            throw new IllegalArgumentException("booking.analytics needs a positive bucket and bucket count");
+        }
+        if (!enabled) {
+            this.checkpointer = null;
+            return;
+        }
+
+        rebuild();
+        if (checkpointFile == null) {
+            this.checkpointer = null;
+        } else {
+            long interval = config.getCheckpointInterval().toMillis();
+            this.checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "utilization-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.checkpointer.scheduleWithFixedDelay(this::checkpointQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void booked(BookingDto booking) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        DeviceUtilization device = device(booking.getDeviceId());
+        synchronized (device) {
+            device.booked(booking.getUserName(), Math.min(booking.getTimestamp(), now), windowStart(now));
+        }
+    }
+
+    /**
+     * @param heldSince booking time of the returned unit as found by {@link #heldSince}, -1 when unknown
+     */
+    public void returned(BookingDto returned, long heldSince) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        DeviceUtilization device = device(returned.getDeviceId());
+        synchronized (device) {
+            device.returned(Math.min(returned.getTimestamp(), now), heldSince, windowStart(now));
+        }
+    }
+
+    /**
+     * Looks up, before the returns are applied, the booking times of the units they will close: each return
+     * closes its user's oldest booking of the device not closed by an earlier one.
+     *
+     * @return booking time per return, -1 when the user holds no unit of the device
+     */
+    public long[] heldSince(List<BookingDto> returns) {
+        long[] result = new long[returns.size()];
+        Arrays.fill(result, -1);
+        if (!enabled) {
+            return result;
+        }
+        Map<String, ArrayDeque<Long>> held = new HashMap<>();
+        for (int i = 0; i < returns.size(); i++) {
+            BookingDto returned = returns.get(i);
+            ArrayDeque<Long> bookings = held.computeIfAbsent(returned.getUserName() + '\u0000' + returned.getDeviceId(),
+                    key -> activeBookings.findByUser(returned.getUserName()).stream()
+                            .filter(booking -> booking.getDeviceId() == returned.getDeviceId())
+                            .map(ActiveBooking::getTimestamp)
+                            .sorted()
+                            .collect(ArrayDeque::new, ArrayDeque::add, ArrayDeque::addAll));
+            Long bookedAt = bookings.pollFirst();
+            result[i] = bookedAt == null ? -1 : bookedAt;
+        }
+        return result;
+    }
+
+    /**
+     * @return utilization of the device over the window, or null when analytics are disabled
+     */
+    public UtilizationDto find(short deviceId) {
+        if (!enabled) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        DeviceUtilization device = device(deviceId);
+        synchronized (device) {
+            return device.report(deviceId, now, windowStart(now), topUsers);
+        }
+    }
+
+    /**
+     * @return utilization of the devices over the window, in the given order, or null when analytics are disabled
+     */
+    public List<UtilizationDto> findAll(Collection<Short> deviceIds) {
+        if (!enabled) {
+            return null;
+        }
+        List<UtilizationDto> result = new ArrayList<>(deviceIds.size());
+        for (Short deviceId : deviceIds) {
+            result.add(find(deviceId));
+        }
+        return result;
+    }
+
+    /**
+     * Writes every device's buckets to the checkpoint file, replacing it atomically.
+     */
+    public void checkpoint() throws IOException {
+        if (checkpointFile.getParent() != null) {
+            Files.createDirectories(checkpointFile.getParent());
+        }
+        Path temporary = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (OutputStream stream = Files.newOutputStream(temporary);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(stream, crc)))) {
+            output.writeInt(CHECKPOINT_VERSION);
+            output.writeLong(bucketMillis);
+            output.writeInt(buckets);
+            // devices created later had no events before this time
+            output.writeLong(System.currentTimeMillis());
+            List<Map.Entry<Short, DeviceUtilization>> entries = new ArrayList<>(devices.entrySet());
+            output.writeInt(entries.size());
+            for (Map.Entry<Short, DeviceUtilization> entry : entries) {
+                DeviceUtilization device = entry.getValue();
+                synchronized (device) {
+                    // a restart replays the device's bookings from this time on
+                    long now = System.currentTimeMillis();
+                    long windowStart = windowStart(now);
+                    device.closeSoldOut(now, windowStart);
+                    output.writeShort(entry.getKey());
+                    output.writeLong(now);
+                    device.write(output, windowStart);
+                }
+            }
+            output.flush();
+            new DataOutputStream(stream).writeLong(crc.getValue());
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, checkpointFile, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (checkpointer != null) {
+            checkpointer.shutdownNow();
+            checkpointQuietly();
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (IOException | RuntimeException e) {
+            // an exception would cancel the periodic task
+            log.error("Utilization checkpoint failed", e);
+        }
+    }
+
+    /**
+     * Restores the checkpoint, if any, then replays the bookings made or returned after it, or over the whole
+     * window without one. Units held at the start of a device's replay are worked out backwards from the
+     * bookings active now, so periods without a free unit are timed as well.
+     */
+    private void rebuild() {
+        long now = System.currentTimeMillis();
+        long windowStart = windowStart(now);
+        Map<Short, Integer> capacities = new HashMap<>();
+        for (Availability availability : bookingRepository.findAllAvailability()) {
+            capacities.put(availability.getDeviceId(), (int) availability.getMaxQuantity());
+        }
+
+        Map<Short, Long> replayFrom = new HashMap<>();
+        long otherDevicesFrom = checkpointFile == null ? windowStart : restore(windowStart, capacities, replayFrom);
+        Map<Short, Long> since = new HashMap<>();
+        for (Short deviceId : capacities.keySet()) {
+            since.put(deviceId, replayFrom.getOrDefault(deviceId, otherDevicesFrom));
+        }
+
+        Map<Short, Integer> active = new HashMap<>();
+        for (ActiveBooking booking : activeBookings.findAll()) {
+            active.merge(booking.getDeviceId(), 1, Integer::sum);
+        }
+        List<BookingPeriod> periods = bookingRepository.findBookingsSince(since);
+        List<Event> events = new ArrayList<>();
+        for (BookingPeriod period : periods) {
+            long from = replayFrom.getOrDefault(period.getDeviceId(), otherDevicesFrom);
+            if (period.getBookedAt() >= from) {
+                active.merge(period.getDeviceId(), -1, Integer::sum);
+                events.add(new Event(Math.min(period.getBookedAt(), now), period, true));
+            }
+            if (period.getReturnedAt() != null && period.getReturnedAt() >= from) {
+                active.merge(period.getDeviceId(), 1, Integer::sum);
+                events.add(new Event(Math.min(period.getReturnedAt(), now), period, false));
+            }
+        }
+
+        for (Map.Entry<Short, Integer> capacity : capacities.entrySet()) {
+            short deviceId = capacity.getKey();
+            DeviceUtilization device = devices.computeIfAbsent(deviceId,
+                    id -> new DeviceUtilization(bucketMillis, buckets, topUsersCapacity(), capacity.getValue()));
+            device.startAt(active.getOrDefault(deviceId, 0), replayFrom.getOrDefault(deviceId, otherDevicesFrom));
+        }
+        // bookings before returns of the same instant, so a unit is never returned before it is booked
+        events.sort(Comparator.comparingLong((Event event) -> event.time).thenComparing(event -> !event.booking));
+        for (Event event : events) {
+            BookingPeriod period = event.period;
+            DeviceUtilization device = devices.get(period.getDeviceId());
+            if (device == null) {
+                // a device removed from availability since
+                continue;
+            }
+            if (event.booking) {
+                device.booked(period.getUserName(), event.time, windowStart);
+            } else {
+                device.returned(event.time, period.getBookedAt(), windowStart);
+            }
+        }
+        log.info("Utilization of {} devices rebuilt from {} bookings", devices.size(), periods.size());
+    }
+
+    /**
+     * @return time from which to replay devices the checkpoint does not have; the start of the window
+     * without a usable checkpoint
+     */
+    private long restore(long windowStart, Map<Short, Integer> capacities, Map<Short, Long> replayFrom) {
+        if (!Files.isRegularFile(checkpointFile)) {
+            return windowStart;
+        }
+        CRC32 crc = new CRC32();
+        Map<Short, DeviceUtilization> restored = new HashMap<>();
+        long otherDevicesFrom;
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(checkpointFile))) {
+            DataInputStream input = new DataInputStream(new CheckedInputStream(stream, crc));
+            if (input.readInt() != CHECKPOINT_VERSION || input.readLong() != bucketMillis || input.readInt() != buckets) {
+                log.info("Utilization checkpoint {} has other buckets, rebuilding from the bookings", checkpointFile);
+                return windowStart;
+            }
+            otherDevicesFrom = input.readLong();
+            int deviceCount = input.readInt();
+            for (int i = 0; i < deviceCount; i++) {
+                short deviceId = input.readShort();
+                long checkpointedAt = input.readLong();
+                DeviceUtilization device = new DeviceUtilization(bucketMillis, buckets, topUsersCapacity(),
+                        capacities.getOrDefault(deviceId, 0));
+                device.read(input, windowStart);
+                restored.put(deviceId, device);
+                replayFrom.put(deviceId, Math.max(checkpointedAt, windowStart));
+            }
+            long expected = crc.getValue();
+            if (new DataInputStream(stream).readLong() != expected) {
+                throw new IOException("checksum mismatch");
+            }
+        } catch (IOException e) {
+            log.warn("Skipping unreadable utilization checkpoint {}: {}", checkpointFile, e.getMessage());
+            replayFrom.clear();
+            return windowStart;
+        }
+        devices.putAll(restored);
+        return Math.max(otherDevicesFrom, windowStart);
+    }
+
+    private DeviceUtilization device(short deviceId) {
+        DeviceUtilization device = devices.get(deviceId);
+        if (device == null) {
+            // loaded outside the map, so a slow load does not block other devices
+            Availability availability = bookingRepository.findAvailability(deviceId);
+            DeviceUtilization loaded = new DeviceUtilization(bucketMillis, buckets, topUsersCapacity(),
+                    availability == null ? 0 : availability.getMaxQuantity());
+            device = devices.putIfAbsent(deviceId, loaded);
+            if (device == null) {
+                device = loaded;
+            }
+        }
+        return device;
+    }
+
+    /**
+     * Users tracked per bucket: more than reported, so the merged counts of the reported ones are rarely cut short.
+     */
+    private int topUsersCapacity() {
+        return Math.max(topUsers * 4, 8);
+    }
+
+    private long windowStart(long now) {
+        return (Math.floorDiv(now, bucketMillis) - buckets + 1) * bucketMillis;
+    }
+
+    private static class Event {
+        private final long time;
+        private final BookingPeriod period;
+        // the booking of the period, else its return
+        private final boolean booking;
+
+        private Event(long time, BookingPeriod period, boolean booking) {
+            this.time = time;
+            this.period = period;
+            this.booking = booking;
+        }
+    }
+}
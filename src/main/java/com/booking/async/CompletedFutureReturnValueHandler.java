@@ -0,0 +1,78 @@
+package com.booking.async;
+
+import org.springframework.core.MethodParameter;
+import org.springframework.core.ResolvableType;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.method.support.HandlerMethodReturnValueHandler;
+import org.springframework.web.method.support.HandlerMethodReturnValueHandlerComposite;
+import org.springframework.web.method.support.ModelAndViewContainer;
+
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes the result of a handler's {@link CompletableFuture} on the servlet thread when the future is already
+ * complete, as it is when async handling is disabled or the handler answered before submitting to the
+ * {@link RequestExecutors}. Spring MVC otherwise starts async processing for every future and dispatches the
+ * request a second time to write a result that was there all along.
+ * <p>
+ * Futures still running, and futures that failed, take Spring MVC's async path as before.
+ */
+public class CompletedFutureReturnValueHandler implements HandlerMethodReturnValueHandler {
+    private final HandlerMethodReturnValueHandlerComposite handlers = new HandlerMethodReturnValueHandlerComposite();
+
+    /**
+     * @param handlers the handlers the results are passed on to, including the one for async results
+     */
+    public CompletedFutureReturnValueHandler(List<HandlerMethodReturnValueHandler> handlers) {
+        this.handlers.addHandlers(handlers);
+    }
+
+    @Override
+    public boolean supportsReturnType(MethodParameter returnType) {
+        return CompletableFuture.class.isAssignableFrom(returnType.getParameterType());
+    }
+
+    @Override
+    public void handleReturnValue(Object returnValue, MethodParameter returnType, ModelAndViewContainer mavContainer,
+                                  NativeWebRequest webRequest) throws Exception {
+        CompletableFuture<?> future = (CompletableFuture<?>) returnValue;
+        if (future != null && future.isDone() && !future.isCompletedExceptionally()) {
+            handlers.handleReturnValue(future.join(), new ResultParameter(returnType), mavContainer, webRequest);
+        } else {
+            handlers.handleReturnValue(returnValue, returnType, mavContainer, webRequest);
+        }
+    }
+
+    /**
+     * The handler method's return type seen as the type the future completes with.
+     */
+    private static class ResultParameter extends MethodParameter {
+        private final ResolvableType resultType;
+
+        ResultParameter(MethodParameter returnType) {
+            this(returnType, ResolvableType.forMethodParameter(returnType).getGeneric());
+        }
+
+        private ResultParameter(MethodParameter returnType, ResolvableType resultType) {
+            super(returnType);
+            this.resultType = resultType;
+        }
+
+        @Override
+        public Class<?> getParameterType() {
+            return resultType.resolve(Object.class);
+        }
+
+        @Override
+        public Type getGenericParameterType() {
+            return resultType.getType();
+        }
+
+        @Override
+        public ResultParameter clone() {
+            return new ResultParameter(this, resultType);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.booking.async;
+
+import com.booking.config.BookingProperties;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs request handlers off the servlet threads, on a read and a write pool that together are no larger
+ * than the connection pool. Writes can therefore never hold every connection, and reads queued behind
+ * a burst of writes still find a thread and a connection. Each pool has a bounded queue; a request that
+ * finds it full is answered with 503 and {@code Retry-After} at once instead of waiting.
+ * <p>
+ * When async handling is disabled the handlers run on the calling thread and nothing is rejected; the
+ * {@link CompletedFutureReturnValueHandler} then writes their responses without an async dispatch.
+ */
+@Slf4j
+@Component
+public class RequestExecutors {
+    private static final int DEFAULT_POOL_SIZE = 10;
+
+    private final boolean enabled;
+    private final String retryAfterSeconds;
+    private final ThreadPoolExecutor reads;
+    private final ThreadPoolExecutor writes;
+    private final AtomicLong rejectedReads = new AtomicLong();
+    private final AtomicLong rejectedWrites = new AtomicLong();
+
+    public RequestExecutors(@Autowired BookingProperties bookingProperties,
+                            @Autowired DataSource dataSource,
+                            @Autowired MeterRegistry registry) {
+        BookingProperties.Async async = bookingProperties.getAsync();
+        this.enabled = async.isEnabled();
+        this.retryAfterSeconds = String.valueOf(Math.max(async.getRetryAfter().toSeconds(), 1));
+        int poolSize = connectionPoolSize(dataSource);
+        int writeThreads = async.getWriteThreads() > 0 ? async.getWriteThreads() : Math.max(poolSize / 2, 1);
+        int readThreads = async.getReadThreads() > 0 ? async.getReadThreads() : Math.max(poolSize - writeThreads, 1);
+        this.reads = pool("request-read", readThreads, async.getReadQueue());
+        this.writes = pool("request-write", writeThreads, async.getWriteQueue());
+        if (enabled) {
+            log.info("Async request handling with {} read and {} write threads", readThreads, writeThreads);
+        }
+
+        bind("read", reads, rejectedReads, registry);
+        bind("write", writes, rejectedWrites, registry);
+    }
+
+    /**
+     * Runs a handler that only reads.
+     */
+    public <T> CompletableFuture<ResponseEntity<T>> read(Supplier<ResponseEntity<T>> handler) {
+        return submit(reads, rejectedReads, handler);
+    }
+
+    /**
+     * Runs a handler that books or returns devices.
+     */
+    public <T> CompletableFuture<ResponseEntity<T>> write(Supplier<ResponseEntity<T>> handler) {
+        return submit(writes, rejectedWrites, handler);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        reads.shutdownNow();
+        writes.shutdownNow();
+    }
+
+    private <T> CompletableFuture<ResponseEntity<T>> submit(ThreadPoolExecutor executor, AtomicLong rejected,
+                                                            Supplier<ResponseEntity<T>> handler) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(handler.get());
+        }
+        try {
+            return CompletableFuture.supplyAsync(handler, executor);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, retryAfterSeconds)
+                    .build());
+        }
+    }
+
+    /**
+     * Size of the connection pool; Hikari reports -1 until it applies its default on first use.
+     */
+    private static int connectionPoolSize(DataSource dataSource) {
+        int size = dataSource instanceof HikariDataSource ? ((HikariDataSource) dataSource).getMaximumPoolSize() : -1;
+        return size > 0 ? size : DEFAULT_POOL_SIZE;
+    }
+
+    private static ThreadPoolExecutor pool(String name, int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        // the default abort policy rejects a task once the queue is full
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static void bind(String name, ThreadPoolExecutor executor, AtomicLong rejected, MeterRegistry registry) {
+        Gauge.builder("booking.requests.queued", executor, e -> e.getQueue().size())
+                .description("Requests waiting for a thread of the pool")
+                .tag("pool", name)
+                .register(registry);
+        Gauge.builder("booking.requests.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Requests being handled by the pool")
+                .tag("pool", name)
+                .register(registry);
+        FunctionCounter.builder("booking.requests.rejected", rejected, AtomicLong::get)
+                .description("Requests answered with 503 because the pool's queue was full")
+                .tag("pool", name)
+                .register(registry);
+    }
+}
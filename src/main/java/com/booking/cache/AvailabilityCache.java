@@ -0,0 +1,140 @@
+package com.booking.cache;
+
+import com.booking.config.BookingProperties;
+import lombok.Value;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded per-device cache of a computed availability view.
+ * An entry is served only while the device version it was loaded at is still current,
+ * so a finished book/return invalidates it without an explicit eviction.
+ * Cached values are shared between readers and must not be modified.
+ *
+ * @param <V> the cached view
+ */
+public class AvailabilityCache<V> {
+    private final AvailabilityVersions versions;
+    private final boolean enabled;
+    private final int maxEntries;
+    private final Map<Short, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public AvailabilityCache(AvailabilityVersions versions, BookingProperties bookingProperties) {
+        this.versions = versions;
+        this.enabled = bookingProperties.getCache().isEnabled();
+        this.maxEntries = bookingProperties.getCache().getMaxEntries();
+    }
+
+    public V get(short deviceId, Function<Short, V> loader) {
+        if (!enabled) {
+            return loader.apply(deviceId);
+        }
+
+        long version = versions.stableVersion(deviceId);
+        Entry<V> entry = entries.get(deviceId);
+        if (entry != null && version >= 0 && entry.version == version) {
+            entry.lastAccess = clock.incrementAndGet();
+            hits.increment();
+            return entry.value;
+        }
+
+        misses.increment();
+        return store(deviceId, version, loader.apply(deviceId));
+    }
+
+    /**
+     * Serves the cached devices and loads all the others with a single loader call.
+     *
+     * @return availability lists in device id order; devices the loader does not know are left out
+     */
+    public Map<Short, V> getAll(Collection<Short> deviceIds,
+                                                          Function<Collection<Short>, Map<Short, V>> loader) {
+        if (!enabled) {
+            return loader.apply(deviceIds);
+        }
+
+        Map<Short, V> result = new TreeMap<>();
+        Map<Short, Long> missed = new TreeMap<>();
+        for (Short deviceId : deviceIds) {
+            long version = versions.stableVersion(deviceId);
+            Entry<V> entry = entries.get(deviceId);
+            if (entry != null && version >= 0 && entry.version == version) {
+                entry.lastAccess = clock.incrementAndGet();
+                hits.increment();
+                result.put(deviceId, entry.value);
+            } else {
+                missed.put(deviceId, version);
+            }
+        }
+
+        if (!missed.isEmpty()) {
+            misses.add(missed.size());
+            loader.apply(missed.keySet()).forEach((deviceId, value) ->
+                    result.put(deviceId, store(deviceId, missed.get(deviceId), value)));
+        }
+        return result;
+    }
+
+    private V store(short deviceId, long version, V value) {
+        if (versions.isUnchanged(deviceId, version)) {
+            entries.put(deviceId, new Entry<>(version, value, clock.incrementAndGet()));
+            if (entries.size() > maxEntries) {
+                evictLeastRecentlyUsed();
+            }
+        }
+        return value;
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), entries.size());
+    }
+
+    private void evictLeastRecentlyUsed() {
+        while (entries.size() > maxEntries) {
+            Map.Entry<Short, Entry<V>> oldest = null;
+            for (Map.Entry<Short, Entry<V>> candidate : entries.entrySet()) {
+                if (oldest == null || candidate.getValue().lastAccess < oldest.getValue().lastAccess) {
+                    oldest = candidate;
+                }
+            }
+            if (oldest == null || !entries.remove(oldest.getKey(), oldest.getValue())) {
+                return;
+            }
+            evictions.increment();
+        }
+    }
+
+    @Value
+    public static class Stats {
+        long hits;
+        long misses;
+        long evictions;
+        int size;
+    }
+
+    private static class Entry<V> {
+        private final long version;
+        private final V value;
+        private volatile long lastAccess;
+
+        private Entry(long version, V value, long lastAccess) {
+            this.version = version;
+            this.value = value;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.booking.cache;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-device write counters. A device is stable when every started write has finished,
+ * and its version is the number of finished writes. Versions restart with the process,
+ * so they are only comparable within one {@link #getEpoch() epoch}.
+ */
+@Component
+public class AvailabilityVersions {
+    private static final int SIZE = Short.MAX_VALUE + 1;
+
+    private final long epoch = System.currentTimeMillis();
+    private final AtomicLongArray started = new AtomicLongArray(SIZE);
+    private final AtomicLongArray finished = new AtomicLongArray(SIZE);
+    private final AtomicLong startedTotal = new AtomicLong();
+    private final AtomicLong finishedTotal = new AtomicLong();
+
+    public void beginWrite(short deviceId) {
+        if (deviceId >= 0) {
+            started.incrementAndGet(deviceId);
+            startedTotal.incrementAndGet();
+        }
+    }
+
+    public void endWrite(short deviceId) {
+        if (deviceId >= 0) {
+            finished.incrementAndGet(deviceId);
+            finishedTotal.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return start time of this process, which tells versions of different runs apart
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the number of finished writes, or -1 when a write is in progress or the id is out of range
+     */
+    public long stableVersion(short deviceId) {
+        if (deviceId < 0) {
+            return -1;
+        }
+        long version = finished.get(deviceId);
+        return started.get(deviceId) == version ? version : -1;
+    }
+
+    /**
+     * Version of several devices together: the sum of their finished writes, which grows with every write
+     * of any of them.
+     *
+     * @param deviceIds devices, or null for every device
+     * @return the version, or -1 when a write of one of the devices is in progress or an id is out of range
+     */
+    public long stableVersion(Collection<Short> deviceIds) {
+        if (deviceIds == null) {
+            long version = finishedTotal.get();
+            return startedTotal.get() == version ? version : -1;
+        }
+        long version = 0;
+        for (Short deviceId : deviceIds) {
+            if (deviceId < 0) {
+                return -1;
+            }
+            version += finished.get(deviceId);
+        }
+        return startedSum(deviceIds) == version ? version : -1;
+    }
+
+    /**
+     * @return true when no write started after the device was observed at {@code version}
+     */
+    public boolean isUnchanged(short deviceId, long version) {
+        return version >= 0 && started.get(deviceId) == version;
+    }
+
+    /**
+     * @return true when no write of the devices started after they were observed at {@code version}
+     */
+    public boolean isUnchanged(Collection<Short> deviceIds, long version) {
+        return version >= 0 && (deviceIds == null ? startedTotal.get() : startedSum(deviceIds)) == version;
+    }
+
+    private long startedSum(Collection<Short> deviceIds) {
+        long sum = 0;
+        for (Short deviceId : deviceIds) {
+            sum += started.get(deviceId);
+        }
+        return sum;
+    }
+}
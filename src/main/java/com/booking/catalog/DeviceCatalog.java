@@ -0,0 +1,187 @@
+package com.booking.catalog;
+
+import com.booking.cache.AvailabilityCache;
+import com.booking.cache.AvailabilityVersions;
+import com.booking.config.BookingProperties;
+import com.booking.dto.AvailabilitySummaryDto;
+import com.booking.dto.BookingAvailabilityDto;
+import com.booking.metrics.BookingMetrics;
+import com.booking.model.Device;
+import com.booking.replica.ReplicaRouting;
+import com.booking.repository.BookingRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Bookable devices loaded from the database into an array indexed by the short device id, so a lookup
+ * is one bounds check and one array read. A reload builds a new array and swaps it in with a single
+ * volatile write; readers always see one complete catalog.
+ * <p>
+ * Devices added or removed count as a write of each of them: their versions, and so every ETag covering them,
+ * move on, and cached availability is dropped. Engines that count availability in memory register with
+ * {@link #onChange} and start counting an added device before the catalog offers it.
+ */
+@Slf4j
+@Component
+@DependsOnDatabaseInitialization
+public class DeviceCatalog {
+    private static final Device[] EMPTY = new Device[0];
+
+    private final BookingRepository bookingRepository;
+    private final BookingMetrics bookingMetrics;
+    private final ReplicaRouting replicaRouting;
+    private final AvailabilityVersions availabilityVersions;
+    private final AvailabilityCache<List<BookingAvailabilityDto>> availabilityCache;
+    private final AvailabilityCache<AvailabilitySummaryDto> availabilitySummaryCache;
+    private final ScheduledExecutorService reloader;
+    private final List<Consumer<Set<Short>>> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile Device[] devices = EMPTY;
+    private volatile List<Device> all = List.of();
+
+    public DeviceCatalog(@Autowired BookingRepository bookingRepository,
+                         @Autowired BookingMetrics bookingMetrics,
+                         @Autowired BookingProperties bookingProperties,
+                         @Autowired ReplicaRouting replicaRouting,
+                         @Autowired AvailabilityVersions availabilityVersions,
+                         @Autowired AvailabilityCache<List<BookingAvailabilityDto>> availabilityCache,
+                         @Autowired AvailabilityCache<AvailabilitySummaryDto> availabilitySummaryCache) {
+        this.bookingRepository = bookingRepository;
+        this.bookingMetrics = bookingMetrics;
+        this.replicaRouting = replicaRouting;
+        this.availabilityVersions = availabilityVersions;
+        this.availabilityCache = availabilityCache;
+        this.availabilitySummaryCache = availabilitySummaryCache;
+        reload();
+
+        Duration interval = bookingProperties.getCatalog().getReloadInterval();
+        if (interval.isZero() || interval.isNegative()) {
+            this.reloader = null;
+        } else {
+            this.reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "device-catalog-reload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.reloader.scheduleWithFixedDelay(this::reloadQuietly,
+                    interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public boolean contains(short deviceId) {
+        Device[] current = devices;
+        return deviceId >= 0 && deviceId < current.length && current[deviceId] != null;
+    }
+
+    /**
+     * @return the device, or null when it is not in the catalog
+     */
+    public Device find(short deviceId) {
+        Device[] current = devices;
+        return deviceId >= 0 && deviceId < current.length ? current[deviceId] : null;
+    }
+
+    /**
+     * @return every device, ordered by id
+     */
+    public List<Device> findAll() {
+        return all;
+    }
+
+    /**
+     * Registers a callback that gets the device ids of a reload that adds or removes devices, before the new
+     * catalog is swapped in. A callback that throws fails the reload, so the catalog never offers a device
+     * an engine can't book.
+     */
+    public void onChange(Consumer<Set<Short>> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Loads the catalog again and swaps it in.
+     *
+     * @return the new catalog, ordered by id
+     */
+    public synchronized List<Device> reload() {
+        List<Device> loaded = bookingRepository.findAllDevices();
+        int size = 0;
+        for (Device device : loaded) {
+            size = Math.max(size, device.getId() + 1);
+        }
+        Device[] next = new Device[size];
+        for (Device device : loaded) {
+            next[device.getId()] = device;
+        }
+
+        List<Short> deviceIds = new ArrayList<>(loaded.size());
+        loaded.forEach(device -> deviceIds.add(device.getId()));
+        bookingMetrics.registerDevices(deviceIds);
+        if (devices != EMPTY && !loaded.equals(all)) {
+            // devices added or removed outside the repository reach the replicas only with a full copy;
+            // the replicas start with one, so the first load needs none
+            replicaRouting.resyncAll();
+        }
+        Set<Short> changedIds = changedIds(all, loaded);
+        if (!changedIds.isEmpty()) {
+            Set<Short> loadedIds = Set.copyOf(deviceIds);
+            listeners.forEach(listener -> listener.accept(loadedIds));
+        }
+
+        all = Collections.unmodifiableList(loaded);
+        devices = next;
+        if (!changedIds.isEmpty()) {
+            for (short deviceId : changedIds) {
+                availabilityVersions.beginWrite(deviceId);
+                availabilityVersions.endWrite(deviceId);
+            }
+            availabilityCache.invalidateAll();
+            availabilitySummaryCache.invalidateAll();
+        }
+        log.debug("Device catalog loaded with {} devices", loaded.size());
+        return all;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
+    }
+
+    /**
+     * @return ids of the devices in only one of the catalogs
+     */
+    private static Set<Short> changedIds(List<Device> before, List<Device> after) {
+        Set<Short> changed = new HashSet<>();
+        before.forEach(device -> changed.add(device.getId()));
+        for (Device device : after) {
+            if (!changed.remove(device.getId())) {
+                changed.add(device.getId());
+            }
+        }
+        return changed;
+    }
+
+    private void reloadQuietly() {
+        try {
+            reload();
+        } catch (RuntimeException e) {
+            log.warn("Device catalog reload failed, keeping {} devices: {}", all.size(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.booking.config;
+
+import com.booking.async.CompletedFutureReturnValueHandler;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.method.support.HandlerMethodReturnValueHandler;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Configuration
+public class AsyncConfiguration {
+    /**
+     * Puts the {@link CompletedFutureReturnValueHandler} ahead of Spring MVC's own handlers, which would
+     * otherwise take every {@code CompletableFuture} down the async path.
+     */
+    @Bean
+    public SmartInitializingSingleton completedFutureReturnValueHandler(RequestMappingHandlerAdapter handlerAdapter) {
+        return () -> {
+            List<HandlerMethodReturnValueHandler> handlers = new ArrayList<>(handlerAdapter.getReturnValueHandlers());
+            handlers.add(0, new CompletedFutureReturnValueHandler(handlerAdapter.getReturnValueHandlers()));
+            handlerAdapter.setReturnValueHandlers(handlers);
+        };
+    }
+}
@@ -0,0 +1,395 @@
+package com.booking.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "booking")
+public class BookingProperties {
+    /**
+     * Engine that admits and persists book/return operations.
+     */
+    private Engine engine = Engine.JDBC;
+
+    private WriteBehind writeBehind = new WriteBehind();
+
+    private GroupCommit groupCommit = new GroupCommit();
+
+    private Cache cache = new Cache();
+
+    private Streaming streaming = new Streaming();
+
+    private Journal journal = new Journal();
+
+    private Bulk bulk = new Bulk();
+
+    private Feed feed = new Feed();
+
+    private Catalog catalog = new Catalog();
+
+    private Waitlist waitlist = new Waitlist();
+
+    private Lease lease = new Lease();
+
+    private Reservation reservation = new Reservation();
+
+    private Async async = new Async();
+
+    private Idempotency idempotency = new Idempotency();
+
+    private Admission admission = new Admission();
+
+    private Replicas replicas = new Replicas();
+
+    private Analytics analytics = new Analytics();
+
+    private Startup startup = new Startup();
+
+    public enum Engine {
+        /**
+         * Every operation is its own JDBC transaction.
+         */
+        JDBC,
+        /**
+         * Admission is decided by in-memory counters, database writes are applied asynchronously.
+         */
+        MEMORY,
+        /**
+         * Concurrent operations are collected and committed together in one transaction.
+         */
+        GROUP_COMMIT,
+        /**
+         * Admitted operations are appended to a local journal by a single writer, the database is updated asynchronously.
+         */
+        JOURNAL
+    }
+
+    @Data
+    public static class WriteBehind {
+        /**
+         * Maximum number of operations waiting to be persisted.
+         */
+        private int queueCapacity = 10_000;
+        /**
+         * Maximum number of operations persisted in a single transaction.
+         */
+        private int maxBatch = 500;
+        /**
+         * How long a caller waits for a free slot in a full queue before the operation is rejected.
+         */
+        private Duration offerTimeout = Duration.ofMillis(100);
+    }
+
+    @Data
+    public static class GroupCommit {
+        /**
+         * How long the committer waits for more operations after the first one of a group arrives.
+         */
+        private Duration window = Duration.ofMillis(2);
+        /**
+         * Maximum number of operations committed in a single transaction.
+         */
+        private int maxBatch = 256;
+    }
+
+    @Data
+    public static class Cache {
+        /**
+         * Serve availability reads from the per-device cache.
+         */
+        private boolean enabled = true;
+        /**
+         * Maximum number of devices kept in the cache; the least recently read ones are evicted first.
+         */
+        private int maxEntries = 1024;
+    }
+
+    @Data
+    public static class Streaming {
+        /**
+         * Rows fetched per round trip by cursor-based reads.
+         */
+        private int fetchSize = 256;
+        /**
+         * Largest page a booking history request may ask for.
+         */
+        private int maxPageSize = 500;
+    }
+
+    @Data
+    public static class Journal {
+        /**
+         * Directory of the journal segments and snapshots.
+         */
+        private Path directory = Path.of("journal");
+        /**
+         * Events per segment file; a full segment is closed and a new one started.
+         */
+        private int segmentEvents = 65_536;
+        /**
+         * Events appended between two snapshots of the current state.
+         */
+        private int snapshotEvery = 10_000;
+        /**
+         * Force appended events to disk before an operation is acknowledged.
+         */
+        private boolean fsync = true;
+        /**
+         * Maximum number of operations appended with one disk flush.
+         */
+        private int maxBatch = 256;
+        /**
+         * Move segments no longer needed for recovery to the archive subdirectory instead of deleting them.
+         */
+        private boolean archive = true;
+    }
+
+    @Data
+    public static class Bulk {
+        /**
+         * Largest number of items one bulk book or return request may carry.
+         */
+        private int maxItems = 100;
+    }
+
+    @Data
+    public static class Feed {
+        /**
+         * Largest number of open availability feed connections; further subscriptions are refused with 503.
+         */
+        private int maxSubscribers = 1000;
+        /**
+         * Lifetime of one feed connection, after which the client reconnects.
+         */
+        private Duration timeout = Duration.ofMinutes(30);
+        /**
+         * Interval of the keep-alive comments that also detect vanished clients.
+         */
+        private Duration heartbeat = Duration.ofSeconds(15);
+        /**
+         * Threads writing changes to subscribers.
+         */
+        private int dispatchThreads = 2;
+        /**
+         * Longest a write to one subscriber may block before the subscriber is disconnected.
+         */
+        private Duration sendTimeout = Duration.ofSeconds(10);
+    }
+
+    @Data
+    public static class Catalog {
+        /**
+         * How often the device catalog is reloaded from the database; 0 reloads only on request.
+         */
+        private Duration reloadInterval = Duration.ofMinutes(1);
+    }
+
+    @Data
+    public static class Waitlist {
+        /**
+         * Largest number of users waiting for one device.
+         */
+        private int maxPerDevice = 100;
+        /**
+         * How long a user waits for a unit before the entry expires.
+         */
+        private Duration maxWait = Duration.ofMinutes(10);
+        /**
+         * Longest time a waitlist poll is held open.
+         */
+        private Duration maxPoll = Duration.ofSeconds(30);
+        /**
+         * How long a finished entry can still be read.
+         */
+        private Duration retention = Duration.ofMinutes(5);
+    }
+
+    @Data
+    public static class Lease {
+        /**
+         * Longest lease a booking can ask for or be renewed to.
+         */
+        private Duration maxDuration = Duration.ofDays(30);
+        /**
+         * Resolution of lease expiry: a unit goes back at most one tick after its lease ends.
+         */
+        private Duration tick = Duration.ofMillis(100);
+    }
+
+    @Data
+    public static class Reservation {
+        /**
+         * Longest window one reservation can hold.
+         */
+        private Duration maxLength = Duration.ofDays(30);
+        /**
+         * Longest range a reservation or free capacity query can cover.
+         */
+        private Duration maxQueryRange = Duration.ofDays(90);
+        /**
+         * How often ended reservations are dropped from memory.
+         */
+        private Duration purgeInterval = Duration.ofMinutes(1);
+    }
+
+    @Data
+    public static class Async {
+        /**
+         * Handle book, return and availability requests on the bounded pools below instead of servlet threads.
+         */
+        private boolean enabled = false;
+        /**
+         * Threads handling reads; 0 gives reads the connections the write threads leave.
+         */
+        private int readThreads = 0;
+        /**
+         * Threads handling writes; 0 gives writes half the connection pool.
+         */
+        private int writeThreads = 0;
+        /**
+         * Reads waiting for a thread before further ones are refused with 503.
+         */
+        private int readQueue = 200;
+        /**
+         * Writes waiting for a thread before further ones are refused with 503.
+         */
+        private int writeQueue = 100;
+        /**
+         * Retry-After sent with a refused request.
+         */
+        private Duration retryAfter = Duration.ofSeconds(1);
+    }
+
+    @Data
+    public static class Idempotency {
+        /**
+         * How long the outcome of a request sent with an idempotency key answers its retries.
+         */
+        private Duration ttl = Duration.ofHours(24);
+        /**
+         * Outcomes kept in memory; older ones are answered from the database.
+         */
+        private int maxEntries = 100_000;
+        /**
+         * How often expired outcomes are deleted.
+         */
+        private Duration purgeInterval = Duration.ofMinutes(10);
+    }
+
+    @Data
+    public static class Admission {
+        /**
+         * Shed book and return requests with 429 before they reach the database.
+         */
+        private boolean enabled = true;
+        /**
+         * Requests per second one user may send; 0 disables the per-user limit.
+         */
+        private int userRate = 20;
+        /**
+         * Requests one user may send at once after being idle.
+         */
+        private int userBurst = 40;
+        /**
+         * Buckets the users are hashed into, a power of two; users of the same stripe share a limit.
+         */
+        private int userStripes = 65_536;
+        /**
+         * Requests per second for one device; 0 disables the per-device limit.
+         */
+        private int deviceRate = 500;
+        /**
+         * Requests for one device at once after being idle.
+         */
+        private int deviceBurst = 1000;
+        /**
+         * Buckets the devices are hashed into, a power of two.
+         */
+        private int deviceStripes = 1024;
+        /**
+         * Lowest limit of operations running at once; 0 uses the connection pool size.
+         */
+        private int minLimit = 0;
+        /**
+         * Highest limit of operations running at once.
+         */
+        private int maxLimit = 200;
+    }
+
+    @Data
+    public static class Replicas {
+        /**
+         * JDBC URLs of the read replicas; availability reads go to the primary when empty.
+         */
+        private List<String> urls = new ArrayList<>();
+        /**
+         * How far behind a replica may serve reads over every device to clients that send no commit sequence;
+         * 0 sends those reads to the primary.
+         */
+        private Duration maxStaleness = Duration.ofSeconds(1);
+        /**
+         * How often committed changes are copied to the replicas.
+         */
+        private Duration syncInterval = Duration.ofMillis(20);
+        /**
+         * How often a replica out of rotation is tried again.
+         */
+        private Duration healthInterval = Duration.ofSeconds(5);
+        /**
+         * Connections of each replica's pool.
+         */
+        private int poolSize = 4;
+    }
+
+    @Data
+    public static class Analytics {
+        /**
+         * Follow per-device utilization of admitted bookings and returns.
+         */
+        private boolean enabled = true;
+        /**
+         * Time covered by one bucket; reports cover {@code buckets} of them, the last one up to now.
+         */
+        private Duration bucket = Duration.ofHours(1);
+        private int buckets = 24;
+        /**
+         * Users listed in a report.
+         */
+        private int topUsers = 5;
+        /**
+         * File the buckets are checkpointed to, so a restart only replays later bookings; the whole window
+         * is rebuilt from the bookings on start when not set.
+         */
+        private Path checkpointFile;
+        private Duration checkpointInterval = Duration.ofMinutes(1);
+    }
+
+    @Data
+    public static class Startup {
+        /**
+         * File the availability and active bookings are written to on shutdown and restored from on the next
+         * start, instead of loading them from the database; not written when not set.
+         */
+        private Path snapshotFile;
+        /**
+         * Rounds of book/return and availability requests run before the application reports ready; 0 skips
+         * the warm-up.
+         */
+        private int warmUpIterations = 0;
+        /**
+         * Stop once the warm-up is done, to record a class-data-sharing archive of a warmed-up run.
+         */
+        private boolean exitAfterWarmUp = false;
+        /**
+         * Response time under which the first API response after startup counts as fast.
+         */
+        private Duration fastResponse = Duration.ofMillis(20);
+    }
+}
@@ -0,0 +1,25 @@
+package com.booking.config;
+
+import com.booking.cache.AvailabilityCache;
+import com.booking.cache.AvailabilityVersions;
+import com.booking.dto.AvailabilitySummaryDto;
+import com.booking.dto.BookingAvailabilityDto;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.List;
+
+@Configuration
+public class CacheConfiguration {
+    @Bean
+    public AvailabilityCache<List<BookingAvailabilityDto>> availabilityCache(AvailabilityVersions availabilityVersions,
+                                                                             BookingProperties bookingProperties) {
+        return new AvailabilityCache<>(availabilityVersions, bookingProperties);
+    }
+
+    @Bean
+    public AvailabilityCache<AvailabilitySummaryDto> availabilitySummaryCache(AvailabilityVersions availabilityVersions,
+                                                                              BookingProperties bookingProperties) {
+        return new AvailabilityCache<>(availabilityVersions, bookingProperties);
+    }
+}
@@ -0,0 +1,76 @@
+package com.booking.config;
+
+import com.booking.cache.AvailabilityCache;
+import com.booking.dto.AvailabilitySummaryDto;
+import com.booking.dto.BookingAvailabilityDto;
+import com.booking.feed.AvailabilityFeed;
+import com.booking.metrics.BookingMetrics;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.List;
+
+/**
+ * Metrics beyond the ones Spring Boot binds itself; pool saturation comes from the hikaricp.connections.* meters.
+ */
+@Configuration
+public class MetricsConfiguration {
+    /**
+     * Replaces Spring Boot's JSON converter with one that times the serialization of every response body.
+     */
+    @Bean
+    public MappingJackson2HttpMessageConverter mappingJackson2HttpMessageConverter(ObjectMapper objectMapper,
+                                                                                   BookingMetrics bookingMetrics) {
+        return new MappingJackson2HttpMessageConverter(objectMapper) {
+            @Override
+            protected void writeInternal(Object object, Type type, HttpOutputMessage outputMessage) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    super.writeInternal(object, type, outputMessage);
+                } finally {
+                    bookingMetrics.recordSerialization(type != null ? type : object.getClass(), System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
+    @Bean
+    public MeterBinder availabilityCacheMetrics(AvailabilityCache<List<BookingAvailabilityDto>> availabilityCache,
+                                                AvailabilityCache<AvailabilitySummaryDto> availabilitySummaryCache) {
+        return registry -> {
+            bindCache("availability", availabilityCache, registry);
+            bindCache("availability-summary", availabilitySummaryCache, registry);
+        };
+    }
+
+    @Bean
+    public MeterBinder availabilityFeedMetrics(AvailabilityFeed availabilityFeed) {
+        return registry -> Gauge.builder("booking.feed.subscribers", availabilityFeed, AvailabilityFeed::subscriberCount)
+                .description("Open availability feed connections")
+                .register(registry);
+    }
+
+    private static void bindCache(String name, AvailabilityCache<?> cache, MeterRegistry registry) {
+        FunctionCounter.builder("booking.cache.hits", cache, c -> c.stats().getHits())
+                .tag("cache", name)
+                .register(registry);
+        FunctionCounter.builder("booking.cache.misses", cache, c -> c.stats().getMisses())
+                .tag("cache", name)
+                .register(registry);
+        FunctionCounter.builder("booking.cache.evictions", cache, c -> c.stats().getEvictions())
+                .tag("cache", name)
+                .register(registry);
+        Gauge.builder("booking.cache.size", cache, c -> c.stats().getSize())
+                .tag("cache", name)
+                .register(registry);
+    }
+}
@@ -1,81 +1,856 @@
 package com.booking.controller;
 
+import com.booking.admission.AdmissionControl;
+import com.booking.async.RequestExecutors;
+import com.booking.cache.AvailabilityVersions;
+import com.booking.catalog.DeviceCatalog;
+import com.booking.config.BookingProperties;
+import com.booking.dto.AvailabilitySummaryDto;
 import com.booking.dto.BookingAvailabilityDto;
 import com.booking.dto.BookingDto;
-import com.booking.model.Phone;
+import com.booking.dto.BookingHistoryDto;
+import com.booking.dto.BulkBookingRequestDto;
+import com.booking.dto.BulkBookingResultDto;
+import com.booking.dto.BulkItemResultDto;
+import com.booking.dto.DeviceDto;
+import com.booking.dto.FreeCapacityDto;
+import com.booking.dto.LeaseDto;
+import com.booking.dto.LeaseRenewalDto;
+import com.booking.dto.ReservationDto;
+import com.booking.dto.ReservationRequestDto;
+import com.booking.dto.UtilizationDto;
+import com.booking.dto.WaitlistEntryDto;
+import com.booking.dto.WaitlistRequestDto;
+import com.booking.feed.AvailabilityFeed;
+import com.booking.idempotency.IdempotencyKeys;
+import com.booking.model.BookingOutcome;
+import com.booking.model.Device;
+import com.booking.model.FreeCapacity;
+import com.booking.model.Lease;
+import com.booking.model.Reservation;
+import com.booking.model.WaitlistState;
+import com.booking.replica.ReplicaRouting;
 import com.booking.service.BookingService;
+import com.booking.waitlist.WaitlistEntry;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.CollectionUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.validation.Valid;
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 
 @Slf4j
 @RestController
 @RequestMapping("/api/v1/phone")
 public class BookingController {
+    private static final int FEED_RETRY_AFTER_SECONDS = 5;
+
     private final BookingService bookingService;
+    private final AvailabilityFeed availabilityFeed;
+    private final AvailabilityVersions availabilityVersions;
+    private final DeviceCatalog deviceCatalog;
+    private final RequestExecutors requestExecutors;
+    private final AdmissionControl admissionControl;
+    private final ReplicaRouting replicaRouting;
+    private final ObjectWriter lineWriter;
+    private final int maxPageSize;
+    private final int maxBulkItems;
+    private final long maxWaitlistPollMillis;
+    private final long maxLeaseSeconds;
+    private final long maxReservationMillis;
+    private final long maxReservationQueryMillis;
 
-    public BookingController(@Autowired BookingService bookingService) {
+    public BookingController(@Autowired BookingService bookingService,
+                             @Autowired AvailabilityFeed availabilityFeed,
+                             @Autowired AvailabilityVersions availabilityVersions,
+                             @Autowired DeviceCatalog deviceCatalog,
+                             @Autowired RequestExecutors requestExecutors,
+                             @Autowired AdmissionControl admissionControl,
+                             @Autowired ReplicaRouting replicaRouting,
+                             @Autowired ObjectMapper objectMapper,
+                             @Autowired BookingProperties bookingProperties) {
         this.bookingService = bookingService;
+        this.availabilityFeed = availabilityFeed;
+        this.availabilityVersions = availabilityVersions;
+        this.deviceCatalog = deviceCatalog;
+        this.requestExecutors = requestExecutors;
+        this.admissionControl = admissionControl;
+        this.replicaRouting = replicaRouting;
+        this.lineWriter = objectMapper.writerFor(BookingAvailabilityDto.class)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        this.maxPageSize = bookingProperties.getStreaming().getMaxPageSize();
+        this.maxBulkItems = bookingProperties.getBulk().getMaxItems();
+        this.maxWaitlistPollMillis = bookingProperties.getWaitlist().getMaxPoll().toMillis();
+        this.maxLeaseSeconds = bookingProperties.getLease().getMaxDuration().toSeconds();
+        this.maxReservationMillis = bookingProperties.getReservation().getMaxLength().toMillis();
+        this.maxReservationQueryMillis = bookingProperties.getReservation().getMaxQueryRange().toMillis();
     }
 
     @Operation(summary = "Book device")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "Successful operation"),
-            @ApiResponse(responseCode = "400", description = "Validation exception")
+            @ApiResponse(responseCode = "400", description = "Validation exception or lease too long"),
+            @ApiResponse(responseCode = "404", description = "Unknown phone"),
+            @ApiResponse(responseCode = "409", description = "Phone sold out or already booked with this timestamp"),
+            @ApiResponse(responseCode = "422", description = "The idempotency key was used for a different request"),
+            @ApiResponse(responseCode = "429", description = "Too many requests of the user or for the phone, retry later"),
+            @ApiResponse(responseCode = "503", description = "Too many writes waiting, retry later")
     })
     @PostMapping("/book")
-    public void bookPhone(@Valid
-                          @Parameter(description = "Book phone information", required = true)
-                          @RequestBody BookingDto bookingDto) {
-        if (Arrays.stream(Phone.values()).noneMatch(device -> device.getId() == bookingDto.getDeviceId())) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+    public CompletableFuture<ResponseEntity<Void>> bookPhone(@Valid
+                                                             @Parameter(description = "Book phone information", required = true)
+                                                             @RequestBody BookingDto bookingDto,
+                                                             @Parameter(description = "Retries with the same key are applied once")
+                                                             @RequestHeader(name = IdempotencyKeys.HEADER, required = false)
+                                                             String idempotencyKey) {
+        checkLease(bookingDto.getLeaseSeconds());
+        checkIdempotencyKey(idempotencyKey);
+        if (!deviceCatalog.contains(bookingDto.getDeviceId())) {
+            return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
         }
-        bookingService.bookPhone(bookingDto);
+        long wait = admissionControl.admit(bookingDto.getUserName(), bookingDto.getDeviceId());
+        if (wait > 0) {
+            return CompletableFuture.completedFuture(AdmissionControl.tooManyRequests(wait));
+        }
+        return requestExecutors.write(() -> admissionControl.limit(
+                () -> withCommitSequence(toResponse(bookingService.bookPhone(bookingDto, idempotencyKey)))));
     }
 
     @Operation(summary = "Book device by id ")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "Successful operation"),
-            @ApiResponse(responseCode = "400", description = "Validation exception")
+            @ApiResponse(responseCode = "400", description = "Validation exception"),
+            @ApiResponse(responseCode = "404", description = "Unknown phone"),
+            @ApiResponse(responseCode = "409", description = "Phone is not booked by the user"),
+            @ApiResponse(responseCode = "422", description = "The idempotency key was used for a different request"),
+            @ApiResponse(responseCode = "429", description = "Too many requests of the user or for the phone, retry later"),
+            @ApiResponse(responseCode = "503", description = "Too many writes waiting, retry later")
     })
     @PostMapping("/return")
-    public void returnPhone(@Valid
-                            @Parameter(description = "Return phone", required = true)
-                            @RequestBody BookingDto bookingDto) {
-        if (Arrays.stream(Phone.values()).noneMatch(device -> device.getId() == bookingDto.getDeviceId())) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+    public CompletableFuture<ResponseEntity<Void>> returnPhone(@Valid
+                                                               @Parameter(description = "Return phone", required = true)
+                                                               @RequestBody BookingDto bookingDto,
+                                                               @Parameter(description = "Retries with the same key are applied once")
+                                                               @RequestHeader(name = IdempotencyKeys.HEADER, required = false)
+                                                               String idempotencyKey) {
+        checkIdempotencyKey(idempotencyKey);
+        if (!deviceCatalog.contains(bookingDto.getDeviceId())) {
+            return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
+        }
+        long wait = admissionControl.admit(bookingDto.getUserName(), bookingDto.getDeviceId());
+        if (wait > 0) {
+            return CompletableFuture.completedFuture(AdmissionControl.tooManyRequests(wait));
+        }
+        return requestExecutors.write(() -> admissionControl.limit(
+                () -> withCommitSequence(toResponse(bookingService.returnPhone(bookingDto, idempotencyKey)))));
+    }
+
+    @Operation(summary = "Book several devices in one transaction, all or nothing unless mode is BEST_EFFORT")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Request applied, result per item"),
+            @ApiResponse(responseCode = "400", description = "Validation exception, too many items or a lease too long"),
+            @ApiResponse(responseCode = "409", description = "Atomic request rejected and nothing applied, result per item"),
+            @ApiResponse(responseCode = "429", description = "Too many requests of a user or for a phone, retry later"),
+            @ApiResponse(responseCode = "503", description = "Too many writes waiting, retry later")
+    })
+    @PostMapping("/book/bulk")
+    public CompletableFuture<ResponseEntity<BulkBookingResultDto>> bookPhones(
+            @Valid
+            @Parameter(description = "Devices to book", required = true)
+            @RequestBody BulkBookingRequestDto request) {
+        request.getItems().forEach(item -> checkLease(item.getLeaseSeconds()));
+        return applyBulk(request, bookingService::bookPhones);
+    }
+
+    @Operation(summary = "Return several devices in one transaction, all or nothing unless mode is BEST_EFFORT")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Request applied, result per item"),
+            @ApiResponse(responseCode = "400", description = "Validation exception or too many items"),
+            @ApiResponse(responseCode = "409", description = "Atomic request rejected and nothing applied, result per item"),
+            @ApiResponse(responseCode = "429", description = "Too many requests of a user or for a phone, retry later"),
+            @ApiResponse(responseCode = "503", description = "Too many writes waiting, retry later")
+    })
+    @PostMapping("/return/bulk")
+    public CompletableFuture<ResponseEntity<BulkBookingResultDto>> returnPhones(
+            @Valid
+            @Parameter(description = "Devices to return", required = true)
+            @RequestBody BulkBookingRequestDto request) {
+        return applyBulk(request, bookingService::returnPhones);
+    }
+
+    @Operation(summary = "Renew the lease of a booking: the unit is returned the given seconds from now")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Lease renewed"),
+            @ApiResponse(responseCode = "400", description = "Validation exception or lease too long"),
+            @ApiResponse(responseCode = "404", description = "The booking has no lease, or it ended")
+    })
+    @PostMapping("/lease/renew")
+    public ResponseEntity<LeaseDto> renewLease(@Valid
+                                               @Parameter(description = "Booking and new lease", required = true)
+                                               @RequestBody LeaseRenewalDto request) {
+        checkLease(request.getLeaseSeconds());
+        Lease lease = bookingService.renewLease(request.getUserName(), request.getDeviceId(),
+                request.getTimestamp(), request.getLeaseSeconds());
+        if (lease == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(toDto(lease));
+    }
+
+    @Operation(summary = "Reserve a unit of the device for a future time window")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "201", description = "Reserved"),
+            @ApiResponse(responseCode = "400", description = "Validation exception, window not in the future or too long"),
+            @ApiResponse(responseCode = "404", description = "Unknown phone"),
+            @ApiResponse(responseCode = "409", description = "Every unit is reserved at some point of the window")
+    })
+    @PostMapping("/{phoneId}/reservations")
+    public ResponseEntity<ReservationDto> reserve(
+            @Parameter(name = "phoneId", description = "Phone identifier")
+            @PathVariable Short phoneId,
+            @Valid
+            @Parameter(description = "User and window to reserve", required = true)
+            @RequestBody ReservationRequestDto request) {
+        if (request.getStart() <= System.currentTimeMillis()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "start must be in the future");
+        }
+        checkWindow(request.getStart(), request.getEnd(), maxReservationMillis);
+        if (!deviceCatalog.contains(phoneId)) {
+            return ResponseEntity.notFound().build();
+        }
+        Reservation reservation = bookingService.reserve(phoneId, request.getUserName(), request.getStart(), request.getEnd());
+        if (reservation == null) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        return ResponseEntity.status(HttpStatus.CREATED).body(toDto(reservation));
+    }
+
+    @Operation(summary = "Get reservations of the device overlapping a time window, ordered by start")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successful operation"),
+            @ApiResponse(responseCode = "400", description = "Empty or too long window"),
+            @ApiResponse(responseCode = "404", description = "Unknown phone")
+    })
+    @GetMapping("/{phoneId}/reservations")
+    public ResponseEntity<List<ReservationDto>> reservations(
+            @Parameter(name = "phoneId", description = "Phone identifier")
+            @PathVariable Short phoneId,
+            @Parameter(name = "from", description = "Window start, timestamp in UTC")
+            @RequestParam(name = "from") long from,
+            @Parameter(name = "to", description = "Window end, timestamp in UTC, exclusive")
+            @RequestParam(name = "to") long to) {
+        checkWindow(from, to, maxReservationQueryMillis);
+        if (!deviceCatalog.contains(phoneId)) {
+            return ResponseEntity.notFound().build();
+        }
+        List<Reservation> reservations = bookingService.findReservations(phoneId, from, to);
+        List<ReservationDto> result = new ArrayList<>(reservations.size());
+        for (Reservation reservation : reservations) {
+            result.add(toDto(reservation));
+        }
+        return ResponseEntity.ok(result);
+    }
+
+    @Operation(summary = "Get the units of the device left to reserve over a time window, "
+            + "as consecutive windows of the same free count")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successful operation"),
+            @ApiResponse(responseCode = "400", description = "Empty or too long window"),
+            @ApiResponse(responseCode = "404", description = "Unknown phone")
+    })
+    @GetMapping("/{phoneId}/reservations/capacity")
+    public ResponseEntity<List<FreeCapacityDto>> freeCapacity(
+            @Parameter(name = "phoneId", description = "Phone identifier")
+            @PathVariable Short phoneId,
+            @Parameter(name = "from", description = "Window start, timestamp in UTC")
+            @RequestParam(name = "from") long from,
+            @Parameter(name = "to", description = "Window end, timestamp in UTC, exclusive")
+            @RequestParam(name = "to") long to) {
+        checkWindow(from, to, maxReservationQueryMillis);
+        if (!deviceCatalog.contains(phoneId)) {
+            return ResponseEntity.notFound().build();
+        }
+        List<FreeCapacity> capacity = bookingService.findFreeCapacity(phoneId, from, to);
+        List<FreeCapacityDto> result = new ArrayList<>(capacity.size());
+        for (FreeCapacity window : capacity) {
+            result.add(new FreeCapacityDto(window.getFrom(), window.getTo(), window.getFree()));
+        }
+        return ResponseEntity.ok(result);
+    }
+
+    @Operation(summary = "Cancel a reservation")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Reservation cancelled"),
+            @ApiResponse(responseCode = "404", description = "The user has no such reservation of the phone")
+    })
+    @DeleteMapping("/{phoneId}/reservations/{reservationId}")
+    public ResponseEntity<ReservationDto> cancelReservation(
+            @Parameter(name = "phoneId", description = "Phone identifier")
+            @PathVariable Short phoneId,
+            @Parameter(name = "reservationId", description = "Reservation identifier")
+            @PathVariable long reservationId,
+            @Parameter(name = "userName", description = "User identifier who reserved the phone")
+            @RequestParam(name = "userName") String userName) {
+        if (!deviceCatalog.contains(phoneId)) {
+            return ResponseEntity.notFound().build();
         }
-        bookingService.returnPhone(bookingDto);
+        Reservation reservation = bookingService.cancelReservation(phoneId, reservationId, userName);
+        if (reservation == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(toDto(reservation));
+    }
+
+    @Operation(summary = "Wait for a sold-out device: the next returned unit is booked for the head of the queue")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "A unit was free and is booked for the user"),
+            @ApiResponse(responseCode = "202", description = "Queued, poll the entry to learn when it is booked"),
+            @ApiResponse(responseCode = "400", description = "Validation exception"),
+            @ApiResponse(responseCode = "404", description = "Unknown phone"),
+            @ApiResponse(responseCode = "409", description = "The waitlist of the phone is full")
+    })
+    @PostMapping("/waitlist")
+    public ResponseEntity<WaitlistEntryDto> joinWaitlist(@Valid
+                                                         @Parameter(description = "Phone and user to queue", required = true)
+                                                         @RequestBody WaitlistRequestDto request) {
+        if (!deviceCatalog.contains(request.getDeviceId())) {
+            return ResponseEntity.notFound().build();
+        }
+        WaitlistEntry entry = bookingService.joinWaitlist(request.getDeviceId(), request.getUserName());
+        if (entry == null) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        return ResponseEntity.status(entry.getState() == WaitlistState.WAITING ? HttpStatus.ACCEPTED : HttpStatus.OK)
+                .body(toDto(entry));
+    }
+
+    @Operation(summary = "Get a waitlist entry, waiting up to the given seconds for it to leave the WAITING state")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Current state of the entry"),
+            @ApiResponse(responseCode = "404", description = "Unknown or forgotten entry")
+    })
+    @GetMapping("/waitlist/{entryId}")
+    public DeferredResult<ResponseEntity<WaitlistEntryDto>> waitlistEntry(
+            @Parameter(name = "entryId", description = "Waitlist entry identifier")
+            @PathVariable String entryId,
+            @Parameter(name = "wait", description = "Seconds to wait for a change, 0 answers at once")
+            @RequestParam(name = "wait", defaultValue = "0") int waitSeconds) {
+        long timeout = Math.min(TimeUnit.SECONDS.toMillis(Math.max(waitSeconds, 0)), maxWaitlistPollMillis);
+        WaitlistEntry entry = bookingService.findWaitlistEntry(entryId);
+        DeferredResult<ResponseEntity<WaitlistEntryDto>> result = new DeferredResult<>(timeout);
+        if (entry == null) {
+            result.setResult(ResponseEntity.notFound().build());
+        } else if (timeout == 0 || entry.getState().isFinal()) {
+            result.setResult(ResponseEntity.ok(toDto(entry)));
+        } else {
+            result.onTimeout(() -> result.setResult(ResponseEntity.ok(toDto(entry))));
+            entry.whenFinished().thenAccept(finished -> result.setResult(ResponseEntity.ok(toDto(finished))));
+        }
+        return result;
+    }
+
+    @Operation(summary = "Leave the waitlist")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Entry cancelled"),
+            @ApiResponse(responseCode = "404", description = "Unknown or forgotten entry"),
+            @ApiResponse(responseCode = "409", description = "The entry already finished, e.g. it is booked")
+    })
+    @DeleteMapping("/waitlist/{entryId}")
+    public ResponseEntity<WaitlistEntryDto> cancelWaitlistEntry(
+            @Parameter(name = "entryId", description = "Waitlist entry identifier")
+            @PathVariable String entryId) {
+        WaitlistEntry entry = bookingService.cancelWaitlistEntry(entryId);
+        if (entry == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.status(entry.getState() == WaitlistState.CANCELLED ? HttpStatus.OK : HttpStatus.CONFLICT)
+                .body(toDto(entry));
     }
 
     @Operation(summary = "Get phones availability")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "Successful operation"),
-            @ApiResponse(responseCode = "400", description = "Validation exception")
+            @ApiResponse(responseCode = "304", description = "Not modified since the version in If-None-Match"),
+            @ApiResponse(responseCode = "400", description = "Validation exception"),
+            @ApiResponse(responseCode = "503", description = "Too many reads waiting, retry later")
     })
     @GetMapping("/{phoneId}")
-    public ResponseEntity<List<BookingAvailabilityDto>> availability(
+    public CompletableFuture<ResponseEntity<List<BookingAvailabilityDto>>> availability(
             @Parameter(name = "phoneId", description = "Phone identifier")
-            @PathVariable Short phoneId) {
-        List<BookingAvailabilityDto> bookingDtos = bookingService.findByPhoneId(phoneId);
-        if (CollectionUtils.isEmpty(bookingDtos)) {
+            @PathVariable Short phoneId,
+            @Parameter(description = "Commit sequence of the client's last write, to read no older state than it")
+            @RequestHeader(name = ReplicaRouting.HEADER, required = false) Long minSequence,
+            WebRequest webRequest) {
+        if (!deviceCatalog.contains(phoneId)) {
+            return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
+        }
+        // answered on the servlet thread: the check writes the 304 response itself
+        long version = availabilityVersions.stableVersion(phoneId);
+        String etag = version >= 0 ? etag(version) : null;
+        if (etag != null && notModified(webRequest, etag)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return requestExecutors.read(() -> {
+            List<BookingAvailabilityDto> bookingDtos =
+                    replicaRouting.withSession(minSequence, () -> bookingService.findByPhoneId(phoneId));
+            if (CollectionUtils.isEmpty(bookingDtos)) {
+                return ResponseEntity.notFound().build();
+            }
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_STREAM_JSON)
+                    .cacheControl(CacheControl.noCache());
+            if (etag != null && availabilityVersions.isUnchanged(phoneId, version)) {
+                response.eTag(etag);
+            }
+            return response.body(bookingDtos);
+        });
+    }
+
+    @Operation(summary = "Get phone availability summary: free and booked counts with booked units only")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successful operation"),
+            @ApiResponse(responseCode = "404", description = "Unknown phone")
+    })
+    @GetMapping(value = "/{phoneId}", params = "view=summary")
+    public ResponseEntity<AvailabilitySummaryDto> availabilitySummary(
+            @Parameter(name = "phoneId", description = "Phone identifier")
+            @PathVariable Short phoneId,
+            @Parameter(description = "Commit sequence of the client's last write, to read no older state than it")
+            @RequestHeader(name = ReplicaRouting.HEADER, required = false) Long minSequence) {
+        AvailabilitySummaryDto summary =
+                replicaRouting.withSession(minSequence, () -> bookingService.findSummaryByPhoneId(phoneId));
+        if (summary == null) {
             return ResponseEntity.notFound().build();
         }
         return ResponseEntity.ok()
-                .contentType(MediaType.APPLICATION_STREAM_JSON)
-                .body(bookingDtos);
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(summary);
+    }
+
+    @Operation(summary = "Get phone availability summary selected by the Accept header")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successful operation"),
+            @ApiResponse(responseCode = "404", description = "Unknown phone")
+    })
+    @GetMapping(value = "/{phoneId}", produces = AvailabilitySummaryDto.MEDIA_TYPE)
+    public ResponseEntity<AvailabilitySummaryDto> availabilitySummaryByMediaType(
+            @Parameter(name = "phoneId", description = "Phone identifier")
+            @PathVariable Short phoneId,
+            @Parameter(description = "Commit sequence of the client's last write, to read no older state than it")
+            @RequestHeader(name = ReplicaRouting.HEADER, required = false) Long minSequence) {
+        AvailabilitySummaryDto summary =
+                replicaRouting.withSession(minSequence, () -> bookingService.findSummaryByPhoneId(phoneId));
+        if (summary == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(AvailabilitySummaryDto.MEDIA_TYPE))
+                .body(summary);
+    }
+
+    @Operation(summary = "Stream phone availability as newline-delimited JSON")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successful operation"),
+            @ApiResponse(responseCode = "404", description = "Unknown phone")
+    })
+    @GetMapping(value = "/{phoneId}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> availabilityStream(
+            @Parameter(name = "phoneId", description = "Phone identifier")
+            @PathVariable Short phoneId,
+            @Parameter(description = "Commit sequence of the client's last write, to read no older state than it")
+            @RequestHeader(name = ReplicaRouting.HEADER, required = false) Long minSequence) {
+        if (replicaRouting.withSession(minSequence, () -> bookingService.findAvailability(phoneId)) == null) {
+            return ResponseEntity.notFound().build();
+        }
+        StreamingResponseBody body = outputStream -> {
+            try (JsonGenerator generator = lineWriter.getFactory().createGenerator(outputStream)) {
+                replicaRouting.withSession(minSequence, () -> bookingService.streamByPhoneId(phoneId,
+                        bookingAvailabilityDto -> {
+                            try {
+                                lineWriter.writeValue(generator, bookingAvailabilityDto);
+                                generator.writeRaw('\n');
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }));
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+
+    @Operation(summary = "Subscribe to availability changes as server-sent events: a snapshot first, "
+            + "then the current availability of a device whenever it changes")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Event stream opened"),
+            @ApiResponse(responseCode = "503", description = "Too many open subscriptions, retry later")
+    })
+    @GetMapping(value = "/feed", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> feed(
+            @Parameter(name = "ids", description = "Phone identifiers, all phones when omitted")
+            @RequestParam(name = "ids", required = false) List<Short> phoneIds) {
+        SseEmitter emitter = availabilityFeed.subscribe(phoneIds,
+                () -> bookingService.findByPhoneIds(phoneIds),
+                bookingService::findByPhoneId);
+        if (emitter == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(FEED_RETRY_AFTER_SECONDS))
+                    .build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.TEXT_EVENT_STREAM)
+                .body(emitter);
+    }
+
+    @Operation(summary = "Get phone booking history, newest first")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successful operation"),
+            @ApiResponse(responseCode = "400", description = "Validation exception")
+    })
+    @GetMapping("/{phoneId}/history")
+    public BookingHistoryDto history(
+            @Parameter(name = "phoneId", description = "Phone identifier")
+            @PathVariable Short phoneId,
+            @Parameter(name = "before", description = "nextBefore of the previous page")
+            @RequestParam(name = "before", required = false) Long before,
+            @Parameter(name = "beforeUser", description = "nextBeforeUser of the previous page")
+            @RequestParam(name = "beforeUser", required = false) String beforeUser,
+            @Parameter(name = "limit", description = "Page size")
+            @RequestParam(name = "limit", defaultValue = "50") int limit) {
+        if (limit <= 0 || limit > maxPageSize) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + maxPageSize);
+        }
+        return bookingService.findHistory(phoneId, before, beforeUser, limit);
+    }
+
+    @Operation(summary = "Get phone utilization over the analytics window: bookings, hold times, sold-out time, top users")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successful operation"),
+            @ApiResponse(responseCode = "404", description = "Unknown phone or analytics disabled")
+    })
+    @GetMapping("/{phoneId}/utilization")
+    public ResponseEntity<UtilizationDto> utilization(
+            @Parameter(name = "phoneId", description = "Phone identifier")
+            @PathVariable Short phoneId) {
+        UtilizationDto utilization = deviceCatalog.contains(phoneId) ? bookingService.findUtilization(phoneId) : null;
+        if (utilization == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(utilization);
+    }
+
+    @Operation(summary = "Get utilization of every phone over the analytics window")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successful operation"),
+            @ApiResponse(responseCode = "404", description = "Analytics disabled")
+    })
+    @GetMapping("/utilization")
+    public ResponseEntity<List<UtilizationDto>> utilizations() {
+        List<Short> phoneIds = new ArrayList<>();
+        deviceCatalog.findAll().forEach(device -> phoneIds.add(device.getId()));
+        List<UtilizationDto> utilizations = bookingService.findUtilization(phoneIds);
+        if (utilizations == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(utilizations);
+    }
+
+    @Operation(summary = "Get phones the user has booked and not returned yet")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successful operation")
+    })
+    @GetMapping("/users/{userName}/bookings")
+    public List<BookingDto> userBookings(
+            @Parameter(name = "userName", description = "User identifier")
+            @PathVariable String userName) {
+        return bookingService.findActiveByUser(userName);
+    }
+
+    @Operation(summary = "Get leases of the phones the user has booked and not returned yet")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successful operation")
+    })
+    @GetMapping("/users/{userName}/leases")
+    public List<LeaseDto> userLeases(
+            @Parameter(name = "userName", description = "User identifier")
+            @PathVariable String userName) {
+        List<Lease> leases = bookingService.findLeasesByUser(userName);
+        List<LeaseDto> result = new ArrayList<>(leases.size());
+        for (Lease lease : leases) {
+            result.add(toDto(lease));
+        }
+        return result;
+    }
+
+    @Operation(summary = "Get availability of all or selected phones")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successful operation"),
+            @ApiResponse(responseCode = "304", description = "Not modified since the version in If-None-Match"),
+            @ApiResponse(responseCode = "400", description = "Validation exception"),
+            @ApiResponse(responseCode = "503", description = "Too many reads waiting, retry later")
+    })
+    @GetMapping
+    public CompletableFuture<ResponseEntity<Map<Short, List<BookingAvailabilityDto>>>> availabilities(
+            @Parameter(name = "ids", description = "Phone identifiers, all phones when omitted")
+            @RequestParam(name = "ids", required = false) List<Short> phoneIds,
+            @Parameter(description = "Commit sequence of the client's last write, to read no older state than it")
+            @RequestHeader(name = ReplicaRouting.HEADER, required = false) Long minSequence,
+            WebRequest webRequest) {
+        long version = availabilityVersions.stableVersion(phoneIds);
+        // read after the version, so it numbers every commit the version counts
+        long sequence = replicaRouting.currentSequence();
+        String etag = version >= 0 ? etag(version) : null;
+        if (etag != null && notModified(webRequest, etag)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return requestExecutors.read(() -> {
+            ReplicaRouting.TrackedRead<Map<Short, List<BookingAvailabilityDto>>> availabilities =
+                    replicaRouting.withTrackedSession(minSequence, () -> bookingService.findByPhoneIds(phoneIds));
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .cacheControl(CacheControl.noCache());
+            // a replica that missed commits the version counts would label an older body with it
+            if (etag != null && availabilities.covers(sequence) && availabilityVersions.isUnchanged(phoneIds, version)) {
+                response.eTag(etag);
+            }
+            return response.body(availabilities.getResult());
+        });
+    }
+
+    @Operation(summary = "Get the bookable devices")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successful operation")
+    })
+    @GetMapping("/catalog")
+    public List<DeviceDto> catalog() {
+        return toDeviceDtos(deviceCatalog.findAll());
+    }
+
+    @Operation(summary = "Reload the bookable devices from the database")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Catalog reloaded")
+    })
+    @PostMapping("/catalog/reload")
+    public List<DeviceDto> reloadCatalog() {
+        return toDeviceDtos(deviceCatalog.reload());
+    }
+
+    private WaitlistEntryDto toDto(WaitlistEntry entry) {
+        return WaitlistEntryDto.builder()
+                .id(entry.getId())
+                .deviceId(entry.getDeviceId())
+                .userName(entry.getUserName())
+                .state(entry.getState())
+                .position(bookingService.waitlistPosition(entry))
+                .bookedAt(entry.getBookedAt())
+                .expiresAt(entry.getExpiresAt())
+                .build();
+    }
+
+    private static LeaseDto toDto(Lease lease) {
+        return LeaseDto.builder()
+                .deviceId(lease.getDeviceId())
+                .userName(lease.getUserName())
+                .timestamp(lease.getBookingTimestamp())
+                .expiresAt(lease.getExpiresAt())
+                .build();
+    }
+
+    private static ReservationDto toDto(Reservation reservation) {
+        return ReservationDto.builder()
+                .id(reservation.getId())
+                .deviceId(reservation.getDeviceId())
+                .userName(reservation.getUserName())
+                .start(reservation.getStart())
+                .end(reservation.getEnd())
+                .build();
+    }
+
+    private static void checkWindow(long from, long to, long maxMillis) {
+        if (to <= from || to - from > maxMillis) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "the window must end after it starts and last at most " + maxMillis / 1000 + " seconds");
+        }
+    }
+
+    private void checkLease(Long leaseSeconds) {
+        if (leaseSeconds != null && leaseSeconds > maxLeaseSeconds) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "leases last at most " + maxLeaseSeconds + " seconds");
+        }
+    }
+
+    private static void checkIdempotencyKey(String idempotencyKey) {
+        if (idempotencyKey != null && (idempotencyKey.isBlank() || idempotencyKey.length() > IdempotencyKeys.MAX_KEY_LENGTH)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    IdempotencyKeys.HEADER + " must have 1 to " + IdempotencyKeys.MAX_KEY_LENGTH + " characters");
+        }
+    }
+
+    private static List<DeviceDto> toDeviceDtos(List<Device> devices) {
+        List<DeviceDto> result = new ArrayList<>(devices.size());
+        for (Device device : devices) {
+            result.add(new DeviceDto(device.getId(), device.getName()));
+        }
+        return result;
+    }
+
+    /**
+     * Answers 304 when the request's {@code If-None-Match} holds the ETag. {@link WebRequest#checkNotModified}
+     * alone would also put the ETag on a response that goes on to be read, before it is known to match.
+     */
+    private static boolean notModified(WebRequest webRequest, String etag) {
+        String ifNoneMatch = webRequest.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return webRequest.checkNotModified(etag);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Strong validator of an availability view; the epoch keeps versions of an earlier run from matching.
+     */
+    private String etag(long version) {
+        return "\"" + Long.toHexString(availabilityVersions.getEpoch()) + "-" + version + "\"";
+    }
+
+    /**
+     * Checks every device id in one pass before anything runs. Unknown devices are reported per item and,
+     * for an atomic request, keep the rest from being applied.
+     */
+    private CompletableFuture<ResponseEntity<BulkBookingResultDto>> applyBulk(
+            BulkBookingRequestDto request, BiFunction<List<BookingDto>, Boolean, BookingOutcome[]> apply) {
+        List<BookingDto> items = request.getItems();
+        if (items.size() > maxBulkItems) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "at most " + maxBulkItems + " items are allowed");
+        }
+        boolean atomic = request.getMode() == BulkBookingRequestDto.Mode.ATOMIC;
+
+        BookingOutcome[] outcomes = new BookingOutcome[items.size()];
+        List<BookingDto> known = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            if (deviceCatalog.contains(items.get(i).getDeviceId())) {
+                known.add(items.get(i));
+            } else {
+                outcomes[i] = BookingOutcome.UNKNOWN_DEVICE;
+            }
+        }
+
+        if (atomic && known.size() < items.size() || known.isEmpty()) {
+            return CompletableFuture.completedFuture(bulkResult(items, outcomes, null, atomic));
+        }
+        long wait = admitBulk(known);
+        if (wait > 0) {
+            return CompletableFuture.completedFuture(AdmissionControl.tooManyRequests(wait));
+        }
+        return requestExecutors.write(() -> admissionControl.limit(
+                () -> withCommitSequence(bulkResult(items, outcomes, apply.apply(known, atomic), atomic))));
+    }
+
+    /**
+     * Admits the items as one request of each distinct user and one for each distinct device, so a request
+     * with many items of one user costs that user a single token.
+     */
+    private long admitBulk(List<BookingDto> items) {
+        Set<String> users = new HashSet<>();
+        Set<Short> devices = new HashSet<>();
+        for (BookingDto item : items) {
+            users.add(item.getUserName());
+            devices.add(item.getDeviceId());
+        }
+        return admissionControl.admitAll(users, devices);
+    }
+
+    /**
+     * Tells the client which commit its write is covered by, for reads over every device that must not be older.
+     */
+    private <T> ResponseEntity<T> withCommitSequence(ResponseEntity<T> response) {
+        if (!replicaRouting.isEnabled()) {
+            return response;
+        }
+        return ResponseEntity.status(response.getStatusCode())
+                .headers(response.getHeaders())
+                .header(ReplicaRouting.HEADER, String.valueOf(replicaRouting.currentSequence()))
+                .body(response.getBody());
+    }
+
+    private static ResponseEntity<BulkBookingResultDto> bulkResult(List<BookingDto> items, BookingOutcome[] outcomes,
+                                                                   BookingOutcome[] applied, boolean atomic) {
+        List<BulkItemResultDto> results = new ArrayList<>(items.size());
+        int appliedCount = 0;
+        for (int i = 0, next = 0; i < items.size(); i++) {
+            if (outcomes[i] == null) {
+                outcomes[i] = applied == null ? BookingOutcome.NOT_APPLIED : applied[next++];
+            }
+            if (outcomes[i].isSuccess()) {
+                appliedCount++;
+            }
+            BookingDto item = items.get(i);
+            results.add(BulkItemResultDto.builder()
+                    .deviceId(item.getDeviceId())
+                    .userName(item.getUserName())
+                    .timestamp(item.getTimestamp())
+                    .outcome(outcomes[i])
+                    .build());
+        }
+
+        HttpStatus status = atomic && appliedCount < items.size() ? HttpStatus.CONFLICT : HttpStatus.OK;
+        return ResponseEntity.status(status)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(BulkBookingResultDto.builder()
+                        .applied(appliedCount)
+                        .items(results)
+                        .build());
+    }
+
+    private static ResponseEntity<Void> toResponse(BookingOutcome outcome) {
+        switch (outcome) {
+            case BOOKED:
+            case RETURNED:
+                return ResponseEntity.ok().build();
+            case UNKNOWN_DEVICE:
+                return ResponseEntity.notFound().build();
+            case KEY_REUSED:
+                return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).build();
+            default:
+                return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,27 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class AvailabilityChangeDto {
+    @Schema(
+        description = "Device identifier that changed",
+        type = "Short",
+        example = "1"
+    )
+    private Short deviceId;
+
+    @Schema(
+        description = "Current availability of the device, same as GET /api/v1/phone/{phoneId}"
+    )
+    private List<BookingAvailabilityDto> availability;
+}
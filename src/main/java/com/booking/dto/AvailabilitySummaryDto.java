@@ -0,0 +1,43 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class AvailabilitySummaryDto {
+    public static final String MEDIA_TYPE = "application/vnd.booking.availability-summary+json";
+
+    @Schema(
+        description = "Device identifier",
+        type = "Short",
+        example = "1"
+    )
+    private short deviceId;
+
+    @Schema(
+        description = "Number of free units",
+        type = "Integer",
+        example = "1"
+    )
+    private int free;
+
+    @Schema(
+        description = "Number of booked units",
+        type = "Integer",
+        example = "0"
+    )
+    private int booked;
+
+    @Schema(
+        description = "Booked units, newest first"
+    )
+    private List<BookedUnitDto> bookings;
+}
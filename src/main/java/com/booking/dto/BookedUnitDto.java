@@ -0,0 +1,26 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class BookedUnitDto {
+    @Schema(
+        description = "The timestamp in UTC when phone was booked",
+        type = "Long"
+    )
+    private long timestamp;
+
+    @Schema(
+        description = "User identifier who booked the phone",
+        type = "String",
+        example = "user1"
+    )
+    private String userName;
+}
@@ -7,6 +7,7 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
 
 @Data
 @Builder
@@ -35,4 +36,13 @@ public class BookingDto {
     )
     @NotNull
     private Short deviceId;
+
+    @Schema(
+        description = "Book only: seconds after which the unit is returned automatically unless the lease is renewed; "
+                + "no lease when omitted",
+        type = "Long",
+        example = "3600"
+    )
+    @Positive
+    private Long leaseSeconds;
 }
@@ -0,0 +1,33 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class BookingHistoryDto {
+    @Schema(
+        description = "Bookings of the device, newest first"
+    )
+    private List<BookingDto> bookings;
+
+    @Schema(
+        description = "Value of the before parameter for the next page, null on the last page",
+        type = "Long"
+    )
+    private Long nextBefore;
+
+    @Schema(
+        description = "Value of the beforeUser parameter for the next page, null on the last page",
+        type = "String",
+        example = "user1"
+    )
+    private String nextBeforeUser;
+}
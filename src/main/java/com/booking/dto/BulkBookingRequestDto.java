@@ -0,0 +1,38 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.NotNull;
+import java.util.List;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class BulkBookingRequestDto {
+    @Schema(
+        description = "Device/user pairs, applied in this order"
+    )
+    @NotEmpty
+    private List<@Valid @NotNull BookingDto> items;
+
+    @Schema(
+        description = "ATOMIC applies every item or none of them, BEST_EFFORT applies the admissible ones",
+        type = "String",
+        example = "ATOMIC"
+    )
+    @NotNull
+    @Builder.Default
+    private Mode mode = Mode.ATOMIC;
+
+    public enum Mode {
+        ATOMIC,
+        BEST_EFFORT
+    }
+}
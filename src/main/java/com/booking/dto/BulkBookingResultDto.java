@@ -0,0 +1,26 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class BulkBookingResultDto {
+    @Schema(
+        description = "Number of items applied",
+        type = "Integer"
+    )
+    private int applied;
+
+    @Schema(
+        description = "Result per item, in request order"
+    )
+    private List<BulkItemResultDto> items;
+}
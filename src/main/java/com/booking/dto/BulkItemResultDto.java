@@ -0,0 +1,41 @@
+package com.booking.dto;
+
+import com.booking.model.BookingOutcome;
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class BulkItemResultDto {
+    @Schema(
+        description = "Device identifier of the item",
+        type = "Short",
+        example = "1"
+    )
+    private Short deviceId;
+
+    @Schema(
+        description = "User identifier of the item",
+        type = "String",
+        example = "user1"
+    )
+    private String userName;
+
+    @Schema(
+        description = "Timestamp of the item",
+        type = "Long"
+    )
+    private Long timestamp;
+
+    @Schema(
+        description = "BOOKED or RETURNED when applied, otherwise the reason it was not",
+        type = "String",
+        example = "BOOKED"
+    )
+    private BookingOutcome outcome;
+}
@@ -0,0 +1,27 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class DeviceDto {
+    @Schema(
+        description = "Device identifier",
+        type = "Short",
+        example = "1"
+    )
+    private Short id;
+
+    @Schema(
+        description = "Device model name",
+        type = "String",
+        example = "Samsung Galaxy S9"
+    )
+    private String name;
+}
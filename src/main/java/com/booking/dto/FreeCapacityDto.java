@@ -0,0 +1,32 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class FreeCapacityDto {
+    @Schema(
+        description = "The timestamp in UTC when the window starts",
+        type = "Long"
+    )
+    private Long from;
+
+    @Schema(
+        description = "The timestamp in UTC when the window ends, exclusive",
+        type = "Long"
+    )
+    private Long to;
+
+    @Schema(
+        description = "Units left to reserve throughout the window",
+        type = "Integer",
+        example = "1"
+    )
+    private int free;
+}
@@ -0,0 +1,39 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class LeaseDto {
+    @Schema(
+        description = "Device identifier that was booked",
+        type = "Short",
+        example = "1"
+    )
+    private Short deviceId;
+
+    @Schema(
+        description = "User identifier who booked the phone",
+        type = "String",
+        example = "user1"
+    )
+    private String userName;
+
+    @Schema(
+        description = "The timestamp in UTC when phone was booked",
+        type = "Long"
+    )
+    private Long timestamp;
+
+    @Schema(
+        description = "Timestamp in UTC at which the unit is returned unless the lease is renewed",
+        type = "Long"
+    )
+    private Long expiresAt;
+}
@@ -0,0 +1,48 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class LeaseRenewalDto {
+    @Schema(
+        description = "User identifier who booked the phone",
+        type = "String",
+        example = "user1"
+    )
+    @NotNull
+    private String userName;
+
+    @Schema(
+        description = "Device identifier that was booked",
+        type = "Short",
+        example = "1"
+    )
+    @NotNull
+    private Short deviceId;
+
+    @Schema(
+        description = "The timestamp in UTC of the booking whose lease is renewed",
+        type = "Long"
+    )
+    @NotNull
+    private Long timestamp;
+
+    @Schema(
+        description = "Seconds from now after which the unit is returned automatically",
+        type = "Long",
+        example = "3600"
+    )
+    @NotNull
+    @Positive
+    private Long leaseSeconds;
+}
@@ -0,0 +1,45 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class ReservationDto {
+    @Schema(
+        description = "Reservation identifier, to cancel the reservation",
+        type = "Long"
+    )
+    private Long id;
+
+    @Schema(
+        description = "Device identifier reserved",
+        type = "Short",
+        example = "1"
+    )
+    private Short deviceId;
+
+    @Schema(
+        description = "User identifier who reserved the phone",
+        type = "String",
+        example = "user1"
+    )
+    private String userName;
+
+    @Schema(
+        description = "The timestamp in UTC when the reserved window starts",
+        type = "Long"
+    )
+    private Long start;
+
+    @Schema(
+        description = "The timestamp in UTC when the reserved window ends, exclusive",
+        type = "Long"
+    )
+    private Long end;
+}
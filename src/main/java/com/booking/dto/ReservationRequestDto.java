@@ -0,0 +1,37 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.validation.constraints.NotNull;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class ReservationRequestDto {
+    @Schema(
+        description = "User identifier reserving the phone",
+        type = "String",
+        example = "user1"
+    )
+    @NotNull
+    private String userName;
+
+    @Schema(
+        description = "The timestamp in UTC when the reserved window starts, in the future",
+        type = "Long"
+    )
+    @NotNull
+    private Long start;
+
+    @Schema(
+        description = "The timestamp in UTC when the reserved window ends, exclusive",
+        type = "Long"
+    )
+    @NotNull
+    private Long end;
+}
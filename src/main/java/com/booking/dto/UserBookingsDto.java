@@ -0,0 +1,26 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class UserBookingsDto {
+    @Schema(
+        description = "User identifier",
+        type = "String",
+        example = "user1"
+    )
+    private String userName;
+
+    @Schema(
+        description = "Bookings of the device by the user in the window, at least this many",
+        type = "Long"
+    )
+    private long bookings;
+}
@@ -0,0 +1,75 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class UtilizationDto {
+    @Schema(
+        description = "Device identifier",
+        type = "Short",
+        example = "1"
+    )
+    private Short deviceId;
+
+    @Schema(
+        description = "Timestamp in UTC at which the window starts, the start of its oldest bucket",
+        type = "Long"
+    )
+    private long from;
+
+    @Schema(
+        description = "Timestamp in UTC at which the window ends, the time of the report",
+        type = "Long"
+    )
+    private long to;
+
+    @Schema(
+        description = "Units booked in the window",
+        type = "Long"
+    )
+    private long bookings;
+
+    @Schema(
+        description = "Units booked per hour over the window",
+        type = "Double"
+    )
+    private double bookingsPerHour;
+
+    @Schema(
+        description = "Units returned in the window",
+        type = "Long"
+    )
+    private long returns;
+
+    @Schema(
+        description = "Average time in milliseconds the units returned in the window were held, null without returns",
+        type = "Long"
+    )
+    private Long averageHoldMillis;
+
+    @Schema(
+        description = "95th percentile of the hold times, rounded up by at most a fifth, null without returns",
+        type = "Long"
+    )
+    private Long p95HoldMillis;
+
+    @Schema(
+        description = "Time in milliseconds the device had no free unit during the window",
+        type = "Long"
+    )
+    private long soldOutMillis;
+
+    @Schema(
+        description = "Users who booked the device most in the window, most bookings first"
+    )
+    private List<UserBookingsDto> topUsers;
+}
@@ -0,0 +1,59 @@
+package com.booking.dto;
+
+import com.booking.model.WaitlistState;
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class WaitlistEntryDto {
+    @Schema(
+        description = "Entry identifier, to poll or cancel the entry",
+        type = "String"
+    )
+    private String id;
+
+    @Schema(
+        description = "Device identifier waited for",
+        type = "Short",
+        example = "1"
+    )
+    private Short deviceId;
+
+    @Schema(
+        description = "User identifier waiting",
+        type = "String",
+        example = "user1"
+    )
+    private String userName;
+
+    @Schema(
+        description = "WAITING, or the final state of the entry",
+        type = "String",
+        example = "WAITING"
+    )
+    private WaitlistState state;
+
+    @Schema(
+        description = "Place in the queue, 1 for the next user served; 0 when not waiting",
+        type = "Integer"
+    )
+    private int position;
+
+    @Schema(
+        description = "Timestamp of the booking made for the user, when BOOKED",
+        type = "Long"
+    )
+    private Long bookedAt;
+
+    @Schema(
+        description = "Timestamp in UTC after which the entry expires",
+        type = "Long"
+    )
+    private Long expiresAt;
+}
@@ -0,0 +1,31 @@
+package com.booking.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.validation.constraints.NotNull;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class WaitlistRequestDto {
+    @Schema(
+        description = "User identifier waiting for the phone",
+        type = "String",
+        example = "user1"
+    )
+    @NotNull
+    private String userName;
+
+    @Schema(
+        description = "Device identifier to wait for",
+        type = "Short",
+        example = "1"
+    )
+    @NotNull
+    private Short deviceId;
+}
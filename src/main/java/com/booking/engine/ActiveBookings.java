@@ -0,0 +1,150 @@
+package com.booking.engine;
+
+import com.booking.model.ActiveBooking;
+import com.booking.model.BookingOutcome;
+import com.booking.repository.BookingRepository;
+import com.booking.startup.StartupSnapshot;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of bookings that are not returned yet, by device and by user.
+ * Lookups cost is proportional to the active bookings of one device or one user, whatever the history size.
+ * Engines keep it in step with the database after every admitted book/return.
+ */
+@Component
+@DependsOnDatabaseInitialization
+public class ActiveBookings {
+    private static final int LOCK_STRIPES = 64;
+    private static final Comparator<ActiveBooking> NEWEST_FIRST = Comparator
+            .comparingLong(ActiveBooking::getTimestamp)
+            .thenComparing(ActiveBooking::getUserName)
+            .reversed();
+
+    private final Object[] deviceLocks = new Object[LOCK_STRIPES];
+    private final Map<Short, TreeSet<ActiveBooking>> byDevice = new ConcurrentHashMap<>();
+    private final Map<String, List<ActiveBooking>> byUser = new ConcurrentHashMap<>();
+
+    public ActiveBookings(@Autowired BookingRepository bookingRepository,
+                          @Autowired StartupSnapshot startupSnapshot) {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            deviceLocks[i] = new Object();
+        }
+        startupSnapshot.activeBookings().orElseGet(bookingRepository::findAllActive).forEach(this::add);
+        startupSnapshot.saveOnShutdown(this::findAll);
+    }
+
+    public void add(ActiveBooking booking) {
+        synchronized (lock(booking.getDeviceId())) {
+            byDevice.computeIfAbsent(booking.getDeviceId(), deviceId -> new TreeSet<>(NEWEST_FIRST)).add(booking);
+            byUser.compute(booking.getUserName(), (userName, held) -> {
+                List<ActiveBooking> updated = held == null ? new ArrayList<>(1) : new ArrayList<>(held);
+                updated.add(booking);
+                return List.copyOf(updated);
+            });
+        }
+    }
+
+    /**
+     * Removes the user's oldest active booking of the device, the one a return closes.
+     *
+     * @return the removed booking, or null when the user holds no unit of the device
+     */
+    public ActiveBooking removeOldest(String userName, short deviceId) {
+        synchronized (lock(deviceId)) {
+            ActiveBooking oldest = null;
+            for (ActiveBooking booking : byUser.getOrDefault(userName, List.of())) {
+                if (booking.getDeviceId() == deviceId && (oldest == null || booking.getTimestamp() < oldest.getTimestamp())) {
+                    oldest = booking;
+                }
+            }
+            if (oldest != null) {
+                remove(oldest);
+            }
+            return oldest;
+        }
+    }
+
+    public void remove(ActiveBooking booking) {
+        synchronized (lock(booking.getDeviceId())) {
+            TreeSet<ActiveBooking> active = byDevice.get(booking.getDeviceId());
+            if (active == null || !active.remove(booking)) {
+                return;
+            }
+            if (active.isEmpty()) {
+                byDevice.remove(booking.getDeviceId());
+            }
+            byUser.computeIfPresent(booking.getUserName(), (userName, held) -> {
+                List<ActiveBooking> updated = new ArrayList<>(held);
+                updated.remove(booking);
+                return updated.isEmpty() ? null : List.copyOf(updated);
+            });
+        }
+    }
+
+    public boolean contains(ActiveBooking booking) {
+        synchronized (lock(booking.getDeviceId())) {
+            TreeSet<ActiveBooking> active = byDevice.get(booking.getDeviceId());
+            return active != null && active.contains(booking);
+        }
+    }
+
+    /**
+     * Follows the commands the database admitted, in order.
+     */
+    public void applyAdmitted(List<BookingCommand> commands, BookingOutcome[] outcomes) {
+        for (int i = 0; i < outcomes.length; i++) {
+            BookingCommand command = commands.get(i);
+            if (outcomes[i] == BookingOutcome.BOOKED) {
+                add(new ActiveBooking(command.getDeviceId(), command.getUserName(), command.getTimestamp()));
+            } else if (outcomes[i] == BookingOutcome.RETURNED) {
+                removeOldest(command.getUserName(), command.getDeviceId());
+            }
+        }
+    }
+
+    /**
+     * Replaces the whole index, for engines that rebuild their state from another source than the database.
+     * Must not run concurrently with other updates.
+     */
+    public void reset(Collection<ActiveBooking> bookings) {
+        byDevice.clear();
+        byUser.clear();
+        bookings.forEach(this::add);
+    }
+
+    public List<ActiveBooking> findAll() {
+        List<ActiveBooking> result = new ArrayList<>();
+        for (Short deviceId : byDevice.keySet()) {
+            result.addAll(findByDevice(deviceId));
+        }
+        return result;
+    }
+
+    /**
+     * @return active bookings of the device, newest first
+     */
+    public List<ActiveBooking> findByDevice(short deviceId) {
+        synchronized (lock(deviceId)) {
+            TreeSet<ActiveBooking> active = byDevice.get(deviceId);
+            return active == null ? List.of() : new ArrayList<>(active);
+        }
+    }
+
+    public List<ActiveBooking> findByUser(String userName) {
+        return byUser.getOrDefault(userName, List.of());
+    }
+
+    private Object lock(short deviceId) {
+        return deviceLocks[deviceId & (LOCK_STRIPES - 1)];
+    }
+}
@@ -0,0 +1,129 @@
+package com.booking.engine;
+
+import com.booking.model.Availability;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Lock-free per-device free unit counters indexed by the short device id. The arrays cover every device id,
+ * so devices added to the catalog at runtime get their counter without a resize.
+ */
+public class AvailabilityCounters {
+    private static final int SIZE = Short.MAX_VALUE + 1;
+
+    private final AtomicIntegerArray quantities = new AtomicIntegerArray(SIZE);
+    // 0 for an unknown device; written after the quantity, so a known device always has its quantity set
+    private final AtomicIntegerArray maxQuantities = new AtomicIntegerArray(SIZE);
+    private volatile List<Short> deviceIds = List.of();
+
+    public AvailabilityCounters(Collection<Availability> availabilities) {
+        availabilities.forEach(this::add);
+    }
+
+    /**
+     * Starts counting a device.
+     *
+     * @return false when the device is counted already
+     */
+    public synchronized boolean add(Availability availability) {
+        short deviceId = availability.getDeviceId();
+        if (contains(deviceId)) {
+            return false;
+        }
+        quantities.set(deviceId, availability.getQuantity());
+        maxQuantities.set(deviceId, availability.getMaxQuantity());
+        List<Short> next = new ArrayList<>(deviceIds);
+        next.add(deviceId);
+        Collections.sort(next);
+        deviceIds = Collections.unmodifiableList(next);
+        return true;
+    }
+
+    /**
+     * Stops counting a device.
+     */
+    public synchronized void remove(short deviceId) {
+        if (!contains(deviceId)) {
+            return;
+        }
+        maxQuantities.set(deviceId, 0);
+        quantities.set(deviceId, 0);
+        List<Short> next = new ArrayList<>(deviceIds);
+        next.remove((Short) deviceId);
+        deviceIds = Collections.unmodifiableList(next);
+    }
+
+    public boolean contains(short deviceId) {
+        return deviceId >= 0 && maxQuantities.get(deviceId) > 0;
+    }
+
+    /**
+     * Takes one free unit of the device.
+     *
+     * @return false when the device is unknown or sold out
+     */
+    public boolean tryAcquire(short deviceId) {
+        if (!contains(deviceId)) {
+            return false;
+        }
+        while (true) {
+            int quantity = quantities.get(deviceId);
+            if (quantity <= 0) {
+                return false;
+            }
+            if (quantities.compareAndSet(deviceId, quantity, quantity - 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives one unit of the device back.
+     *
+     * @return false when the device is unknown or no unit is booked
+     */
+    public boolean release(short deviceId) {
+        if (!contains(deviceId)) {
+            return false;
+        }
+        while (true) {
+            int quantity = quantities.get(deviceId);
+            if (quantity >= maxQuantities.get(deviceId)) {
+                return false;
+            }
+            if (quantities.compareAndSet(deviceId, quantity, quantity + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return ids of the counted devices, ascending
+     */
+    public List<Short> deviceIds() {
+        return deviceIds;
+    }
+
+    /**
+     * @return current quantities of all devices
+     */
+    public List<Availability> snapshot() {
+        List<Availability> result = new ArrayList<>();
+        for (short deviceId : deviceIds()) {
+            result.add(new Availability(deviceId, (short) quantities.get(deviceId), (short) maxQuantities.get(deviceId)));
+        }
+        return result;
+    }
+
+    public int quantity(short deviceId) {
+        return contains(deviceId) ? quantities.get(deviceId) : 0;
+    }
+
+    public int maxQuantity(short deviceId) {
+        return contains(deviceId) ? maxQuantities.get(deviceId) : 0;
+    }
+}
@@ -0,0 +1,29 @@
+package com.booking.engine;
+
+import com.booking.dto.BookingDto;
+import lombok.Value;
+
+@Value
+public class BookingCommand {
+    Type type;
+    short deviceId;
+    String userName;
+    long timestamp;
+
+    public static BookingCommand book(BookingDto bookingDto) {
+        return new BookingCommand(Type.BOOK, bookingDto.getDeviceId(), bookingDto.getUserName(), bookingDto.getTimestamp());
+    }
+
+    public static BookingCommand giveBack(BookingDto bookingDto) {
+        return new BookingCommand(Type.RETURN, bookingDto.getDeviceId(), bookingDto.getUserName(), bookingDto.getTimestamp());
+    }
+
+    public int quantityDelta() {
+        return type == Type.BOOK ? -1 : 1;
+    }
+
+    public enum Type {
+        BOOK,
+        RETURN
+    }
+}
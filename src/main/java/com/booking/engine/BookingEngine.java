@@ -0,0 +1,42 @@
+package com.booking.engine;
+
+import com.booking.dto.BookingAvailabilityDto;
+import com.booking.dto.BookingDto;
+import com.booking.model.BookingOutcome;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Admits book/return operations and serves availability reads.
+ * Exactly one implementation is active, selected by {@code booking.engine}.
+ */
+public interface BookingEngine {
+    BookingOutcome bookPhone(BookingDto bookingDto);
+
+    BookingOutcome returnPhone(BookingDto bookingDto);
+
+    /**
+     * Decides the commands in order. When {@code atomic}, either every command is applied or none is:
+     * the rejected command keeps its reason and every other one gets {@link BookingOutcome#NOT_APPLIED}.
+     *
+     * @return outcome per command, in the same order
+     */
+    BookingOutcome[] applyAll(List<BookingCommand> commands, boolean atomic);
+
+    List<BookingAvailabilityDto> findByPhoneId(short phoneId);
+
+    /**
+     * @param phoneIds devices to load, or null for every device
+     * @return availability lists grouped by device; unknown devices are left out
+     */
+    Map<Short, List<BookingAvailabilityDto>> findByPhoneIds(Collection<Short> phoneIds);
+
+    /**
+     * Blocks until every write of the device accepted so far is visible in the database,
+     * before the caller reads the device from {@code BookingRepository} directly.
+     */
+    default void awaitPersisted(short phoneId) {
+    }
+}
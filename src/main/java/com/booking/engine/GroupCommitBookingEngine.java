@@ -0,0 +1,89 @@
+package com.booking.engine;
+
+import com.booking.config.BookingProperties;
+import com.booking.dto.BookingAvailabilityDto;
+import com.booking.dto.BookingDto;
+import com.booking.model.ActiveBooking;
+import com.booking.model.BookingOutcome;
+import com.booking.repository.BookingRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Funnels concurrent book/return calls into shared transactions; each caller still blocks until its own commit.
+ * Bulk requests run as one transaction of their own.
+ */
+@Component
+@ConditionalOnProperty(prefix = "booking", name = "engine", havingValue = "group-commit")
+public class GroupCommitBookingEngine implements BookingEngine {
+    private final BookingRepository bookingRepository;
+    private final ActiveBookings activeBookings;
+    private final GroupCommitWriter writer;
+
+    public GroupCommitBookingEngine(@Autowired BookingRepository bookingRepository,
+                                    @Autowired ActiveBookings activeBookings,
+                                    @Autowired BookingProperties bookingProperties) {
+        BookingProperties.GroupCommit groupCommit = bookingProperties.getGroupCommit();
+        this.bookingRepository = bookingRepository;
+        this.activeBookings = activeBookings;
+        this.writer = new GroupCommitWriter(bookingRepository, groupCommit.getWindow(), groupCommit.getMaxBatch());
+    }
+
+    @Override
+    public BookingOutcome bookPhone(BookingDto bookingDto) {
+        BookingOutcome outcome = commit(BookingCommand.book(bookingDto));
+        if (outcome.isSuccess()) {
+            activeBookings.add(ActiveBooking.of(bookingDto));
+        }
+        return outcome;
+    }
+
+    @Override
+    public BookingOutcome returnPhone(BookingDto bookingDto) {
+        BookingOutcome outcome = commit(BookingCommand.giveBack(bookingDto));
+        if (outcome.isSuccess()) {
+            activeBookings.removeOldest(bookingDto.getUserName(), bookingDto.getDeviceId());
+        }
+        return outcome;
+    }
+
+    @Override
+    public BookingOutcome[] applyAll(List<BookingCommand> commands, boolean atomic) {
+        BookingOutcome[] outcomes = bookingRepository.applyBulk(commands, atomic);
+        activeBookings.applyAdmitted(commands, outcomes);
+        return outcomes;
+    }
+
+    @Override
+    public List<BookingAvailabilityDto> findByPhoneId(short phoneId) {
+        return bookingRepository.findByPhoneId(phoneId);
+    }
+
+    @Override
+    public Map<Short, List<BookingAvailabilityDto>> findByPhoneIds(Collection<Short> phoneIds) {
+        return bookingRepository.findByPhoneIds(phoneIds);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        writer.shutdown();
+    }
+
+    private BookingOutcome commit(BookingCommand command) {
+        try {
+            return writer.submit(command).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
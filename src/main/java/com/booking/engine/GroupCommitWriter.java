@@ -0,0 +1,137 @@
+package com.booking.engine;
+
+import com.booking.model.BookingOutcome;
+import com.booking.repository.BookingRepository;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects concurrent commands for a short window, or until the batch is full,
+ * and commits them in a single transaction. Each caller gets its own admission outcome.
+ */
+@Slf4j
+public class GroupCommitWriter {
+    private final BookingRepository bookingRepository;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread committer;
+
+    // guarded by the queue for writes, so no request is queued once shutdown has stopped the loop
+    private volatile boolean running = true;
+
+    public GroupCommitWriter(BookingRepository bookingRepository, Duration window, int maxBatch) {
+        this.bookingRepository = bookingRepository;
+        this.windowNanos = window.toNanos();
+        this.maxBatch = maxBatch;
+        this.committer = new Thread(this::commitLoop, "group-commit");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * @return future completed with the command's outcome once its group is committed
+     */
+    public CompletableFuture<BookingOutcome> submit(BookingCommand command) {
+        Request request = new Request(command);
+        synchronized (queue) {
+            if (running) {
+                queue.add(request);
+                return request.future;
+            }
+        }
+        request.future.completeExceptionally(new IllegalStateException("Group commit writer is shut down"));
+        return request.future;
+    }
+
+    public void shutdown() {
+        synchronized (queue) {
+            running = false;
+        }
+        committer.interrupt();
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void commitLoop() {
+        List<Request> batch = new ArrayList<>(maxBatch);
+        try {
+            while (running || !queue.isEmpty()) {
+                try {
+                    Request first = running ? queue.take() : queue.poll();
+                    if (first == null) {
+                        break;
+                    }
+                    batch.add(first);
+                    long deadline = System.nanoTime() + windowNanos;
+                    while (batch.size() < maxBatch) {
+                        Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                } catch (InterruptedException e) {
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+                if (!batch.isEmpty()) {
+                    commit(batch);
+                    batch.clear();
+                }
+            }
+        } finally {
+            // requests are only left over when the loop died; never leave a caller blocked on its future
+            synchronized (queue) {
+                running = false;
+                batch.addAll(queue);
+                queue.clear();
+            }
+            for (Request request : batch) {
+                request.future.completeExceptionally(new IllegalStateException("Group commit writer is shut down"));
+            }
+        }
+    }
+
+    private void commit(List<Request> batch) {
+        List<BookingCommand> commands = new ArrayList<>(batch.size());
+        for (Request request : batch) {
+            commands.add(request.command);
+        }
+        try {
+            complete(batch, bookingRepository.applyBulk(commands, false));
+        } catch (RuntimeException e) {
+            log.warn("Group of {} commands failed, committing one by one: {}", batch.size(), e.getMessage());
+            for (Request request : batch) {
+                try {
+                    request.future.complete(bookingRepository.applyBulk(List.of(request.command), false)[0]);
+                } catch (RuntimeException single) {
+                    request.future.completeExceptionally(single);
+                }
+            }
+        }
+    }
+
+    private static void complete(List<Request> batch, BookingOutcome[] outcomes) {
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).future.complete(outcomes[i]);
+        }
+    }
+
+    private static class Request {
+        private final BookingCommand command;
+        private final CompletableFuture<BookingOutcome> future = new CompletableFuture<>();
+
+        private Request(BookingCommand command) {
+            this.command = command;
+        }
+    }
+}
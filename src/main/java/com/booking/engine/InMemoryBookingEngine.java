@@ -0,0 +1,110 @@
+package com.booking.engine;
+
+import com.booking.catalog.DeviceCatalog;
+import com.booking.config.BookingProperties;
+import com.booking.dto.BookingAvailabilityDto;
+import com.booking.dto.BookingDto;
+import com.booking.model.ActiveBooking;
+import com.booking.model.Availability;
+import com.booking.model.BookingOutcome;
+import com.booking.repository.BookingRepository;
+import com.booking.startup.StartupSnapshot;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Decides admission with in-memory counters and the active bookings index, and persists the changes
+ * through a write-behind queue. Availability reads are served from memory; reads of the database
+ * wait for the device's queued writes first, so a client always sees its own bookings.
+ */
+@Component
+@DependsOnDatabaseInitialization
+@ConditionalOnProperty(prefix = "booking", name = "engine", havingValue = "memory")
+public class InMemoryBookingEngine implements BookingEngine {
+    private final InMemoryState state;
+    private final WriteBehindWriter writer;
+
+    public InMemoryBookingEngine(@Autowired BookingRepository bookingRepository,
+                                 @Autowired ActiveBookings activeBookings,
+                                 @Autowired BookingProperties bookingProperties,
+                                 @Autowired StartupSnapshot startupSnapshot,
+                                 @Autowired DeviceCatalog deviceCatalog) {
+        BookingProperties.WriteBehind writeBehind = bookingProperties.getWriteBehind();
+        Optional<List<Availability>> snapshot = startupSnapshot.availabilities();
+        this.state = new InMemoryState(new AvailabilityCounters(snapshot
+                .orElseGet(bookingRepository::findAllAvailability)), activeBookings);
+        if (snapshot.isPresent()) {
+            // a device added since the snapshot was written is only in the database
+            state.addStoredDevices(bookingRepository);
+        }
+        state.addReturned(bookingRepository.findAllReturned());
+        deviceCatalog.onChange(deviceIds -> {
+            state.retainDevices(deviceIds);
+            state.addStoredDevices(bookingRepository);
+        });
+        this.writer = new WriteBehindWriter(bookingRepository,
+                writeBehind.getQueueCapacity(),
+                writeBehind.getMaxBatch(),
+                writeBehind.getOfferTimeout());
+    }
+
+    @Override
+    public BookingOutcome bookPhone(BookingDto bookingDto) {
+        return applyAll(List.of(BookingCommand.book(bookingDto)), true)[0];
+    }
+
+    @Override
+    public BookingOutcome returnPhone(BookingDto bookingDto) {
+        return applyAll(List.of(BookingCommand.giveBack(bookingDto)), true)[0];
+    }
+
+    @Override
+    public BookingOutcome[] applyAll(List<BookingCommand> commands, boolean atomic) {
+        ActiveBooking[] changed = new ActiveBooking[commands.size()];
+        BookingOutcome[] outcomes = state.applyAll(commands, atomic, changed);
+        List<BookingCommand> admitted = new ArrayList<>(commands.size());
+        for (int i = 0; i < commands.size(); i++) {
+            if (outcomes[i].isSuccess()) {
+                admitted.add(commands.get(i));
+            }
+        }
+        if (!admitted.isEmpty() && !writer.submitAll(admitted)) {
+            for (int i = commands.size() - 1; i >= 0; i--) {
+                if (outcomes[i].isSuccess()) {
+                    state.undo(commands.get(i), changed[i]);
+                }
+            }
+            throw new IllegalStateException("Write-behind queue is full");
+        }
+        return outcomes;
+    }
+
+    @Override
+    public List<BookingAvailabilityDto> findByPhoneId(short phoneId) {
+        return state.find(phoneId);
+    }
+
+    @Override
+    public Map<Short, List<BookingAvailabilityDto>> findByPhoneIds(Collection<Short> phoneIds) {
+        return state.findAll(phoneIds);
+    }
+
+    @Override
+    public void awaitPersisted(short phoneId) {
+        writer.awaitPersisted(phoneId);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        writer.shutdown();
+    }
+}
@@ -0,0 +1,227 @@
+package com.booking.engine;
+
+import com.booking.dto.BookingAvailabilityDto;
+import com.booking.model.ActiveBooking;
+import com.booking.model.Availability;
+import com.booking.model.BookingOutcome;
+import com.booking.repository.BookingRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Free unit counters plus the active bookings index, for engines that admit operations in memory.
+ * Every admitted change can be undone exactly, which makes all-or-nothing bulk operations possible.
+ * <p>
+ * A device's counter and its active bookings change together under the device's lock, so a read under the
+ * same lock always sees every unit either free or booked.
+ * <p>
+ * A booking is a duplicate when its key is active or was returned, the same keys the jdbc engine refuses.
+ * The returned keys stored before startup are loaded once with {@link #addReturned}, so admission never
+ * waits for the database.
+ */
+@Slf4j
+class InMemoryState {
+    private static final int LOCK_STRIPES = 64;
+
+    private final Object[] deviceLocks = new Object[LOCK_STRIPES];
+    private final AvailabilityCounters counters;
+    private final ActiveBookings activeBookings;
+    private final Set<ActiveBooking> returned = ConcurrentHashMap.newKeySet();
+
+    InMemoryState(AvailabilityCounters counters, ActiveBookings activeBookings) {
+        this.counters = counters;
+        this.activeBookings = activeBookings;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            deviceLocks[i] = new Object();
+        }
+    }
+
+    AvailabilityCounters getCounters() {
+        return counters;
+    }
+
+    ActiveBookings getActiveBookings() {
+        return activeBookings;
+    }
+
+    /**
+     * Decides and applies the commands in order. When {@code atomic} and one of them is not admitted,
+     * the ones applied before it are undone and every other command gets {@link BookingOutcome#NOT_APPLIED}.
+     *
+     * @param changed receives per command the booking added or removed, so it can be undone; may be null
+     */
+    BookingOutcome[] applyAll(List<BookingCommand> commands, boolean atomic, ActiveBooking[] changed) {
+        BookingOutcome[] outcomes = new BookingOutcome[commands.size()];
+        ActiveBooking[] applied = changed != null ? changed : new ActiveBooking[commands.size()];
+        for (int i = 0; i < commands.size(); i++) {
+            outcomes[i] = apply(commands.get(i), applied, i);
+            if (atomic && !outcomes[i].isSuccess()) {
+                for (int j = i - 1; j >= 0; j--) {
+                    undo(commands.get(j), applied[j]);
+                    applied[j] = null;
+                    outcomes[j] = BookingOutcome.NOT_APPLIED;
+                }
+                for (int j = i + 1; j < outcomes.length; j++) {
+                    outcomes[j] = BookingOutcome.NOT_APPLIED;
+                }
+                break;
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * Reverts a command applied by {@link #applyAll}.
+     */
+    void undo(BookingCommand command, ActiveBooking changed) {
+        synchronized (lock(command.getDeviceId())) {
+            if (command.getType() == BookingCommand.Type.BOOK) {
+                activeBookings.remove(changed);
+                counters.release(command.getDeviceId());
+            } else {
+                counters.tryAcquire(command.getDeviceId());
+                activeBookings.add(changed);
+                returned.remove(changed);
+            }
+        }
+    }
+
+    /**
+     * Starts counting the stored devices the counters do not know yet, such as devices added to the catalog
+     * after startup, with their stored active bookings.
+     */
+    synchronized void addStoredDevices(BookingRepository bookingRepository) {
+        List<Availability> added = new ArrayList<>();
+        for (Availability availability : bookingRepository.findAllAvailability()) {
+            if (!counters.contains(availability.getDeviceId())) {
+                added.add(availability);
+            }
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+        List<ActiveBooking> active = bookingRepository.findAllActive();
+        for (Availability availability : added) {
+            short deviceId = availability.getDeviceId();
+            synchronized (lock(deviceId)) {
+                for (ActiveBooking booking : active) {
+                    if (booking.getDeviceId() == deviceId && !activeBookings.contains(booking)) {
+                        activeBookings.add(booking);
+                    }
+                }
+                counters.add(availability);
+            }
+        }
+        log.info("Added {} devices to the in-memory counters", added.size());
+    }
+
+    /**
+     * Stops counting the devices that left the catalog.
+     */
+    synchronized void retainDevices(Collection<Short> deviceIds) {
+        for (short deviceId : counters.deviceIds()) {
+            if (!deviceIds.contains(deviceId)) {
+                synchronized (lock(deviceId)) {
+                    counters.remove(deviceId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the keys of bookings returned before this state was built.
+     */
+    void addReturned(Collection<ActiveBooking> bookings) {
+        returned.addAll(bookings);
+    }
+
+    List<BookingAvailabilityDto> find(short phoneId) {
+        if (!counters.contains(phoneId)) {
+            return List.of();
+        }
+        List<ActiveBooking> bookings;
+        int quantity;
+        synchronized (lock(phoneId)) {
+            bookings = activeBookings.findByDevice(phoneId);
+            quantity = counters.quantity(phoneId);
+        }
+
+        List<BookingAvailabilityDto> result = new ArrayList<>();
+        for (ActiveBooking booking : bookings) {
+            result.add(BookingAvailabilityDto.builder()
+                    .deviceId(phoneId)
+                    .userName(booking.getUserName())
+                    .timestamp(booking.getTimestamp())
+                    .available(false)
+                    .build());
+        }
+        for (int i = quantity; i > 0; i--) {
+            result.add(BookingAvailabilityDto.builder()
+                    .deviceId(phoneId)
+                    .userName(StringUtils.EMPTY)
+                    .timestamp(null)
+                    .available(true)
+                    .build());
+        }
+        return result;
+    }
+
+    Map<Short, List<BookingAvailabilityDto>> findAll(Collection<Short> phoneIds) {
+        Map<Short, List<BookingAvailabilityDto>> result = new TreeMap<>();
+        for (Short phoneId : phoneIds == null ? counters.deviceIds() : phoneIds) {
+            if (counters.contains(phoneId)) {
+                result.put(phoneId, find(phoneId));
+            }
+        }
+        return result;
+    }
+
+    private BookingOutcome apply(BookingCommand command, ActiveBooking[] applied, int index) {
+        short deviceId = command.getDeviceId();
+        if (!counters.contains(deviceId)) {
+            return BookingOutcome.UNKNOWN_DEVICE;
+        }
+        synchronized (lock(deviceId)) {
+            return applyLocked(command, deviceId, applied, index);
+        }
+    }
+
+    private BookingOutcome applyLocked(BookingCommand command, short deviceId, ActiveBooking[] applied, int index) {
+        if (command.getType() == BookingCommand.Type.BOOK) {
+            ActiveBooking booking = new ActiveBooking(deviceId, command.getUserName(), command.getTimestamp());
+            if (activeBookings.contains(booking)) {
+                return BookingOutcome.DUPLICATE_BOOKING;
+            }
+            if (counters.quantity(deviceId) <= 0) {
+                return BookingOutcome.SOLD_OUT;
+            }
+            if (returned.contains(booking)) {
+                return BookingOutcome.DUPLICATE_BOOKING;
+            }
+            counters.tryAcquire(deviceId);
+            activeBookings.add(booking);
+            applied[index] = booking;
+            return BookingOutcome.BOOKED;
+        }
+        ActiveBooking closed = activeBookings.removeOldest(command.getUserName(), deviceId);
+        if (closed == null) {
+            return BookingOutcome.NOT_BOOKED;
+        }
+        counters.release(deviceId);
+        returned.add(closed);
+        applied[index] = closed;
+        return BookingOutcome.RETURNED;
+    }
+
+    private Object lock(short deviceId) {
+        return deviceLocks[deviceId & (LOCK_STRIPES - 1)];
+    }
+}
@@ -0,0 +1,65 @@
+package com.booking.engine;
+
+import com.booking.dto.BookingAvailabilityDto;
+import com.booking.dto.BookingDto;
+import com.booking.model.ActiveBooking;
+import com.booking.model.BookingOutcome;
+import com.booking.repository.BookingRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs every operation as its own transaction; conditional updates in the database decide admission.
+ */
+@Component
+@ConditionalOnProperty(prefix = "booking", name = "engine", havingValue = "jdbc", matchIfMissing = true)
+public class JdbcBookingEngine implements BookingEngine {
+    private final BookingRepository bookingRepository;
+    private final ActiveBookings activeBookings;
+
+    public JdbcBookingEngine(@Autowired BookingRepository bookingRepository,
+                             @Autowired ActiveBookings activeBookings) {
+        this.bookingRepository = bookingRepository;
+        this.activeBookings = activeBookings;
+    }
+
+    @Override
+    public BookingOutcome bookPhone(BookingDto bookingDto) {
+        BookingOutcome outcome = bookingRepository.bookPhone(bookingDto);
+        if (outcome.isSuccess()) {
+            activeBookings.add(ActiveBooking.of(bookingDto));
+        }
+        return outcome;
+    }
+
+    @Override
+    public BookingOutcome returnPhone(BookingDto bookingDto) {
+        BookingOutcome outcome = bookingRepository.returnPhone(bookingDto);
+        if (outcome.isSuccess()) {
+            activeBookings.removeOldest(bookingDto.getUserName(), bookingDto.getDeviceId());
+        }
+        return outcome;
+    }
+
+    @Override
+    public BookingOutcome[] applyAll(List<BookingCommand> commands, boolean atomic) {
+        BookingOutcome[] outcomes = bookingRepository.applyBulk(commands, atomic);
+        activeBookings.applyAdmitted(commands, outcomes);
+        return outcomes;
+    }
+
+    @Override
+    public List<BookingAvailabilityDto> findByPhoneId(short phoneId) {
+        return bookingRepository.findByPhoneId(phoneId);
+    }
+
+    @Override
+    public Map<Short, List<BookingAvailabilityDto>> findByPhoneIds(Collection<Short> phoneIds) {
+        return bookingRepository.findByPhoneIds(phoneIds);
+    }
+}
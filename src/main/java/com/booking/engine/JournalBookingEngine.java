@@ -0,0 +1,178 @@
+package com.booking.engine;
+
+import com.booking.catalog.DeviceCatalog;
+import com.booking.config.BookingProperties;
+import com.booking.dto.BookingAvailabilityDto;
+import com.booking.dto.BookingDto;
+import com.booking.journal.Journal;
+import com.booking.journal.JournalEvent;
+import com.booking.journal.JournalSnapshot;
+import com.booking.model.BookingOutcome;
+import com.booking.repository.BookingRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Keeps the journal as the source of truth: every admitted book/return is a sequential append, and the database
+ * is a projection updated behind it. On startup the state is rebuilt from the newest snapshot plus the journal
+ * events after it, and the database is brought up to the same sequence before requests are served.
+ */
+@Slf4j
+@Component
+@DependsOnDatabaseInitialization
+@ConditionalOnProperty(prefix = "booking", name = "engine", havingValue = "journal")
+public class JournalBookingEngine implements BookingEngine {
+    private final InMemoryState state;
+    private final Journal journal;
+    private final WriteBehindWriter projector;
+    private final JournalSequencer sequencer;
+
+    public JournalBookingEngine(@Autowired BookingRepository bookingRepository,
+                                @Autowired ActiveBookings activeBookings,
+                                @Autowired BookingProperties bookingProperties,
+                                @Autowired DeviceCatalog deviceCatalog) {
+        BookingProperties.Journal settings = bookingProperties.getJournal();
+        BookingProperties.WriteBehind writeBehind = bookingProperties.getWriteBehind();
+        long snapshotSequence;
+        try {
+            long position = bookingRepository.findJournalPosition();
+            Optional<JournalSnapshot> snapshot = JournalSnapshot.readLatest(settings.getDirectory());
+            snapshotSequence = snapshot.map(JournalSnapshot::getSequence).orElse(0L);
+            long stateSequence = snapshot.map(JournalSnapshot::getSequence).orElse(position);
+            this.journal = new Journal(settings.getDirectory(), settings.getSegmentEvents(), stateSequence + 1);
+            if (stateSequence < journal.firstSequence() - 1 || stateSequence > journal.lastSequence()) {
+                throw new IllegalStateException("Journal in " + settings.getDirectory() + " holds sequences "
+                        + journal.firstSequence() + ".." + journal.lastSequence()
+                        + ", it can't continue the state at sequence " + stateSequence);
+            }
+
+            // the newest snapshot, or the database as of its journal position, plus the events after it
+            this.state = new InMemoryState(new AvailabilityCounters(snapshot.map(JournalSnapshot::getAvailabilities)
+                    .orElseGet(bookingRepository::findAllAvailability)), activeBookings);
+            activeBookings.reset(snapshot.map(JournalSnapshot::getActiveBookings)
+                    .orElseGet(bookingRepository::findAllActive));
+            journal.replay(stateSequence, event -> {
+                BookingOutcome outcome = state.applyAll(List.of(event.getCommand()), false, null)[0];
+                if (!outcome.isSuccess()) {
+                    log.warn("Journal event {} replayed as {}", event, outcome);
+                }
+            });
+            log.info("Recovered journal state at sequence {} from {} plus {} events", journal.lastSequence(),
+                    snapshot.isPresent() ? "snapshot" : "database", journal.lastSequence() - stateSequence);
+
+            catchUpDatabase(bookingRepository, position, settings.getMaxBatch());
+            if (snapshot.isPresent()) {
+                // a device added since the snapshot was written is only in the database, which is caught up now
+                state.addStoredDevices(bookingRepository);
+            }
+            // after the replay: replayed events were admitted already, the database may hold their returns by now
+            state.addReturned(bookingRepository.findAllReturned());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        this.projector = new WriteBehindWriter(bookingRepository::persistJournal, journal.lastSequence(),
+                writeBehind.getQueueCapacity(), settings.getMaxBatch(), writeBehind.getOfferTimeout());
+        InMemoryState recoveredState = state;
+        deviceCatalog.onChange(deviceIds -> {
+            recoveredState.retainDevices(deviceIds);
+            recoveredState.addStoredDevices(bookingRepository);
+        });
+        this.sequencer = new JournalSequencer(journal, state, projector,
+                settings.getDirectory(), settings.getSnapshotEvery(), settings.isFsync(), settings.isArchive(),
+                settings.getMaxBatch(), snapshotSequence);
+    }
+
+    @Override
+    public BookingOutcome bookPhone(BookingDto bookingDto) {
+        return applyAll(List.of(BookingCommand.book(bookingDto)), true)[0];
+    }
+
+    @Override
+    public BookingOutcome returnPhone(BookingDto bookingDto) {
+        return applyAll(List.of(BookingCommand.giveBack(bookingDto)), true)[0];
+    }
+
+    @Override
+    public BookingOutcome[] applyAll(List<BookingCommand> commands, boolean atomic) {
+        // fail before sequencing, an event has no room for a longer name
+        for (BookingCommand command : commands) {
+            JournalEvent.encodeUserName(command.getUserName());
+        }
+        try {
+            return sequencer.submit(commands, atomic).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    @Override
+    public List<BookingAvailabilityDto> findByPhoneId(short phoneId) {
+        return state.find(phoneId);
+    }
+
+    @Override
+    public Map<Short, List<BookingAvailabilityDto>> findByPhoneIds(Collection<Short> phoneIds) {
+        return state.findAll(phoneIds);
+    }
+
+    @Override
+    public void awaitPersisted(short phoneId) {
+        projector.awaitPersisted(phoneId);
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        sequencer.shutdown();
+        projector.shutdown();
+        journal.close();
+    }
+
+    /**
+     * Applies the journal events the database has not seen yet. When the journal no longer holds them,
+     * e.g. for an in-memory database after a restart, the current state is written over instead.
+     */
+    private void catchUpDatabase(BookingRepository bookingRepository, long position, int maxBatch) {
+        long last = journal.lastSequence();
+        if (position >= last) {
+            return;
+        }
+        if (position < journal.firstSequence() - 1) {
+            log.warn("Database is at journal sequence {} but the journal starts at {}, restoring current state only",
+                    position, journal.firstSequence());
+            bookingRepository.restoreJournalState(state.getCounters().snapshot(),
+                    state.getActiveBookings().findAll(), last);
+            return;
+        }
+        List<BookingCommand> batch = new ArrayList<>(maxBatch);
+        long[] batchEnd = new long[1];
+        journal.replay(position, event -> {
+            batch.add(event.getCommand());
+            batchEnd[0] = event.getSequence();
+            if (batch.size() == maxBatch) {
+                bookingRepository.persistJournal(batch, batchEnd[0]);
+                batch.clear();
+            }
+        });
+        if (!batch.isEmpty()) {
+            bookingRepository.persistJournal(batch, batchEnd[0]);
+        }
+        log.info("Applied journal sequences {}..{} to the database", position + 1, last);
+    }
+}
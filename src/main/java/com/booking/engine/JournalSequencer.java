@@ -0,0 +1,209 @@
+package com.booking.engine;
+
+import com.booking.journal.Journal;
+import com.booking.journal.JournalEvent;
+import com.booking.journal.JournalSnapshot;
+import com.booking.model.BookingOutcome;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The single writer of the journal. It decides every command against the in-memory state in arrival order,
+ * appends the admitted ones with consecutive sequence numbers and flushes them as one group, so replaying
+ * the journal reproduces exactly the same decisions. Admitted commands are then handed to the projector,
+ * which applies them to the database.
+ */
+@Slf4j
+public class JournalSequencer {
+    private static final long MAX_PROJECTION_BACKOFF_MILLIS = 100;
+
+    private final Journal journal;
+    private final InMemoryState state;
+    private final WriteBehindWriter projector;
+    private final Path directory;
+    private final int snapshotEvery;
+    private final boolean fsync;
+    private final boolean archive;
+    private final int maxBatch;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread sequencer;
+
+    private long sequence;
+    private long snapshotSequence;
+    private volatile boolean running = true;
+    private volatile Throwable failure;
+
+    JournalSequencer(Journal journal, InMemoryState state, WriteBehindWriter projector, Path directory, int snapshotEvery, boolean fsync,
+                            boolean archive, int maxBatch, long snapshotSequence) {
+        this.journal = journal;
+        this.state = state;
+        this.projector = projector;
+        this.directory = directory;
+        this.snapshotEvery = snapshotEvery;
+        this.fsync = fsync;
+        this.archive = archive;
+        this.maxBatch = maxBatch;
+        this.sequence = journal.lastSequence();
+        this.snapshotSequence = snapshotSequence;
+        this.sequencer = new Thread(this::sequenceLoop, "journal-sequencer");
+        this.sequencer.setDaemon(true);
+        this.sequencer.start();
+    }
+
+    /**
+     * Decides the commands as one unit, no other request is sequenced in between.
+     *
+     * @param atomic whether to admit all commands or none of them
+     * @return future completed with the commands' outcomes once the admitted ones are in the journal
+     */
+    public CompletableFuture<BookingOutcome[]> submit(List<BookingCommand> commands, boolean atomic) {
+        Request request = new Request(commands, atomic);
+        if (!running || failure != null) {
+            request.future.completeExceptionally(new IllegalStateException("Journal is not accepting writes", failure));
+            return request.future;
+        }
+        queue.add(request);
+        return request.future;
+    }
+
+    public void shutdown() {
+        running = false;
+        sequencer.interrupt();
+        try {
+            sequencer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sequenceLoop() {
+        List<Request> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                Request first = running ? queue.take() : queue.poll();
+                if (first == null) {
+                    break;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                // shutting down, sequence what is already queued
+            }
+            queue.drainTo(batch, maxBatch - batch.size());
+            if (!batch.isEmpty()) {
+                sequence(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void sequence(List<Request> batch) {
+        List<BookingCommand> admitted = new ArrayList<>(batch.size());
+        try {
+            for (Request request : batch) {
+                if (failure != null) {
+                    request.future.completeExceptionally(new IllegalStateException("Journal is not accepting writes", failure));
+                    continue;
+                }
+                request.outcomes = state.applyAll(request.commands, request.atomic, null);
+                for (int i = 0; i < request.outcomes.length; i++) {
+                    if (request.outcomes[i].isSuccess()) {
+                        journal.append(new JournalEvent(sequence + 1, request.commands.get(i)));
+                        sequence++;
+                        admitted.add(request.commands.get(i));
+                    }
+                }
+            }
+            if (fsync) {
+                journal.force();
+            }
+        } catch (IOException | RuntimeException | InternalError e) {
+            // the in-memory state may be ahead of the journal now, only a restart can recover it
+            failure = e;
+            log.error("Journal append failed, rejecting further writes: {}", e.getMessage(), e);
+            for (Request request : batch) {
+                request.future.completeExceptionally(new IllegalStateException("Journal append failed", e));
+            }
+            return;
+        }
+
+        for (BookingCommand command : admitted) {
+            if (!project(command)) {
+                // journaled already, a restart replays what the database missed
+                failure = new IllegalStateException("Journal projection stopped");
+                log.error("Journal projection stopped, rejecting further writes");
+                for (Request request : batch) {
+                    request.future.completeExceptionally(new IllegalStateException("Journal projection stopped"));
+                }
+                return;
+            }
+        }
+        for (Request request : batch) {
+            request.future.complete(request.outcomes);
+        }
+
+        if (sequence - snapshotSequence >= snapshotEvery) {
+            snapshot();
+        }
+    }
+
+    /**
+     * Hands the command to the projector, backing off while its queue is full.
+     *
+     * @return false when the projector is shut down
+     */
+    private boolean project(BookingCommand command) {
+        long backoffMillis = 1;
+        boolean interrupted = false;
+        try {
+            while (!projector.submit(command)) {
+                if (!projector.isRunning()) {
+                    return false;
+                }
+                if (backoffMillis == 1) {
+                    log.warn("Journal projection queue is full, waiting");
+                }
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException e) {
+                    // shutting down, the projector still drains its queue
+                    interrupted = true;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, MAX_PROJECTION_BACKOFF_MILLIS);
+            }
+            return true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void snapshot() {
+        try {
+            new JournalSnapshot(sequence, state.getCounters().snapshot(), state.getActiveBookings().findAll()).write(directory);
+            snapshotSequence = sequence;
+            int removed = journal.compact(Math.min(snapshotSequence, projector.persistedSeq()), archive);
+            log.info("Journal snapshot at sequence {}, {} segments compacted", snapshotSequence, removed);
+        } catch (IOException e) {
+            log.warn("Journal snapshot at sequence {} failed: {}", sequence, e.getMessage());
+        }
+    }
+
+    private static class Request {
+        private final List<BookingCommand> commands;
+        private final boolean atomic;
+        private final CompletableFuture<BookingOutcome[]> future = new CompletableFuture<>();
+        private BookingOutcome[] outcomes;
+
+        private Request(List<BookingCommand> commands, boolean atomic) {
+            this.commands = commands;
+            this.atomic = atomic;
+        }
+    }
+}
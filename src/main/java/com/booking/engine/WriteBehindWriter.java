@@ -0,0 +1,266 @@
+package com.booking.engine;
+
+import com.booking.repository.BookingRepository;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded FIFO of admitted operations persisted in batches by a single background thread.
+ * Every operation gets a sequence number, so readers can wait until the operations of one device are in the database.
+ * <p>
+ * The operations are admitted already, so a failed write is retried with backoff instead of dropped; while it
+ * fails the queue fills up and new operations are refused. The worker is not a daemon, the JVM waits for
+ * {@link #shutdown} to flush the queue.
+ */
+@Slf4j
+public class WriteBehindWriter {
+    private static final long MIN_BACKOFF_MILLIS = 10;
+    private static final long MAX_BACKOFF_MILLIS = 5_000;
+    // after shutdown started a write that keeps failing is given up, the JVM has to exit at some point
+    private static final int SHUTDOWN_ATTEMPTS = 5;
+
+    /**
+     * Destination of persisted batches.
+     */
+    @FunctionalInterface
+    public interface BatchSink {
+        /**
+         * @param lastSeq sequence number of the last command in the batch
+         */
+        void persist(List<BookingCommand> batch, long lastSeq);
+    }
+
+    private final BatchSink sink;
+    private final int capacity;
+    private final int maxBatch;
+    private final long offerTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition persisted = lock.newCondition();
+    private final ArrayDeque<BookingCommand> pending;
+    private final AtomicLongArray lastEnqueuedSeq = new AtomicLongArray(Short.MAX_VALUE + 1);
+    private final Thread worker;
+
+    private long enqueuedSeq;
+    private volatile long persistedSeq;
+    private volatile boolean running = true;
+
+    public WriteBehindWriter(BookingRepository bookingRepository, int capacity, int maxBatch, Duration offerTimeout) {
+        this((batch, lastSeq) -> bookingRepository.persistBatch(batch), 0, capacity, maxBatch, offerTimeout);
+    }
+
+    /**
+     * @param initialSeq sequence number already persisted, the first submitted command gets the next one
+     */
+    public WriteBehindWriter(BatchSink sink, long initialSeq, int capacity, int maxBatch, Duration offerTimeout) {
+        this.sink = sink;
+        this.enqueuedSeq = initialSeq;
+        this.persistedSeq = initialSeq;
+        this.capacity = capacity;
+        this.maxBatch = maxBatch;
+        this.offerTimeoutNanos = offerTimeout.toNanos();
+        this.pending = new ArrayDeque<>(capacity);
+        this.worker = new Thread(this::drainLoop, "write-behind");
+        this.worker.start();
+    }
+
+    /**
+     * Queues the command, waiting at most the offer timeout for a free slot.
+     *
+     * @return false when the queue stayed full or the writer is shut down
+     */
+    public boolean submit(BookingCommand command) {
+        return submitAll(List.of(command));
+    }
+
+    /**
+     * Queues all commands or none of them, waiting at most the offer timeout until they fit.
+     *
+     * @return false when the queue stayed too full or the writer is shut down
+     */
+    public boolean submitAll(List<BookingCommand> commands) {
+        if (commands.size() > capacity) {
+            return false;
+        }
+        lock.lock();
+        try {
+            long nanos = offerTimeoutNanos;
+            while (running && pending.size() + commands.size() > capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            if (!running) {
+                return false;
+            }
+            for (BookingCommand command : commands) {
+                pending.addLast(command);
+                lastEnqueuedSeq.set(command.getDeviceId(), ++enqueuedSeq);
+            }
+            notEmpty.signal();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until every command submitted so far for the device is persisted.
+     */
+    public void awaitPersisted(short deviceId) {
+        if (deviceId < 0) {
+            return;
+        }
+        awaitSeq(lastEnqueuedSeq.get(deviceId));
+    }
+
+    /**
+     * Blocks until every command submitted so far is persisted.
+     */
+    public void awaitAllPersisted() {
+        long target;
+        lock.lock();
+        try {
+            target = enqueuedSeq;
+        } finally {
+            lock.unlock();
+        }
+        awaitSeq(target);
+    }
+
+    private void awaitSeq(long target) {
+        if (persistedSeq >= target) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (persistedSeq < target && worker.isAlive()) {
+                persisted.await(100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return sequence number of the last command persisted
+     */
+    public long persistedSeq() {
+        return persistedSeq;
+    }
+
+    /**
+     * @return false once shutdown started, the writer accepts no more commands
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops accepting commands and persists everything still queued.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        List<BookingCommand> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            long batchSeq;
+            lock.lock();
+            try {
+                while (running && pending.isEmpty()) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                while (batch.size() < maxBatch && !pending.isEmpty()) {
+                    batch.add(pending.pollFirst());
+                }
+                batchSeq = enqueuedSeq - pending.size();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            persist(batch, batchSeq);
+            batch.clear();
+
+            lock.lock();
+            try {
+                persistedSeq = batchSeq;
+                persisted.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void persist(List<BookingCommand> batch, long lastSeq) {
+        try {
+            sink.persist(batch, lastSeq);
+        } catch (RuntimeException e) {
+            log.warn("Batch of {} commands failed, persisting one by one: {}", batch.size(), e.getMessage());
+            long seq = lastSeq - batch.size();
+            for (BookingCommand command : batch) {
+                persistWithRetry(command, ++seq);
+            }
+        }
+    }
+
+    /**
+     * Retries the command with exponential backoff until it is persisted. Only after shutdown started
+     * and {@link #SHUTDOWN_ATTEMPTS} more attempts failed, the command is given up.
+     */
+    private void persistWithRetry(BookingCommand command, long seq) {
+        long backoff = MIN_BACKOFF_MILLIS;
+        int attemptsLeft = SHUTDOWN_ATTEMPTS;
+        while (true) {
+            try {
+                sink.persist(List.of(command), seq);
+                return;
+            } catch (RuntimeException e) {
+                if (!running && --attemptsLeft <= 0) {
+                    log.error("Lost write-behind command {} at shutdown: {}", command, e.getMessage());
+                    return;
+                }
+                log.warn("Write-behind command {} failed, retrying in {} ms: {}", command, backoff, e.getMessage());
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                // like the queue wait, the worker ignores interrupts, the command still has to be written
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.booking.feed;
+
+import com.booking.config.BookingProperties;
+import com.booking.dto.AvailabilityChangeDto;
+import com.booking.dto.BookingAvailabilityDto;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Pushes availability changes to server-sent event subscribers. A write only marks the device dirty
+ * for the subscribers following it; a small dispatcher pool then sends each of them the device's current
+ * availability. While a subscriber is being written to, further changes are coalesced, so a slow client
+ * receives the latest state of each device instead of every intermediate one, and an idle subscriber
+ * holds no thread.
+ * <p>
+ * Heartbeats go through the dispatchers as well, so only they write to subscribers. A write blocked longer
+ * than the send timeout disconnects its subscriber and adds a dispatcher until the write returns, so a
+ * stalled client cannot hold back the updates of the others.
+ */
+@Slf4j
+@Component
+public class AvailabilityFeed {
+    public static final String SNAPSHOT_EVENT = "snapshot";
+    public static final String AVAILABILITY_EVENT = "availability";
+    // write states of a subscriber
+    private static final int IDLE = 0;
+    private static final int SENDING = 1;
+    private static final int STALLED = 2;
+
+    private final int maxSubscribers;
+    private final long timeoutMillis;
+    private final long sendTimeoutNanos;
+    private final ThreadPoolExecutor dispatcher;
+    private final ScheduledExecutorService heartbeat;
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    // subscribers of every device, and of selected devices by device id
+    private final Set<Subscriber> allDevices = ConcurrentHashMap.newKeySet();
+    private final Map<Short, Set<Subscriber>> byDevice = new ConcurrentHashMap<>();
+
+    public AvailabilityFeed(@Autowired BookingProperties bookingProperties) {
+        BookingProperties.Feed feed = bookingProperties.getFeed();
+        this.maxSubscribers = feed.getMaxSubscribers();
+        this.timeoutMillis = feed.getTimeout().toMillis();
+        this.sendTimeoutNanos = feed.getSendTimeout().toNanos();
+        this.dispatcher = new ThreadPoolExecutor(feed.getDispatchThreads(), feed.getDispatchThreads(),
+                0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), daemonThreads("availability-feed"));
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(daemonThreads("availability-feed-heartbeat"));
+        long interval = feed.getHeartbeat().toMillis();
+        this.heartbeat.scheduleWithFixedDelay(this::sendHeartbeats, interval, interval, TimeUnit.MILLISECONDS);
+        long check = Math.max(feed.getSendTimeout().toMillis() / 2, 1);
+        this.heartbeat.scheduleWithFixedDelay(this::disconnectStalled, check, check, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a subscriber and sends it the {@value #SNAPSHOT_EVENT} event, followed by an
+     * {@value #AVAILABILITY_EVENT} event per device whenever the device changes.
+     *
+     * @param phoneIds devices to follow, or null for every device
+     * @param snapshot current availability of the followed devices
+     * @param loader   current availability of one device
+     * @return the event stream, or null when the subscriber limit is reached
+     */
+    public SseEmitter subscribe(Collection<Short> phoneIds,
+                                Supplier<Map<Short, List<BookingAvailabilityDto>>> snapshot,
+                                Function<Short, List<BookingAvailabilityDto>> loader) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            return null;
+        }
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        Subscriber subscriber = new Subscriber(emitter, phoneIds == null ? null : new TreeSet<>(phoneIds), loader);
+        emitter.onCompletion(() -> remove(subscriber));
+        emitter.onTimeout(() -> remove(subscriber));
+        emitter.onError(e -> remove(subscriber));
+
+        // registered before the snapshot is read, so no change in between is missed
+        if (subscriber.phoneIds == null) {
+            allDevices.add(subscriber);
+        } else {
+            for (Short phoneId : subscriber.phoneIds) {
+                byDevice.computeIfAbsent(phoneId, id -> ConcurrentHashMap.newKeySet()).add(subscriber);
+            }
+        }
+        if (subscriber.send(SseEmitter.event().name(SNAPSHOT_EVENT).data(snapshot.get(), MediaType.APPLICATION_JSON))) {
+            dispatcher.execute(subscriber::flush);
+        }
+        return emitter;
+    }
+
+    /**
+     * Marks the device changed for its subscribers; never blocks on them.
+     */
+    public void publish(short phoneId) {
+        for (Subscriber subscriber : allDevices) {
+            subscriber.changed(phoneId);
+        }
+        Set<Subscriber> subscribers = byDevice.get(phoneId);
+        if (subscribers != null) {
+            for (Subscriber subscriber : subscribers) {
+                subscriber.changed(phoneId);
+            }
+        }
+    }
+
+    public int subscriberCount() {
+        return subscriberCount.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        heartbeat.shutdownNow();
+        dispatcher.shutdownNow();
+        List<Subscriber> subscribers = new ArrayList<>(allDevices);
+        byDevice.values().forEach(subscribers::addAll);
+        for (Subscriber subscriber : subscribers) {
+            if (!remove(subscriber)) {
+                continue;
+            }
+            try {
+                subscriber.emitter.complete();
+            } catch (RuntimeException e) {
+                // the container may already have torn the connection down
+                log.debug("Availability feed subscriber not completed on shutdown: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Unregisters the subscriber once, whichever of the dispatcher, heartbeat or container callbacks gets here first.
+     *
+     * @return false when it was already removed
+     */
+    private boolean remove(Subscriber subscriber) {
+        if (!subscriber.closed.compareAndSet(false, true)) {
+            return false;
+        }
+        if (subscriber.phoneIds == null) {
+            allDevices.remove(subscriber);
+        } else {
+            for (Short phoneId : subscriber.phoneIds) {
+                byDevice.computeIfPresent(phoneId, (id, subscribers) -> {
+                    subscribers.remove(subscriber);
+                    return subscribers.isEmpty() ? null : subscribers;
+                });
+            }
+        }
+        subscriberCount.decrementAndGet();
+        return true;
+    }
+
+    private void sendHeartbeats() {
+        // a failed write is how a vanished client is noticed and its slot freed
+        for (Subscriber subscriber : subscribers()) {
+            subscriber.heartbeat();
+        }
+    }
+
+    private void disconnectStalled() {
+        long now = System.nanoTime();
+        for (Subscriber subscriber : subscribers()) {
+            subscriber.disconnectIfStalled(now);
+        }
+    }
+
+    private Set<Subscriber> subscribers() {
+        Set<Subscriber> subscribers = new HashSet<>(allDevices);
+        byDevice.values().forEach(subscribers::addAll);
+        return subscribers;
+    }
+
+    /**
+     * Grows or shrinks the dispatcher pool, for writes blocked on a stalled subscriber.
+     */
+    private synchronized void resizeDispatcher(int delta) {
+        int size = dispatcher.getCorePoolSize() + delta;
+        if (delta > 0) {
+            dispatcher.setMaximumPoolSize(size);
+            dispatcher.setCorePoolSize(size);
+        } else {
+            dispatcher.setCorePoolSize(size);
+            dispatcher.setMaximumPoolSize(size);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private class Subscriber {
+        private final SseEmitter emitter;
+        private final Set<Short> phoneIds;
+        private final Function<Short, List<BookingAvailabilityDto>> loader;
+        // guarded by this; scheduled stays true from the subscription until the snapshot is sent
+        private final Set<Short> dirty = new TreeSet<>();
+        private boolean heartbeatDue;
+        private boolean scheduled = true;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicInteger sendState = new AtomicInteger(IDLE);
+        private volatile long sendStarted;
+
+        private Subscriber(SseEmitter emitter, Set<Short> phoneIds, Function<Short, List<BookingAvailabilityDto>> loader) {
+            this.emitter = emitter;
+            this.phoneIds = phoneIds;
+            this.loader = loader;
+        }
+
+        private void changed(short phoneId) {
+            synchronized (this) {
+                dirty.add(phoneId);
+                if (scheduled || closed.get()) {
+                    return;
+                }
+                scheduled = true;
+            }
+            dispatcher.execute(this::flush);
+        }
+
+        private void heartbeat() {
+            synchronized (this) {
+                heartbeatDue = true;
+                if (scheduled || closed.get()) {
+                    return;
+                }
+                scheduled = true;
+            }
+            dispatcher.execute(this::flush);
+        }
+
+        /**
+         * Sends the dirty devices until none is left, or a heartbeat when none was; only one flush per
+         * subscriber runs at a time.
+         */
+        private void flush() {
+            while (true) {
+                List<Short> changed;
+                synchronized (this) {
+                    if (dirty.isEmpty() && !heartbeatDue || closed.get()) {
+                        scheduled = false;
+                        return;
+                    }
+                    changed = new ArrayList<>(dirty);
+                    dirty.clear();
+                    heartbeatDue = false;
+                }
+                if (changed.isEmpty() && !send(SseEmitter.event().comment(""))) {
+                    return;
+                }
+                for (Short phoneId : changed) {
+                    AvailabilityChangeDto change = AvailabilityChangeDto.builder()
+                            .deviceId(phoneId)
+                            .availability(loader.apply(phoneId))
+                            .build();
+                    if (!send(SseEmitter.event().name(AVAILABILITY_EVENT).data(change, MediaType.APPLICATION_JSON))) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private boolean send(SseEmitter.SseEventBuilder event) {
+            if (closed.get()) {
+                return false;
+            }
+            sendStarted = System.nanoTime();
+            sendState.set(SENDING);
+            try {
+                emitter.send(event);
+            } catch (IOException | IllegalStateException e) {
+                log.debug("Availability feed subscriber dropped: {}", e.getMessage());
+                sent();
+                remove(this);
+                emitter.completeWithError(e);
+                return false;
+            }
+            if (!sent()) {
+                emitter.complete();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return false when the write was declared stalled meanwhile, the subscriber is disconnected then
+         */
+        private boolean sent() {
+            if (sendState.compareAndSet(SENDING, IDLE)) {
+                return true;
+            }
+            sendState.set(IDLE);
+            resizeDispatcher(-1);
+            return false;
+        }
+
+        /**
+         * Disconnects the subscriber when its write has been blocked for longer than the send timeout. The write
+         * keeps its thread until the container gives up on it, so another dispatcher is added meanwhile.
+         */
+        private void disconnectIfStalled(long now) {
+            if (sendState.get() != SENDING || now - sendStarted < sendTimeoutNanos
+                    || !sendState.compareAndSet(SENDING, STALLED)) {
+                return;
+            }
+            resizeDispatcher(1);
+            if (remove(this)) {
+                log.info("Availability feed subscriber disconnected, a write blocked for over {} ms",
+                        TimeUnit.NANOSECONDS.toMillis(sendTimeoutNanos));
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.booking.idempotency;
+
+import com.booking.config.BookingProperties;
+import com.booking.model.BookingOutcome;
+import com.booking.model.IdempotentOutcome;
+import com.booking.repository.BookingRepository;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Applies a request sent with an idempotency key once and answers every retry with its first outcome.
+ * Recent outcomes are kept in a bounded in-memory cache, so a retry is answered without a connection;
+ * every outcome is also stored in the idempotency_key table, which answers retries the cache evicted
+ * or that arrive after a restart. Outcomes are forgotten after the configured time to live.
+ * <p>
+ * Duplicates arriving together wait for the first of them instead of racing it. If the first fails
+ * with an exception nothing is recorded and one of the waiting duplicates applies the request instead.
+ * <p>
+ * The key is stored before the request is applied and completed with its outcome afterwards. A key left
+ * without an outcome, by a crash between the two, is resolved by asking whether the request's effect is
+ * in the database, so a retry never applies it twice.
+ */
+@Slf4j
+@Component
+public class IdempotencyKeys {
+    public static final String HEADER = "Idempotency-Key";
+    public static final int MAX_KEY_LENGTH = 100;
+
+    private final BookingRepository bookingRepository;
+    private final long ttlMillis;
+    private final int maxEntries;
+    // guarded by itself; ordered by creation, so the oldest outcomes are at the head
+    private final LinkedHashMap<String, IdempotentOutcome> outcomes = new LinkedHashMap<>();
+    private final Map<String, CompletableFuture<IdempotentOutcome>> inFlight = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService purger;
+    private final AtomicLong replayed = new AtomicLong();
+
+    public IdempotencyKeys(@Autowired BookingRepository bookingRepository,
+                           @Autowired BookingProperties bookingProperties,
+                           @Autowired MeterRegistry registry) {
+        BookingProperties.Idempotency idempotency = bookingProperties.getIdempotency();
+        this.bookingRepository = bookingRepository;
+        this.ttlMillis = idempotency.getTtl().toMillis();
+        this.maxEntries = idempotency.getMaxEntries();
+        this.purger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idempotency-purge");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = idempotency.getPurgeInterval().toMillis();
+        this.purger.scheduleWithFixedDelay(this::purge, interval, interval, TimeUnit.MILLISECONDS);
+
+        Gauge.builder("booking.idempotency.cached", this, IdempotencyKeys::size)
+                .description("Outcomes of idempotent requests held in memory")
+                .register(registry);
+        FunctionCounter.builder("booking.idempotency.replayed", replayed, AtomicLong::get)
+                .description("Retries answered with the outcome of the first request")
+                .register(registry);
+    }
+
+    /**
+     * Applies the operation unless the key was used before.
+     *
+     * @param request identifies what is asked, e.g. the operation and the booking
+     * @param applied the outcome of the operation if its effect is stored, otherwise null
+     * @return the first outcome recorded for the key, or {@link BookingOutcome#KEY_REUSED}
+     * when the key was first used for a different request
+     */
+    public BookingOutcome apply(String key, String request, Supplier<BookingOutcome> operation,
+                                Supplier<BookingOutcome> applied) {
+        while (true) {
+            IdempotentOutcome recorded = cached(key);
+            if (recorded != null) {
+                replayed.incrementAndGet();
+                return outcomeFor(recorded, request);
+            }
+
+            CompletableFuture<IdempotentOutcome> mine = new CompletableFuture<>();
+            CompletableFuture<IdempotentOutcome> first = inFlight.putIfAbsent(key, mine);
+            if (first != null) {
+                try {
+                    recorded = first.join();
+                } catch (CompletionException e) {
+                    // the first attempt failed without an outcome; try to apply it ourselves
+                    continue;
+                }
+                if (recorded.getOutcome() == null && recorded.getRequest().equals(request)) {
+                    // the first attempt was for another request and found the key pending; look again
+                    continue;
+                }
+                replayed.incrementAndGet();
+                return outcomeFor(recorded, request);
+            }
+
+            try {
+                recorded = record(key, request, operation, applied);
+                mine.complete(recorded);
+                return outcomeFor(recorded, request);
+            } catch (RuntimeException e) {
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, mine);
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (outcomes) {
+            return outcomes.size();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        purger.shutdownNow();
+    }
+
+    private IdempotentOutcome record(String key, String request, Supplier<BookingOutcome> operation,
+                                     Supplier<BookingOutcome> applied) {
+        // the previous owner of the key caches its outcome before it leaves inFlight
+        IdempotentOutcome recorded = cached(key);
+        if (recorded != null) {
+            return recorded;
+        }
+        long now = System.currentTimeMillis();
+        recorded = bookingRepository.findIdempotentOutcome(key, now - ttlMillis);
+        BookingOutcome outcome;
+        if (recorded == null) {
+            recorded = new IdempotentOutcome(key, request, null, now);
+            bookingRepository.insertIdempotentOutcome(recorded);
+            try {
+                outcome = operation.get();
+            } catch (RuntimeException e) {
+                forget(key);
+                throw e;
+            }
+        } else if (recorded.getOutcome() != null || !recorded.getRequest().equals(request)) {
+            if (recorded.getOutcome() != null) {
+                cache(recorded);
+            }
+            return recorded;
+        } else {
+            // an earlier attempt stored the key but not its outcome; it may have applied the request
+            log.warn("Idempotency key {} has no outcome, checking whether its request was applied", key);
+            outcome = applied.get();
+            if (outcome == null) {
+                outcome = operation.get();
+            }
+        }
+        recorded = new IdempotentOutcome(key, request, outcome, recorded.getCreatedAt());
+        try {
+            bookingRepository.completeIdempotentOutcome(recorded);
+        } catch (RuntimeException e) {
+            // the operation is applied; the cached outcome still answers retries until it is evicted
+            log.error("Could not store the outcome of idempotency key {}", key, e);
+        }
+        cache(recorded);
+        return recorded;
+    }
+
+    private void forget(String key) {
+        try {
+            bookingRepository.deletePendingIdempotentOutcome(key);
+        } catch (RuntimeException e) {
+            // a retry finds the key pending and checks whether the request was applied
+            log.warn("Could not forget idempotency key {}: {}", key, e.getMessage());
+        }
+    }
+
+    private IdempotentOutcome cached(String key) {
+        synchronized (outcomes) {
+            IdempotentOutcome recorded = outcomes.get(key);
+            return recorded != null && recorded.getCreatedAt() > System.currentTimeMillis() - ttlMillis ? recorded : null;
+        }
+    }
+
+    private void cache(IdempotentOutcome recorded) {
+        long expired = System.currentTimeMillis() - ttlMillis;
+        synchronized (outcomes) {
+            outcomes.put(recorded.getKey(), recorded);
+            Iterator<IdempotentOutcome> oldest = outcomes.values().iterator();
+            while (oldest.hasNext()) {
+                IdempotentOutcome head = oldest.next();
+                if (outcomes.size() <= maxEntries && head.getCreatedAt() > expired) {
+                    break;
+                }
+                oldest.remove();
+            }
+        }
+    }
+
+    private static BookingOutcome outcomeFor(IdempotentOutcome recorded, String request) {
+        return recorded.getRequest().equals(request) ? recorded.getOutcome() : BookingOutcome.KEY_REUSED;
+    }
+
+    private void purge() {
+        try {
+            long expired = System.currentTimeMillis() - ttlMillis;
+            synchronized (outcomes) {
+                outcomes.values().removeIf(recorded -> recorded.getCreatedAt() <= expired);
+            }
+            int deleted = bookingRepository.deleteIdempotentOutcomes(expired);
+            log.debug("Purged {} expired idempotency keys", deleted);
+        } catch (RuntimeException e) {
+            // an exception would cancel the periodic task
+            log.error("Idempotency key purge failed", e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.booking.journal;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of booking events split into memory-mapped segments named after their first sequence.
+ * Not thread-safe: one writer appends, and replay is only used before it starts.
+ */
+@Slf4j
+public class Journal implements AutoCloseable {
+    static final String ARCHIVE = "archive";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d{20})\\.journal");
+
+    private final Path directory;
+    private final int segmentEvents;
+    private final List<JournalSegment> segments = new ArrayList<>();
+    private final List<JournalSegment> unforced = new ArrayList<>();
+
+    /**
+     * @param nextSequence sequence of the first event when the directory holds no journal yet
+     */
+    public Journal(Path directory, int segmentEvents, long nextSequence) throws IOException {
+        this.directory = directory;
+        this.segmentEvents = segmentEvents;
+        Files.createDirectories(directory);
+
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(path -> SEGMENT_NAME.matcher(path.getFileName().toString()).matches())
+                    .sorted()
+                    .toList();
+        }
+        for (Path file : files) {
+            Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+            matcher.matches();
+            long firstSequence = Long.parseLong(matcher.group(1));
+            if (!segments.isEmpty() && firstSequence != lastSequence() + 1) {
+                // the previous segment ends early, what follows can't be replayed in order
+                log.error("Journal segment {} does not continue at sequence {}, ignoring it and later segments",
+                        file, lastSequence() + 1);
+                break;
+            }
+            segments.add(new JournalSegment(file, firstSequence, segmentEvents));
+        }
+        if (segments.isEmpty()) {
+            segments.add(newSegment(nextSequence));
+        }
+    }
+
+    /**
+     * @return the oldest sequence still in the journal
+     */
+    public long firstSequence() {
+        return segments.get(0).getFirstSequence();
+    }
+
+    /**
+     * @return the newest sequence in the journal, {@code firstSequence() - 1} when it is empty
+     */
+    public long lastSequence() {
+        return segments.get(segments.size() - 1).getLastSequence();
+    }
+
+    /**
+     * Appends the event, starting a new segment when the current one is full. The event must carry
+     * the next sequence; it is durable only after {@link #force()}.
+     */
+    public void append(JournalEvent event) throws IOException {
+        JournalSegment current = segments.get(segments.size() - 1);
+        if (current.isFull()) {
+            current = newSegment(event.getSequence());
+            segments.add(current);
+        }
+        current.append(event);
+        if (unforced.isEmpty() || unforced.get(unforced.size() - 1) != current) {
+            unforced.add(current);
+        }
+    }
+
+    public void force() {
+        for (JournalSegment segment : unforced) {
+            segment.force();
+        }
+        unforced.clear();
+    }
+
+    public void replay(long afterSequence, Consumer<JournalEvent> consumer) {
+        for (JournalSegment segment : segments) {
+            if (segment.getLastSequence() > afterSequence) {
+                segment.replay(afterSequence, consumer);
+            }
+        }
+    }
+
+    /**
+     * Removes the segments whose events are all at or below the sequence, except the current one,
+     * moving them to the archive subdirectory or deleting them.
+     *
+     * @return number of removed segments
+     */
+    public int compact(long upToSequence, boolean archive) throws IOException {
+        int removed = 0;
+        Iterator<JournalSegment> iterator = segments.iterator();
+        while (iterator.hasNext()) {
+            JournalSegment segment = iterator.next();
+            if (segments.size() == 1 || segment.getLastSequence() > upToSequence || !segment.isFull()) {
+                break;
+            }
+            segment.close();
+            if (archive) {
+                Path archiveDirectory = Files.createDirectories(directory.resolve(ARCHIVE));
+                Files.move(segment.getPath(), archiveDirectory.resolve(segment.getPath().getFileName()),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(segment.getPath());
+            }
+            iterator.remove();
+            removed++;
+        }
+        return removed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (JournalSegment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private JournalSegment newSegment(long firstSequence) throws IOException {
+        return new JournalSegment(directory.resolve(String.format("segment-%020d.journal", firstSequence)),
+                firstSequence, segmentEvents);
+    }
+}
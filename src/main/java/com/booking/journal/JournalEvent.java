@@ -0,0 +1,81 @@
+package com.booking.journal;
+
+import com.booking.engine.BookingCommand;
+import lombok.Value;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * An admitted book or return, stored as a fixed-size record:
+ * sequence (8), timestamp (8), device id (2), type (1), reserved (1), user name length (2),
+ * user name in UTF-8 (up to {@link #MAX_USER_NAME_BYTES}) and a CRC32 of everything before it (4).
+ */
+@Value
+public class JournalEvent {
+    public static final int SIZE = 256;
+    public static final int MAX_USER_NAME_BYTES = 230;
+
+    private static final int TIMESTAMP = 8;
+    private static final int DEVICE_ID = 16;
+    private static final int TYPE = 18;
+    private static final int NAME_LENGTH = 20;
+    private static final int NAME = 22;
+    private static final int CHECKSUM = SIZE - Integer.BYTES;
+
+    long sequence;
+    BookingCommand command;
+
+    /**
+     * @throws IllegalArgumentException when the user name does not fit into the record
+     */
+    public static byte[] encodeUserName(String userName) {
+        byte[] bytes = userName.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_USER_NAME_BYTES) {
+            throw new IllegalArgumentException("User name longer than " + MAX_USER_NAME_BYTES + " bytes");
+        }
+        return bytes;
+    }
+
+    void writeTo(ByteBuffer buffer, int offset) {
+        byte[] name = encodeUserName(command.getUserName());
+        buffer.putLong(offset, sequence);
+        buffer.putLong(offset + TIMESTAMP, command.getTimestamp());
+        buffer.putShort(offset + DEVICE_ID, command.getDeviceId());
+        buffer.put(offset + TYPE, (byte) command.getType().ordinal());
+        buffer.putShort(offset + NAME_LENGTH, (short) name.length);
+        buffer.put(offset + NAME, name);
+        buffer.put(offset + NAME + name.length, new byte[MAX_USER_NAME_BYTES - name.length]);
+        buffer.putInt(offset + CHECKSUM, checksum(buffer, offset));
+    }
+
+    /**
+     * @return the event stored at the offset, or null for an empty slot or a partially written record
+     */
+    static JournalEvent readFrom(ByteBuffer buffer, int offset) {
+        long sequence = buffer.getLong(offset);
+        if (sequence <= 0 || buffer.getInt(offset + CHECKSUM) != checksum(buffer, offset)) {
+            return null;
+        }
+        int typeIndex = buffer.get(offset + TYPE);
+        int nameLength = buffer.getShort(offset + NAME_LENGTH);
+        BookingCommand.Type[] types = BookingCommand.Type.values();
+        if (typeIndex < 0 || typeIndex >= types.length || nameLength < 0 || nameLength > MAX_USER_NAME_BYTES) {
+            return null;
+        }
+        byte[] name = new byte[nameLength];
+        buffer.get(offset + NAME, name);
+        return new JournalEvent(sequence, new BookingCommand(
+                types[typeIndex],
+                buffer.getShort(offset + DEVICE_ID),
+                new String(name, StandardCharsets.UTF_8),
+                buffer.getLong(offset + TIMESTAMP)));
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset, CHECKSUM));
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,92 @@
+package com.booking.journal;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * One memory-mapped journal file of a fixed number of event slots. Events are appended one after the other,
+ * so the file is written sequentially; on open the valid prefix is found by checking sequences and checksums,
+ * which also drops a record torn by a crash.
+ */
+class JournalSegment implements AutoCloseable {
+    private final Path path;
+    private final long firstSequence;
+    private final int capacity;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    private int count;
+    private int forced;
+
+    JournalSegment(Path path, long firstSequence, int capacity) throws IOException {
+        this.path = path;
+        this.firstSequence = firstSequence;
+        this.capacity = capacity;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * JournalEvent.SIZE);
+        while (count < capacity) {
+            JournalEvent event = JournalEvent.readFrom(buffer, count * JournalEvent.SIZE);
+            if (event == null || event.getSequence() != firstSequence + count) {
+                break;
+            }
+            count++;
+        }
+        this.forced = count;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getFirstSequence() {
+        return firstSequence;
+    }
+
+    /**
+     * @return sequence of the last event, or {@code firstSequence - 1} when the segment is empty
+     */
+    long getLastSequence() {
+        return firstSequence + count - 1;
+    }
+
+    boolean isFull() {
+        return count == capacity;
+    }
+
+    void append(JournalEvent event) {
+        if (isFull()) {
+            throw new IllegalStateException("Segment " + path + " is full");
+        }
+        if (event.getSequence() != firstSequence + count) {
+            throw new IllegalArgumentException("Expected sequence " + (firstSequence + count) + " but got " + event.getSequence());
+        }
+        event.writeTo(buffer, count * JournalEvent.SIZE);
+        count++;
+    }
+
+    /**
+     * Writes the events appended since the last call to the storage device.
+     */
+    void force() {
+        if (forced < count) {
+            buffer.force(forced * JournalEvent.SIZE, (count - forced) * JournalEvent.SIZE);
+            forced = count;
+        }
+    }
+
+    void replay(long afterSequence, Consumer<JournalEvent> consumer) {
+        for (int i = (int) Math.max(0, afterSequence - firstSequence + 1); i < count; i++) {
+            consumer.accept(JournalEvent.readFrom(buffer, i * JournalEvent.SIZE));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+}
@@ -0,0 +1,131 @@
+package com.booking.journal;
+
+import com.booking.model.ActiveBooking;
+import com.booking.model.Availability;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Availability and active bookings as of a journal sequence. Recovery starts from the newest readable
+ * snapshot and replays the events after it.
+ */
+@Slf4j
+@Value
+public class JournalSnapshot {
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("snapshot-\\d{20}\\.snapshot");
+    private static final int KEPT_SNAPSHOTS = 2;
+
+    long sequence;
+    List<Availability> availabilities;
+    List<ActiveBooking> activeBookings;
+
+    /**
+     * Writes the snapshot next to the journal, replacing the file atomically, and drops older snapshots
+     * but the previous one.
+     */
+    public void write(Path directory) throws IOException {
+        Path file = directory.resolve(String.format("snapshot-%020d.snapshot", sequence));
+        Path temporary = directory.resolve(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (OutputStream stream = Files.newOutputStream(temporary);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(stream, crc)))) {
+            output.writeLong(sequence);
+            output.writeInt(availabilities.size());
+            for (Availability availability : availabilities) {
+                output.writeShort(availability.getDeviceId());
+                output.writeShort(availability.getQuantity());
+                output.writeShort(availability.getMaxQuantity());
+            }
+            output.writeInt(activeBookings.size());
+            for (ActiveBooking booking : activeBookings) {
+                output.writeShort(booking.getDeviceId());
+                output.writeUTF(booking.getUserName());
+                output.writeLong(booking.getTimestamp());
+            }
+            output.flush();
+            new DataOutputStream(stream).writeLong(crc.getValue());
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+
+        List<Path> snapshots = list(directory);
+        for (int i = KEPT_SNAPSHOTS; i < snapshots.size(); i++) {
+            Files.deleteIfExists(snapshots.get(i));
+        }
+    }
+
+    /**
+     * @return the newest snapshot that reads back with a valid checksum
+     */
+    public static Optional<JournalSnapshot> readLatest(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Optional.empty();
+        }
+        for (Path file : list(directory)) {
+            try {
+                return Optional.of(read(file));
+            } catch (IOException e) {
+                log.warn("Skipping unreadable journal snapshot {}: {}", file, e.getMessage());
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static JournalSnapshot read(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file))) {
+            DataInputStream input = new DataInputStream(new CheckedInputStream(stream, crc));
+            long sequence = input.readLong();
+            int availabilityCount = input.readInt();
+            List<Availability> availabilities = new ArrayList<>(availabilityCount);
+            for (int i = 0; i < availabilityCount; i++) {
+                availabilities.add(new Availability(input.readShort(), input.readShort(), input.readShort()));
+            }
+            int bookingCount = input.readInt();
+            List<ActiveBooking> activeBookings = new ArrayList<>(bookingCount);
+            for (int i = 0; i < bookingCount; i++) {
+                activeBookings.add(new ActiveBooking(input.readShort(), input.readUTF(), input.readLong()));
+            }
+            long expected = crc.getValue();
+            if (new DataInputStream(stream).readLong() != expected) {
+                throw new IOException("checksum mismatch");
+            }
+            return new JournalSnapshot(sequence, availabilities, activeBookings);
+        }
+    }
+
+    /**
+     * @return snapshot files, newest first
+     */
+    private static List<Path> list(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> SNAPSHOT_NAME.matcher(path.getFileName().toString()).matches())
+                    .sorted(Comparator.reverseOrder())
+                    .toList();
+        }
+    }
+}
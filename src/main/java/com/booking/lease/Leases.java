@@ -0,0 +1,408 @@
+package com.booking.lease;
+
+import com.booking.config.BookingProperties;
+import com.booking.dto.BookingDto;
+import com.booking.engine.ActiveBookings;
+import com.booking.model.ActiveBooking;
+import com.booking.model.BookingOutcome;
+import com.booking.model.Lease;
+import com.booking.repository.BookingRepository;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Leases of active bookings. Pending expiries sit in a {@link TimingWheel} turned by one ticker thread, so
+ * scheduling, renewing and cancelling a lease cost O(1) however many are outstanding. Due leases are handed
+ * to an expiry thread, which returns their units through the same path as a client return.
+ * <p>
+ * A lease is stored before its booking is attempted and deleted when the booking fails or ends, so after a
+ * restart every booking that was admitted with a lease finds its lease again; stored leases of bookings that
+ * are no longer active are dropped. The units one user holds of a device are interchangeable: a return closes
+ * the user's oldest booking, and when that is not the leased one, the leases are moved along so the bookings
+ * left keep the leases left.
+ */
+@Slf4j
+@Component
+public class Leases {
+    private static final int LOCK_STRIPES = 64;
+    private static final long RETRY_MILLIS = 5_000;
+    private static final Comparator<Lease> BY_DEVICE_AND_BOOKING = Comparator
+            .comparingInt(Lease::getDeviceId)
+            .thenComparingLong(Lease::getBookingTimestamp);
+
+    private final BookingRepository bookingRepository;
+    private final ActiveBookings activeBookings;
+    private final long tickMillis;
+    private final ReentrantLock[] holderLocks = new ReentrantLock[LOCK_STRIPES];
+    // leases of one user and device, guarded by the holder's lock
+    private final Map<Holder, List<LeaseTimer>> leases = new ConcurrentHashMap<>();
+    // guarded by itself
+    private final TimingWheel<LeaseTimer> wheel;
+    private final ScheduledExecutorService ticker;
+    private final ExecutorService expirer;
+    private final AtomicLong expiredCount = new AtomicLong();
+    private volatile Function<Lease, BookingOutcome> returner;
+
+    public Leases(@Autowired BookingRepository bookingRepository,
+                  @Autowired ActiveBookings activeBookings,
+                  @Autowired BookingProperties bookingProperties,
+                  @Autowired MeterRegistry registry) {
+        this.bookingRepository = bookingRepository;
+        this.activeBookings = activeBookings;
+        this.tickMillis = bookingProperties.getLease().getTick().toMillis();
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            holderLocks[i] = new ReentrantLock();
+        }
+        this.wheel = new TimingWheel<>(tickMillis, System.currentTimeMillis());
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.expirer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Gauge.builder("booking.leases.pending", this, Leases::size)
+                .description("Leases counting down to their expiry")
+                .register(registry);
+        FunctionCounter.builder("booking.leases.expired", expiredCount, AtomicLong::get)
+                .description("Leases that ran out and had their unit returned")
+                .register(registry);
+    }
+
+    /**
+     * Recovers the stored leases of active bookings and starts expiring them.
+     *
+     * @param returner returns the unit of a lease that ended
+     */
+    public synchronized void start(Function<Lease, BookingOutcome> returner) {
+        if (this.returner != null) {
+            return;
+        }
+        this.returner = returner;
+        int recovered = 0;
+        int dropped = 0;
+        for (Lease lease : bookingRepository.findAllLeases()) {
+            if (activeBookings.contains(lease.getBooking())) {
+                LeaseTimer timer = new LeaseTimer(lease);
+                leases.computeIfAbsent(Holder.of(lease), holder -> new ArrayList<>(1)).add(timer);
+                schedule(timer, lease.getExpiresAt());
+                recovered++;
+            } else {
+                bookingRepository.deleteLease(lease);
+                dropped++;
+            }
+        }
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        log.info("Recovered {} leases, dropped {} of bookings no longer active", recovered, dropped);
+    }
+
+    /**
+     * Stores a lease for a booking about to be attempted. Settle it with {@link #activate} or {@link #discard}
+     * once the outcome is known.
+     *
+     * @return the lease, or null when the booking has one already, so the attempt can only be a duplicate
+     */
+    public Lease prepare(BookingDto bookingDto, long durationMillis) {
+        Lease lease = new Lease(bookingDto.getDeviceId(), bookingDto.getUserName(), bookingDto.getTimestamp(),
+                System.currentTimeMillis() + durationMillis);
+        Holder holder = Holder.of(lease);
+        ReentrantLock lock = lock(holder);
+        lock.lock();
+        try {
+            if (find(leases.get(holder), lease.getBookingTimestamp()) != null) {
+                return null;
+            }
+            bookingRepository.saveLease(lease);
+            leases.computeIfAbsent(holder, key -> new ArrayList<>(1)).add(new LeaseTimer(lease));
+            return lease;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the countdown of a prepared lease whose booking was admitted.
+     */
+    public void activate(Lease lease) {
+        Holder holder = Holder.of(lease);
+        ReentrantLock lock = lock(holder);
+        lock.lock();
+        try {
+            List<LeaseTimer> held = leases.get(holder);
+            LeaseTimer timer = find(held, lease.getBookingTimestamp());
+            if (timer == null || timer.timeout != null) {
+                return;
+            }
+            if (activeBookings.contains(lease.getBooking())) {
+                schedule(timer, timer.lease.getExpiresAt());
+            } else {
+                // returned before the lease got going
+                remove(holder, held, timer);
+                bookingRepository.deleteLease(lease);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets a prepared lease whose booking was not admitted.
+     */
+    public void discard(Lease lease) {
+        Holder holder = Holder.of(lease);
+        ReentrantLock lock = lock(holder);
+        lock.lock();
+        try {
+            List<LeaseTimer> held = leases.get(holder);
+            LeaseTimer timer = find(held, lease.getBookingTimestamp());
+            if (timer != null && timer.timeout == null) {
+                remove(holder, held, timer);
+                bookingRepository.deleteLease(lease);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the end of the booking's lease to {@code durationMillis} from now. A lease already due can still
+     * be renewed until its unit is actually returned.
+     *
+     * @return the renewed lease, or null when the booking has no lease
+     */
+    public Lease renew(String userName, short deviceId, long bookingTimestamp, long durationMillis) {
+        Holder holder = new Holder(userName, deviceId);
+        ReentrantLock lock = lock(holder);
+        lock.lock();
+        try {
+            LeaseTimer timer = find(leases.get(holder), bookingTimestamp);
+            if (timer == null || timer.timeout == null) {
+                return null;
+            }
+            Lease renewed = timer.lease.withExpiresAt(System.currentTimeMillis() + durationMillis);
+            bookingRepository.saveLease(renewed);
+            timer.lease = renewed;
+            schedule(timer, renewed.getExpiresAt());
+            return renewed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the leases of the user's bookings of the device that were returned by the client.
+     */
+    public void returned(String userName, short deviceId) {
+        Holder holder = new Holder(userName, deviceId);
+        ReentrantLock lock = lock(holder);
+        lock.lock();
+        try {
+            List<LeaseTimer> held = leases.get(holder);
+            if (held == null) {
+                return;
+            }
+            for (Iterator<LeaseTimer> it = held.iterator(); it.hasNext(); ) {
+                LeaseTimer timer = it.next();
+                if (timer.timeout != null && !activeBookings.contains(timer.lease.getBooking())) {
+                    it.remove();
+                    cancel(timer);
+                    bookingRepository.deleteLease(timer.lease);
+                }
+            }
+            if (held.isEmpty()) {
+                leases.remove(holder);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return leases of the user's active bookings, by device and booking time
+     */
+    public List<Lease> findByUser(String userName) {
+        Set<Short> deviceIds = new TreeSet<>();
+        for (ActiveBooking booking : activeBookings.findByUser(userName)) {
+            deviceIds.add(booking.getDeviceId());
+        }
+        List<Lease> result = new ArrayList<>();
+        for (Short deviceId : deviceIds) {
+            Holder holder = new Holder(userName, deviceId);
+            ReentrantLock lock = lock(holder);
+            lock.lock();
+            try {
+                for (LeaseTimer timer : leases.getOrDefault(holder, List.of())) {
+                    if (timer.timeout != null) {
+                        result.add(timer.lease);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        result.sort(BY_DEVICE_AND_BOOKING);
+        return result;
+    }
+
+    /**
+     * @return leases counting down
+     */
+    public int size() {
+        synchronized (wheel) {
+            return wheel.size();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ticker.shutdownNow();
+        expirer.shutdownNow();
+    }
+
+    private void tick() {
+        try {
+            List<LeaseTimer> due = new ArrayList<>();
+            synchronized (wheel) {
+                wheel.advance(System.currentTimeMillis(), timeout -> due.add(timeout.getValue()));
+            }
+            for (LeaseTimer timer : due) {
+                expirer.execute(() -> expire(timer));
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the periodic task
+            log.error("Lease tick failed", e);
+        }
+    }
+
+    private void expire(LeaseTimer timer) {
+        Holder holder = Holder.of(timer.lease);
+        ReentrantLock lock = lock(holder);
+        lock.lock();
+        try {
+            List<LeaseTimer> held = leases.get(holder);
+            if (held == null || !held.contains(timer) || isPending(timer)) {
+                // returned or renewed meanwhile
+                return;
+            }
+            Lease lease = timer.lease;
+            BookingOutcome outcome;
+            try {
+                outcome = returner.apply(lease);
+            } catch (RuntimeException e) {
+                log.warn("Return of the unit of expired lease {} failed, retrying: {}", lease, e.getMessage());
+                schedule(timer, System.currentTimeMillis() + RETRY_MILLIS);
+                return;
+            }
+            remove(holder, held, timer);
+            expiredCount.incrementAndGet();
+            bookingRepository.deleteLease(lease);
+            if (outcome == BookingOutcome.RETURNED && activeBookings.contains(lease.getBooking())) {
+                // the user's oldest unit went back instead; this booking takes over that unit's lease, if any
+                for (LeaseTimer other : held) {
+                    if (other.timeout != null && !activeBookings.contains(other.lease.getBooking())) {
+                        Lease moved = other.lease.withBookingTimestamp(lease.getBookingTimestamp());
+                        bookingRepository.deleteLease(other.lease);
+                        bookingRepository.saveLease(moved);
+                        other.lease = moved;
+                        break;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Expiry of lease {} failed", timer.lease, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void schedule(LeaseTimer timer, long deadlineMillis) {
+        synchronized (wheel) {
+            if (timer.timeout == null) {
+                timer.timeout = wheel.schedule(timer, deadlineMillis);
+            } else {
+                wheel.reschedule(timer.timeout, deadlineMillis);
+            }
+        }
+    }
+
+    private void cancel(LeaseTimer timer) {
+        synchronized (wheel) {
+            wheel.cancel(timer.timeout);
+        }
+    }
+
+    private boolean isPending(LeaseTimer timer) {
+        synchronized (wheel) {
+            return timer.timeout.isPending();
+        }
+    }
+
+    private void remove(Holder holder, List<LeaseTimer> held, LeaseTimer timer) {
+        held.remove(timer);
+        if (held.isEmpty()) {
+            leases.remove(holder);
+        }
+    }
+
+    private static LeaseTimer find(List<LeaseTimer> held, long bookingTimestamp) {
+        if (held != null) {
+            for (LeaseTimer timer : held) {
+                if (timer.lease.getBookingTimestamp() == bookingTimestamp) {
+                    return timer;
+                }
+            }
+        }
+        return null;
+    }
+
+    private ReentrantLock lock(Holder holder) {
+        return holderLocks[holder.hashCode() & (LOCK_STRIPES - 1)];
+    }
+
+    @Value
+    private static class Holder {
+        String userName;
+        short deviceId;
+
+        static Holder of(Lease lease) {
+            return new Holder(lease.getUserName(), lease.getDeviceId());
+        }
+    }
+
+    private static class LeaseTimer {
+        // replaced on renewal or when moved to another booking, read by the expiry thread before it locks
+        private volatile Lease lease;
+        // null until the booking is admitted; guarded by the holder's lock, pending state by the wheel's
+        private TimingWheel.Timeout<LeaseTimer> timeout;
+
+        private LeaseTimer(Lease lease) {
+            this.lease = lease;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.booking.lease;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel: four wheels of 256 slots, where one slot of a wheel spans a whole turn of the
+ * wheel below. A timeout is filed in the coarsest wheel its delay needs and moves down one wheel each time
+ * the finer wheel wraps around. Slots are intrusive doubly linked lists, so scheduling and cancelling cost
+ * O(1) whatever the number of pending timeouts, and a tick only touches the timeouts that are due or move down.
+ * <p>
+ * Deadlines are rounded up to whole ticks: a timeout never fires early, and at most one tick late plus
+ * the time until the next {@link #advance}. Not thread-safe.
+ */
+public class TimingWheel<T> {
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int WHEELS = 4;
+    // farther deadlines are filed at the far end of the top wheel and filed again when they get there
+    private static final long MAX_DELAY_TICKS = (1L << (WHEEL_BITS * WHEELS)) - 1;
+
+    private final long tickMillis;
+    private final long startMillis;
+    // [wheel][slot], first timeout of the slot
+    private final Timeout<T>[][] slots;
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, long startMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tick must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+        this.slots = new Timeout[WHEELS][WHEEL_SIZE];
+    }
+
+    public Timeout<T> schedule(T value, long deadlineMillis) {
+        Timeout<T> timeout = new Timeout<>(value);
+        reschedule(timeout, deadlineMillis);
+        return timeout;
+    }
+
+    /**
+     * Moves a pending, expired or cancelled timeout to a new deadline.
+     */
+    public void reschedule(Timeout<T> timeout, long deadlineMillis) {
+        cancel(timeout);
+        timeout.deadlineMillis = deadlineMillis;
+        timeout.deadlineTick = Math.max(Math.floorDiv(deadlineMillis - startMillis + tickMillis - 1, tickMillis),
+                currentTick + 1);
+        file(timeout);
+        size++;
+    }
+
+    /**
+     * @return false when the timeout was not pending
+     */
+    public boolean cancel(Timeout<T> timeout) {
+        if (!timeout.isPending()) {
+            return false;
+        }
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * Turns the wheels forward to {@code nowMillis} and hands every timeout that became due to {@code expired},
+     * tick by tick. The consumer may schedule new timeouts and reschedule the one it is handed.
+     */
+    public void advance(long nowMillis, Consumer<Timeout<T>> expired) {
+        long targetTick = Math.floorDiv(nowMillis - startMillis, tickMillis);
+        while (currentTick < targetTick) {
+            if (size == 0) {
+                currentTick = targetTick;
+                return;
+            }
+            currentTick++;
+
+            int wheel = 0;
+            while (wheel < WHEELS - 1 && (currentTick & ((1L << (WHEEL_BITS * (wheel + 1))) - 1)) == 0) {
+                wheel++;
+            }
+            for (; wheel > 0; wheel--) {
+                Timeout<T> timeout = detach(wheel, (int) ((currentTick >>> (WHEEL_BITS * wheel)) & WHEEL_MASK));
+                while (timeout != null) {
+                    Timeout<T> next = timeout.next;
+                    file(timeout);
+                    timeout = next;
+                }
+            }
+
+            Timeout<T> timeout = detach(0, (int) (currentTick & WHEEL_MASK));
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                timeout.next = null;
+                size--;
+                expired.accept(timeout);
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * @return number of pending timeouts
+     */
+    public int size() {
+        return size;
+    }
+
+    private void file(Timeout<T> timeout) {
+        long delay = Math.min(timeout.deadlineTick - currentTick, MAX_DELAY_TICKS);
+        int wheel = 0;
+        while (wheel < WHEELS - 1 && delay >= 1L << (WHEEL_BITS * (wheel + 1))) {
+            wheel++;
+        }
+        int slot = (int) (((currentTick + delay) >>> (WHEEL_BITS * wheel)) & WHEEL_MASK);
+
+        Timeout<T> head = slots[wheel][slot];
+        timeout.wheel = wheel;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        slots[wheel][slot] = timeout;
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.wheel][timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.wheel = -1;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    /**
+     * Empties the slot and marks its timeouts as not pending; they stay chained through {@code next}.
+     */
+    private Timeout<T> detach(int wheel, int slot) {
+        Timeout<T> head = slots[wheel][slot];
+        slots[wheel][slot] = null;
+        for (Timeout<T> timeout = head; timeout != null; timeout = timeout.next) {
+            timeout.wheel = -1;
+            timeout.prev = null;
+        }
+        return head;
+    }
+
+    public static final class Timeout<T> {
+        private final T value;
+        private long deadlineMillis;
+        private long deadlineTick;
+        // -1 when not filed in a slot
+        private int wheel = -1;
+        private int slot;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        private Timeout(T value) {
+            this.value = value;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public long getDeadlineMillis() {
+            return deadlineMillis;
+        }
+
+        public boolean isPending() {
+            return wheel >= 0;
+        }
+    }
+}
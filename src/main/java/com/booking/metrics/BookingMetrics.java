@@ -0,0 +1,191 @@
+package com.booking.metrics;
+
+import com.booking.model.BookingOutcome;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers and counters of the booking hot path. Every meter is registered up front and looked up by array index,
+ * so recording takes no tag lookups and no allocations. Devices get their meters when the device catalog
+ * registers them; any other id shares the "unknown" device tag.
+ */
+@Component
+public class BookingMetrics {
+    public static final String UNKNOWN_DEVICE = "unknown";
+
+    public enum Operation {
+        BOOK, RETURN
+    }
+
+    public enum JdbcOperation {
+        BOOK, RETURN, FIND, BATCH
+    }
+
+    private static final BookingOutcome[] OUTCOMES = BookingOutcome.values();
+    private static final DeviceMeters[] NO_DEVICES = new DeviceMeters[0];
+
+    private final MeterRegistry registry;
+    private final DeviceMeters unknownDevice;
+    // indexed by device id, replaced as a whole when devices are registered
+    private volatile DeviceMeters[] devices = NO_DEVICES;
+    private final Timer[] acquireTimers;
+    private final Timer[] executeTimers;
+    private final Map<Type, Timer> serializationTimers = new ConcurrentHashMap<>();
+    // off while the warm-up runs, whose calls are not traffic
+    private volatile boolean recording = true;
+
+    public BookingMetrics(@Autowired MeterRegistry registry) {
+        this.registry = registry;
+        this.unknownDevice = new DeviceMeters(UNKNOWN_DEVICE);
+
+        acquireTimers = new Timer[JdbcOperation.values().length];
+        executeTimers = new Timer[JdbcOperation.values().length];
+        for (JdbcOperation operation : JdbcOperation.values()) {
+            acquireTimers[operation.ordinal()] = Timer.builder("booking.jdbc.acquire")
+                    .description("Time to get a connection from the pool")
+                    .tag("operation", tagValue(operation))
+                    .register(registry);
+            executeTimers[operation.ordinal()] = Timer.builder("booking.jdbc.execute")
+                    .description("Time from connection acquired to released, statements and commit included")
+                    .tag("operation", tagValue(operation))
+                    .register(registry);
+        }
+    }
+
+    /**
+     * Gives the devices meters of their own. Devices registered earlier keep theirs.
+     */
+    public synchronized void registerDevices(Collection<Short> deviceIds) {
+        DeviceMeters[] current = devices;
+        int size = current.length;
+        for (Short deviceId : deviceIds) {
+            size = Math.max(size, deviceId + 1);
+        }
+        DeviceMeters[] next = Arrays.copyOf(current, size);
+        for (Short deviceId : deviceIds) {
+            if (deviceId >= 0 && next[deviceId] == null) {
+                next[deviceId] = new DeviceMeters(String.valueOf(deviceId));
+            }
+        }
+        devices = next;
+    }
+
+    /**
+     * Stops or resumes recording. Meters keep what they recorded before.
+     */
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    public void recordRequest(Operation operation, short deviceId, BookingOutcome outcome, long nanos) {
+        if (!recording) {
+            return;
+        }
+        DeviceMeters meters = meters(deviceId);
+        meters.requestTimers[operation.ordinal()][outcome.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+        if (!outcome.isSuccess()) {
+            meters.rejectionCounters[operation.ordinal()][outcome.ordinal()].increment();
+        }
+    }
+
+    public void recordRead(short deviceId, boolean found, long nanos) {
+        if (!recording) {
+            return;
+        }
+        meters(deviceId).readTimers[found ? 1 : 0].record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the time since {@code start} as connection acquisition.
+     *
+     * @return the current {@link System#nanoTime()}, the start of the execution
+     */
+    public long recordAcquire(JdbcOperation operation, long start) {
+        long now = System.nanoTime();
+        if (recording) {
+            acquireTimers[operation.ordinal()].record(now - start, TimeUnit.NANOSECONDS);
+        }
+        return now;
+    }
+
+    public void recordExecute(JdbcOperation operation, long acquired) {
+        if (!recording) {
+            return;
+        }
+        executeTimers[operation.ordinal()].record(System.nanoTime() - acquired, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordSerialization(Type type, long nanos) {
+        if (!recording) {
+            return;
+        }
+        Timer timer = serializationTimers.get(type);
+        if (timer == null) {
+            timer = serializationTimers.computeIfAbsent(type, this::serializationTimer);
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer serializationTimer(Type type) {
+        return Timer.builder("booking.serialization")
+                .description("JSON serialization of response bodies")
+                .tag("type", type.getTypeName().replaceAll("[a-z0-9_]+\\.", ""))
+                .register(registry);
+    }
+
+    private DeviceMeters meters(short deviceId) {
+        DeviceMeters[] current = devices;
+        DeviceMeters meters = deviceId >= 0 && deviceId < current.length ? current[deviceId] : null;
+        return meters != null ? meters : unknownDevice;
+    }
+
+    private static String tagValue(Enum<?> value) {
+        return value.name().toLowerCase();
+    }
+
+    private class DeviceMeters {
+        // [operation][outcome]
+        private final Timer[][] requestTimers = new Timer[Operation.values().length][OUTCOMES.length];
+        private final Counter[][] rejectionCounters = new Counter[Operation.values().length][OUTCOMES.length];
+        // [found]
+        private final Timer[] readTimers = new Timer[2];
+
+        private DeviceMeters(String device) {
+            for (Operation operation : Operation.values()) {
+                for (BookingOutcome outcome : OUTCOMES) {
+                    requestTimers[operation.ordinal()][outcome.ordinal()] = Timer.builder("booking.requests")
+                            .description("Book and return requests by device and outcome")
+                            .tag("operation", tagValue(operation))
+                            .tag("device", device)
+                            .tag("outcome", tagValue(outcome))
+                            .register(registry);
+                    if (!outcome.isSuccess()) {
+                        rejectionCounters[operation.ordinal()][outcome.ordinal()] = Counter.builder("booking.rejections")
+                                .description("Rejected book and return requests, sold out ones included")
+                                .tag("operation", tagValue(operation))
+                                .tag("device", device)
+                                .tag("reason", tagValue(outcome))
+                                .register(registry);
+                    }
+                }
+            }
+            for (int found = 0; found < 2; found++) {
+                readTimers[found] = Timer.builder("booking.availability.reads")
+                        .description("Availability list reads, served from cache or loaded")
+                        .tag("device", device)
+                        .tag("found", String.valueOf(found == 1))
+                        .register(registry);
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.booking.model;
+
+import com.booking.dto.BookingDto;
+import lombok.Value;
+
+@Value
+public class ActiveBooking {
+    short deviceId;
+    String userName;
+    long timestamp;
+
+    public static ActiveBooking of(BookingDto bookingDto) {
+        return new ActiveBooking(bookingDto.getDeviceId(), bookingDto.getUserName(), bookingDto.getTimestamp());
+    }
+
+    public BookingDto toDto() {
+        return BookingDto.builder()
+                .deviceId(deviceId)
+                .userName(userName)
+                .timestamp(timestamp)
+                .build();
+    }
+}
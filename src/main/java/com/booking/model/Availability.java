@@ -0,0 +1,12 @@
+package com.booking.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class Availability {
+    private short deviceId;
+    private short quantity;
+    private short maxQuantity;
+}
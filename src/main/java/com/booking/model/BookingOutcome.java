@@ -0,0 +1,34 @@
+package com.booking.model;
+
+/**
+ * Result of a book or return request. Expected rejections are reported as values, not exceptions.
+ */
+public enum BookingOutcome {
+    BOOKED,
+    RETURNED,
+    /**
+     * No free unit of the device is left.
+     */
+    SOLD_OUT,
+    /**
+     * The user holds no unit of the device to return.
+     */
+    NOT_BOOKED,
+    /**
+     * The same user already booked the device with the same timestamp.
+     */
+    DUPLICATE_BOOKING,
+    UNKNOWN_DEVICE,
+    /**
+     * Admissible on its own, but left out because another item of an all-or-nothing bulk request failed.
+     */
+    NOT_APPLIED,
+    /**
+     * The idempotency key was first used for a different request.
+     */
+    KEY_REUSED;
+
+    public boolean isSuccess() {
+        return this == BOOKED || this == RETURNED;
+    }
+}
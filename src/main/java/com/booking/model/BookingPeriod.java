@@ -0,0 +1,14 @@
+package com.booking.model;
+
+import lombok.Value;
+
+/**
+ * A stored booking with the time its unit was returned, null while it is held.
+ */
+@Value
+public class BookingPeriod {
+    short deviceId;
+    String userName;
+    long bookedAt;
+    Long returnedAt;
+}
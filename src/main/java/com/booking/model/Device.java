@@ -0,0 +1,11 @@
+package com.booking.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class Device {
+    private short id;
+    private String name;
+}
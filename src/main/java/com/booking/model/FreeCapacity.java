@@ -0,0 +1,13 @@
+package com.booking.model;
+
+import lombok.Value;
+
+/**
+ * Units of a device left to reserve throughout [from, to).
+ */
+@Value
+public class FreeCapacity {
+    long from;
+    long to;
+    int free;
+}
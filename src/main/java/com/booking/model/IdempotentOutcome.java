@@ -0,0 +1,16 @@
+package com.booking.model;
+
+import lombok.Value;
+
+/**
+ * First outcome of a request sent with an idempotency key; a retry with the same key is answered with it.
+ * {@code request} identifies what was asked, so a key reused for another request can be told apart.
+ * {@code outcome} is null while the request is applied.
+ */
+@Value
+public class IdempotentOutcome {
+    String key;
+    String request;
+    BookingOutcome outcome;
+    long createdAt;
+}
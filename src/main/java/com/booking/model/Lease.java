@@ -0,0 +1,27 @@
+package com.booking.model;
+
+import lombok.Value;
+
+/**
+ * Time limit of an active booking: the unit is returned automatically at {@code expiresAt} unless renewed.
+ * Identified by the booking it belongs to.
+ */
+@Value
+public class Lease {
+    short deviceId;
+    String userName;
+    long bookingTimestamp;
+    long expiresAt;
+
+    public ActiveBooking getBooking() {
+        return new ActiveBooking(deviceId, userName, bookingTimestamp);
+    }
+
+    public Lease withExpiresAt(long expiresAt) {
+        return new Lease(deviceId, userName, bookingTimestamp, expiresAt);
+    }
+
+    public Lease withBookingTimestamp(long bookingTimestamp) {
+        return new Lease(deviceId, userName, bookingTimestamp, expiresAt);
+    }
+}
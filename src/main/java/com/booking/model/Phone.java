@@ -1,5 +1,9 @@
 package com.booking.model;
 
+/**
+ * Devices seeded by schema.sql, named for tests and benchmarks. Which devices can be booked is decided
+ * by {@code DeviceCatalog}, loaded from the database.
+ */
 public enum Phone {
     SAMSUNG_GALAXY_S9((short) 1),
     SAMSUNG_GALAXY_S8((short) 2),
@@ -0,0 +1,19 @@
+package com.booking.model;
+
+import lombok.Value;
+
+/**
+ * One unit of a device held for the time window [start, end), in UTC milliseconds.
+ */
+@Value
+public class Reservation {
+    long id;
+    short deviceId;
+    String userName;
+    long start;
+    long end;
+
+    public boolean overlaps(long from, long to) {
+        return start < to && end > from;
+    }
+}
@@ -0,0 +1,25 @@
+package com.booking.model;
+
+/**
+ * Lifecycle of a waitlist entry; every state but WAITING is final.
+ */
+public enum WaitlistState {
+    WAITING,
+    /**
+     * A returned unit was booked for the user.
+     */
+    BOOKED,
+    CANCELLED,
+    /**
+     * No unit became free within the maximum wait.
+     */
+    EXPIRED,
+    /**
+     * The booking for the user was refused for another reason than the device being sold out.
+     */
+    REJECTED;
+
+    public boolean isFinal() {
+        return this != WAITING;
+    }
+}
@@ -0,0 +1,27 @@
+package com.booking.replica;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * One read replica and how far it caught up with the primary.
+ */
+class Replica {
+    final String url;
+    final HikariDataSource dataSource;
+    // commit sequence of the primary the replica has applied; reads needing a later one go elsewhere
+    volatile long appliedSequence;
+    // when the replica last applied everything committed before the sync started
+    volatile long caughtUpAt;
+    volatile boolean healthy = true;
+    // set when updates were missed, e.g. while unhealthy; the replica serves nothing until copied again
+    volatile boolean needsFullSync = true;
+
+    Replica(String url, HikariDataSource dataSource) {
+        this.url = url;
+        this.dataSource = dataSource;
+    }
+
+    boolean canServe(long minSequence) {
+        return healthy && !needsFullSync && appliedSequence >= minSequence;
+    }
+}
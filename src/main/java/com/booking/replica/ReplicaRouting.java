@@ -0,0 +1,516 @@
+package com.booking.replica;
+
+import com.booking.config.BookingProperties;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Sends availability reads to read replicas and everything else to the primary.
+ * <p>
+ * Every commit of bookings or quantities through {@code BookingRepository} takes the next commit sequence
+ * number, hands the devices it touched to the sync thread and only then records the number against them.
+ * The sync thread takes the sequence and the touched devices together, copies the devices' availability and
+ * active bookings from the primary to each replica and then marks the replica as having applied that
+ * sequence, so a replica never claims a commit whose rows it does not have.
+ * <p>
+ * Clients send back the commit sequence of their last write as their session's high-water mark, and every
+ * read of the session, whatever devices it covers, is served by a replica only once it applied that commit.
+ * A read of some devices also waits for the latest commit of those devices, because it fills the shared
+ * availability cache that every user reads. Reads over every device bypass the cache and otherwise accept
+ * a replica that caught up within the staleness bound.
+ * <p>
+ * A replica that fails a sync or a connection is taken out of rotation and reads fall back to the primary;
+ * once a health check reaches it again it is copied in full before it serves again. Replicas are
+ * initialized from {@code schema.sql} and only hold what the routed reads need, so they stand in for real
+ * replicas with plain HSQLDB instances. Writes that bypass the repository reach them on the next
+ * {@link #resyncAll()}.
+ */
+@Slf4j
+@Component
+@DependsOnDatabaseInitialization
+public class ReplicaRouting {
+    public static final String HEADER = "Commit-Sequence";
+    private static final String FIND_AVAILABILITY = "select device_id, quantity, max_quantity from availability";
+    private static final String FIND_ACTIVE_BOOKINGS = "select user_id, device_id, booking_date from booking " +
+            "where returned_date is null";
+    private static final String BY_DEVICE_IDS = " device_id in (unnest(cast(? as smallint array)))";
+    private static final String DELETE_AVAILABILITY = "delete from availability";
+    private static final String DELETE_BOOKINGS = "delete from booking";
+    private static final String INSERT_AVAILABILITY = "insert into availability (device_id, quantity, max_quantity) values (?,?,?)";
+    private static final String INSERT_BOOKING = "insert into booking (user_id, device_id, booking_date) values (?,?,?)";
+
+    private final DataSource primary;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final long maxStalenessMillis;
+    private final AtomicLong sequence = new AtomicLong();
+    // reads of a device wait for its latest commit, and every read for the latest full copy
+    private final Map<Short, Long> deviceSequences = new ConcurrentHashMap<>();
+    private volatile long resyncSequence;
+    private final Set<Short> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean dirtyAll = new AtomicBoolean();
+    // commits hand off their devices under the read lock, the sync thread takes them under the write lock
+    private final ReadWriteLock handoff = new ReentrantReadWriteLock();
+    private final AtomicInteger next = new AtomicInteger();
+    private final ThreadLocal<Long> sessionSequence = new ThreadLocal<>();
+    // lowest commit sequence applied by the replicas serving the tracked reads of a thread
+    private final ThreadLocal<long[]> trackedSequence = new ThreadLocal<>();
+    private final ScheduledExecutorService sync;
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder primaryReads = new LongAdder();
+
+    public ReplicaRouting(@Autowired DataSource dataSource,
+                          @Autowired DataSourceProperties dataSourceProperties,
+                          @Autowired BookingProperties bookingProperties,
+                          @Autowired MeterRegistry registry) {
+        BookingProperties.Replicas config = bookingProperties.getReplicas();
+        this.primary = dataSource;
+        this.maxStalenessMillis = config.getMaxStaleness().toMillis();
+        for (String url : config.getUrls()) {
+            HikariDataSource replicaSource = new HikariDataSource();
+            replicaSource.setJdbcUrl(url);
+            replicaSource.setUsername(dataSourceProperties.getUsername());
+            replicaSource.setPassword(dataSourceProperties.getPassword());
+            replicaSource.setMaximumPoolSize(config.getPoolSize());
+            replicaSource.setPoolName("replica-" + (replicas.size() + 1));
+            ResourceDatabasePopulator schema = new ResourceDatabasePopulator(new ClassPathResource("schema.sql"));
+            // a replica kept from an earlier run already has the devices
+            schema.setContinueOnError(true);
+            schema.execute(replicaSource);
+            replicas.add(new Replica(url, replicaSource));
+        }
+
+        if (replicas.isEmpty()) {
+            this.sync = null;
+        } else {
+            log.info("Serving availability reads from {} replicas", replicas.size());
+            this.sync = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "replica-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = config.getSyncInterval().toMillis();
+            sync.scheduleWithFixedDelay(this::syncQuietly, 0, interval, TimeUnit.MILLISECONDS);
+            long healthInterval = config.getHealthInterval().toMillis();
+            sync.scheduleWithFixedDelay(this::checkHealth, healthInterval, healthInterval, TimeUnit.MILLISECONDS);
+        }
+
+        FunctionCounter.builder("booking.replica.reads", replicaReads, LongAdder::sum)
+                .description("Reads routed to a replica or to the primary")
+                .tag("target", "replica")
+                .register(registry);
+        FunctionCounter.builder("booking.replica.reads", primaryReads, LongAdder::sum)
+                .description("Reads routed to a replica or to the primary")
+                .tag("target", "primary")
+                .register(registry);
+        Gauge.builder("booking.replica.lag", this, ReplicaRouting::maxLag)
+                .description("Commits the furthest healthy replica has not applied yet")
+                .register(registry);
+    }
+
+    /**
+     * Records a commit of the devices' quantities or bookings on the primary. Called after the commit.
+     */
+    public void committed(Collection<Short> deviceIds) {
+        if (replicas.isEmpty() || deviceIds.isEmpty()) {
+            return;
+        }
+        long committed;
+        handoff.readLock().lock();
+        try {
+            committed = sequence.incrementAndGet();
+            dirty.addAll(deviceIds);
+        } finally {
+            handoff.readLock().unlock();
+        }
+        // reads route by it only once the sync thread can see the devices
+        for (Short deviceId : deviceIds) {
+            deviceSequences.merge(deviceId, committed, Math::max);
+        }
+    }
+
+    public void committed(short deviceId) {
+        committed(List.of(deviceId));
+    }
+
+    /**
+     * Copies every replica again from the primary; replicas serve nothing until they have the copy.
+     */
+    public void resyncAll() {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        handoff.readLock().lock();
+        try {
+            dirtyAll.set(true);
+            resyncSequence = sequence.incrementAndGet();
+        } finally {
+            handoff.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return sequence of the latest commit, for clients to send back as the freshness they need
+     */
+    public long currentSequence() {
+        return sequence.get();
+    }
+
+    public boolean isEnabled() {
+        return !replicas.isEmpty();
+    }
+
+    /**
+     * Runs reads on this thread no older than the given commit sequence, the session's last write.
+     */
+    public <T> T withSession(Long minSequence, Supplier<T> reads) {
+        if (minSequence == null) {
+            return reads.get();
+        }
+        Long previous = sessionSequence.get();
+        sessionSequence.set(minSequence);
+        try {
+            return reads.get();
+        } finally {
+            if (previous == null) {
+                sessionSequence.remove();
+            } else {
+                sessionSequence.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Runs reads like {@link #withSession} and tells up to which commit they saw everything.
+     */
+    public <T> TrackedRead<T> withTrackedSession(Long minSequence, Supplier<T> reads) {
+        long[] previous = trackedSequence.get();
+        long[] applied = {Long.MAX_VALUE};
+        trackedSequence.set(applied);
+        try {
+            T result = withSession(minSequence, reads);
+            return new TrackedRead<>(result, applied[0]);
+        } finally {
+            if (previous == null) {
+                trackedSequence.remove();
+            } else {
+                trackedSequence.set(previous);
+                previous[0] = Math.min(previous[0], applied[0]);
+            }
+        }
+    }
+
+    /**
+     * A connection that reads the device as of its latest commit and the session's last write.
+     */
+    public Connection readConnection(short deviceId) throws SQLException {
+        return route(Math.max(deviceSequences.getOrDefault(deviceId, 0L), minSessionSequence()), 0);
+    }
+
+    /**
+     * A connection that reads the devices as of their latest commits and the session's last write. Reads of
+     * every device, when null, need only the session's last write, or else a replica within the staleness bound.
+     */
+    public Connection readConnection(Collection<Short> deviceIds) throws SQLException {
+        if (deviceIds == null) {
+            if (sessionSequence.get() != null) {
+                return route(minSessionSequence(), 0);
+            }
+            return maxStalenessMillis > 0
+                    ? route(resyncSequence, System.currentTimeMillis() - maxStalenessMillis)
+                    : route(Long.MAX_VALUE, 0);
+        }
+        long minSequence = minSessionSequence();
+        for (Short deviceId : deviceIds) {
+            minSequence = Math.max(minSequence, deviceSequences.getOrDefault(deviceId, 0L));
+        }
+        return route(minSequence, 0);
+    }
+
+    /**
+     * @return commits the furthest healthy replica has not applied, 0 without replicas
+     */
+    public long maxLag() {
+        long lag = 0;
+        for (Replica replica : replicas) {
+            if (replica.healthy) {
+                lag = Math.max(lag, sequence.get() - replica.appliedSequence);
+            }
+        }
+        return lag;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (sync != null) {
+            sync.shutdownNow();
+        }
+        for (Replica replica : replicas) {
+            replica.dataSource.close();
+        }
+    }
+
+    private long minSessionSequence() {
+        Long session = sessionSequence.get();
+        return session == null ? resyncSequence : Math.max(session, resyncSequence);
+    }
+
+    /**
+     * @param minSequence  commit the replica must have applied
+     * @param caughtUpSince the replica must also have caught up with everything committed before then
+     */
+    private Connection route(long minSequence, long caughtUpSince) throws SQLException {
+        int size = replicas.size();
+        int first = size == 0 ? 0 : Math.floorMod(next.getAndIncrement(), size);
+        for (int i = 0; i < size; i++) {
+            Replica replica = replicas.get((first + i) % size);
+            // only grows, so the replica holds at least this much once the connection is open
+            long applied = replica.appliedSequence;
+            if (!replica.canServe(minSequence) || replica.caughtUpAt < caughtUpSince) {
+                continue;
+            }
+            try {
+                Connection connection = replica.dataSource.getConnection();
+                long[] tracked = trackedSequence.get();
+                if (tracked != null) {
+                    tracked[0] = Math.min(tracked[0], applied);
+                }
+                replicaReads.increment();
+                return connection;
+            } catch (SQLException e) {
+                markUnhealthy(replica, e);
+            }
+        }
+        primaryReads.increment();
+        return primary.getConnection();
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (RuntimeException e) {
+            // an exception would cancel the periodic task
+            log.error("Replica sync failed", e);
+        }
+    }
+
+    private void sync() {
+        long startedAt = System.currentTimeMillis();
+        long target;
+        boolean all;
+        Set<Short> devices = new HashSet<>();
+        // every commit up to the target has handed off its devices by now
+        handoff.writeLock().lock();
+        try {
+            target = sequence.get();
+            all = dirtyAll.getAndSet(false);
+            for (Short deviceId : dirty) {
+                dirty.remove(deviceId);
+                devices.add(deviceId);
+            }
+        } finally {
+            handoff.writeLock().unlock();
+        }
+        boolean fullSyncNeeded = all;
+        for (Replica replica : replicas) {
+            fullSyncNeeded |= replica.healthy && replica.needsFullSync;
+        }
+
+        State changed;
+        State full;
+        try {
+            full = fullSyncNeeded ? read(null) : null;
+            changed = all ? full : devices.isEmpty() ? null : read(devices);
+        } catch (SQLException e) {
+            // try again on the next run
+            dirty.addAll(devices);
+            dirtyAll.compareAndSet(false, all);
+            log.warn("Could not read the primary for replica sync: {}", e.getMessage());
+            return;
+        }
+
+        for (Replica replica : replicas) {
+            if (!replica.healthy) {
+                continue;
+            }
+            try {
+                if (replica.needsFullSync || all) {
+                    if (full == null) {
+                        // failed a read since the sync started, copied in full on the next run
+                        continue;
+                    }
+                    write(replica, full, null);
+                    replica.needsFullSync = false;
+                } else if (changed != null) {
+                    write(replica, changed, devices);
+                }
+                replica.appliedSequence = target;
+                replica.caughtUpAt = startedAt;
+            } catch (SQLException e) {
+                markUnhealthy(replica, e);
+            }
+        }
+    }
+
+    private void checkHealth() {
+        for (Replica replica : replicas) {
+            if (replica.healthy) {
+                continue;
+            }
+            try (Connection connection = replica.dataSource.getConnection()) {
+                if (connection.isValid(1)) {
+                    log.info("Replica {} is reachable again, copying it in full", replica.url);
+                    replica.needsFullSync = true;
+                    replica.healthy = true;
+                }
+            } catch (SQLException e) {
+                log.debug("Replica {} is still unreachable: {}", replica.url, e.getMessage());
+            }
+        }
+    }
+
+    private void markUnhealthy(Replica replica, SQLException e) {
+        if (replica.healthy) {
+            log.warn("Replica {} taken out of rotation: {}", replica.url, e.getMessage());
+        }
+        replica.needsFullSync = true;
+        replica.healthy = false;
+    }
+
+    /**
+     * Availability and active bookings of the devices, or of every device when null, in one read-only transaction.
+     */
+    private State read(Collection<Short> deviceIds) throws SQLException {
+        State state = new State();
+        try (Connection connection = primary.getConnection()) {
+            connection.setReadOnly(true);
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = prepare(connection,
+                    FIND_AVAILABILITY + (deviceIds == null ? "" : " where" + BY_DEVICE_IDS), deviceIds);
+                 ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    state.availability.add(new short[]{rs.getShort("device_id"), rs.getShort("quantity"),
+                            rs.getShort("max_quantity")});
+                }
+            }
+            try (PreparedStatement statement = prepare(connection,
+                    FIND_ACTIVE_BOOKINGS + (deviceIds == null ? "" : " and" + BY_DEVICE_IDS), deviceIds);
+                 ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    state.bookings.add(new Object[]{rs.getString("user_id"), rs.getShort("device_id"),
+                            rs.getTimestamp("booking_date")});
+                }
+            }
+            connection.commit();
+        }
+        return state;
+    }
+
+    /**
+     * Replaces the devices' rows on the replica, or every row when {@code deviceIds} is null, in one transaction.
+     */
+    private static void write(Replica replica, State state, Collection<Short> deviceIds) throws SQLException {
+        try (Connection connection = replica.dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                String where = deviceIds == null ? "" : " where" + BY_DEVICE_IDS;
+                try (PreparedStatement statement = prepare(connection, DELETE_BOOKINGS + where, deviceIds)) {
+                    statement.executeUpdate();
+                }
+                try (PreparedStatement statement = prepare(connection, DELETE_AVAILABILITY + where, deviceIds)) {
+                    statement.executeUpdate();
+                }
+                try (PreparedStatement statement = connection.prepareStatement(INSERT_AVAILABILITY)) {
+                    for (short[] row : state.availability) {
+                        statement.setShort(1, row[0]);
+                        statement.setShort(2, row[1]);
+                        statement.setShort(3, row[2]);
+                        statement.addBatch();
+                    }
+                    if (!state.availability.isEmpty()) {
+                        statement.executeBatch();
+                    }
+                }
+                try (PreparedStatement statement = connection.prepareStatement(INSERT_BOOKING)) {
+                    for (Object[] row : state.bookings) {
+                        statement.setString(1, (String) row[0]);
+                        statement.setShort(2, (Short) row[1]);
+                        statement.setTimestamp(3, (Timestamp) row[2]);
+                        statement.addBatch();
+                    }
+                    if (!state.bookings.isEmpty()) {
+                        statement.executeBatch();
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private static PreparedStatement prepare(Connection connection, String sql, Collection<Short> deviceIds)
+            throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        if (deviceIds != null) {
+            statement.setArray(1, connection.createArrayOf("SMALLINT", deviceIds.toArray()));
+        }
+        return statement;
+    }
+
+    /**
+     * What reads returned, and the commit sequence up to which they saw every commit: the lowest one applied
+     * by the replicas that served them, {@link Long#MAX_VALUE} when only the primary or no connection did.
+     */
+    @Value
+    public static class TrackedRead<T> {
+        T result;
+        long appliedSequence;
+
+        public boolean covers(long sequence) {
+            return appliedSequence >= sequence;
+        }
+    }
+
+    private static class State {
+        // device_id, quantity, max_quantity
+        private final List<short[]> availability = new ArrayList<>();
+        // user_id, device_id, booking_date
+        private final List<Object[]> bookings = new ArrayList<>();
+    }
+}
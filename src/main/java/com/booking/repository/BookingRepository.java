@@ -1,7 +1,22 @@
 package com.booking.repository;
 
+import com.booking.config.BookingProperties;
+import com.booking.dto.AvailabilitySummaryDto;
+import com.booking.dto.BookedUnitDto;
 import com.booking.dto.BookingAvailabilityDto;
 import com.booking.dto.BookingDto;
+import com.booking.engine.BookingCommand;
+import com.booking.metrics.BookingMetrics;
+import com.booking.metrics.BookingMetrics.JdbcOperation;
+import com.booking.model.ActiveBooking;
+import com.booking.model.Availability;
+import com.booking.model.BookingOutcome;
+import com.booking.model.BookingPeriod;
+import com.booking.model.Device;
+import com.booking.model.IdempotentOutcome;
+import com.booking.model.Lease;
+import com.booking.model.Reservation;
+import com.booking.replica.ReplicaRouting;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -9,73 +24,255 @@ import org.springframework.stereotype.Repository;
 
 import javax.sql.DataSource;
 import java.sql.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 
 @Slf4j
 @Repository
 public class BookingRepository {
-    public static final String DECREASE_AVAILABILITY = "update availability set quantity = quantity - 1 where device_id = ?;";
-    public static final String INCREASE_AVAILABILITY = "update availability set quantity = quantity + 1 where device_id = ?;";
+    public static final String DECREASE_AVAILABILITY = "update availability set quantity = quantity - 1 where device_id = ? and quantity > 0";
+    public static final String INCREASE_AVAILABILITY = "update availability set quantity = quantity + 1 where device_id = ? and quantity < max_quantity";
     public static final String BOOK_PHONE = "insert into booking (user_id, device_id, booking_date) values (?,?,?)";
+    public static final String INSERT_BOOKING = "insert into booking (user_id, device_id, booking_date, returned_date) values (?,?,?,?)";
+    public static final String RETURN_BOOKING = "update booking set returned_date = ? " +
+            "where user_id = ? and device_id = ? and returned_date is null and booking_date = (" +
+            "select min(booking_date) from booking where user_id = ? and device_id = ? and returned_date is null)";
     public static final String FIND_BY_DEVICE_ID = "select user_id, booking_date " +
             "from booking " +
-            "where device_id = ?" +
+            "where device_id = ? and returned_date is null " +
             "order by booking_date desc limit ?";
+    public static final String FIND_ALL_ACTIVE = "select user_id, device_id, booking_date " +
+            "from booking " +
+            "where returned_date is null";
+    public static final String FIND_ALL_RETURNED = "select user_id, device_id, booking_date " +
+            "from booking " +
+            "where returned_date is not null";
     public static final String FIND_AVAILABILITY = "select quantity, max_quantity " +
             "from availability " +
             "where device_id = ?";
+    public static final String FIND_ALL_AVAILABILITY = "select device_id, quantity, max_quantity from availability";
+    public static final String FIND_ALL_DEVICES = "select d.id, d.name " +
+            "from device d " +
+            "join availability a on a.device_id = d.id " +
+            "order by d.id";
+    public static final String FIND_ALL_AVAILABILITY_WITH_BOOKINGS = "select a.device_id, a.quantity, a.max_quantity, b.user_id, b.booking_date " +
+            "from availability a " +
+            "left join booking b on b.device_id = a.device_id and b.returned_date is null ";
+    public static final String FIND_AVAILABILITY_WITH_BOOKINGS_BY_DEVICE_IDS = FIND_ALL_AVAILABILITY_WITH_BOOKINGS +
+            "where a.device_id in (unnest(cast(? as smallint array))) ";
+    public static final String ORDER_BY_DEVICE_AND_BOOKING_DATE = "order by a.device_id, b.booking_date desc";
+    public static final String FIND_HISTORY = "select user_id, booking_date " +
+            "from booking " +
+            "where device_id = ? " +
+            "order by booking_date desc, user_id desc limit ?";
+    public static final String FIND_HISTORY_BEFORE = "select user_id, booking_date " +
+            "from booking " +
+            "where device_id = ? and (booking_date < ? or (booking_date = ? and user_id < ?)) " +
+            "order by booking_date desc, user_id desc limit ?";
+    public static final String FIND_BOOKING = "select 1 from booking where user_id = ? and device_id = ? and booking_date = ?";
+    public static final String FIND_RETURN = "select 1 from booking where user_id = ? and device_id = ? and returned_date = ?";
+    public static final String CHANGE_AVAILABILITY = "update availability set quantity = quantity + ? where device_id = ?";
+    public static final String SET_AVAILABILITY = "update availability set quantity = ? where device_id = ?";
+    public static final String DELETE_ACTIVE_BOOKINGS = "delete from booking where returned_date is null";
+    public static final String FIND_JOURNAL_POSITION = "select position from journal_position where id = 0";
+    public static final String SAVE_JOURNAL_POSITION = "merge into journal_position using (values(0, cast(? as bigint))) as source(id, position) " +
+            "on journal_position.id = source.id " +
+            "when matched then update set journal_position.position = source.position " +
+            "when not matched then insert values source.id, source.position";
+    public static final String FIND_STARTUP_SNAPSHOT = "select token from startup_snapshot where id = 0";
+    public static final String SAVE_STARTUP_SNAPSHOT = "merge into startup_snapshot using (values(0, cast(? as bigint))) as source(id, token) " +
+            "on startup_snapshot.id = source.id " +
+            "when matched then update set startup_snapshot.token = source.token " +
+            "when not matched then insert values source.id, source.token";
+    public static final String DELETE_STARTUP_SNAPSHOT = "delete from startup_snapshot where id = 0";
+    public static final String SAVE_LEASE = "merge into lease using (values(cast(? as varchar(200)), cast(? as smallint), " +
+            "cast(? as timestamp), cast(? as timestamp))) as source(user_id, device_id, booking_date, expires_at) " +
+            "on lease.user_id = source.user_id and lease.device_id = source.device_id and lease.booking_date = source.booking_date " +
+            "when matched then update set lease.expires_at = source.expires_at " +
+            "when not matched then insert values source.user_id, source.device_id, source.booking_date, source.expires_at";
+    public static final String DELETE_LEASE = "delete from lease where user_id = ? and device_id = ? and booking_date = ?";
+    public static final String FIND_ALL_LEASES = "select user_id, device_id, booking_date, expires_at from lease";
+    public static final String FIND_BOOKINGS_MADE_SINCE = "select user_id, device_id, booking_date, returned_date " +
+            "from booking " +
+            "where device_id = ? and booking_date >= ?";
+    public static final String FIND_BOOKINGS_RETURNED_SINCE = "select user_id, device_id, booking_date, returned_date " +
+            "from booking " +
+            "where returned_date >= ?";
+    public static final String INSERT_RESERVATION = "insert into reservation (device_id, user_id, start_time, end_time) values (?,?,?,?)";
+    public static final String FIND_RESERVATIONS = "select id, device_id, user_id, start_time, end_time " +
+            "from reservation where device_id = ? and end_time > ?";
+    public static final String DELETE_RESERVATION = "delete from reservation where id = ?";
+    public static final String INSERT_IDEMPOTENT_OUTCOME = "insert into idempotency_key (id, request, outcome, created_at) values (?,?,?,?)";
+    public static final String FIND_IDEMPOTENT_OUTCOME = "select id, request, outcome, created_at from idempotency_key " +
+            "where id = ? and created_at > ?";
+    public static final String COMPLETE_IDEMPOTENT_OUTCOME = "update idempotency_key set outcome = ? where id = ? and outcome is null";
+    public static final String DELETE_PENDING_IDEMPOTENT_OUTCOME = "delete from idempotency_key where id = ? and outcome is null";
+    public static final String DELETE_IDEMPOTENT_OUTCOMES = "delete from idempotency_key where created_at <= ?";
     private final DataSource dataSource;
+    private final BookingMetrics bookingMetrics;
+    private final ReplicaRouting replicaRouting;
+    private final int fetchSize;
 
-    public BookingRepository(@Autowired DataSource dataSource) {
+    public BookingRepository(@Autowired DataSource dataSource,
+                             @Autowired BookingProperties bookingProperties,
+                             @Autowired BookingMetrics bookingMetrics,
+                             @Autowired ReplicaRouting replicaRouting) {
         this.dataSource = dataSource;
+        this.bookingMetrics = bookingMetrics;
+        this.replicaRouting = replicaRouting;
+        this.fetchSize = bookingProperties.getStreaming().getFetchSize();
     }
 
-    public void bookPhone(BookingDto bookingDto) {
+    /**
+     * Takes a unit with a conditional update, so a sold-out device is detected by the row count
+     * rather than by the quantity check constraint.
+     */
+    public BookingOutcome bookPhone(BookingDto bookingDto) {
+        long start = System.nanoTime();
+        long acquired = start;
         try (
                 Connection connection = dataSource.getConnection()
         ) {
+            acquired = bookingMetrics.recordAcquire(JdbcOperation.BOOK, start);
             connection.setAutoCommit(false);
 
-            try (PreparedStatement statement = connection.prepareStatement(DECREASE_AVAILABILITY)) {
-                statement.setShort(1, bookingDto.getDeviceId());
-                statement.executeUpdate();
+            BookingOutcome outcome = book(connection, bookingDto);
+            if (outcome != BookingOutcome.BOOKED) {
+                connection.rollback();
+                return outcome;
             }
+            connection.commit();
+            replicaRouting.committed(bookingDto.getDeviceId());
+            return outcome;
+        } catch (SQLException e) {
+            log.error(e.getMessage(), e);
+            throw new RuntimeException(e);
+        } finally {
+            bookingMetrics.recordExecute(JdbcOperation.BOOK, acquired);
+        }
+    }
 
-            try (PreparedStatement statement = connection.prepareStatement(BOOK_PHONE)) {
-                statement.setString(1, bookingDto.getUserName());
-                statement.setShort(2, bookingDto.getDeviceId());
-                statement.setTimestamp(3, new Timestamp(bookingDto.getTimestamp()));
+    /**
+     * Marks the user's oldest active booking of the device as returned and frees the unit.
+     */
+    public BookingOutcome returnPhone(BookingDto bookingDto) {
+        long start = System.nanoTime();
+        long acquired = start;
+        try (
+                Connection connection = dataSource.getConnection()
+        ) {
+            acquired = bookingMetrics.recordAcquire(JdbcOperation.RETURN, start);
+            connection.setAutoCommit(false);
 
-                statement.executeUpdate();
+            BookingOutcome outcome = giveBack(connection, bookingDto);
+            if (outcome != BookingOutcome.RETURNED) {
+                connection.rollback();
+                return outcome;
             }
-
             connection.commit();
-        } catch (Exception e) {
+            replicaRouting.committed(bookingDto.getDeviceId());
+            return outcome;
+        } catch (SQLException e) {
             log.error(e.getMessage(), e);
             throw new RuntimeException(e);
+        } finally {
+            bookingMetrics.recordExecute(JdbcOperation.RETURN, acquired);
         }
     }
 
-    public void returnPhone(short phoneId) {
+    /**
+     * Books and returns the device, one statement at a time and as a batch, and rolls both transactions back,
+     * so a warm-up runs every statement of the write paths without changing anything.
+     */
+    public void warmUp(BookingDto bookingDto) {
         try (
-                Connection connection = dataSource.getConnection();
-                PreparedStatement statement = connection.prepareStatement(INCREASE_AVAILABILITY)
+                Connection connection = dataSource.getConnection()
         ) {
-            statement.setShort(1, phoneId);
-
-            statement.executeUpdate();
+            connection.setAutoCommit(false);
+            try {
+                book(connection, bookingDto);
+                giveBack(connection, bookingDto);
+            } finally {
+                connection.rollback();
+            }
         } catch (SQLException e) {
-            log.error(e.getMessage(), e);
             throw new RuntimeException(e);
         }
+        BookingCommand book = new BookingCommand(BookingCommand.Type.BOOK,
+                bookingDto.getDeviceId(), bookingDto.getUserName(), bookingDto.getTimestamp());
+        BookingCommand giveBack = new BookingCommand(BookingCommand.Type.RETURN,
+                bookingDto.getDeviceId(), bookingDto.getUserName(), bookingDto.getTimestamp());
+        applyBatch(List.of(book, giveBack), null, true, false, true);
+    }
+
+    /**
+     * Runs the statements of a book in the connection's transaction, leaving commit or rollback to the caller.
+     */
+    private static BookingOutcome book(Connection connection, BookingDto bookingDto) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(DECREASE_AVAILABILITY)) {
+            statement.setShort(1, bookingDto.getDeviceId());
+
+            if (statement.executeUpdate() == 0) {
+                return deviceExists(connection, bookingDto.getDeviceId())
+                        ? BookingOutcome.SOLD_OUT
+                        : BookingOutcome.UNKNOWN_DEVICE;
+            }
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(BOOK_PHONE)) {
+            statement.setString(1, bookingDto.getUserName());
+            statement.setShort(2, bookingDto.getDeviceId());
+            statement.setTimestamp(3, new Timestamp(bookingDto.getTimestamp()));
+
+            statement.executeUpdate();
+        } catch (SQLIntegrityConstraintViolationException e) {
+            return BookingOutcome.DUPLICATE_BOOKING;
+        }
+        return BookingOutcome.BOOKED;
+    }
+
+    /**
+     * Runs the statements of a return in the connection's transaction, leaving commit or rollback to the caller.
+     */
+    private static BookingOutcome giveBack(Connection connection, BookingDto bookingDto) throws SQLException {
+        // availability first, the same lock order as bookPhone, so concurrent book and return can't deadlock
+        try (PreparedStatement statement = connection.prepareStatement(INCREASE_AVAILABILITY)) {
+            statement.setShort(1, bookingDto.getDeviceId());
+
+            if (statement.executeUpdate() == 0) {
+                return deviceExists(connection, bookingDto.getDeviceId())
+                        ? BookingOutcome.NOT_BOOKED
+                        : BookingOutcome.UNKNOWN_DEVICE;
+            }
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(RETURN_BOOKING)) {
+            setReturnBooking(statement, bookingDto.getUserName(), bookingDto.getDeviceId(), bookingDto.getTimestamp());
+
+            if (statement.executeUpdate() == 0) {
+                return BookingOutcome.NOT_BOOKED;
+            }
+        }
+        return BookingOutcome.RETURNED;
     }
 
     public List<BookingAvailabilityDto> findByPhoneId(short phoneId) {
+        long start = System.nanoTime();
+        long acquired = start;
         try (
-                Connection connection = dataSource.getConnection()
+                Connection connection = replicaRouting.readConnection(phoneId)
         ) {
+            acquired = bookingMetrics.recordAcquire(JdbcOperation.FIND, start);
             connection.setReadOnly(true);
             connection.setAutoCommit(false);
 
@@ -118,19 +315,982 @@ public class BookingRepository {
                     }
                 }
 
-                for (int i = 0; i < quantity; i++) {
-                    result.add(BookingAvailabilityDto.builder()
+                addAvailable(result, phoneId, quantity);
+
+                return result;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            bookingMetrics.recordExecute(JdbcOperation.FIND, acquired);
+        }
+    }
+
+    /**
+     * Loads availability of several devices with one query.
+     *
+     * @param phoneIds devices to load, or null for every device
+     * @return availability lists grouped by device, in device id order; unknown devices are left out
+     */
+    public Map<Short, List<BookingAvailabilityDto>> findByPhoneIds(Collection<Short> phoneIds) {
+        String sql = phoneIds == null
+                ? FIND_ALL_AVAILABILITY_WITH_BOOKINGS + ORDER_BY_DEVICE_AND_BOOKING_DATE
+                : FIND_AVAILABILITY_WITH_BOOKINGS_BY_DEVICE_IDS + ORDER_BY_DEVICE_AND_BOOKING_DATE;
+
+        try (
+                Connection connection = replicaRouting.readConnection(phoneIds)
+        ) {
+            connection.setReadOnly(true);
+
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                if (phoneIds != null) {
+                    statement.setArray(1, connection.createArrayOf("SMALLINT", phoneIds.toArray()));
+                }
+
+                Map<Short, List<BookingAvailabilityDto>> result = new LinkedHashMap<>();
+                short phoneId = 0;
+                short quantity = 0;
+                List<BookingAvailabilityDto> current = null;
+
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        short rowPhoneId = rs.getShort("device_id");
+                        if (current == null || rowPhoneId != phoneId) {
+                            if (current != null) {
+                                addAvailable(current, phoneId, quantity);
+                            }
+                            phoneId = rowPhoneId;
+                            quantity = rs.getShort("quantity");
+                            current = new ArrayList<>();
+                            result.put(phoneId, current);
+                        }
+
+                        Timestamp bookingDate = rs.getTimestamp("booking_date");
+                        if (bookingDate != null) {
+                            current.add(BookingAvailabilityDto.builder()
+                                    .deviceId(phoneId)
+                                    .userName(rs.getString("user_id"))
+                                    .timestamp(bookingDate.getTime())
+                                    .available(false)
+                                    .build());
+                        }
+                    }
+                }
+                if (current != null) {
+                    addAvailable(current, phoneId, quantity);
+                }
+
+                return result;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return free and booked counts with only the booked units listed, or null when the device is unknown
+     */
+    public AvailabilitySummaryDto findSummaryByPhoneId(short phoneId) {
+        try (
+                Connection connection = replicaRouting.readConnection(phoneId)
+        ) {
+            connection.setReadOnly(true);
+            connection.setAutoCommit(false);
+
+            short quantity = 0;
+            short maxQuantity = 0;
+
+            try (PreparedStatement statement = connection.prepareStatement(FIND_AVAILABILITY)) {
+                statement.setShort(1, phoneId);
+
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        quantity = rs.getShort("quantity");
+                        maxQuantity = rs.getShort("max_quantity");
+                    }
+                }
+            }
+
+            if (maxQuantity <= 0) {
+                return null;
+            }
+
+            List<BookedUnitDto> bookings = new ArrayList<>(maxQuantity - quantity);
+            if (maxQuantity - quantity > 0) {
+                try (PreparedStatement readBookings = connection.prepareStatement(FIND_BY_DEVICE_ID)) {
+                    readBookings.setShort(1, phoneId);
+                    readBookings.setShort(2, (short) (maxQuantity - quantity));
+
+                    try (ResultSet rs = readBookings.executeQuery()) {
+                        while (rs.next()) {
+                            bookings.add(new BookedUnitDto(rs.getTimestamp("booking_date").getTime(), rs.getString("user_id")));
+                        }
+                    }
+                }
+            }
+            connection.commit();
+
+            return AvailabilitySummaryDto.builder()
+                    .deviceId(phoneId)
+                    .free(quantity)
+                    .booked(maxQuantity - quantity)
+                    .bookings(Collections.unmodifiableList(bookings))
+                    .build();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Availability findAvailability(short phoneId) {
+        try (
+                Connection connection = replicaRouting.readConnection(phoneId);
+                PreparedStatement statement = connection.prepareStatement(FIND_AVAILABILITY)
+        ) {
+            statement.setShort(1, phoneId);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next()
+                        ? new Availability(phoneId, rs.getShort("quantity"), rs.getShort("max_quantity"))
+                        : null;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Hands the availability of the device to the consumer row by row, straight from a forward-only cursor,
+     * in the same order as {@link #findByPhoneId(short)}.
+     *
+     * @return false when the device is unknown
+     */
+    public boolean streamByPhoneId(short phoneId, Consumer<BookingAvailabilityDto> consumer) {
+        try (
+                Connection connection = replicaRouting.readConnection(phoneId)
+        ) {
+            connection.setReadOnly(true);
+            connection.setAutoCommit(false);
+
+            short quantity = 0;
+            short maxQuantity = 0;
+
+            try (PreparedStatement statement = connection.prepareStatement(FIND_AVAILABILITY)) {
+                statement.setShort(1, phoneId);
+
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        quantity = rs.getShort("quantity");
+                        maxQuantity = rs.getShort("max_quantity");
+                    }
+                }
+            }
+
+            if (maxQuantity <= 0) {
+                return false;
+            }
+
+            if (maxQuantity - quantity > 0) {
+                try (PreparedStatement readBookings = connection.prepareStatement(FIND_BY_DEVICE_ID,
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    readBookings.setFetchSize(fetchSize);
+                    readBookings.setShort(1, phoneId);
+                    readBookings.setShort(2, (short) (maxQuantity - quantity));
+
+                    BookingAvailabilityDto booked = BookingAvailabilityDto.builder()
+                            .deviceId(phoneId)
+                            .available(false)
+                            .build();
+                    try (ResultSet rs = readBookings.executeQuery()) {
+                        while (rs.next()) {
+                            booked.setUserName(rs.getString("user_id"));
+                            booked.setTimestamp(rs.getTimestamp("booking_date").getTime());
+                            consumer.accept(booked);
+                        }
+                    }
+                }
+            }
+            connection.commit();
+
+            BookingAvailabilityDto available = BookingAvailabilityDto.builder()
+                    .deviceId(phoneId)
+                    .userName(StringUtils.EMPTY)
+                    .timestamp(null)
+                    .available(true)
+                    .build();
+            for (int i = 0; i < quantity; i++) {
+                consumer.accept(available);
+            }
+            return true;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads one page of the device's bookings, newest first, using (booking_date, user_id) as the keyset.
+     *
+     * @param before     booking date of the last row of the previous page, or null for the first page
+     * @param beforeUser user of the last row of the previous page; only bookings strictly older than
+     *                   {@code before} follow when null
+     */
+    public List<BookingDto> findHistory(short phoneId, Long before, String beforeUser, int limit) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(before == null ? FIND_HISTORY : FIND_HISTORY_BEFORE)
+        ) {
+            connection.setReadOnly(true);
+            statement.setFetchSize(Math.min(limit, fetchSize));
+
+            int index = 1;
+            statement.setShort(index++, phoneId);
+            if (before != null) {
+                Timestamp timestamp = new Timestamp(before);
+                statement.setTimestamp(index++, timestamp);
+                statement.setTimestamp(index++, timestamp);
+                statement.setString(index++, beforeUser == null ? StringUtils.EMPTY : beforeUser);
+            }
+            statement.setInt(index, limit);
+
+            List<BookingDto> result = new ArrayList<>(limit);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    result.add(BookingDto.builder()
                             .deviceId(phoneId)
-                            .userName(StringUtils.EMPTY)
-                            .timestamp(null)
-                            .available(true)
+                            .userName(rs.getString("user_id"))
+                            .timestamp(rs.getTimestamp("booking_date").getTime())
                             .build());
                 }
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public List<ActiveBooking> findAllActive() {
+        return findAll(FIND_ALL_ACTIVE);
+    }
+
+    /**
+     * @return keys of the returned bookings, a booking with one of them is a duplicate
+     */
+    public List<ActiveBooking> findAllReturned() {
+        return findAll(FIND_ALL_RETURNED);
+    }
 
+    private List<ActiveBooking> findAll(String query) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(query);
+                ResultSet rs = statement.executeQuery()
+        ) {
+            List<ActiveBooking> result = new ArrayList<>();
+            while (rs.next()) {
+                result.add(new ActiveBooking(
+                        rs.getShort("device_id"),
+                        rs.getString("user_id"),
+                        rs.getTimestamp("booking_date").getTime()));
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public List<Availability> findAllAvailability() {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(FIND_ALL_AVAILABILITY);
+                ResultSet rs = statement.executeQuery()
+        ) {
+            List<Availability> result = new ArrayList<>();
+            while (rs.next()) {
+                result.add(new Availability(
+                        rs.getShort("device_id"),
+                        rs.getShort("quantity"),
+                        rs.getShort("max_quantity")));
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads bookings made per device over {@code booking_device_date} and bookings returned over
+     * {@code booking_returned}, as one condition over both columns could use neither index.
+     *
+     * @param since per device, the time from which bookings made or returned are wanted
+     * @return bookings of the devices made or returned at or after their time, in no particular order
+     */
+    public List<BookingPeriod> findBookingsSince(Map<Short, Long> since) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement made = connection.prepareStatement(FIND_BOOKINGS_MADE_SINCE);
+                PreparedStatement returned = connection.prepareStatement(FIND_BOOKINGS_RETURNED_SINCE)
+        ) {
+            List<BookingPeriod> result = new ArrayList<>();
+            made.setFetchSize(fetchSize);
+            long earliest = Long.MAX_VALUE;
+            for (Map.Entry<Short, Long> device : since.entrySet()) {
+                made.setShort(1, device.getKey());
+                made.setTimestamp(2, new Timestamp(device.getValue()));
+                try (ResultSet rs = made.executeQuery()) {
+                    while (rs.next()) {
+                        result.add(toBookingPeriod(rs));
+                    }
+                }
+                earliest = Math.min(earliest, device.getValue());
+            }
+            if (earliest == Long.MAX_VALUE) {
                 return result;
             }
+
+            returned.setFetchSize(fetchSize);
+            returned.setTimestamp(1, new Timestamp(earliest));
+            try (ResultSet rs = returned.executeQuery()) {
+                while (rs.next()) {
+                    BookingPeriod period = toBookingPeriod(rs);
+                    Long from = since.get(period.getDeviceId());
+                    // made since was read above already
+                    if (from != null && period.getBookedAt() < from && period.getReturnedAt() >= from) {
+                        result.add(period);
+                    }
+                }
+            }
+            return result;
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
+
+    private static BookingPeriod toBookingPeriod(ResultSet rs) throws SQLException {
+        Timestamp returnedDate = rs.getTimestamp("returned_date");
+        return new BookingPeriod(
+                rs.getShort("device_id"),
+                rs.getString("user_id"),
+                rs.getTimestamp("booking_date").getTime(),
+                returnedDate == null ? null : returnedDate.getTime());
+    }
+
+    /**
+     * @return devices that can be booked, the ones with an availability row
+     */
+    public List<Device> findAllDevices() {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(FIND_ALL_DEVICES);
+                ResultSet rs = statement.executeQuery()
+        ) {
+            List<Device> result = new ArrayList<>();
+            while (rs.next()) {
+                result.add(new Device(rs.getShort("id"), rs.getString("name")));
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stores the lease, or moves the expiry of the stored lease of the same booking.
+     */
+    public void saveLease(Lease lease) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(SAVE_LEASE)
+        ) {
+            statement.setString(1, lease.getUserName());
+            statement.setShort(2, lease.getDeviceId());
+            statement.setTimestamp(3, new Timestamp(lease.getBookingTimestamp()));
+            statement.setTimestamp(4, new Timestamp(lease.getExpiresAt()));
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void deleteLease(Lease lease) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(DELETE_LEASE)
+        ) {
+            statement.setString(1, lease.getUserName());
+            statement.setShort(2, lease.getDeviceId());
+            statement.setTimestamp(3, new Timestamp(lease.getBookingTimestamp()));
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public List<Lease> findAllLeases() {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(FIND_ALL_LEASES);
+                ResultSet rs = statement.executeQuery()
+        ) {
+            List<Lease> result = new ArrayList<>();
+            while (rs.next()) {
+                result.add(new Lease(
+                        rs.getShort("device_id"),
+                        rs.getString("user_id"),
+                        rs.getTimestamp("booking_date").getTime(),
+                        rs.getTimestamp("expires_at").getTime()));
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the stored reservation with its generated id
+     */
+    public Reservation insertReservation(short deviceId, String userName, long start, long end) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(INSERT_RESERVATION, Statement.RETURN_GENERATED_KEYS)
+        ) {
+            statement.setShort(1, deviceId);
+            statement.setString(2, userName);
+            statement.setTimestamp(3, new Timestamp(start));
+            statement.setTimestamp(4, new Timestamp(end));
+            statement.executeUpdate();
+            try (ResultSet keys = statement.getGeneratedKeys()) {
+                keys.next();
+                return new Reservation(keys.getLong(1), deviceId, userName, start, end);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return reservations of the device ending after {@code after}
+     */
+    public List<Reservation> findReservations(short deviceId, long after) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(FIND_RESERVATIONS)
+        ) {
+            statement.setShort(1, deviceId);
+            statement.setTimestamp(2, new Timestamp(after));
+            try (ResultSet rs = statement.executeQuery()) {
+                List<Reservation> result = new ArrayList<>();
+                while (rs.next()) {
+                    result.add(new Reservation(
+                            rs.getLong("id"),
+                            rs.getShort("device_id"),
+                            rs.getString("user_id"),
+                            rs.getTimestamp("start_time").getTime(),
+                            rs.getTimestamp("end_time").getTime()));
+                }
+                return result;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void deleteReservation(long reservationId) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(DELETE_RESERVATION)
+        ) {
+            statement.setLong(1, reservationId);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stores a request sent with an idempotency key, before it is applied, with a null outcome;
+     * another instance that stored the key first wins.
+     */
+    public void insertIdempotentOutcome(IdempotentOutcome outcome) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(INSERT_IDEMPOTENT_OUTCOME)
+        ) {
+            statement.setString(1, outcome.getKey());
+            statement.setString(2, outcome.getRequest());
+            statement.setString(3, outcome.getOutcome() != null ? outcome.getOutcome().name() : null);
+            statement.setTimestamp(4, new Timestamp(outcome.getCreatedAt()));
+            statement.executeUpdate();
+        } catch (SQLIntegrityConstraintViolationException e) {
+            log.warn("Idempotency key {} was already stored", outcome.getKey());
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stores the outcome of a request inserted by {@link #insertIdempotentOutcome} once it is applied.
+     */
+    public void completeIdempotentOutcome(IdempotentOutcome outcome) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(COMPLETE_IDEMPOTENT_OUTCOME)
+        ) {
+            statement.setString(1, outcome.getOutcome().name());
+            statement.setString(2, outcome.getKey());
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Forgets a request inserted by {@link #insertIdempotentOutcome} that failed without being applied.
+     */
+    public void deletePendingIdempotentOutcome(String key) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(DELETE_PENDING_IDEMPOTENT_OUTCOME)
+        ) {
+            statement.setString(1, key);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return true when the booking table holds the booking
+     */
+    public boolean isBooked(BookingDto bookingDto) {
+        return exists(FIND_BOOKING, bookingDto);
+    }
+
+    /**
+     * @return true when the booking table holds a booking of the user and device returned at the timestamp
+     */
+    public boolean isReturned(BookingDto bookingDto) {
+        return exists(FIND_RETURN, bookingDto);
+    }
+
+    private boolean exists(String query, BookingDto bookingDto) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(query)
+        ) {
+            statement.setString(1, bookingDto.getUserName());
+            statement.setShort(2, bookingDto.getDeviceId());
+            statement.setTimestamp(3, new Timestamp(bookingDto.getTimestamp()));
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the outcome stored for the key after {@code after}, null when there is none; the outcome
+     * of the record is null while the request is applied, or when applying it was interrupted
+     */
+    public IdempotentOutcome findIdempotentOutcome(String key, long after) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(FIND_IDEMPOTENT_OUTCOME)
+        ) {
+            statement.setString(1, key);
+            statement.setTimestamp(2, new Timestamp(after));
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                return new IdempotentOutcome(
+                        rs.getString("id"),
+                        rs.getString("request"),
+                        rs.getString("outcome") != null ? BookingOutcome.valueOf(rs.getString("outcome")) : null,
+                        rs.getTimestamp("created_at").getTime());
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return number of outcomes stored up to {@code before} that were deleted
+     */
+    public int deleteIdempotentOutcomes(long before) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(DELETE_IDEMPOTENT_OUTCOMES)
+        ) {
+            statement.setTimestamp(1, new Timestamp(before));
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Applies commands already admitted elsewhere, in one transaction.
+     * Commands the database does not admit any more are logged and skipped.
+     */
+    public void persistBatch(List<BookingCommand> commands) {
+        logSkipped(commands, applyBatch(commands));
+    }
+
+    /**
+     * Decides admission for every command in submission order and applies the admitted ones in one transaction:
+     * one quantity update per device, one JDBC batch with all new bookings and one update per return.
+     * A return closes the user's oldest active booking of the device, including one booked earlier in the batch.
+     *
+     * @return outcome per command, in the same order
+     */
+    public BookingOutcome[] applyBatch(List<BookingCommand> commands) {
+        return applyBatch(commands, null, false, false, false);
+    }
+
+    /**
+     * Decides and applies client bulk requests like {@link #applyBatch(List)}, in one transaction. Bookings
+     * are also checked against the stored ones, so a duplicate is reported per item instead of failing the batch.
+     * When {@code atomic}, the first rejected command rolls the transaction back and every other command
+     * gets {@link BookingOutcome#NOT_APPLIED}.
+     *
+     * @return outcome per command, in the same order
+     */
+    public BookingOutcome[] applyBulk(List<BookingCommand> commands, boolean atomic) {
+        return applyBatch(commands, null, true, atomic, false);
+    }
+
+    /**
+     * Applies journal events like {@link #applyBatch(List)} and records the journal position reached
+     * in the same transaction, so a restart knows exactly which events the database is missing.
+     */
+    public void persistJournal(List<BookingCommand> commands, long position) {
+        logSkipped(commands, applyBatch(commands, position, false, false, false));
+    }
+
+    /**
+     * @return sequence of the last journal event applied to the database, 0 when none was
+     */
+    public long findJournalPosition() {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(FIND_JOURNAL_POSITION);
+                ResultSet rs = statement.executeQuery()
+        ) {
+            return rs.next() ? rs.getLong("position") : 0;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return token of the startup snapshot written when the database was last left, or null when it changed since
+     */
+    public Long findStartupSnapshot() {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(FIND_STARTUP_SNAPSHOT);
+                ResultSet rs = statement.executeQuery()
+        ) {
+            return rs.next() ? rs.getLong("token") : null;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void saveStartupSnapshot(long token) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(SAVE_STARTUP_SNAPSHOT)
+        ) {
+            statement.setLong(1, token);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void deleteStartupSnapshot() {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(DELETE_STARTUP_SNAPSHOT)
+        ) {
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Overwrites quantities and active bookings with state rebuilt from the journal, for a database
+     * that lost events the journal no longer holds. Booking history of those events is not restored.
+     */
+    public void restoreJournalState(Collection<Availability> availabilities, Collection<ActiveBooking> activeBookings,
+                                    long position) {
+        try (
+                Connection connection = dataSource.getConnection()
+        ) {
+            connection.setAutoCommit(false);
+
+            try {
+                try (PreparedStatement statement = connection.prepareStatement(SET_AVAILABILITY)) {
+                    for (Availability availability : availabilities) {
+                        statement.setShort(1, availability.getQuantity());
+                        statement.setShort(2, availability.getDeviceId());
+                        statement.addBatch();
+                    }
+                    if (!availabilities.isEmpty()) {
+                        statement.executeBatch();
+                    }
+                }
+                try (PreparedStatement statement = connection.prepareStatement(DELETE_ACTIVE_BOOKINGS)) {
+                    statement.executeUpdate();
+                }
+                List<PendingBooking> bookings = new ArrayList<>(activeBookings.size());
+                for (ActiveBooking booking : activeBookings) {
+                    bookings.add(new PendingBooking(new BookingCommand(BookingCommand.Type.BOOK,
+                            booking.getDeviceId(), booking.getUserName(), booking.getTimestamp())));
+                }
+                writeBookings(connection, bookings);
+                saveJournalPosition(connection, position);
+                connection.commit();
+                replicaRouting.resyncAll();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param rollBack roll the transaction back even when every command was applied
+     */
+    private BookingOutcome[] applyBatch(List<BookingCommand> commands, Long journalPosition,
+                                        boolean checkStored, boolean atomic, boolean rollBack) {
+        BookingOutcome[] outcomes = new BookingOutcome[commands.size()];
+
+        long start = System.nanoTime();
+        long acquired = start;
+        try (
+                Connection connection = dataSource.getConnection()
+        ) {
+            acquired = bookingMetrics.recordAcquire(JdbcOperation.BATCH, start);
+            connection.setAutoCommit(false);
+
+            try {
+                Map<Short, int[]> quantities = lockAvailability(connection, commands);
+                Map<Short, Integer> deltas = new TreeMap<>();
+                List<PendingBooking> inserts = new ArrayList<>();
+                Map<String, ArrayDeque<PendingBooking>> bookedInBatch = new HashMap<>();
+                Set<String> bookingKeys = new HashSet<>();
+
+                int rejected = -1;
+                try (PreparedStatement returnBooking = connection.prepareStatement(RETURN_BOOKING);
+                     PreparedStatement findBooking = checkStored ? connection.prepareStatement(FIND_BOOKING) : null) {
+                    for (int i = 0; i < commands.size(); i++) {
+                        if (atomic && rejected >= 0) {
+                            break;
+                        }
+                        BookingCommand command = commands.get(i);
+                        int[] quantity = quantities.get(command.getDeviceId());
+                        if (quantity == null) {
+                            outcomes[i] = BookingOutcome.UNKNOWN_DEVICE;
+                            rejected = i;
+                            continue;
+                        }
+
+                        String holder = command.getUserName() + '\u0000' + command.getDeviceId();
+                        if (command.getType() == BookingCommand.Type.BOOK) {
+                            if (quantity[0] <= 0) {
+                                outcomes[i] = BookingOutcome.SOLD_OUT;
+                                rejected = i;
+                                continue;
+                            }
+                            if (!bookingKeys.add(holder + '\u0000' + command.getTimestamp())
+                                    || findBooking != null && isStored(findBooking, command)) {
+                                outcomes[i] = BookingOutcome.DUPLICATE_BOOKING;
+                                rejected = i;
+                                continue;
+                            }
+                            PendingBooking booking = new PendingBooking(command);
+                            inserts.add(booking);
+                            bookedInBatch.computeIfAbsent(holder, key -> new ArrayDeque<>()).addLast(booking);
+                        } else {
+                            setReturnBooking(returnBooking, command.getUserName(), command.getDeviceId(), command.getTimestamp());
+                            if (returnBooking.executeUpdate() == 0) {
+                                ArrayDeque<PendingBooking> pending = bookedInBatch.get(holder);
+                                if (pending == null || pending.isEmpty()) {
+                                    outcomes[i] = BookingOutcome.NOT_BOOKED;
+                                    rejected = i;
+                                    continue;
+                                }
+                                pending.pollFirst().returnedAt = command.getTimestamp();
+                            }
+                        }
+
+                        quantity[0] += command.quantityDelta();
+                        deltas.merge(command.getDeviceId(), command.quantityDelta(), Integer::sum);
+                        outcomes[i] = command.getType() == BookingCommand.Type.BOOK
+                                ? BookingOutcome.BOOKED
+                                : BookingOutcome.RETURNED;
+                    }
+                }
+
+                if (atomic && rejected >= 0) {
+                    connection.rollback();
+                    for (int i = 0; i < outcomes.length; i++) {
+                        if (i != rejected) {
+                            outcomes[i] = BookingOutcome.NOT_APPLIED;
+                        }
+                    }
+                    return outcomes;
+                }
+
+                writeQuantities(connection, deltas);
+                writeBookings(connection, inserts);
+                if (journalPosition != null) {
+                    saveJournalPosition(connection, journalPosition);
+                }
+                if (rollBack) {
+                    connection.rollback();
+                    return outcomes;
+                }
+                connection.commit();
+                replicaRouting.committed(deltas.keySet());
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            bookingMetrics.recordExecute(JdbcOperation.BATCH, acquired);
+        }
+        return outcomes;
+    }
+
+    private static void logSkipped(List<BookingCommand> commands, BookingOutcome[] outcomes) {
+        for (int i = 0; i < outcomes.length; i++) {
+            if (!outcomes[i].isSuccess()) {
+                log.warn("Skipped command not admitted by the database ({}): {}", outcomes[i], commands.get(i));
+            }
+        }
+    }
+
+    private static void saveJournalPosition(Connection connection, long position) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SAVE_JOURNAL_POSITION)) {
+            statement.setLong(1, position);
+            statement.executeUpdate();
+        }
+    }
+
+    private static void addAvailable(List<BookingAvailabilityDto> result, short phoneId, short quantity) {
+        for (int i = 0; i < quantity; i++) {
+            result.add(BookingAvailabilityDto.builder()
+                    .deviceId(phoneId)
+                    .userName(StringUtils.EMPTY)
+                    .timestamp(null)
+                    .available(true)
+                    .build());
+        }
+    }
+
+    private Map<Short, int[]> lockAvailability(Connection connection, List<BookingCommand> commands) throws SQLException {
+        Map<Short, int[]> quantities = new TreeMap<>();
+        for (BookingCommand command : commands) {
+            quantities.putIfAbsent(command.getDeviceId(), null);
+        }
+
+        StringBuilder sql = new StringBuilder(FIND_ALL_AVAILABILITY).append(" where device_id in (");
+        for (int i = 0; i < quantities.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(") for update");
+
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (Short deviceId : quantities.keySet()) {
+                statement.setShort(index++, deviceId);
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    quantities.put(rs.getShort("device_id"),
+                            new int[]{rs.getShort("quantity"), rs.getShort("max_quantity")});
+                }
+            }
+        }
+        return quantities;
+    }
+
+    private static boolean isStored(PreparedStatement findBooking, BookingCommand command) throws SQLException {
+        findBooking.setString(1, command.getUserName());
+        findBooking.setShort(2, command.getDeviceId());
+        findBooking.setTimestamp(3, new Timestamp(command.getTimestamp()));
+
+        try (ResultSet rs = findBooking.executeQuery()) {
+            return rs.next();
+        }
+    }
+
+    private static boolean deviceExists(Connection connection, short deviceId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(FIND_AVAILABILITY)) {
+            statement.setShort(1, deviceId);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static void setReturnBooking(PreparedStatement statement, String userName, short deviceId, long returnedAt)
+            throws SQLException {
+        statement.setTimestamp(1, new Timestamp(returnedAt));
+        statement.setString(2, userName);
+        statement.setShort(3, deviceId);
+        statement.setString(4, userName);
+        statement.setShort(5, deviceId);
+    }
+
+    private void writeQuantities(Connection connection, Map<Short, Integer> deltas) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(CHANGE_AVAILABILITY)) {
+            int batched = 0;
+            for (Map.Entry<Short, Integer> delta : deltas.entrySet()) {
+                if (delta.getValue() != 0) {
+                    statement.setInt(1, delta.getValue());
+                    statement.setShort(2, delta.getKey());
+                    statement.addBatch();
+                    batched++;
+                }
+            }
+            if (batched > 0) {
+                statement.executeBatch();
+            }
+        }
+    }
+
+    private void writeBookings(Connection connection, List<PendingBooking> bookings) throws SQLException {
+        if (bookings.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_BOOKING)) {
+            for (PendingBooking booking : bookings) {
+                statement.setString(1, booking.command.getUserName());
+                statement.setShort(2, booking.command.getDeviceId());
+                statement.setTimestamp(3, new Timestamp(booking.command.getTimestamp()));
+                statement.setTimestamp(4, booking.returnedAt == null ? null : new Timestamp(booking.returnedAt));
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private static class PendingBooking {
+        private final BookingCommand command;
+        private Long returnedAt;
+
+        private PendingBooking(BookingCommand command) {
+            this.command = command;
+        }
+    }
 }
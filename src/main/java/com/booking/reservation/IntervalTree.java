@@ -0,0 +1,159 @@
+package com.booking.reservation;
+
+import com.booking.model.Reservation;
+
+import java.util.SplittableRandom;
+import java.util.function.Consumer;
+
+/**
+ * Reservations of one device ordered by start, in a treap whose nodes also carry the latest end in their
+ * subtree. A search for the reservations overlapping a window skips every subtree that ends before the window
+ * and everything right of a node that starts after it, so it costs O(log n) per reservation found instead of
+ * a scan of the device's reservations. Inserts and removals take O(log n) expected. Not thread-safe.
+ */
+class IntervalTree {
+    private final SplittableRandom priorities = new SplittableRandom();
+    private Node root;
+    private int size;
+
+    void insert(Reservation reservation) {
+        root = insert(root, new Node(reservation, priorities.nextInt()));
+        size++;
+    }
+
+    /**
+     * @return false when the reservation is not in the tree
+     */
+    boolean remove(Reservation reservation) {
+        int before = size;
+        root = remove(root, reservation);
+        return size < before;
+    }
+
+    /**
+     * Hands every reservation overlapping [from, to) to the consumer, ordered by start.
+     */
+    void forEachOverlapping(long from, long to, Consumer<Reservation> consumer) {
+        forEachOverlapping(root, from, to, consumer);
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static void forEachOverlapping(Node node, long from, long to, Consumer<Reservation> consumer) {
+        if (node == null || node.maxEnd <= from) {
+            return;
+        }
+        forEachOverlapping(node.left, from, to, consumer);
+        if (node.reservation.getStart() >= to) {
+            return;
+        }
+        if (node.reservation.getEnd() > from) {
+            consumer.accept(node.reservation);
+        }
+        forEachOverlapping(node.right, from, to, consumer);
+    }
+
+    private static Node insert(Node node, Node added) {
+        if (node == null) {
+            return added;
+        }
+        if (compare(added.reservation, node.reservation) < 0) {
+            node.left = insert(node.left, added);
+            if (node.left.priority > node.priority) {
+                node = rotateRight(node);
+            }
+        } else {
+            node.right = insert(node.right, added);
+            if (node.right.priority > node.priority) {
+                node = rotateLeft(node);
+            }
+        }
+        node.update();
+        return node;
+    }
+
+    private Node remove(Node node, Reservation reservation) {
+        if (node == null) {
+            return null;
+        }
+        int order = compare(reservation, node.reservation);
+        if (order < 0) {
+            node.left = remove(node.left, reservation);
+        } else if (order > 0) {
+            node.right = remove(node.right, reservation);
+        } else {
+            size--;
+            return merge(node.left, node.right);
+        }
+        node.update();
+        return node;
+    }
+
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            left.update();
+            return left;
+        }
+        right.left = merge(left, right.left);
+        right.update();
+        return right;
+    }
+
+    private static Node rotateRight(Node node) {
+        Node left = node.left;
+        node.left = left.right;
+        left.right = node;
+        node.update();
+        left.update();
+        return left;
+    }
+
+    private static Node rotateLeft(Node node) {
+        Node right = node.right;
+        node.right = right.left;
+        right.left = node;
+        node.update();
+        right.update();
+        return right;
+    }
+
+    private static int compare(Reservation a, Reservation b) {
+        int order = Long.compare(a.getStart(), b.getStart());
+        return order != 0 ? order : Long.compare(a.getId(), b.getId());
+    }
+
+    private static class Node {
+        private final Reservation reservation;
+        private final int priority;
+        private Node left;
+        private Node right;
+        // latest end in this subtree
+        private long maxEnd;
+
+        private Node(Reservation reservation, int priority) {
+            this.reservation = reservation;
+            this.priority = priority;
+            this.maxEnd = reservation.getEnd();
+        }
+
+        private void update() {
+            long end = reservation.getEnd();
+            if (left != null) {
+                end = Math.max(end, left.maxEnd);
+            }
+            if (right != null) {
+                end = Math.max(end, right.maxEnd);
+            }
+            maxEnd = end;
+        }
+    }
+}
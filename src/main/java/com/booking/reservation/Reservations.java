@@ -0,0 +1,249 @@
+package com.booking.reservation;
+
+import com.booking.config.BookingProperties;
+import com.booking.model.Availability;
+import com.booking.model.FreeCapacity;
+import com.booking.model.Reservation;
+import com.booking.repository.BookingRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reservations of devices for future time windows. Each device can have as many overlapping reservations
+ * as it has units, its {@code max_quantity}. The reservations of a device that have not ended yet are loaded
+ * into an {@link IntervalTree} on first use, so overlap and capacity checks only touch the reservations that
+ * overlap the window asked for. A reservation is checked and stored under its device's lock, so concurrent
+ * reservations never exceed the capacity. Ended reservations are purged from memory; the table keeps them.
+ * <p>
+ * Reservations are a calendar of their own: they do not take units from the availability of booked devices.
+ */
+@Slf4j
+@Component
+public class Reservations {
+    private final BookingRepository bookingRepository;
+    private final Map<Short, DeviceReservations> devices = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService purger;
+
+    public Reservations(@Autowired BookingRepository bookingRepository,
+                        @Autowired BookingProperties bookingProperties) {
+        this.bookingRepository = bookingRepository;
+        Duration interval = bookingProperties.getReservation().getPurgeInterval();
+        this.purger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "reservation-purge");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.purger.scheduleWithFixedDelay(this::purge, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reserves a unit of the device for [start, end).
+     *
+     * @return the reservation, or null when every unit is reserved at some point of the window
+     */
+    public Reservation reserve(short deviceId, String userName, long start, long end) {
+        DeviceReservations device = device(deviceId);
+        synchronized (device) {
+            if (device.maxOverlap(start, end) >= device.capacity) {
+                return null;
+            }
+            Reservation reservation = bookingRepository.insertReservation(deviceId, userName, start, end);
+            device.add(reservation);
+            return reservation;
+        }
+    }
+
+    /**
+     * @return reservations of the device overlapping [from, to), ordered by start
+     */
+    public List<Reservation> find(short deviceId, long from, long to) {
+        DeviceReservations device = device(deviceId);
+        List<Reservation> result = new ArrayList<>();
+        synchronized (device) {
+            device.tree.forEachOverlapping(from, to, result::add);
+        }
+        return result;
+    }
+
+    /**
+     * Units left to reserve over [from, to), as consecutive windows of the same free count.
+     */
+    public List<FreeCapacity> freeCapacity(short deviceId, long from, long to) {
+        DeviceReservations device = device(deviceId);
+        synchronized (device) {
+            return device.freeCapacity(from, to);
+        }
+    }
+
+    /**
+     * @return the cancelled reservation, or null when the user has no reservation with this id on the device
+     */
+    public Reservation cancel(short deviceId, long reservationId, String userName) {
+        DeviceReservations device = device(deviceId);
+        synchronized (device) {
+            Reservation reservation = device.byId.get(reservationId);
+            if (reservation == null || !reservation.getUserName().equals(userName)) {
+                return null;
+            }
+            bookingRepository.deleteReservation(reservationId);
+            device.remove(reservation);
+            return reservation;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        purger.shutdownNow();
+    }
+
+    private DeviceReservations device(short deviceId) {
+        DeviceReservations device = devices.get(deviceId);
+        if (device == null) {
+            // loaded outside the map, so a slow load does not block other devices
+            DeviceReservations loaded = load(deviceId);
+            device = devices.putIfAbsent(deviceId, loaded);
+            if (device == null) {
+                device = loaded;
+            }
+        }
+        return device;
+    }
+
+    private DeviceReservations load(short deviceId) {
+        Availability availability = bookingRepository.findAvailability(deviceId);
+        DeviceReservations device = new DeviceReservations(availability == null ? 0 : availability.getMaxQuantity());
+        bookingRepository.findReservations(deviceId, System.currentTimeMillis()).forEach(device::add);
+        return device;
+    }
+
+    private void purge() {
+        long now = System.currentTimeMillis();
+        try {
+            int purged = 0;
+            for (DeviceReservations device : devices.values()) {
+                synchronized (device) {
+                    List<Reservation> ended = new ArrayList<>();
+                    device.tree.forEachOverlapping(Long.MIN_VALUE, now, reservation -> {
+                        if (reservation.getEnd() <= now) {
+                            ended.add(reservation);
+                        }
+                    });
+                    ended.forEach(device::remove);
+                    purged += ended.size();
+                }
+            }
+            log.debug("Purged {} ended reservations", purged);
+        } catch (RuntimeException e) {
+            // an exception would cancel the periodic task
+            log.error("Reservation purge failed", e);
+        }
+    }
+
+    private static class DeviceReservations {
+        private final int capacity;
+        private final IntervalTree tree = new IntervalTree();
+        private final Map<Long, Reservation> byId = new HashMap<>();
+
+        private DeviceReservations(int capacity) {
+            this.capacity = capacity;
+        }
+
+        private void add(Reservation reservation) {
+            tree.insert(reservation);
+            byId.put(reservation.getId(), reservation);
+        }
+
+        private void remove(Reservation reservation) {
+            tree.remove(reservation);
+            byId.remove(reservation.getId());
+        }
+
+        /**
+         * @return the most reservations overlapping one another at any instant of [from, to)
+         */
+        private int maxOverlap(long from, long to) {
+            List<Reservation> overlapping = new ArrayList<>();
+            tree.forEachOverlapping(from, to, overlapping::add);
+            if (overlapping.size() < 2) {
+                return overlapping.size();
+            }
+            long[] starts = new long[overlapping.size()];
+            long[] ends = new long[overlapping.size()];
+            clip(overlapping, from, to, starts, ends);
+
+            int depth = 0;
+            int max = 0;
+            for (int i = 0, j = 0; i < starts.length; ) {
+                // an end frees its unit for a start at the same instant
+                if (starts[i] < ends[j]) {
+                    max = Math.max(max, ++depth);
+                    i++;
+                } else {
+                    depth--;
+                    j++;
+                }
+            }
+            return max;
+        }
+
+        private List<FreeCapacity> freeCapacity(long from, long to) {
+            List<Reservation> overlapping = new ArrayList<>();
+            tree.forEachOverlapping(from, to, overlapping::add);
+            long[] starts = new long[overlapping.size()];
+            long[] ends = new long[overlapping.size()];
+            clip(overlapping, from, to, starts, ends);
+
+            List<FreeCapacity> result = new ArrayList<>();
+            long cursor = from;
+            int depth = 0;
+            int i = 0;
+            int j = 0;
+            while (true) {
+                long next = Math.min(i < starts.length ? starts[i] : to, j < ends.length ? ends[j] : to);
+                if (next > cursor) {
+                    int free = Math.max(capacity - depth, 0);
+                    FreeCapacity last = result.isEmpty() ? null : result.get(result.size() - 1);
+                    if (last != null && last.getFree() == free) {
+                        result.set(result.size() - 1, new FreeCapacity(last.getFrom(), next, free));
+                    } else {
+                        result.add(new FreeCapacity(cursor, next, free));
+                    }
+                    cursor = next;
+                }
+                if (next >= to) {
+                    return result;
+                }
+                while (j < ends.length && ends[j] == next) {
+                    depth--;
+                    j++;
+                }
+                while (i < starts.length && starts[i] == next) {
+                    depth++;
+                    i++;
+                }
+            }
+        }
+
+        private static void clip(List<Reservation> reservations, long from, long to, long[] starts, long[] ends) {
+            for (int i = 0; i < reservations.size(); i++) {
+                starts[i] = Math.max(reservations.get(i).getStart(), from);
+                ends[i] = Math.min(reservations.get(i).getEnd(), to);
+            }
+            Arrays.sort(starts);
+            Arrays.sort(ends);
+        }
+    }
+}
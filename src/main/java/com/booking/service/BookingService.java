@@ -1,29 +1,458 @@
 package com.booking.service;
 
+import com.booking.analytics.UtilizationAnalytics;
+import com.booking.cache.AvailabilityCache;
+import com.booking.cache.AvailabilityVersions;
+import com.booking.dto.AvailabilitySummaryDto;
 import com.booking.dto.BookingAvailabilityDto;
 import com.booking.dto.BookingDto;
+import com.booking.dto.BookingHistoryDto;
+import com.booking.dto.UtilizationDto;
+import com.booking.engine.ActiveBookings;
+import com.booking.engine.BookingCommand;
+import com.booking.engine.BookingEngine;
+import com.booking.feed.AvailabilityFeed;
+import com.booking.idempotency.IdempotencyKeys;
+import com.booking.lease.Leases;
+import com.booking.metrics.BookingMetrics;
+import com.booking.metrics.BookingMetrics.Operation;
+import com.booking.model.ActiveBooking;
+import com.booking.model.Availability;
+import com.booking.model.BookingOutcome;
+import com.booking.model.FreeCapacity;
+import com.booking.model.Lease;
+import com.booking.model.Reservation;
 import com.booking.repository.BookingRepository;
+import com.booking.reservation.Reservations;
+import com.booking.waitlist.Waitlist;
+import com.booking.waitlist.WaitlistEntry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 @Service
 public class BookingService {
+    private final BookingEngine bookingEngine;
     private final BookingRepository bookingRepository;
+    private final ActiveBookings activeBookings;
+    private final AvailabilityVersions availabilityVersions;
+    private final AvailabilityCache<List<BookingAvailabilityDto>> availabilityCache;
+    private final AvailabilityCache<AvailabilitySummaryDto> availabilitySummaryCache;
+    private final BookingMetrics bookingMetrics;
+    private final AvailabilityFeed availabilityFeed;
+    private final Waitlist waitlist;
+    private final Leases leases;
+    private final Reservations reservations;
+    private final IdempotencyKeys idempotencyKeys;
+    private final UtilizationAnalytics utilizationAnalytics;
 
-    public BookingService(@Autowired BookingRepository bookingRepository) {
+    public BookingService(@Autowired BookingEngine bookingEngine,
+                          @Autowired BookingRepository bookingRepository,
+                          @Autowired ActiveBookings activeBookings,
+                          @Autowired AvailabilityVersions availabilityVersions,
+                          @Autowired AvailabilityCache<List<BookingAvailabilityDto>> availabilityCache,
+                          @Autowired AvailabilityCache<AvailabilitySummaryDto> availabilitySummaryCache,
+                          @Autowired BookingMetrics bookingMetrics,
+                          @Autowired AvailabilityFeed availabilityFeed,
+                          @Autowired Waitlist waitlist,
+                          @Autowired Leases leases,
+                          @Autowired Reservations reservations,
+                          @Autowired IdempotencyKeys idempotencyKeys,
+                          @Autowired UtilizationAnalytics utilizationAnalytics) {
+        this.bookingEngine = bookingEngine;
         this.bookingRepository = bookingRepository;
+        this.activeBookings = activeBookings;
+        this.availabilityVersions = availabilityVersions;
+        this.availabilityCache = availabilityCache;
+        this.availabilitySummaryCache = availabilitySummaryCache;
+        this.bookingMetrics = bookingMetrics;
+        this.availabilityFeed = availabilityFeed;
+        this.waitlist = waitlist;
+        this.leases = leases;
+        this.reservations = reservations;
+        this.idempotencyKeys = idempotencyKeys;
+        this.utilizationAnalytics = utilizationAnalytics;
+    }
+
+    @PostConstruct
+    public void startLeases() {
+        leases.start(this::returnExpired);
+    }
+
+    /**
+     * Books a unit unless users are waiting for the device; a free unit then belongs to the head of its waitlist.
+     */
+    public BookingOutcome bookPhone(BookingDto bookingDto) {
+        if (waitlist.hasWaiters(bookingDto.getDeviceId())) {
+            bookingMetrics.recordRequest(Operation.BOOK, bookingDto.getDeviceId(), BookingOutcome.SOLD_OUT, 0);
+            return BookingOutcome.SOLD_OUT;
+        }
+        return book(bookingDto);
+    }
+
+    /**
+     * Books at most once per idempotency key; a retry gets the outcome of the first request.
+     */
+    public BookingOutcome bookPhone(BookingDto bookingDto, String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return bookPhone(bookingDto);
+        }
+        return idempotencyKeys.apply(idempotencyKey, idempotentRequest("book", bookingDto), () -> bookPhone(bookingDto),
+                () -> {
+                    bookingEngine.awaitPersisted(bookingDto.getDeviceId());
+                    return bookingRepository.isBooked(bookingDto) ? BookingOutcome.BOOKED : null;
+                });
+    }
+
+    /**
+     * Returns at most once per idempotency key; a retry gets the outcome of the first request.
+     */
+    public BookingOutcome returnPhone(BookingDto bookingDto, String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return returnPhone(bookingDto);
+        }
+        return idempotencyKeys.apply(idempotencyKey, idempotentRequest("return", bookingDto), () -> returnPhone(bookingDto),
+                () -> {
+                    bookingEngine.awaitPersisted(bookingDto.getDeviceId());
+                    return bookingRepository.isReturned(bookingDto) ? BookingOutcome.RETURNED : null;
+                });
+    }
+
+    /**
+     * Returns the unit and hands it to the head of the device's waitlist, if anybody waits.
+     */
+    public BookingOutcome returnPhone(BookingDto bookingDto) {
+        BookingOutcome outcome = giveBack(bookingDto);
+        if (outcome.isSuccess()) {
+            leases.returned(bookingDto.getUserName(), bookingDto.getDeviceId());
+        }
+        return outcome;
+    }
+
+    private static String idempotentRequest(String operation, BookingDto bookingDto) {
+        return operation + ":" + bookingDto.getDeviceId() + ":" + bookingDto.getTimestamp() + ":"
+                + bookingDto.getLeaseSeconds() + ":" + bookingDto.getUserName();
+    }
+
+    /**
+     * Moves the end of a booking's lease to {@code leaseSeconds} from now.
+     *
+     * @return the renewed lease, or null when the booking has no lease
+     */
+    public Lease renewLease(String userName, short deviceId, long bookingTimestamp, long leaseSeconds) {
+        return leases.renew(userName, deviceId, bookingTimestamp, TimeUnit.SECONDS.toMillis(leaseSeconds));
+    }
+
+    public List<Lease> findLeasesByUser(String userName) {
+        return leases.findByUser(userName);
     }
 
-    public void bookPhone(BookingDto bookingDto) {
-        bookingRepository.bookPhone(bookingDto);
+    /**
+     * Reserves a unit of the device for [start, end).
+     *
+     * @return the reservation, or null when every unit is reserved at some point of the window
+     */
+    public Reservation reserve(short deviceId, String userName, long start, long end) {
+        return reservations.reserve(deviceId, userName, start, end);
     }
 
-    public void returnPhone(BookingDto bookingDto) {
-        bookingRepository.returnPhone(bookingDto.getDeviceId());
+    public List<Reservation> findReservations(short deviceId, long from, long to) {
+        return reservations.find(deviceId, from, to);
     }
+
+    public List<FreeCapacity> findFreeCapacity(short deviceId, long from, long to) {
+        return reservations.freeCapacity(deviceId, from, to);
+    }
+
+    /**
+     * @return the cancelled reservation, or null when the user has no reservation with this id on the device
+     */
+    public Reservation cancelReservation(short deviceId, long reservationId, String userName) {
+        return reservations.cancel(deviceId, reservationId, userName);
+    }
+
+    private BookingOutcome giveBack(BookingDto bookingDto) {
+        short deviceId = bookingDto.getDeviceId();
+        long heldSince = utilizationAnalytics.heldSince(List.of(bookingDto))[0];
+        long start = System.nanoTime();
+        availabilityVersions.beginWrite(deviceId);
+        BookingOutcome outcome;
+        try {
+            outcome = bookingEngine.returnPhone(bookingDto);
+        } finally {
+            availabilityVersions.endWrite(deviceId);
+        }
+        bookingMetrics.recordRequest(Operation.RETURN, deviceId, outcome, System.nanoTime() - start);
+        if (outcome.isSuccess()) {
+            utilizationAnalytics.returned(bookingDto, heldSince);
+            availabilityFeed.publish(deviceId);
+            serveWaitlist(deviceId);
+        }
+        return outcome;
+    }
+
+    /**
+     * Queues the user for the device and books a unit right away if one is free.
+     *
+     * @return the entry, or null when the device's waitlist is full
+     */
+    public WaitlistEntry joinWaitlist(short deviceId, String userName) {
+        WaitlistEntry entry = waitlist.join(deviceId, userName);
+        if (entry != null) {
+            serveWaitlist(deviceId);
+        }
+        return entry;
+    }
+
+    public WaitlistEntry findWaitlistEntry(String entryId) {
+        return waitlist.find(entryId);
+    }
+
+    public int waitlistPosition(WaitlistEntry entry) {
+        return waitlist.position(entry);
+    }
+
+    /**
+     * @return the entry in its final state, or null when it is unknown
+     */
+    public WaitlistEntry cancelWaitlistEntry(String entryId) {
+        return waitlist.cancel(entryId);
+    }
+
+    private BookingOutcome book(BookingDto bookingDto) {
+        short deviceId = bookingDto.getDeviceId();
+        long start = System.nanoTime();
+        Lease lease = prepareLease(bookingDto);
+        availabilityVersions.beginWrite(deviceId);
+        BookingOutcome outcome = null;
+        try {
+            outcome = bookingEngine.bookPhone(bookingDto);
+        } finally {
+            availabilityVersions.endWrite(deviceId);
+            settleLease(lease, outcome);
+        }
+        bookingMetrics.recordRequest(Operation.BOOK, deviceId, outcome, System.nanoTime() - start);
+        if (outcome.isSuccess()) {
+            utilizationAnalytics.booked(bookingDto);
+            availabilityFeed.publish(deviceId);
+        }
+        return outcome;
+    }
+
+    /**
+     * Books the devices in order, all of them or none when {@code atomic}.
+     *
+     * @return outcome per item, in the same order
+     */
+    public BookingOutcome[] bookPhones(List<BookingDto> bookingDtos, boolean atomic) {
+        return applyAll(Operation.BOOK, bookingDtos, atomic);
+    }
+
+    /**
+     * Returns the devices in order, all of them or none when {@code atomic}.
+     *
+     * @return outcome per item, in the same order
+     */
+    public BookingOutcome[] returnPhones(List<BookingDto> bookingDtos, boolean atomic) {
+        return applyAll(Operation.RETURN, bookingDtos, atomic);
+    }
+
     public List<BookingAvailabilityDto> findByPhoneId(short phoneId) {
-        return bookingRepository.findByPhoneId(phoneId);
+        long start = System.nanoTime();
+        List<BookingAvailabilityDto> availability =
+                availabilityCache.get(phoneId, id -> Collections.unmodifiableList(bookingEngine.findByPhoneId(id)));
+        bookingMetrics.recordRead(phoneId, !availability.isEmpty(), System.nanoTime() - start);
+        return availability;
+    }
+
+    /**
+     * @return the compact availability view, or null when the device is unknown
+     */
+    public AvailabilitySummaryDto findSummaryByPhoneId(short phoneId) {
+        return availabilitySummaryCache.get(phoneId, id -> {
+            bookingEngine.awaitPersisted(id);
+            return bookingRepository.findSummaryByPhoneId(id);
+        });
+    }
+
+    /**
+     * @param phoneIds devices to load, or null for every device
+     */
+    public Map<Short, List<BookingAvailabilityDto>> findByPhoneIds(List<Short> phoneIds) {
+        if (phoneIds == null) {
+            return bookingEngine.findByPhoneIds(null);
+        }
+        return availabilityCache.getAll(new TreeSet<>(phoneIds), ids -> {
+            Map<Short, List<BookingAvailabilityDto>> loaded = bookingEngine.findByPhoneIds(ids);
+            loaded.replaceAll((id, availability) -> Collections.unmodifiableList(availability));
+            return loaded;
+        });
+    }
+
+    /**
+     * @return bookings the user has not returned yet
+     */
+    public List<BookingDto> findActiveByUser(String userName) {
+        List<ActiveBooking> bookings = activeBookings.findByUser(userName);
+        List<BookingDto> result = new ArrayList<>(bookings.size());
+        for (ActiveBooking booking : bookings) {
+            result.add(booking.toDto());
+        }
+        return result;
+    }
+
+    public Availability findAvailability(short phoneId) {
+        bookingEngine.awaitPersisted(phoneId);
+        return bookingRepository.findAvailability(phoneId);
+    }
+
+    /**
+     * Hands the device's availability to the consumer row by row without materializing the list.
+     *
+     * @return false when the device is unknown
+     */
+    public boolean streamByPhoneId(short phoneId, Consumer<BookingAvailabilityDto> consumer) {
+        bookingEngine.awaitPersisted(phoneId);
+        return bookingRepository.streamByPhoneId(phoneId, consumer);
+    }
+
+    public BookingHistoryDto findHistory(short phoneId, Long before, String beforeUser, int limit) {
+        bookingEngine.awaitPersisted(phoneId);
+        List<BookingDto> bookings = bookingRepository.findHistory(phoneId, before, beforeUser, limit + 1);
+
+        BookingHistoryDto.BookingHistoryDtoBuilder history = BookingHistoryDto.builder();
+        if (bookings.size() > limit) {
+            bookings = bookings.subList(0, limit);
+            BookingDto last = bookings.get(limit - 1);
+            history.nextBefore(last.getTimestamp()).nextBeforeUser(last.getUserName());
+        }
+        return history.bookings(bookings).build();
+    }
+
+    /**
+     * @return utilization of the device over the analytics window, or null when analytics are disabled
+     */
+    public UtilizationDto findUtilization(short phoneId) {
+        return utilizationAnalytics.find(phoneId);
+    }
+
+    /**
+     * @return utilization of the devices, in the given order, or null when analytics are disabled
+     */
+    public List<UtilizationDto> findUtilization(List<Short> phoneIds) {
+        return utilizationAnalytics.findAll(phoneIds);
+    }
+
+    private BookingOutcome[] applyAll(Operation operation, List<BookingDto> bookingDtos, boolean atomic) {
+        BookingOutcome[] outcomes = new BookingOutcome[bookingDtos.size()];
+        Lease[] prepared = new Lease[bookingDtos.size()];
+        List<BookingCommand> commands = new ArrayList<>(bookingDtos.size());
+        Set<Short> deviceIds = new TreeSet<>();
+        for (int i = 0; i < bookingDtos.size(); i++) {
+            BookingDto bookingDto = bookingDtos.get(i);
+            if (operation == Operation.BOOK && waitlist.hasWaiters(bookingDto.getDeviceId())) {
+                // the free units of a device with waiters belong to them, as for single bookings
+                outcomes[i] = BookingOutcome.SOLD_OUT;
+                continue;
+            }
+            commands.add(operation == Operation.BOOK ? BookingCommand.book(bookingDto) : BookingCommand.giveBack(bookingDto));
+            deviceIds.add(bookingDto.getDeviceId());
+        }
+        if (operation == Operation.BOOK && !(atomic && commands.size() < bookingDtos.size())) {
+            for (int i = 0; i < outcomes.length; i++) {
+                if (outcomes[i] == null) {
+                    prepared[i] = prepareLease(bookingDtos.get(i));
+                }
+            }
+        }
+
+        long[] heldSince = operation == Operation.RETURN ? utilizationAnalytics.heldSince(bookingDtos) : null;
+        long start = System.nanoTime();
+        BookingOutcome[] applied;
+        if (commands.isEmpty() || atomic && commands.size() < bookingDtos.size()) {
+            applied = null;
+        } else {
+            deviceIds.forEach(availabilityVersions::beginWrite);
+            try {
+                applied = bookingEngine.applyAll(commands, atomic);
+            } catch (RuntimeException e) {
+                for (Lease lease : prepared) {
+                    settleLease(lease, null);
+                }
+                throw e;
+            } finally {
+                deviceIds.forEach(availabilityVersions::endWrite);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+
+        Set<Short> changed = new TreeSet<>();
+        for (int i = 0, next = 0; i < outcomes.length; i++) {
+            if (outcomes[i] == null) {
+                outcomes[i] = applied == null ? BookingOutcome.NOT_APPLIED : applied[next++];
+            }
+            bookingMetrics.recordRequest(operation, bookingDtos.get(i).getDeviceId(), outcomes[i], nanos);
+            settleLease(prepared[i], outcomes[i]);
+            if (outcomes[i].isSuccess()) {
+                changed.add(bookingDtos.get(i).getDeviceId());
+                if (operation == Operation.RETURN) {
+                    leases.returned(bookingDtos.get(i).getUserName(), bookingDtos.get(i).getDeviceId());
+                    utilizationAnalytics.returned(bookingDtos.get(i), heldSince[i]);
+                } else {
+                    utilizationAnalytics.booked(bookingDtos.get(i));
+                }
+            }
+        }
+        changed.forEach(availabilityFeed::publish);
+        if (operation == Operation.RETURN) {
+            changed.forEach(this::serveWaitlist);
+        }
+        return outcomes;
+    }
+
+    /**
+     * Returns the unit of a lease that ran out, as its user would.
+     */
+    private BookingOutcome returnExpired(Lease lease) {
+        return giveBack(BookingDto.builder()
+                .deviceId(lease.getDeviceId())
+                .userName(lease.getUserName())
+                .timestamp(System.currentTimeMillis())
+                .build());
+    }
+
+    /**
+     * @return the stored lease of a booking that asks for one, or null
+     */
+    private Lease prepareLease(BookingDto bookingDto) {
+        Long leaseSeconds = bookingDto.getLeaseSeconds();
+        return leaseSeconds == null ? null : leases.prepare(bookingDto, TimeUnit.SECONDS.toMillis(leaseSeconds));
+    }
+
+    private void settleLease(Lease lease, BookingOutcome outcome) {
+        if (lease == null) {
+            return;
+        }
+        if (outcome == BookingOutcome.BOOKED) {
+            leases.activate(lease);
+        } else {
+            leases.discard(lease);
+        }
+    }
+
+    private void serveWaitlist(short deviceId) {
+        if (waitlist.hasWaiters(deviceId)) {
+            waitlist.serve(deviceId, this::book);
+        }
     }
 }
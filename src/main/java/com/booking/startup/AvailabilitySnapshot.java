@@ -0,0 +1,97 @@
+package com.booking.startup;
+
+import com.booking.model.ActiveBooking;
+import com.booking.model.Availability;
+import lombok.Value;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Availability and active bookings written on shutdown, with the token the database holds while it has not
+ * changed since.
+ */
+@Value
+public class AvailabilitySnapshot {
+    long token;
+    List<Availability> availabilities;
+    List<ActiveBooking> activeBookings;
+
+    /**
+     * Writes the snapshot to a temporary file and moves it over the file atomically.
+     */
+    public void write(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporary = directory.resolve(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (OutputStream stream = Files.newOutputStream(temporary);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(stream, crc)))) {
+            output.writeLong(token);
+            output.writeInt(availabilities.size());
+            for (Availability availability : availabilities) {
+                output.writeShort(availability.getDeviceId());
+                output.writeShort(availability.getQuantity());
+                output.writeShort(availability.getMaxQuantity());
+            }
+            output.writeInt(activeBookings.size());
+            for (ActiveBooking booking : activeBookings) {
+                output.writeShort(booking.getDeviceId());
+                output.writeUTF(booking.getUserName());
+                output.writeLong(booking.getTimestamp());
+            }
+            output.flush();
+            new DataOutputStream(stream).writeLong(crc.getValue());
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return the snapshot, or empty when there is no file
+     * @throws IOException when the file does not read back with a valid checksum
+     */
+    public static Optional<AvailabilitySnapshot> read(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+        CRC32 crc = new CRC32();
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file))) {
+            DataInputStream input = new DataInputStream(new CheckedInputStream(stream, crc));
+            long token = input.readLong();
+            int availabilityCount = input.readInt();
+            List<Availability> availabilities = new ArrayList<>(availabilityCount);
+            for (int i = 0; i < availabilityCount; i++) {
+                availabilities.add(new Availability(input.readShort(), input.readShort(), input.readShort()));
+            }
+            int bookingCount = input.readInt();
+            List<ActiveBooking> activeBookings = new ArrayList<>(bookingCount);
+            for (int i = 0; i < bookingCount; i++) {
+                activeBookings.add(new ActiveBooking(input.readShort(), input.readUTF(), input.readLong()));
+            }
+            long expected = crc.getValue();
+            if (new DataInputStream(stream).readLong() != expected) {
+                throw new IOException("checksum mismatch");
+            }
+            return Optional.of(new AvailabilitySnapshot(token, availabilities, activeBookings));
+        }
+    }
+}
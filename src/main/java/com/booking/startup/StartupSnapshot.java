@@ -0,0 +1,120 @@
+package com.booking.startup;
+
+import com.booking.config.BookingProperties;
+import com.booking.model.ActiveBooking;
+import com.booking.model.Availability;
+import com.booking.repository.BookingRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Carries availability and active bookings over a restart in a file, so a start against the database a clean
+ * shutdown left reads them back in one sequential read instead of scanning the booking history.
+ * <p>
+ * The snapshot is written when this component is destroyed, after every engine and writer depending on the
+ * active bookings has drained, and a random token is saved in the database with it. A start only trusts a
+ * file whose token the database still holds, and deletes the token before anything can write, so after a
+ * crash, or a database another instance wrote to, the state is loaded from the database again.
+ */
+@Slf4j
+@Component
+@DependsOnDatabaseInitialization
+public class StartupSnapshot {
+    private final BookingRepository bookingRepository;
+    private final Path file;
+    private final AvailabilitySnapshot restored;
+    private volatile Supplier<List<ActiveBooking>> activeBookings;
+
+    public StartupSnapshot(@Autowired BookingRepository bookingRepository,
+                           @Autowired BookingProperties bookingProperties) {
+        this.bookingRepository = bookingRepository;
+        this.file = bookingProperties.getStartup().getSnapshotFile();
+        this.restored = file == null ? null : restore();
+    }
+
+    /**
+     * @return availability as of the last shutdown, or empty when it has to be loaded from the database
+     */
+    public Optional<List<Availability>> availabilities() {
+        return Optional.ofNullable(restored).map(AvailabilitySnapshot::getAvailabilities);
+    }
+
+    /**
+     * @return active bookings as of the last shutdown, or empty when they have to be loaded from the database
+     */
+    public Optional<List<ActiveBooking>> activeBookings() {
+        return Optional.ofNullable(restored).map(AvailabilitySnapshot::getActiveBookings);
+    }
+
+    /**
+     * Sets where the active bookings written on shutdown come from; quantities are derived from them.
+     */
+    public void saveOnShutdown(Supplier<List<ActiveBooking>> activeBookings) {
+        this.activeBookings = activeBookings;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (file == null || activeBookings == null) {
+            return;
+        }
+        try {
+            List<ActiveBooking> active = activeBookings.get();
+            Map<Short, Integer> held = new HashMap<>();
+            active.forEach(booking -> held.merge(booking.getDeviceId(), 1, Integer::sum));
+            List<Availability> availabilities = new ArrayList<>();
+            for (Availability availability : bookingRepository.findAllAvailability()) {
+                int quantity = availability.getMaxQuantity() - held.getOrDefault(availability.getDeviceId(), 0);
+                availabilities.add(new Availability(availability.getDeviceId(),
+                        (short) Math.max(quantity, 0), availability.getMaxQuantity()));
+            }
+
+            AvailabilitySnapshot snapshot = new AvailabilitySnapshot(ThreadLocalRandom.current().nextLong(),
+                    availabilities, active);
+            snapshot.write(file);
+            bookingRepository.saveStartupSnapshot(snapshot.getToken());
+            log.info("Wrote startup snapshot of {} devices and {} active bookings to {}",
+                    availabilities.size(), active.size(), file);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not write startup snapshot to {}, next start loads from the database: {}", file, e.getMessage());
+        }
+    }
+
+    private AvailabilitySnapshot restore() {
+        long start = System.nanoTime();
+        Long token = bookingRepository.findStartupSnapshot();
+        if (token == null) {
+            log.info("No startup snapshot recorded in the database, loading state from the database");
+            return null;
+        }
+        // whatever happens next, the database is about to change and the file no longer describes it
+        bookingRepository.deleteStartupSnapshot();
+        try {
+            Optional<AvailabilitySnapshot> snapshot = AvailabilitySnapshot.read(file);
+            if (snapshot.isEmpty() || snapshot.get().getToken() != token) {
+                log.warn("Startup snapshot {} does not match the database, loading state from the database", file);
+                return null;
+            }
+            log.info("Restored {} devices and {} active bookings from startup snapshot {} in {} ms",
+                    snapshot.get().getAvailabilities().size(), snapshot.get().getActiveBookings().size(), file,
+                    (System.nanoTime() - start) / 1_000_000);
+            return snapshot.get();
+        } catch (IOException e) {
+            log.warn("Unreadable startup snapshot {}, loading state from the database: {}", file, e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.booking.startup;
+
+import com.booking.config.BookingProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup times beyond Spring Boot's {@code application.started.time} and {@code application.ready.time}:
+ * how long the warm-up took, and how long after the JVM started the first API response after readiness was
+ * served within {@code booking.startup.fast-response}, the point from which a restarted instance serves at
+ * full speed.
+ * <p>
+ * A response is timed from the request's first dispatch to the end of the dispatch that completes it, so
+ * requests answered on the request executors count whole.
+ */
+@Slf4j
+@Component
+public class StartupTimes extends OncePerRequestFilter {
+    private static final String API_PATH = "/api/";
+    private static final String START_ATTRIBUTE = StartupTimes.class.getName() + ".start";
+
+    private final long fastResponseNanos;
+    private volatile boolean ready;
+    private volatile double warmUpSeconds = Double.NaN;
+    private volatile double firstFastResponseSeconds = Double.NaN;
+
+    public StartupTimes(@Autowired BookingProperties bookingProperties,
+                        @Autowired MeterRegistry registry) {
+        this.fastResponseNanos = bookingProperties.getStartup().getFastResponse().toNanos();
+        TimeGauge.builder("booking.startup.warm-up", this, TimeUnit.SECONDS, times -> times.warmUpSeconds)
+                .description("Time the warm-up ran before the application reported ready")
+                .register(registry);
+        TimeGauge.builder("booking.startup.first-fast-response", this, TimeUnit.SECONDS, times -> times.firstFastResponseSeconds)
+                .description("Time from JVM start to the first API response after readiness within the fast-response threshold")
+                .register(registry);
+    }
+
+    public void warmedUp(long nanos) {
+        warmUpSeconds = nanos / 1e9;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void ready() {
+        ready = true;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !ready || !Double.isNaN(firstFastResponseSeconds) || !request.getRequestURI().startsWith(API_PATH);
+    }
+
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        Object start = request.getAttribute(START_ATTRIBUTE);
+        if (start == null) {
+            start = System.nanoTime();
+            request.setAttribute(START_ATTRIBUTE, start);
+        }
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            if (!isAsyncStarted(request)) {
+                responded(System.nanoTime() - (long) start);
+            }
+        }
+    }
+
+    private synchronized void responded(long nanos) {
+        if (nanos >= fastResponseNanos || !Double.isNaN(firstFastResponseSeconds)) {
+            return;
+        }
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        firstFastResponseSeconds = uptime / 1e3;
+        log.info("First API response within {} ms served {} ms after JVM start",
+                TimeUnit.NANOSECONDS.toMillis(fastResponseNanos), uptime);
+    }
+}
@@ -0,0 +1,200 @@
+package com.booking.startup;
+
+import com.booking.catalog.DeviceCatalog;
+import com.booking.config.BookingProperties;
+import com.booking.dto.BookingAvailabilityDto;
+import com.booking.dto.BookingDto;
+import com.booking.engine.BookingEngine;
+import com.booking.metrics.BookingMetrics;
+import com.booking.model.Device;
+import com.booking.repository.BookingRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the book/return and availability paths before the application reports ready, so the first requests
+ * after a restart do not pay for a cold JIT, connection pool and JSON serializers. Runners finish before
+ * Spring Boot moves the readiness state to accepting traffic, so a load balancer following the readiness
+ * probe only sends requests to a warmed-up instance.
+ * <p>
+ * Nothing the warm-up does changes state. The statements that book and return are run against catalog devices
+ * in transactions that are rolled back. Books and returns through the engine go to a device id that is not in
+ * the catalog, which every engine refuses before writing. Requests through the HTTP stack only read or are
+ * refused as an unknown device. None of it is traffic, so the booking meters do not record while the warm-up
+ * runs and Spring's request timers are dropped after it.
+ */
+@Slf4j
+@Component
+public class WarmUp implements ApplicationRunner {
+    private static final String WARM_UP_USER = "warm-up";
+    private static final String HTTP_REQUESTS_METRIC = "http.server.requests";
+
+    private final BookingEngine bookingEngine;
+    private final BookingRepository bookingRepository;
+    private final BookingMetrics bookingMetrics;
+    private final MeterRegistry registry;
+    private final DeviceCatalog deviceCatalog;
+    private final ObjectMapper objectMapper;
+    private final DataSource dataSource;
+    private final ApplicationContext applicationContext;
+    private final StartupTimes startupTimes;
+    private final BookingProperties.Startup startup;
+
+    public WarmUp(@Autowired BookingEngine bookingEngine,
+                  @Autowired BookingRepository bookingRepository,
+                  @Autowired BookingMetrics bookingMetrics,
+                  @Autowired MeterRegistry registry,
+                  @Autowired DeviceCatalog deviceCatalog,
+                  @Autowired ObjectMapper objectMapper,
+                  @Autowired DataSource dataSource,
+                  @Autowired ApplicationContext applicationContext,
+                  @Autowired StartupTimes startupTimes,
+                  @Autowired BookingProperties bookingProperties) {
+        this.bookingEngine = bookingEngine;
+        this.bookingRepository = bookingRepository;
+        this.bookingMetrics = bookingMetrics;
+        this.registry = registry;
+        this.deviceCatalog = deviceCatalog;
+        this.objectMapper = objectMapper;
+        this.dataSource = dataSource;
+        this.applicationContext = applicationContext;
+        this.startupTimes = startupTimes;
+        this.startup = bookingProperties.getStartup();
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        int iterations = startup.getWarmUpIterations();
+        if (iterations > 0) {
+            long start = System.nanoTime();
+            int requests;
+            bookingMetrics.setRecording(false);
+            try {
+                openConnections();
+                List<Device> devices = deviceCatalog.findAll();
+                short unknownDevice = unknownDevice();
+                for (int i = 0; i < iterations; i++) {
+                    exerciseEngine(devices, unknownDevice, i);
+                }
+                requests = exerciseHttp(devices, unknownDevice, iterations);
+            } finally {
+                bookingMetrics.setRecording(true);
+                // registered again by the next request
+                registry.find(HTTP_REQUESTS_METRIC).meters().forEach(registry::remove);
+            }
+            long elapsed = System.nanoTime() - start;
+            startupTimes.warmedUp(elapsed);
+            log.info("Warm-up ran {} iterations and {} HTTP requests in {} ms", iterations, requests, elapsed / 1_000_000);
+        }
+        if (startup.isExitAfterWarmUp()) {
+            log.info("Exiting after warm-up");
+            System.exit(SpringApplication.exit(applicationContext));
+        }
+    }
+
+    /**
+     * Opens the pool's connections up front instead of on the first requests that find the pool short.
+     */
+    private void openConnections() throws SQLException {
+        int size = dataSource instanceof HikariDataSource ? Math.max(((HikariDataSource) dataSource).getMaximumPoolSize(), 1) : 1;
+        List<Connection> connections = new ArrayList<>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                connections.add(dataSource.getConnection());
+            }
+        } finally {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    private void exerciseEngine(List<Device> devices, short unknownDevice, int iteration) throws JsonProcessingException {
+        BookingDto booking = BookingDto.builder()
+                .deviceId(unknownDevice)
+                .userName(WARM_UP_USER)
+                .timestamp(System.currentTimeMillis())
+                .build();
+        bookingEngine.bookPhone(booking);
+        bookingEngine.returnPhone(booking);
+        if (!devices.isEmpty()) {
+            short deviceId = devices.get(iteration % devices.size()).getId();
+            bookingRepository.warmUp(BookingDto.builder()
+                    .deviceId(deviceId)
+                    .userName(WARM_UP_USER)
+                    .timestamp(booking.getTimestamp())
+                    .build());
+            List<BookingAvailabilityDto> availability = bookingEngine.findByPhoneId(deviceId);
+            objectMapper.writeValueAsBytes(availability);
+        }
+    }
+
+    /**
+     * Sends availability reads and a book of the unknown device through the servlet container, for the
+     * parts of the request path the engine does not cover: request parsing, validation and serialization.
+     *
+     * @return requests sent
+     */
+    private int exerciseHttp(List<Device> devices, short unknownDevice, int iterations) throws IOException, InterruptedException {
+        if (!(applicationContext instanceof WebServerApplicationContext)
+                || ((WebServerApplicationContext) applicationContext).getWebServer() == null) {
+            return 0;
+        }
+        int port = ((WebServerApplicationContext) applicationContext).getWebServer().getPort();
+        String base = "http://localhost:" + port + "/api/v1/phone";
+        HttpClient client = HttpClient.newHttpClient();
+        String book = objectMapper.writeValueAsString(BookingDto.builder()
+                .deviceId(unknownDevice)
+                .userName(WARM_UP_USER)
+                .timestamp(0L)
+                .build());
+        // every request is an engine round too, a tenth of the rounds is plenty for the HTTP layers
+        int rounds = Math.max(iterations / 10, 1);
+        int requests = 0;
+        for (int i = 0; i < rounds; i++) {
+            List<HttpRequest> batch = new ArrayList<>();
+            batch.add(HttpRequest.newBuilder(URI.create(base)).GET().build());
+            if (!devices.isEmpty()) {
+                batch.add(HttpRequest.newBuilder(URI.create(base + "/" + devices.get(i % devices.size()).getId())).GET().build());
+            }
+            batch.add(HttpRequest.newBuilder(URI.create(base + "/book"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(book))
+                    .build());
+            for (HttpRequest request : batch) {
+                client.send(request, HttpResponse.BodyHandlers.discarding());
+                requests++;
+            }
+        }
+        return requests;
+    }
+
+    private short unknownDevice() {
+        short deviceId = Short.MAX_VALUE;
+        while (deviceCatalog.contains(deviceId)) {
+            deviceId--;
+        }
+        return deviceId;
+    }
+}
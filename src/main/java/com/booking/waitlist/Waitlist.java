@@ -0,0 +1,220 @@
+package com.booking.waitlist;
+
+import com.booking.config.BookingProperties;
+import com.booking.dto.BookingDto;
+import com.booking.model.BookingOutcome;
+import com.booking.model.WaitlistState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Bounded FIFO queues of users waiting for a sold-out device. A user holds at most one entry per device;
+ * joining again returns the existing one. Returned units are handed to the head of the queue under the
+ * device's queue lock, so a unit goes to exactly one waiter and a cancelled entry is never booked.
+ * Entries past their maximum wait expire; finished entries are kept for a while so pollers can read them.
+ */
+@Slf4j
+@Component
+public class Waitlist {
+    private final int maxPerDevice;
+    private final long maxWaitMillis;
+    private final long retentionMillis;
+    private final Map<Short, DeviceQueue> queues = new ConcurrentHashMap<>();
+    private final Map<String, WaitlistEntry> entries = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+
+    public Waitlist(@Autowired BookingProperties bookingProperties) {
+        BookingProperties.Waitlist waitlist = bookingProperties.getWaitlist();
+        this.maxPerDevice = waitlist.getMaxPerDevice();
+        this.maxWaitMillis = waitlist.getMaxWait().toMillis();
+        this.retentionMillis = waitlist.getRetention().toMillis();
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "waitlist-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sweeper.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Queues the user for the device, or returns the user's entry already waiting for it.
+     *
+     * @return the entry, or null when the device's queue is full
+     */
+    public WaitlistEntry join(short deviceId, String userName) {
+        DeviceQueue queue = queues.computeIfAbsent(deviceId, id -> new DeviceQueue());
+        queue.lock.lock();
+        try {
+            for (WaitlistEntry entry : queue.entries) {
+                if (entry.getUserName().equals(userName)) {
+                    return entry;
+                }
+            }
+            if (queue.entries.size() >= maxPerDevice) {
+                return null;
+            }
+            WaitlistEntry entry = new WaitlistEntry(UUID.randomUUID().toString(), deviceId, userName,
+                    System.currentTimeMillis() + maxWaitMillis);
+            entries.put(entry.getId(), entry);
+            queue.entries.addLast(entry);
+            queue.waiting = queue.entries.size();
+            return entry;
+        } finally {
+            queue.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the entry, or null when it is unknown or finished long enough ago to be forgotten
+     */
+    public WaitlistEntry find(String entryId) {
+        return entries.get(entryId);
+    }
+
+    /**
+     * @return 1 for the head of the queue, or 0 when the entry is not waiting
+     */
+    public int position(WaitlistEntry entry) {
+        DeviceQueue queue = queues.get(entry.getDeviceId());
+        if (queue == null || entry.getState().isFinal()) {
+            return 0;
+        }
+        queue.lock.lock();
+        try {
+            int position = 1;
+            for (WaitlistEntry waiting : queue.entries) {
+                if (waiting == entry) {
+                    return position;
+                }
+                position++;
+            }
+            return 0;
+        } finally {
+            queue.lock.unlock();
+        }
+    }
+
+    /**
+     * @return true when users are waiting for the device, so a free unit belongs to them
+     */
+    public boolean hasWaiters(short deviceId) {
+        DeviceQueue queue = queues.get(deviceId);
+        return queue != null && queue.waiting > 0;
+    }
+
+    /**
+     * Cancels a waiting entry; an entry that already finished is left as it is.
+     *
+     * @return the entry in its final state, or null when it is unknown
+     */
+    public WaitlistEntry cancel(String entryId) {
+        WaitlistEntry entry = entries.get(entryId);
+        if (entry == null) {
+            return null;
+        }
+        DeviceQueue queue = queues.get(entry.getDeviceId());
+        queue.lock.lock();
+        try {
+            if (queue.entries.remove(entry)) {
+                queue.waiting = queue.entries.size();
+                entry.finish(WaitlistState.CANCELLED, null, System.currentTimeMillis());
+            }
+            return entry;
+        } finally {
+            queue.lock.unlock();
+        }
+    }
+
+    /**
+     * Books free units of the device for the waiters in queue order, until the device is sold out
+     * or nobody waits any more.
+     *
+     * @param book books a unit and reports the outcome
+     */
+    public void serve(short deviceId, Function<BookingDto, BookingOutcome> book) {
+        DeviceQueue queue = queues.get(deviceId);
+        if (queue == null) {
+            return;
+        }
+        queue.lock.lock();
+        try {
+            while (!queue.entries.isEmpty()) {
+                WaitlistEntry head = queue.entries.peekFirst();
+                long now = System.currentTimeMillis();
+                if (head.getExpiresAt() <= now) {
+                    queue.entries.pollFirst();
+                    head.finish(WaitlistState.EXPIRED, null, now);
+                    continue;
+                }
+                BookingDto bookingDto = BookingDto.builder()
+                        .deviceId(deviceId)
+                        .userName(head.getUserName())
+                        .timestamp(now)
+                        .build();
+                BookingOutcome outcome = book.apply(bookingDto);
+                if (outcome == BookingOutcome.SOLD_OUT) {
+                    break;
+                }
+                queue.entries.pollFirst();
+                if (outcome == BookingOutcome.BOOKED) {
+                    head.finish(WaitlistState.BOOKED, now, now);
+                } else {
+                    log.warn("Waitlist booking of device {} for {} refused: {}", deviceId, head.getUserName(), outcome);
+                    head.finish(WaitlistState.REJECTED, null, now);
+                }
+            }
+        } finally {
+            queue.waiting = queue.entries.size();
+            queue.lock.unlock();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (DeviceQueue queue : queues.values()) {
+            if (queue.waiting == 0 || !queue.lock.tryLock()) {
+                // a queue being served is swept on the next run
+                continue;
+            }
+            try {
+                for (Iterator<WaitlistEntry> it = queue.entries.iterator(); it.hasNext(); ) {
+                    WaitlistEntry entry = it.next();
+                    if (entry.getExpiresAt() <= now) {
+                        it.remove();
+                        entry.finish(WaitlistState.EXPIRED, null, now);
+                    }
+                }
+                queue.waiting = queue.entries.size();
+            } finally {
+                queue.lock.unlock();
+            }
+        }
+        entries.values().removeIf(entry -> entry.getState().isFinal() && entry.getFinishedAt() + retentionMillis <= now);
+    }
+
+    private static class DeviceQueue {
+        private final ReentrantLock lock = new ReentrantLock();
+        // guarded by lock
+        private final ArrayDeque<WaitlistEntry> entries = new ArrayDeque<>();
+        // entries.size(), readable without the lock
+        private volatile int waiting;
+    }
+}
@@ -0,0 +1,44 @@
+package com.booking.waitlist;
+
+import com.booking.model.WaitlistState;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One user waiting for one device. The state only moves away from WAITING once.
+ */
+@Getter
+public class WaitlistEntry {
+    private final String id;
+    private final short deviceId;
+    private final String userName;
+    private final long expiresAt;
+    private volatile WaitlistState state = WaitlistState.WAITING;
+    private volatile Long bookedAt;
+    private volatile long finishedAt;
+    @Getter(AccessLevel.NONE)
+    private final CompletableFuture<WaitlistEntry> finished = new CompletableFuture<>();
+
+    WaitlistEntry(String id, short deviceId, String userName, long expiresAt) {
+        this.id = id;
+        this.deviceId = deviceId;
+        this.userName = userName;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @return future completed with this entry when it leaves the WAITING state
+     */
+    public CompletableFuture<WaitlistEntry> whenFinished() {
+        return finished;
+    }
+
+    void finish(WaitlistState state, Long bookedAt, long now) {
+        this.bookedAt = bookedAt;
+        this.finishedAt = now;
+        this.state = state;
+        finished.complete(this);
+    }
+}
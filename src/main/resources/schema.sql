@@ -1,17 +1,86 @@
 create table if not exists booking (
    user_id varchar(200) not null,
-   device_id tinyint not null,
+   device_id smallint not null,
    booking_date timestamp,
+   returned_date timestamp,
    primary key (user_id, device_id, booking_date)
 );
 
+alter table booking add column if not exists returned_date timestamp;
+alter table booking alter column device_id set data type smallint;
+
+create index if not exists booking_device_date on booking (device_id, booking_date, user_id);
+create index if not exists booking_active_device on booking (device_id, returned_date, booking_date);
+create index if not exists booking_active_user on booking (user_id, returned_date);
+create index if not exists booking_returned on booking (returned_date);
+
+create table if not exists device (
+   id smallint not null,
+   name varchar(100) not null,
+   primary key (id)
+);
+
 create table if not exists availability (
-   device_id tinyint not null,
+   device_id smallint not null,
    quantity tinyint not null check (quantity >= 0 and quantity <= max_quantity),
    max_quantity tinyint not null check (max_quantity > 0),
    primary key (device_id)
 );
 
+alter table availability alter column device_id set data type smallint;
+
+create table if not exists lease (
+   user_id varchar(200) not null,
+   device_id smallint not null,
+   booking_date timestamp not null,
+   expires_at timestamp not null,
+   primary key (user_id, device_id, booking_date)
+);
+
+create table if not exists reservation (
+   id bigint generated by default as identity (start with 1) primary key,
+   device_id smallint not null,
+   user_id varchar(200) not null,
+   start_time timestamp not null,
+   end_time timestamp not null
+);
+
+create index if not exists reservation_device_end on reservation (device_id, end_time);
+
+create table if not exists idempotency_key (
+   id varchar(100) not null,
+   request varchar(400) not null,
+   outcome varchar(32),
+   created_at timestamp not null,
+   primary key (id)
+);
+
+alter table idempotency_key alter column outcome set null;
+
+create index if not exists idempotency_key_created on idempotency_key (created_at);
+
+create table if not exists journal_position (
+   id tinyint not null,
+   position bigint not null,
+   primary key (id)
+);
+
+create table if not exists startup_snapshot (
+   id tinyint not null,
+   token bigint not null,
+   primary key (id)
+);
+
+insert into device values(1, 'Samsung Galaxy S9');
+insert into device values(2, 'Samsung Galaxy S8');
+insert into device values(3, 'Motorola Nexus 6');
+insert into device values(4, 'OnePlus 9');
+insert into device values(5, 'Apple iPhone 13');
+insert into device values(6, 'Apple iPhone 12');
+insert into device values(7, 'Apple iPhone 11');
+insert into device values(8, 'Apple iPhone X');
+insert into device values(9, 'Nokia 3310');
+
 insert into availability values(1, 1, 1);
 insert into availability values(2, 2, 2);
 insert into availability values(3, 1, 1);
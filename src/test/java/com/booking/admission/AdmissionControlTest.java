@@ -0,0 +1,154 @@
+package com.booking.admission;
+
+import com.booking.config.BookingProperties;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdmissionControlTest {
+    private static final short DEVICE = 1;
+
+    @Test
+    public void testBucketRefillsAtItsRate() {
+        AdmissionControl.Buckets buckets = new AdmissionControl.Buckets(16, 10, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, buckets.take(7, 1_000));
+        }
+        // one token every 100ms
+        assertEquals(100, buckets.take(7, 1_000));
+        assertEquals(40, buckets.take(7, 1_060));
+        assertEquals(0, buckets.take(7, 1_100));
+        assertTrue(buckets.take(7, 1_100) > 0);
+        // other stripes keep their own tokens
+        assertEquals(0, buckets.take(8, 1_100));
+        // an idle bucket fills up to the burst only
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, buckets.take(7, 60_000));
+        }
+        assertTrue(buckets.take(7, 60_000) > 0);
+    }
+
+    @Test
+    public void testUserOverItsRateDoesNotHoldBackOthers() {
+        AdmissionControl admission = admission(10, 2);
+        assertEquals(0, admission.admit("script", DEVICE));
+        assertEquals(0, admission.admit("script", DEVICE));
+        long wait = admission.admit("script", DEVICE);
+        assertTrue(wait > 0 && wait <= 100, "wait " + wait);
+        assertEquals(0, admission.admit("someone else", DEVICE));
+
+        ResponseEntity<Void> rejected = AdmissionControl.tooManyRequests(wait);
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, rejected.getStatusCode());
+        assertEquals("1", rejected.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+    }
+
+    @Test
+    public void testBulkChargesEachUserAndDeviceOnce() {
+        AdmissionControl admission = admission(10, 2);
+        List<Short> devices = IntStream.rangeClosed(1, 50).mapToObj(i -> (short) i).collect(Collectors.toList());
+        assertEquals(0, admission.admitAll(List.of("bulk"), devices));
+        assertEquals(0, admission.admitAll(List.of("bulk"), devices));
+        assertTrue(admission.admitAll(List.of("bulk"), devices) > 0);
+    }
+
+    @Test
+    public void testRejectedBulkTakesNoTokens() {
+        BookingProperties properties = new BookingProperties();
+        properties.getAdmission().setUserRate(10);
+        properties.getAdmission().setUserBurst(2);
+        properties.getAdmission().setDeviceRate(10);
+        properties.getAdmission().setDeviceBurst(1);
+        AdmissionControl admission = admission(properties);
+        assertEquals(0, admission.admit("first", DEVICE));
+
+        // the device is out of tokens, so neither user nor the other device is charged
+        short other = DEVICE + 1;
+        assertTrue(admission.admitAll(List.of("second"), List.of(other, DEVICE)) > 0);
+        assertEquals(0, admission.admit("second", other));
+        assertEquals(0, admission.admit("second", (short) (other + 1)));
+    }
+
+    @Test
+    public void testDeviceRejectionGivesTheUserTokenBack() {
+        BookingProperties properties = new BookingProperties();
+        properties.getAdmission().setUserRate(10);
+        properties.getAdmission().setUserBurst(1);
+        properties.getAdmission().setDeviceRate(10);
+        properties.getAdmission().setDeviceBurst(1);
+        AdmissionControl admission = admission(properties);
+        assertEquals(0, admission.admit("first", DEVICE));
+
+        // the device is out of tokens; the user keeps theirs for another device
+        assertTrue(admission.admit("second", DEVICE) > 0);
+        assertEquals(0, admission.admit("second", (short) (DEVICE + 1)));
+    }
+
+    @Test
+    public void testConcurrencyAboveTheLimitIsRejected() throws Exception {
+        AdmissionControl admission = admission(0, 1);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<?>[] running = new CompletableFuture<?>[2];
+        for (int i = 0; i < running.length; i++) {
+            running[i] = CompletableFuture.supplyAsync(() -> admission.limit(() -> {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return ResponseEntity.ok().build();
+            }));
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, admission.limit(() -> ResponseEntity.ok().build()).getStatusCode());
+
+        release.countDown();
+        CompletableFuture.allOf(running).get(5, TimeUnit.SECONDS);
+        assertEquals(HttpStatus.OK, admission.limit(() -> ResponseEntity.ok().build()).getStatusCode());
+    }
+
+    @Test
+    public void testLimitShrinksAsLatencyClimbs() {
+        BookingProperties properties = new BookingProperties();
+        properties.getAdmission().setMinLimit(10);
+        properties.getAdmission().setMaxLimit(100);
+        AdmissionControl admission = admission(properties);
+        admission.record(TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(20, admission.getLimit());
+
+        for (int i = 0; i < 50; i++) {
+            admission.record(TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        assertEquals(10, admission.getLimit());
+    }
+
+    private static AdmissionControl admission(int userRate, int userBurst) {
+        BookingProperties properties = new BookingProperties();
+        BookingProperties.Admission admission = properties.getAdmission();
+        admission.setUserRate(userRate);
+        admission.setUserBurst(userBurst);
+        admission.setMinLimit(2);
+        admission.setMaxLimit(2);
+        return admission(properties);
+    }
+
+    private static AdmissionControl admission(BookingProperties properties) {
+        // only the pool size is read, the data source is not needed afterwards
+        try (HikariDataSource dataSource = new HikariDataSource()) {
+            return new AdmissionControl(properties, dataSource, new SimpleMeterRegistry());
+        }
+    }
+}
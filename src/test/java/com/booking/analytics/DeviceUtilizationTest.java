@@ -0,0 +1,91 @@
+package com.booking.analytics;
+
+import com.booking.dto.UserBookingsDto;
+import com.booking.dto.UtilizationDto;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeviceUtilizationTest {
+    private static final long HOUR = 3_600_000;
+    private static final short DEVICE = 1;
+
+    @Test
+    public void testReportCoversTheWindowOnly() {
+        // three one-hour buckets, one unit
+        DeviceUtilization device = new DeviceUtilization(HOUR, 3, 8, 1);
+        long start = 100 * HOUR;
+        device.booked("old", start + 10, start);
+        device.returned(start + 20, start + 10, start);
+
+        device.booked("alice", start + HOUR, start);
+        device.returned(start + HOUR + 60_000, start + HOUR, start);
+        device.booked("bob", start + 2 * HOUR, start);
+        device.returned(start + 2 * HOUR + 600_000, start + 2 * HOUR, start);
+        device.booked("alice", start + 2 * HOUR + HOUR / 2, start);
+
+        long now = start + 3 * HOUR + HOUR / 2;
+        long windowStart = start + HOUR;
+        UtilizationDto report = device.report(DEVICE, now, windowStart, 5);
+        // the first bucket left the window
+        assertEquals(windowStart, report.getFrom());
+        assertEquals(3, report.getBookings());
+        assertEquals(2, report.getReturns());
+        assertEquals(330_000, report.getAverageHoldMillis());
+        long p95 = report.getP95HoldMillis();
+        assertTrue(p95 >= 600_000 && p95 <= 720_000, "p95 " + p95);
+        // held for one and ten minutes, and still held for an hour
+        assertEquals(60_000 + 600_000 + HOUR, report.getSoldOutMillis());
+        assertEquals(List.of(new UserBookingsDto("alice", 2), new UserBookingsDto("bob", 1)), report.getTopUsers());
+        assertEquals(3.0 / 2.5, report.getBookingsPerHour(), 1e-9);
+    }
+
+    @Test
+    public void testTopUsersKeepTheFrequentBookers() {
+        DeviceUtilization device = new DeviceUtilization(HOUR, 1, 4, 0);
+        for (int i = 0; i < 100; i++) {
+            device.booked(i % 2 == 0 ? "frequent" : "user" + i, i, 0);
+            device.returned(i, i, 0);
+        }
+        List<UserBookingsDto> top = device.report(DEVICE, 100, 0, 1).getTopUsers();
+        assertEquals("frequent", top.get(0).getUserName());
+        assertTrue(top.get(0).getBookings() >= 50);
+    }
+
+    @Test
+    public void testCheckpointRoundTrip() throws Exception {
+        DeviceUtilization device = new DeviceUtilization(HOUR, 4, 8, 2);
+        long windowStart = 10 * HOUR;
+        for (int i = 0; i < 20; i++) {
+            long time = windowStart + i * 600_000L;
+            device.booked("user" + i % 3, time, windowStart);
+            device.returned(time + i * 1_000L, time, windowStart);
+        }
+        long now = windowStart + 3 * HOUR + 1;
+        device.closeSoldOut(now, windowStart);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        device.write(new DataOutputStream(bytes), windowStart);
+        DeviceUtilization restored = new DeviceUtilization(HOUR, 4, 8, 2);
+        restored.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), windowStart);
+
+        assertEquals(device.report(DEVICE, now, windowStart, 3), restored.report(DEVICE, now, windowStart, 3));
+    }
+
+    @Test
+    public void testHoldBinsGrowByAFourthOfAnOctave() {
+        assertEquals(0, DeviceUtilization.bin(999));
+        assertEquals(1, DeviceUtilization.bin(1_000));
+        assertEquals(5, DeviceUtilization.bin(2_000));
+        assertEquals(DeviceUtilization.HOLD_BINS - 1, DeviceUtilization.bin(Long.MAX_VALUE));
+        for (long held = 1_000; held < 100_000_000; held = held * 3 / 2) {
+            assertTrue(DeviceUtilization.binLimit(DeviceUtilization.bin(held)) >= held);
+        }
+    }
+}
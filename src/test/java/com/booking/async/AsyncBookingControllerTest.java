@@ -0,0 +1,11 @@
+package com.booking.async;
+
+import com.booking.controller.BookingControllerTest;
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "booking.async.enabled=true",
+        "spring.datasource.url=jdbc:hsqldb:mem:asyncrequests"
+})
+public class AsyncBookingControllerTest extends BookingControllerTest {
+}
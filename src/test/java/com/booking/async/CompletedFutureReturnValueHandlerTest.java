@@ -0,0 +1,66 @@
+package com.booking.async;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.method.support.HandlerMethodReturnValueHandler;
+import org.springframework.web.method.support.ModelAndViewContainer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompletedFutureReturnValueHandlerTest {
+    private final List<Object> values = new ArrayList<>();
+    private final List<MethodParameter> types = new ArrayList<>();
+    private final CompletedFutureReturnValueHandler handler = new CompletedFutureReturnValueHandler(List.of(
+            new HandlerMethodReturnValueHandler() {
+                @Override
+                public boolean supportsReturnType(MethodParameter returnType) {
+                    return true;
+                }
+
+                @Override
+                public void handleReturnValue(Object returnValue, MethodParameter returnType,
+                                              ModelAndViewContainer mavContainer, NativeWebRequest webRequest) {
+                    values.add(returnValue);
+                    types.add(returnType);
+                }
+            }));
+
+    @Test
+    public void testCompletedFutureIsWrittenAsItsResult() throws Exception {
+        MethodParameter returnType = returnType();
+        assertTrue(handler.supportsReturnType(returnType));
+        ResponseEntity<String> result = ResponseEntity.ok("done");
+        handler.handleReturnValue(CompletableFuture.completedFuture(result), returnType, null, null);
+
+        assertSame(result, values.get(0));
+        assertEquals(ResponseEntity.class, types.get(0).getParameterType());
+        assertEquals(String.class, types.get(0).nested().getNestedParameterType());
+    }
+
+    @Test
+    public void testRunningAndFailedFuturesStayAsync() throws Exception {
+        MethodParameter returnType = returnType();
+        CompletableFuture<ResponseEntity<String>> running = new CompletableFuture<>();
+        CompletableFuture<ResponseEntity<String>> failed = CompletableFuture.failedFuture(new IllegalStateException());
+        handler.handleReturnValue(running, returnType, null, null);
+        handler.handleReturnValue(failed, returnType, null, null);
+
+        assertEquals(List.of(running, failed), values);
+        assertEquals(CompletableFuture.class, types.get(0).getParameterType());
+    }
+
+    @SuppressWarnings("unused")
+    private CompletableFuture<ResponseEntity<String>> handlerMethod() {
+        return null;
+    }
+
+    private static MethodParameter returnType() throws NoSuchMethodException {
+        return new MethodParameter(CompletedFutureReturnValueHandlerTest.class.getDeclaredMethod("handlerMethod"), -1);
+    }
+}
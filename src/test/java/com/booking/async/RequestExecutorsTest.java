@@ -0,0 +1,86 @@
+package com.booking.async;
+
+import com.booking.config.BookingProperties;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestExecutorsTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private RequestExecutors executors;
+
+    @AfterEach
+    public void shutdown() {
+        release.countDown();
+        if (executors != null) {
+            executors.shutdown();
+        }
+    }
+
+    @Test
+    public void testFullWriteQueueIsRefusedWhileReadsGoOn() throws Exception {
+        executors = executors(true);
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<ResponseEntity<String>> running = executors.write(() -> {
+            started.countDown();
+            await();
+            return ResponseEntity.ok("first");
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<ResponseEntity<String>> queued = executors.write(() -> ResponseEntity.ok("second"));
+
+        ResponseEntity<String> refused = executors.<String>write(() -> ResponseEntity.ok("third")).get(5, TimeUnit.SECONDS);
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, refused.getStatusCode());
+        assertEquals("2", refused.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+
+        assertEquals("read", executors.read(() -> ResponseEntity.ok("read")).get(5, TimeUnit.SECONDS).getBody());
+        assertFalse(queued.isDone());
+
+        release.countDown();
+        assertEquals("first", running.get(5, TimeUnit.SECONDS).getBody());
+        assertEquals("second", queued.get(5, TimeUnit.SECONDS).getBody());
+    }
+
+    @Test
+    public void testDisabledRunsOnTheCallingThread() {
+        executors = executors(false);
+        Thread caller = Thread.currentThread();
+        CompletableFuture<ResponseEntity<Boolean>> result = executors.write(
+                () -> ResponseEntity.ok(Thread.currentThread() == caller));
+        assertTrue(result.isDone());
+        assertTrue(result.join().getBody());
+    }
+
+    private void await() {
+        try {
+            release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static RequestExecutors executors(boolean enabled) {
+        BookingProperties properties = new BookingProperties();
+        BookingProperties.Async async = properties.getAsync();
+        async.setEnabled(enabled);
+        async.setReadThreads(1);
+        async.setWriteThreads(1);
+        async.setWriteQueue(1);
+        async.setRetryAfter(Duration.ofSeconds(2));
+        // only the pool size is read, the data source is not needed afterwards
+        try (HikariDataSource dataSource = new HikariDataSource()) {
+            return new RequestExecutors(properties, dataSource, new SimpleMeterRegistry());
+        }
+    }
+}
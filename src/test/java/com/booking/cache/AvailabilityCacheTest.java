@@ -0,0 +1,81 @@
+package com.booking.cache;
+
+import com.booking.config.BookingProperties;
+import com.booking.dto.BookingAvailabilityDto;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AvailabilityCacheTest {
+    private static final short DEVICE_ID = 1;
+
+    private AvailabilityVersions versions;
+    private AvailabilityCache<List<BookingAvailabilityDto>> cache;
+    private AtomicInteger loads;
+
+    @BeforeEach
+    public void init() {
+        BookingProperties bookingProperties = new BookingProperties();
+        bookingProperties.getCache().setMaxEntries(2);
+        versions = new AvailabilityVersions();
+        cache = new AvailabilityCache<>(versions, bookingProperties);
+        loads = new AtomicInteger();
+    }
+
+    @Test
+    public void testHitUntilWriteFinishes() {
+        cache.get(DEVICE_ID, this::load);
+        cache.get(DEVICE_ID, this::load);
+        assertEquals(1, loads.get());
+
+        versions.beginWrite(DEVICE_ID);
+        cache.get(DEVICE_ID, this::load);
+        cache.get(DEVICE_ID, this::load);
+        assertEquals(3, loads.get());
+
+        versions.endWrite(DEVICE_ID);
+        cache.get(DEVICE_ID, this::load);
+        cache.get(DEVICE_ID, this::load);
+        assertEquals(4, loads.get());
+
+        AvailabilityCache.Stats stats = cache.stats();
+        assertEquals(2, stats.getHits());
+        assertEquals(4, stats.getMisses());
+    }
+
+    @Test
+    public void testLoadRacingWithWriteIsNotCached() {
+        cache.get(DEVICE_ID, deviceId -> {
+            versions.beginWrite(DEVICE_ID);
+            versions.endWrite(DEVICE_ID);
+            return load(deviceId);
+        });
+        cache.get(DEVICE_ID, this::load);
+
+        assertEquals(2, loads.get());
+        assertEquals(0, cache.stats().getHits());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        cache.get((short) 1, this::load);
+        cache.get((short) 2, this::load);
+        cache.get((short) 1, this::load);
+        cache.get((short) 3, this::load);
+
+        assertEquals(2, cache.stats().getSize());
+        assertEquals(1, cache.stats().getEvictions());
+
+        cache.get((short) 1, this::load);
+        assertEquals(2, cache.stats().getHits());
+    }
+
+    private List<BookingAvailabilityDto> load(short deviceId) {
+        loads.incrementAndGet();
+        return List.of(BookingAvailabilityDto.builder().deviceId(deviceId).available(true).build());
+    }
+}
@@ -1,23 +1,61 @@
 package com.booking.controller;
 
+import com.booking.dto.AvailabilityChangeDto;
+import com.booking.dto.AvailabilitySummaryDto;
 import com.booking.dto.BookingAvailabilityDto;
+import com.booking.dto.BookingHistoryDto;
+import com.booking.dto.BulkBookingRequestDto;
+import com.booking.dto.BulkBookingResultDto;
+import com.booking.dto.DeviceDto;
+import com.booking.dto.FreeCapacityDto;
+import com.booking.dto.LeaseDto;
+import com.booking.dto.LeaseRenewalDto;
+import com.booking.dto.ReservationDto;
+import com.booking.dto.ReservationRequestDto;
+import com.booking.dto.UtilizationDto;
+import com.booking.dto.WaitlistEntryDto;
+import com.booking.dto.WaitlistRequestDto;
+import com.booking.model.BookingOutcome;
 import com.booking.model.Phone;
+import com.booking.model.WaitlistState;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.booking.dto.BookingDto;
+import io.restassured.common.mapper.TypeRef;
 import io.restassured.http.ContentType;
+import io.restassured.http.Method;
 import io.restassured.response.ValidatableResponse;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpStatus;
 import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.jdbc.core.JdbcTemplate;
 
 import javax.annotation.PostConstruct;
 
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
 import static com.booking.Application.objectMapper;
 import static com.booking.config.DateTimeConfiguration.zoneId;
@@ -25,14 +63,18 @@ import static com.booking.model.Phone.*;
 import static io.restassured.RestAssured.given;
 import static org.junit.jupiter.api.Assertions.*;
 
+@AutoConfigureMetrics
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
 public class BookingControllerTest {
     public static final int EXPECTED_BOOKINGS_SINGLE_DEVICE = 1;
     public static final int EXPECTED_BOOKINGS_MULTIPLE_DEVICES = 2;
     public static final short NOT_EXISTED_DEVICE_ID = 21;
     public static final String TEST_USER_ID = "userId";
+    public static final short ADDED_DEVICE_ID = 300;
     @LocalServerPort
     private int port;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
     private String url;
     @PostConstruct
     public void init() {
@@ -90,7 +132,7 @@ public class BookingControllerTest {
                 .when()
                 .post(url + "/return")
                 .then()
-                .statusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+                .statusCode(HttpStatus.SC_CONFLICT);
     }
 
     @Test
@@ -213,6 +255,782 @@ public class BookingControllerTest {
         validateAvailable(SAMSUNG_GALAXY_S8.getId(), bookingAvailabilityDtos.get(1));
     }
 
+    @Test
+    @Order(10)
+    public void testAvailabilityOfAllAndSelectedDevices() {
+        Map<Short, List<BookingAvailabilityDto>> allAvailability = phonesAvailability("");
+
+        assertEquals(Phone.values().length, allAvailability.size());
+        for (Phone phone : Phone.values()) {
+            assertEquals(phoneAvailability(phone.getId()), allAvailability.get(phone.getId()));
+        }
+
+        Map<Short, List<BookingAvailabilityDto>> selectedAvailability =
+                phonesAvailability("?ids=" + ONEPLUS_9.getId() + "," + NOT_EXISTED_DEVICE_ID);
+
+        assertEquals(Set.of(ONEPLUS_9.getId()), selectedAvailability.keySet());
+        assertEquals(phoneAvailability(ONEPLUS_9.getId()), selectedAvailability.get(ONEPLUS_9.getId()));
+    }
+
+    @Test
+    @Order(11)
+    public void testAvailabilityStream() throws JsonProcessingException {
+        String body = given()
+                .accept("application/x-ndjson")
+                .when()
+                .get(url + "/" + MOTOROLA_NEXUS_6.getId())
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .contentType("application/x-ndjson")
+                .extract()
+                .asString();
+
+        List<BookingAvailabilityDto> streamed = new ArrayList<>();
+        for (String line : body.split("\n")) {
+            streamed.add(objectMapper.readValue(line, BookingAvailabilityDto.class));
+        }
+
+        assertEquals(phoneAvailability(MOTOROLA_NEXUS_6.getId()), streamed);
+
+        given()
+                .accept("application/x-ndjson")
+                .when()
+                .get(url + "/" + NOT_EXISTED_DEVICE_ID)
+                .then()
+                .statusCode(HttpStatus.SC_NOT_FOUND);
+    }
+
+    @Test
+    @Order(12)
+    public void testHistoryPagination() throws JsonProcessingException {
+        for (int i = 1; i <= 2; i++) {
+            BookingDto bookingDto = BookingDto.builder()
+                    .deviceId(APPLE_IPHONE_11.getId())
+                    .timestamp(i * 1000L)
+                    .userName(TEST_USER_ID + i)
+                    .build();
+            bookPhoneSucceeded(bookingDto);
+            returnPhone(bookingDto);
+        }
+
+        BookingHistoryDto firstPage = history(APPLE_IPHONE_11.getId(), "?limit=1");
+
+        assertEquals(1, firstPage.getBookings().size());
+        assertEquals(TEST_USER_ID + 2, firstPage.getBookings().get(0).getUserName());
+        assertEquals(2000L, firstPage.getNextBefore());
+
+        BookingHistoryDto secondPage = history(APPLE_IPHONE_11.getId(),
+                "?limit=1&before=" + firstPage.getNextBefore() + "&beforeUser=" + firstPage.getNextBeforeUser());
+
+        assertEquals(1, secondPage.getBookings().size());
+        assertEquals(TEST_USER_ID + 1, secondPage.getBookings().get(0).getUserName());
+        assertNull(secondPage.getNextBefore());
+    }
+
+    @Test
+    @Order(13)
+    public void testAvailabilitySummary() throws JsonProcessingException {
+        BookingDto bookingDto = BookingDto.builder()
+                .deviceId(APPLE_IPHONE_X.getId())
+                .timestamp(LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli())
+                .userName(TEST_USER_ID)
+                .build();
+
+        bookPhoneSucceeded(bookingDto);
+
+        AvailabilitySummaryDto bookedByQuery = given()
+                .when()
+                .get(url + "/" + APPLE_IPHONE_X.getId() + "?view=summary")
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .as(AvailabilitySummaryDto.class);
+
+        assertEquals(APPLE_IPHONE_X.getId(), bookedByQuery.getDeviceId());
+        assertEquals(0, bookedByQuery.getFree());
+        assertEquals(1, bookedByQuery.getBooked());
+        assertEquals(bookingDto.getTimestamp(), bookedByQuery.getBookings().get(0).getTimestamp());
+        assertEquals(bookingDto.getUserName(), bookedByQuery.getBookings().get(0).getUserName());
+
+        returnPhone(bookingDto);
+
+        AvailabilitySummaryDto returnedByMediaType = given()
+                .accept(AvailabilitySummaryDto.MEDIA_TYPE)
+                .when()
+                .get(url + "/" + APPLE_IPHONE_X.getId())
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .contentType(AvailabilitySummaryDto.MEDIA_TYPE)
+                .extract()
+                .as(AvailabilitySummaryDto.class);
+
+        assertEquals(1, returnedByMediaType.getFree());
+        assertEquals(0, returnedByMediaType.getBooked());
+        assertTrue(returnedByMediaType.getBookings().isEmpty());
+
+        given()
+                .when()
+                .get(url + "/" + NOT_EXISTED_DEVICE_ID + "?view=summary")
+                .then()
+                .statusCode(HttpStatus.SC_NOT_FOUND);
+    }
+
+    @Test
+    @Order(14)
+    public void testActiveBookingsOfUser() throws JsonProcessingException {
+        String holder = TEST_USER_ID + "Holder";
+        BookingDto bookingDto = BookingDto.builder()
+                .deviceId(APPLE_IPHONE_13.getId())
+                .timestamp(LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli())
+                .userName(holder)
+                .build();
+
+        bookPhoneSucceeded(bookingDto);
+
+        List<BookingDto> held = userBookings(holder);
+        assertEquals(1, held.size());
+        assertEquals(bookingDto, held.get(0));
+
+        BookingDto otherUserReturn = BookingDto.builder()
+                .deviceId(APPLE_IPHONE_13.getId())
+                .timestamp(LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli())
+                .userName(TEST_USER_ID)
+                .build();
+
+        given()
+                .contentType(ContentType.JSON)
+                .body(objectMapper.writeValueAsString(otherUserReturn))
+                .when()
+                .post(url + "/return")
+                .then()
+                .statusCode(HttpStatus.SC_CONFLICT);
+
+        returnPhone(bookingDto);
+
+        assertTrue(userBookings(holder).isEmpty());
+        validateAvailable(APPLE_IPHONE_13.getId(), phoneAvailability(APPLE_IPHONE_13.getId()).get(0));
+    }
+
+    @Test
+    @Order(15)
+    public void testMetricsScrape() {
+        phoneAvailability(NOKIA_3310.getId());
+
+        String scrape = given()
+                .when()
+                .get("http://localhost:" + port + "/actuator/prometheus")
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .asString();
+
+        assertTrue(scrape.contains("booking_requests_seconds_count{device=\"" + NOKIA_3310.getId() + "\",operation=\"book\",outcome=\"sold_out\",}"));
+        assertTrue(scrape.contains("booking_rejections_total{device=\"unknown\",operation=\"return\",reason=\"not_booked\",}"));
+        assertTrue(scrape.contains("booking_availability_reads_seconds_count{device=\"" + NOKIA_3310.getId() + "\",found=\"true\",}"));
+        assertTrue(scrape.contains("booking_jdbc_acquire_seconds_count{operation=\"batch\",}"));
+        assertTrue(scrape.contains("booking_serialization_seconds_count{type=\"List<BookingAvailabilityDto>\",}"));
+        assertTrue(scrape.contains("booking_cache_hits_total{cache=\"availability\",}"));
+        assertTrue(scrape.contains("hikaricp_connections_pending"));
+    }
+
+    @Test
+    @Order(16)
+    public void testBulkBookingAndReturn() throws JsonProcessingException {
+        long timestamp = LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli();
+        BookingDto bookingDto = BookingDto.builder()
+                .deviceId(APPLE_IPHONE_12.getId())
+                .timestamp(timestamp)
+                .userName(TEST_USER_ID + "Bulk")
+                .build();
+        BookingDto secondUnit = BookingDto.builder()
+                .deviceId(APPLE_IPHONE_12.getId())
+                .timestamp(timestamp)
+                .userName(TEST_USER_ID + "BulkOther")
+                .build();
+        BookingDto unknownDevice = BookingDto.builder()
+                .deviceId(NOT_EXISTED_DEVICE_ID)
+                .timestamp(timestamp)
+                .userName(TEST_USER_ID + "Bulk")
+                .build();
+
+        BulkBookingResultDto soldOut = bulk("/book/bulk", BulkBookingRequestDto.Mode.ATOMIC,
+                HttpStatus.SC_CONFLICT, bookingDto, secondUnit);
+        assertEquals(0, soldOut.getApplied());
+        assertEquals(BookingOutcome.NOT_APPLIED, soldOut.getItems().get(0).getOutcome());
+        assertEquals(BookingOutcome.SOLD_OUT, soldOut.getItems().get(1).getOutcome());
+        validateAvailable(APPLE_IPHONE_12.getId(), phoneAvailability(APPLE_IPHONE_12.getId()).get(0));
+
+        BulkBookingResultDto unknown = bulk("/book/bulk", BulkBookingRequestDto.Mode.ATOMIC,
+                HttpStatus.SC_CONFLICT, bookingDto, unknownDevice);
+        assertEquals(BookingOutcome.NOT_APPLIED, unknown.getItems().get(0).getOutcome());
+        assertEquals(BookingOutcome.UNKNOWN_DEVICE, unknown.getItems().get(1).getOutcome());
+        validateAvailable(APPLE_IPHONE_12.getId(), phoneAvailability(APPLE_IPHONE_12.getId()).get(0));
+
+        BulkBookingResultDto bestEffort = bulk("/book/bulk", BulkBookingRequestDto.Mode.BEST_EFFORT,
+                HttpStatus.SC_OK, bookingDto, unknownDevice);
+        assertEquals(1, bestEffort.getApplied());
+        assertEquals(BookingOutcome.BOOKED, bestEffort.getItems().get(0).getOutcome());
+        assertEquals(BookingOutcome.UNKNOWN_DEVICE, bestEffort.getItems().get(1).getOutcome());
+        validateBooked(bookingDto, phoneAvailability(APPLE_IPHONE_12.getId()).get(0));
+
+        BulkBookingResultDto returned = bulk("/return/bulk", BulkBookingRequestDto.Mode.ATOMIC,
+                HttpStatus.SC_OK, bookingDto);
+        assertEquals(1, returned.getApplied());
+        assertEquals(BookingOutcome.RETURNED, returned.getItems().get(0).getOutcome());
+        validateAvailable(APPLE_IPHONE_12.getId(), phoneAvailability(APPLE_IPHONE_12.getId()).get(0));
+    }
+
+    @Test
+    @Order(17)
+    public void testAvailabilityFeed() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/feed?ids=" + MOTOROLA_NEXUS_6.getId()))
+                .header("Accept", "text/event-stream")
+                .build();
+        HttpResponse<Stream<String>> response = HttpClient.newHttpClient()
+                .send(request, HttpResponse.BodyHandlers.ofLines());
+        assertEquals(HttpStatus.SC_OK, response.statusCode());
+
+        BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        AtomicBoolean stopped = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            StringBuilder event = new StringBuilder();
+            try {
+                response.body().forEach(line -> {
+                    if (line.isEmpty()) {
+                        events.add(event.toString());
+                        event.setLength(0);
+                    } else if (!line.startsWith(":")) {
+                        event.append(line).append('\n');
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                // closing the body below ends the read with an exception
+                if (!stopped.get()) {
+                    throw e;
+                }
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            String snapshot = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(snapshot);
+            assertTrue(snapshot.startsWith("event:snapshot\n"));
+            Map<Short, List<BookingAvailabilityDto>> snapshotData = objectMapper.readValue(eventData(snapshot),
+                    new TypeReference<>() {});
+            assertEquals(Set.of(MOTOROLA_NEXUS_6.getId()), snapshotData.keySet());
+
+            BookingDto bookingDto = BookingDto.builder()
+                    .deviceId(MOTOROLA_NEXUS_6.getId())
+                    .timestamp(LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli())
+                    .userName(TEST_USER_ID + "Feed")
+                    .build();
+            bookPhoneSucceeded(bookingDto);
+
+            String booked = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(booked);
+            assertTrue(booked.startsWith("event:availability\n"));
+            AvailabilityChangeDto change = objectMapper.readValue(eventData(booked), AvailabilityChangeDto.class);
+            assertEquals(MOTOROLA_NEXUS_6.getId(), change.getDeviceId());
+            validateBooked(bookingDto, change.getAvailability().get(0));
+
+            returnPhone(bookingDto);
+
+            String returned = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(returned);
+            change = objectMapper.readValue(eventData(returned), AvailabilityChangeDto.class);
+            validateAvailable(MOTOROLA_NEXUS_6.getId(), change.getAvailability().get(0));
+        } finally {
+            stopped.set(true);
+            response.body().close();
+            reader.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    @Test
+    @Order(18)
+    public void testConditionalAvailability() throws JsonProcessingException {
+        String path = url + "/" + APPLE_IPHONE_X.getId();
+        String etag = given()
+                .when()
+                .get(path)
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .header("ETag");
+        assertNotNull(etag);
+
+        given()
+                .header("If-None-Match", etag)
+                .when()
+                .get(path)
+                .then()
+                .statusCode(HttpStatus.SC_NOT_MODIFIED);
+
+        BookingDto bookingDto = BookingDto.builder()
+                .deviceId(APPLE_IPHONE_X.getId())
+                .timestamp(LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli())
+                .userName(TEST_USER_ID + "Etag")
+                .build();
+        bookPhoneSucceeded(bookingDto);
+
+        String bookedEtag = given()
+                .header("If-None-Match", etag)
+                .when()
+                .get(path)
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .header("ETag");
+        assertNotEquals(etag, bookedEtag);
+
+        returnPhone(bookingDto);
+
+        String aggregateEtag = given()
+                .when()
+                .get(url + "?ids=" + APPLE_IPHONE_X.getId())
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .header("ETag");
+        assertNotNull(aggregateEtag);
+
+        given()
+                .header("If-None-Match", aggregateEtag)
+                .when()
+                .get(url + "?ids=" + APPLE_IPHONE_X.getId())
+                .then()
+                .statusCode(HttpStatus.SC_NOT_MODIFIED);
+    }
+
+    @Test
+    @Order(19)
+    public void testDeviceCatalogReload() throws JsonProcessingException {
+        List<DeviceDto> catalog = catalog("/catalog", Method.GET);
+        assertEquals(Phone.values().length, catalog.size());
+        for (Phone phone : Phone.values()) {
+            assertTrue(catalog.stream().anyMatch(device -> device.getId() == phone.getId()));
+        }
+
+        String etag = given().when().get(url).then().statusCode(HttpStatus.SC_OK).extract().header("ETag");
+        assertNotNull(etag);
+
+        jdbcTemplate.update("insert into device values(?, ?)", ADDED_DEVICE_ID, "Added phone");
+        jdbcTemplate.update("insert into availability values(?, 1, 1)", ADDED_DEVICE_ID);
+        try {
+            List<DeviceDto> reloaded = catalog("/catalog/reload", Method.POST);
+            assertEquals(Phone.values().length + 1, reloaded.size());
+            assertEquals(new DeviceDto(ADDED_DEVICE_ID, "Added phone"), reloaded.get(reloaded.size() - 1));
+            // the listing covers another device now, the old ETag must not match
+            given()
+                    .header("If-None-Match", etag)
+                    .when()
+                    .get(url)
+                    .then()
+                    .statusCode(HttpStatus.SC_OK);
+
+            // every engine books the added device, including the ones counting availability in memory
+            BookingDto bookingDto = BookingDto.builder()
+                    .deviceId(ADDED_DEVICE_ID)
+                    .timestamp(LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli())
+                    .userName(TEST_USER_ID + "Added")
+                    .build();
+            bookPhoneSucceeded(bookingDto);
+            bookPhoneFailed(BookingDto.builder()
+                    .deviceId(ADDED_DEVICE_ID)
+                    .timestamp(bookingDto.getTimestamp() + 1)
+                    .userName(TEST_USER_ID + "AddedSoldOut")
+                    .build());
+            returnPhone(bookingDto);
+            assertEquals(1, history(ADDED_DEVICE_ID, "").getBookings().size());
+        } finally {
+            jdbcTemplate.update("delete from booking where device_id = ?", ADDED_DEVICE_ID);
+            jdbcTemplate.update("delete from availability where device_id = ?", ADDED_DEVICE_ID);
+            jdbcTemplate.update("delete from device where id = ?", ADDED_DEVICE_ID);
+            assertEquals(Phone.values().length, catalog("/catalog/reload", Method.POST).size());
+        }
+    }
+
+    @Test
+    @Order(20)
+    public void testWaitlist() throws Exception {
+        BookingDto holding = BookingDto.builder()
+                .deviceId(APPLE_IPHONE_13.getId())
+                .timestamp(LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli())
+                .userName(TEST_USER_ID + "Holding")
+                .build();
+        bookPhoneSucceeded(holding);
+
+        WaitlistRequestDto waiter = new WaitlistRequestDto(TEST_USER_ID + "Waiting", APPLE_IPHONE_13.getId());
+        WaitlistEntryDto queued = joinWaitlist(waiter, HttpStatus.SC_ACCEPTED);
+        assertEquals(WaitlistState.WAITING, queued.getState());
+        assertEquals(1, queued.getPosition());
+        assertEquals(queued.getId(), joinWaitlist(waiter, HttpStatus.SC_ACCEPTED).getId());
+
+        WaitlistEntryDto cancelled = joinWaitlist(
+                new WaitlistRequestDto(TEST_USER_ID + "Cancelling", APPLE_IPHONE_13.getId()), HttpStatus.SC_ACCEPTED);
+        assertEquals(2, cancelled.getPosition());
+        assertEquals(WaitlistState.CANCELLED, given()
+                .when()
+                .delete(url + "/waitlist/" + cancelled.getId())
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .as(WaitlistEntryDto.class)
+                .getState());
+
+        // nobody jumps the queue
+        bookPhoneFailed(BookingDto.builder()
+                .deviceId(APPLE_IPHONE_13.getId())
+                .timestamp(LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli())
+                .userName(TEST_USER_ID + "Jumping")
+                .build());
+        assertEquals(WaitlistState.WAITING, pollWaitlist(queued.getId(), 1).getState());
+
+        CompletableFuture<WaitlistEntryDto> poll = CompletableFuture.supplyAsync(() -> pollWaitlist(queued.getId(), 10));
+        returnPhone(holding);
+        WaitlistEntryDto booked = poll.get(15, TimeUnit.SECONDS);
+        assertEquals(WaitlistState.BOOKED, booked.getState());
+        assertEquals(0, booked.getPosition());
+
+        List<BookingAvailabilityDto> availability = phoneAvailability(APPLE_IPHONE_13.getId());
+        assertEquals(waiter.getUserName(), availability.get(0).getUserName());
+        assertEquals(booked.getBookedAt(), availability.get(0).getTimestamp());
+
+        returnPhone(BookingDto.builder()
+                .deviceId(APPLE_IPHONE_13.getId())
+                .timestamp(booked.getBookedAt())
+                .userName(waiter.getUserName())
+                .build());
+        validateAvailable(APPLE_IPHONE_13.getId(), phoneAvailability(APPLE_IPHONE_13.getId()).get(0));
+    }
+
+    @Test
+    @Order(21)
+    public void testLeaseRenewalAndExpiry() throws Exception {
+        String leasing = TEST_USER_ID + "Leasing";
+        BookingDto leased = BookingDto.builder()
+                .deviceId(APPLE_IPHONE_13.getId())
+                .timestamp(LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli())
+                .userName(leasing)
+                .leaseSeconds(60L)
+                .build();
+        bookPhoneSucceeded(leased);
+
+        List<LeaseDto> leases = userLeases(leasing);
+        assertEquals(1, leases.size());
+        assertEquals(leased.getTimestamp(), leases.get(0).getTimestamp());
+        assertTrue(leases.get(0).getExpiresAt() > System.currentTimeMillis() + 30_000);
+
+        LeaseRenewalDto renewal = LeaseRenewalDto.builder()
+                .userName(leasing)
+                .deviceId(APPLE_IPHONE_13.getId())
+                .timestamp(leased.getTimestamp())
+                .leaseSeconds(1L)
+                .build();
+        assertTrue(renewLease(renewal, HttpStatus.SC_OK).getExpiresAt() <= System.currentTimeMillis() + 1_000);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!phoneAvailability(APPLE_IPHONE_13.getId()).get(0).getAvailable()) {
+            assertTrue(System.currentTimeMillis() < deadline, "lease did not expire");
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        assertTrue(userBookings(leasing).isEmpty());
+        assertTrue(userLeases(leasing).isEmpty());
+        renewLease(renewal, HttpStatus.SC_NOT_FOUND);
+
+        // a unit returned by its user takes its lease along
+        leased.setTimestamp(LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli());
+        bookPhoneSucceeded(leased);
+        assertEquals(1, userLeases(leasing).size());
+        returnPhone(leased);
+        assertTrue(userLeases(leasing).isEmpty());
+
+        leased.setLeaseSeconds(TimeUnit.DAYS.toSeconds(366));
+        given()
+                .contentType(ContentType.JSON)
+                .body(objectMapper.writeValueAsString(leased))
+                .when()
+                .post(url + "/book")
+                .then()
+                .statusCode(HttpStatus.SC_BAD_REQUEST);
+        validateAvailable(APPLE_IPHONE_13.getId(), phoneAvailability(APPLE_IPHONE_13.getId()).get(0));
+    }
+
+    @Test
+    @Order(22)
+    public void testReservationsAndFreeCapacity() throws JsonProcessingException {
+        short deviceId = SAMSUNG_GALAXY_S8.getId();
+        long hour = TimeUnit.HOURS.toMillis(1);
+        long base = (System.currentTimeMillis() / hour + 24) * hour;
+
+        ReservationDto first = reserve(deviceId, new ReservationRequestDto(TEST_USER_ID + "A", base + hour, base + 3 * hour),
+                HttpStatus.SC_CREATED);
+        ReservationDto second = reserve(deviceId, new ReservationRequestDto(TEST_USER_ID + "B", base + 2 * hour, base + 4 * hour),
+                HttpStatus.SC_CREATED);
+        // both units are taken from 2h to 3h
+        reserve(deviceId, new ReservationRequestDto(TEST_USER_ID + "C", base + 2 * hour, base + 2 * hour + 1),
+                HttpStatus.SC_CONFLICT);
+        // the first reservation ends where this one starts
+        ReservationDto third = reserve(deviceId, new ReservationRequestDto(TEST_USER_ID + "C", base + 3 * hour, base + 5 * hour),
+                HttpStatus.SC_CREATED);
+        reserve(deviceId, new ReservationRequestDto(TEST_USER_ID + "C", base - 48 * hour, base + hour),
+                HttpStatus.SC_BAD_REQUEST);
+
+        assertEquals(List.of(first, second, third), Arrays.asList(given()
+                .when()
+                .get(url + "/" + deviceId + "/reservations?from=" + base + "&to=" + (base + 6 * hour))
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .as(ReservationDto[].class)));
+
+        assertEquals(List.of(
+                new FreeCapacityDto(base, base + hour, 2),
+                new FreeCapacityDto(base + hour, base + 2 * hour, 1),
+                new FreeCapacityDto(base + 2 * hour, base + 4 * hour, 0),
+                new FreeCapacityDto(base + 4 * hour, base + 5 * hour, 1),
+                new FreeCapacityDto(base + 5 * hour, base + 6 * hour, 2)), freeCapacity(deviceId, base, base + 6 * hour));
+
+        given()
+                .when()
+                .delete(url + "/" + deviceId + "/reservations/" + first.getId() + "?userName=" + TEST_USER_ID + "B")
+                .then()
+                .statusCode(HttpStatus.SC_NOT_FOUND);
+        for (ReservationDto reservation : List.of(first, second, third)) {
+            given()
+                    .when()
+                    .delete(url + "/" + deviceId + "/reservations/" + reservation.getId() + "?userName=" + reservation.getUserName())
+                    .then()
+                    .statusCode(HttpStatus.SC_OK);
+        }
+        assertEquals(List.of(new FreeCapacityDto(base, base + 6 * hour, 2)), freeCapacity(deviceId, base, base + 6 * hour));
+    }
+
+    @Test
+    @Order(23)
+    public void testIdempotentRetries() throws Exception {
+        String retrying = TEST_USER_ID + "Retrying";
+        String booking = objectMapper.writeValueAsString(BookingDto.builder()
+                .deviceId(APPLE_IPHONE_13.getId())
+                .timestamp(LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli())
+                .userName(retrying)
+                .build());
+        String bookKey = UUID.randomUUID().toString();
+
+        // duplicates arriving together are applied once and all see the first outcome
+        List<CompletableFuture<Integer>> retries = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            retries.add(CompletableFuture.supplyAsync(() -> idempotentStatus("/book", booking, bookKey)));
+        }
+        for (CompletableFuture<Integer> retry : retries) {
+            assertEquals(HttpStatus.SC_OK, retry.get(15, TimeUnit.SECONDS));
+        }
+        assertEquals(1, userBookings(retrying).size());
+
+        String returnKey = UUID.randomUUID().toString();
+        assertEquals(HttpStatus.SC_OK, idempotentStatus("/return", booking, returnKey));
+        assertEquals(HttpStatus.SC_OK, idempotentStatus("/return", booking, returnKey));
+        assertTrue(userBookings(retrying).isEmpty());
+        validateAvailable(APPLE_IPHONE_13.getId(), phoneAvailability(APPLE_IPHONE_13.getId()).get(0));
+
+        // a late retry of the booking does not book the unit again
+        assertEquals(HttpStatus.SC_OK, idempotentStatus("/book", booking, bookKey));
+        assertTrue(userBookings(retrying).isEmpty());
+        assertEquals(HttpStatus.SC_UNPROCESSABLE_ENTITY, idempotentStatus("/return", booking, bookKey));
+        assertEquals(HttpStatus.SC_BAD_REQUEST, idempotentStatus("/book", booking, " "));
+
+        // a return applied by an attempt that crashed before storing its outcome is not applied again
+        short phoneId = SAMSUNG_GALAXY_S8.getId();
+        long now = LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli();
+        String crashed = TEST_USER_ID + "Crashed";
+        BookingDto first = BookingDto.builder().deviceId(phoneId).timestamp(now).userName(crashed).build();
+        BookingDto second = BookingDto.builder().deviceId(phoneId).timestamp(now + 1).userName(crashed).build();
+        bookPhoneSucceeded(first);
+        bookPhoneSucceeded(second);
+        BookingDto giveBack = BookingDto.builder().deviceId(phoneId).timestamp(now + 2).userName(crashed).build();
+        returnPhone(giveBack);
+        String crashKey = UUID.randomUUID().toString();
+        jdbcTemplate.update("insert into idempotency_key (id, request, outcome, created_at) values (?, ?, null, ?)",
+                crashKey, "return:" + phoneId + ":" + (now + 2) + ":null:" + crashed, new Timestamp(now));
+        assertEquals(HttpStatus.SC_OK, idempotentStatus("/return", objectMapper.writeValueAsString(giveBack), crashKey));
+        assertEquals(List.of(second), userBookings(crashed));
+        returnPhone(BookingDto.builder().deviceId(phoneId).timestamp(now + 3).userName(crashed).build());
+    }
+
+    @Test
+    @Order(24)
+    public void testUtilization() throws Exception {
+        short phoneId = APPLE_IPHONE_13.getId();
+        UtilizationDto before = utilization(phoneId);
+        long now = LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli();
+        String analyst = TEST_USER_ID + "Analyst";
+        for (long bookedAgo : new long[]{5_000, 2_000}) {
+            BookingDto bookingDto = BookingDto.builder()
+                    .deviceId(phoneId)
+                    .timestamp(now - bookedAgo)
+                    .userName(analyst)
+                    .build();
+            bookPhoneSucceeded(bookingDto);
+            bookingDto.setTimestamp(now - bookedAgo + 2_000);
+            returnPhone(bookingDto);
+        }
+
+        UtilizationDto after = utilization(phoneId);
+        assertEquals(before.getBookings() + 2, after.getBookings());
+        assertEquals(before.getReturns() + 2, after.getReturns());
+        // the only unit was taken twice for two seconds
+        assertEquals(before.getSoldOutMillis() + 4_000, after.getSoldOutMillis());
+        assertNotNull(after.getAverageHoldMillis());
+        assertTrue(after.getP95HoldMillis() >= after.getAverageHoldMillis());
+        assertTrue(after.getBookingsPerHour() > 0);
+        assertFalse(after.getTopUsers().isEmpty());
+
+        List<UtilizationDto> all = Arrays.asList(given()
+                .when()
+                .get(url + "/utilization")
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .as(UtilizationDto[].class));
+        assertEquals(Phone.values().length, all.size());
+        given().when().get(url + "/" + NOT_EXISTED_DEVICE_ID + "/utilization").then().statusCode(HttpStatus.SC_NOT_FOUND);
+    }
+
+    @Test
+    @Order(25)
+    public void testRebookingReturnedBookingIsDuplicate() throws JsonProcessingException {
+        short phoneId = APPLE_IPHONE_13.getId();
+        BookingDto bookingDto = BookingDto.builder()
+                .deviceId(phoneId)
+                .timestamp(LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli())
+                .userName(TEST_USER_ID + "Rebook")
+                .build();
+        bookPhoneSucceeded(bookingDto);
+        returnPhone(bookingDto);
+
+        // the returned booking keeps its key, every engine refuses it like the database does
+        bookPhoneFailed(bookingDto);
+        validateAvailable(phoneId, phoneAvailability(phoneId).get(0));
+    }
+
+    private UtilizationDto utilization(short phoneId) {
+        return given()
+                .when()
+                .get(url + "/" + phoneId + "/utilization")
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .as(UtilizationDto.class);
+    }
+
+    private int idempotentStatus(String path, String body, String idempotencyKey) {
+        return given()
+                .contentType(ContentType.JSON)
+                .header("Idempotency-Key", idempotencyKey)
+                .body(body)
+                .when()
+                .post(url + path)
+                .then()
+                .extract()
+                .statusCode();
+    }
+
+    private ReservationDto reserve(short deviceId, ReservationRequestDto request, int expectedStatus) throws JsonProcessingException {
+        ValidatableResponse response = given()
+                .contentType(ContentType.JSON)
+                .body(objectMapper.writeValueAsString(request))
+                .when()
+                .post(url + "/" + deviceId + "/reservations")
+                .then()
+                .statusCode(expectedStatus);
+        return expectedStatus == HttpStatus.SC_CREATED ? response.extract().as(ReservationDto.class) : null;
+    }
+
+    private List<FreeCapacityDto> freeCapacity(short deviceId, long from, long to) {
+        return Arrays.asList(given()
+                .when()
+                .get(url + "/" + deviceId + "/reservations/capacity?from=" + from + "&to=" + to)
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .as(FreeCapacityDto[].class));
+    }
+
+    private List<LeaseDto> userLeases(String userName) {
+        return Arrays.asList(given()
+                .when()
+                .get(url + "/users/" + userName + "/leases")
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .as(LeaseDto[].class));
+    }
+
+    private LeaseDto renewLease(LeaseRenewalDto renewal, int expectedStatus) throws JsonProcessingException {
+        ValidatableResponse response = given()
+                .contentType(ContentType.JSON)
+                .body(objectMapper.writeValueAsString(renewal))
+                .when()
+                .post(url + "/lease/renew")
+                .then()
+                .statusCode(expectedStatus);
+        return expectedStatus == HttpStatus.SC_OK ? response.extract().as(LeaseDto.class) : null;
+    }
+
+    private WaitlistEntryDto joinWaitlist(WaitlistRequestDto request, int expectedStatus) throws JsonProcessingException {
+        return given()
+                .contentType(ContentType.JSON)
+                .body(objectMapper.writeValueAsString(request))
+                .when()
+                .post(url + "/waitlist")
+                .then()
+                .statusCode(expectedStatus)
+                .extract()
+                .as(WaitlistEntryDto.class);
+    }
+
+    private WaitlistEntryDto pollWaitlist(String entryId, int waitSeconds) {
+        return given()
+                .when()
+                .get(url + "/waitlist/" + entryId + "?wait=" + waitSeconds)
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .as(WaitlistEntryDto.class);
+    }
+
+    private List<DeviceDto> catalog(String path, Method method) {
+        return Arrays.asList(given()
+                .when()
+                .request(method, url + path)
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .as(DeviceDto[].class));
+    }
+
+    private static String eventData(String event) {
+        return event.substring(event.indexOf("data:") + "data:".length()).trim();
+    }
+
+    private BulkBookingResultDto bulk(String path, BulkBookingRequestDto.Mode mode, int expectedStatus,
+                                      BookingDto... items) throws JsonProcessingException {
+        return given()
+                .contentType(ContentType.JSON)
+                .body(objectMapper.writeValueAsString(BulkBookingRequestDto.builder()
+                        .items(List.of(items))
+                        .mode(mode)
+                        .build()))
+                .when()
+                .post(url + path)
+                .then()
+                .statusCode(expectedStatus)
+                .extract()
+                .as(BulkBookingResultDto.class);
+    }
+
     private void testBooking(short phoneId) throws JsonProcessingException {
         BookingDto bookingDto = BookingDto.builder()
                 .deviceId(phoneId)
@@ -256,7 +1074,7 @@ public class BookingControllerTest {
                 .when()
                 .post(url + "/book")
                 .then()
-                .statusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+                .statusCode(HttpStatus.SC_CONFLICT);
     }
 
     private List<BookingAvailabilityDto> phoneAvailability(short phoneId) {
@@ -271,6 +1089,38 @@ public class BookingControllerTest {
         return availability;
     }
 
+    private Map<Short, List<BookingAvailabilityDto>> phonesAvailability(String query) {
+        return given()
+                .contentType(ContentType.JSON)
+                .when()
+                .get(url + query)
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .as(new TypeRef<>() {});
+    }
+
+    private List<BookingDto> userBookings(String userName) {
+        return Arrays.asList(given()
+                .when()
+                .get(url + "/users/" + userName + "/bookings")
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .as(BookingDto[].class));
+    }
+
+    private BookingHistoryDto history(short phoneId, String query) {
+        return given()
+                .contentType(ContentType.JSON)
+                .when()
+                .get(url + "/" + phoneId + "/history" + query)
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract()
+                .as(BookingHistoryDto.class);
+    }
+
     private void validateBooked(BookingDto source, BookingAvailabilityDto target) {
         assertEquals(source.getDeviceId(), target.getDeviceId());
         assertEquals(source.getUserName(), target.getUserName());
@@ -0,0 +1,11 @@
+package com.booking.engine;
+
+import com.booking.controller.BookingControllerTest;
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "booking.engine=group-commit",
+        "spring.datasource.url=jdbc:hsqldb:mem:groupcommitengine"
+})
+public class GroupCommitEngineBookingControllerTest extends BookingControllerTest {
+}
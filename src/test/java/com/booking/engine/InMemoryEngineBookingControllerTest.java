@@ -0,0 +1,13 @@
+package com.booking.engine;
+
+import com.booking.controller.BookingControllerTest;
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "booking.engine=memory",
+        "spring.datasource.url=jdbc:hsqldb:mem:memoryengine",
+        "booking.startup.warm-up-iterations=50",
+        "booking.startup.snapshot-file=target/memoryengine.snapshot"
+})
+public class InMemoryEngineBookingControllerTest extends BookingControllerTest {
+}
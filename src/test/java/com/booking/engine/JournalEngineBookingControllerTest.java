@@ -0,0 +1,14 @@
+package com.booking.engine;
+
+import com.booking.controller.BookingControllerTest;
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "booking.engine=journal",
+        "booking.journal.directory=target/journal-test/${random.uuid}",
+        "booking.journal.segment-events=8",
+        "booking.journal.snapshot-every=5",
+        "spring.datasource.url=jdbc:hsqldb:mem:journalengine"
+})
+public class JournalEngineBookingControllerTest extends BookingControllerTest {
+}
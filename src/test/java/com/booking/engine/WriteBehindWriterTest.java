@@ -0,0 +1,64 @@
+package com.booking.engine;
+
+import com.booking.dto.BookingDto;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteBehindWriterTest {
+    private static final short DEVICE_ID = 1;
+
+    @Test
+    public void testFailedWriteIsRetriedUntilPersisted() {
+        AtomicInteger failures = new AtomicInteger(3);
+        List<BookingCommand> persisted = new CopyOnWriteArrayList<>();
+        WriteBehindWriter writer = new WriteBehindWriter((batch, lastSeq) -> {
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("database down");
+            }
+            persisted.addAll(batch);
+        }, 0, 16, 8, Duration.ofSeconds(1));
+        try {
+            BookingCommand command = BookingCommand.book(BookingDto.builder()
+                    .deviceId(DEVICE_ID)
+                    .userName("retry")
+                    .timestamp(1L)
+                    .build());
+            assertTrue(writer.submit(command));
+            writer.awaitPersisted(DEVICE_ID);
+
+            assertEquals(List.of(command), persisted);
+            assertEquals(1, writer.persistedSeq());
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdownFlushesTheQueue() {
+        List<BookingCommand> persisted = new CopyOnWriteArrayList<>();
+        WriteBehindWriter writer = new WriteBehindWriter((batch, lastSeq) -> persisted.addAll(batch),
+                0, 16, 1, Duration.ofSeconds(1));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(writer.submit(BookingCommand.book(BookingDto.builder()
+                    .deviceId(DEVICE_ID)
+                    .userName("user" + i)
+                    .timestamp((long) i)
+                    .build())));
+        }
+        writer.shutdown();
+
+        assertEquals(10, persisted.size());
+        assertEquals(10, writer.persistedSeq());
+        assertFalse(writer.submit(BookingCommand.giveBack(BookingDto.builder()
+                .deviceId(DEVICE_ID)
+                .userName("user0")
+                .timestamp(0L)
+                .build())));
+    }
+}
@@ -0,0 +1,122 @@
+package com.booking.journal;
+
+import com.booking.engine.BookingCommand;
+import com.booking.model.ActiveBooking;
+import com.booking.model.Availability;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JournalTest {
+    private static final int SEGMENT_EVENTS = 4;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testReplayAfterReopenAcrossSegments() throws IOException {
+        try (Journal journal = new Journal(directory, SEGMENT_EVENTS, 1)) {
+            for (long sequence = 1; sequence <= 10; sequence++) {
+                journal.append(event(sequence));
+            }
+            journal.force();
+        }
+
+        try (Journal journal = new Journal(directory, SEGMENT_EVENTS, 1)) {
+            assertEquals(1, journal.firstSequence());
+            assertEquals(10, journal.lastSequence());
+            List<JournalEvent> replayed = replay(journal, 6);
+            assertEquals(List.of(event(7), event(8), event(9), event(10)), replayed);
+        }
+        assertEquals(3, segmentFiles(directory).size());
+    }
+
+    @Test
+    public void testTornRecordIsDroppedAndOverwritten() throws IOException {
+        try (Journal journal = new Journal(directory, SEGMENT_EVENTS, 1)) {
+            journal.append(event(1));
+            journal.append(event(2));
+            journal.force();
+        }
+        try (FileChannel channel = FileChannel.open(segmentFiles(directory).get(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), JournalEvent.SIZE + 30);
+        }
+
+        try (Journal journal = new Journal(directory, SEGMENT_EVENTS, 1)) {
+            assertEquals(1, journal.lastSequence());
+            journal.append(event(2));
+            journal.force();
+            assertEquals(List.of(event(1), event(2)), replay(journal, 0));
+        }
+    }
+
+    @Test
+    public void testCompactionArchivesReplayedSegments() throws IOException {
+        try (Journal journal = new Journal(directory, SEGMENT_EVENTS, 1)) {
+            for (long sequence = 1; sequence <= 10; sequence++) {
+                journal.append(event(sequence));
+            }
+            journal.force();
+
+            assertEquals(1, journal.compact(6, true));
+            assertEquals(5, journal.firstSequence());
+            assertEquals(List.of(event(9), event(10)), replay(journal, 8));
+        }
+        assertEquals(1, segmentFiles(directory.resolve(Journal.ARCHIVE)).size());
+        assertEquals(2, segmentFiles(directory).size());
+    }
+
+    @Test
+    public void testEmptyJournalStartsAtGivenSequence() throws IOException {
+        try (Journal journal = new Journal(directory, SEGMENT_EVENTS, 42)) {
+            assertEquals(41, journal.lastSequence());
+            journal.append(event(42));
+            assertThrows(IllegalArgumentException.class, () -> journal.append(event(44)));
+        }
+    }
+
+    @Test
+    public void testSnapshotRoundTripKeepsNewest() throws IOException {
+        List<Availability> availabilities = List.of(new Availability((short) 1, (short) 0, (short) 1));
+        List<ActiveBooking> bookings = List.of(new ActiveBooking((short) 1, "useré", 1000L));
+        new JournalSnapshot(5, availabilities, List.of()).write(directory);
+        new JournalSnapshot(9, availabilities, bookings).write(directory);
+
+        JournalSnapshot snapshot = JournalSnapshot.readLatest(directory).orElseThrow();
+        assertEquals(new JournalSnapshot(9, availabilities, bookings), snapshot);
+    }
+
+    @Test
+    public void testTooLongUserNameIsRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> JournalEvent.encodeUserName("x".repeat(JournalEvent.MAX_USER_NAME_BYTES + 1)));
+    }
+
+    private static JournalEvent event(long sequence) {
+        BookingCommand.Type type = sequence % 2 == 1 ? BookingCommand.Type.BOOK : BookingCommand.Type.RETURN;
+        return new JournalEvent(sequence, new BookingCommand(type, (short) (sequence % 9 + 1), "user" + sequence, 1000 + sequence));
+    }
+
+    private static List<JournalEvent> replay(Journal journal, long afterSequence) {
+        List<JournalEvent> events = new ArrayList<>();
+        journal.replay(afterSequence, events::add);
+        return events;
+    }
+
+    private static List<Path> segmentFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".journal")).sorted().toList();
+        }
+    }
+}
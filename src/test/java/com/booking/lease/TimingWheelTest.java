@@ -0,0 +1,99 @@
+package com.booking.lease;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimingWheelTest {
+    private static final long TICK = 10;
+
+    @Test
+    public void testTimeoutsFireOnTimeOnEveryWheel() {
+        TimingWheel<Long> wheel = new TimingWheel<>(TICK, 0);
+        // one per tick, across the boundaries of the four wheels
+        long[] deadlines = {15, 25, 2_555, 2_570, 655_370, 167_772_170, 200_000_000};
+        for (long deadline : deadlines) {
+            wheel.schedule(deadline, deadline);
+        }
+        wheel.schedule(-100L, -100);
+        assertEquals(deadlines.length + 1, wheel.size());
+
+        List<Long> fired = new ArrayList<>();
+        for (long now = 0; now <= 200_000_000 + TICK; now += 1_000) {
+            long at = now;
+            wheel.advance(now, timeout -> {
+                assertTrue(at >= timeout.getValue(), "fired early: " + timeout.getValue() + " at " + at);
+                assertTrue(at < Math.max(timeout.getValue(), 0) + TICK + 1_000, "fired late: " + timeout.getValue() + " at " + at);
+                assertFalse(timeout.isPending());
+                fired.add(timeout.getValue());
+            });
+        }
+        assertEquals(List.of(-100L, 15L, 25L, 2_555L, 2_570L, 655_370L, 167_772_170L, 200_000_000L), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCancelAndReschedule() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, 0);
+        TimingWheel.Timeout<String> cancelled = wheel.schedule("cancelled", 100);
+        TimingWheel.Timeout<String> moved = wheel.schedule("moved", 100);
+
+        assertTrue(wheel.cancel(cancelled));
+        assertFalse(wheel.cancel(cancelled));
+        wheel.reschedule(moved, 5_000);
+        assertEquals(1, wheel.size());
+
+        List<String> fired = new ArrayList<>();
+        wheel.advance(4_990, timeout -> fired.add(timeout.getValue()));
+        assertTrue(fired.isEmpty());
+        wheel.advance(5_000, timeout -> fired.add(timeout.getValue()));
+        assertEquals(List.of("moved"), fired);
+
+        // an expired timeout can be scheduled again
+        wheel.reschedule(moved, 6_000);
+        wheel.advance(6_000, timeout -> fired.add(timeout.getValue()));
+        assertEquals(List.of("moved", "moved"), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testManyTimeoutsFireOnceInTickOrder() {
+        TimingWheel<Long> wheel = new TimingWheel<>(TICK, 0);
+        Random random = new Random(42);
+        int count = 100_000;
+        List<TimingWheel.Timeout<Long>> timeouts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long deadline = random.nextInt(10_000_000);
+            timeouts.add(wheel.schedule(deadline, deadline));
+        }
+        int cancelled = 0;
+        for (int i = 0; i < count; i += 10) {
+            assertTrue(wheel.cancel(timeouts.get(i)));
+            cancelled++;
+        }
+
+        List<Long> fired = new ArrayList<>(count);
+        for (long now = 0; now <= 10_000_000; now += 7_777) {
+            long at = now;
+            wheel.advance(now, timeout -> {
+                assertTrue(at >= timeout.getValue());
+                fired.add(timeout.getValue());
+            });
+        }
+        wheel.advance(10_000_000, timeout -> fired.add(timeout.getValue()));
+
+        assertEquals(count - cancelled, fired.size());
+        for (int i = 1; i < fired.size(); i++) {
+            assertTrue(ticks(fired.get(i - 1)) <= ticks(fired.get(i)));
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    private static long ticks(long millis) {
+        return (millis + TICK - 1) / TICK;
+    }
+}
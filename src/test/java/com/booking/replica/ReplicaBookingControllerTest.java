@@ -0,0 +1,142 @@
+package com.booking.replica;
+
+import com.booking.dto.BookingAvailabilityDto;
+import com.booking.dto.BookingDto;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.restassured.common.mapper.TypeRef;
+import io.restassured.http.ContentType;
+import io.restassured.response.ExtractableResponse;
+import io.restassured.response.Response;
+import org.apache.http.HttpStatus;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import javax.annotation.PostConstruct;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+import static com.booking.Application.objectMapper;
+import static com.booking.config.DateTimeConfiguration.zoneId;
+import static com.booking.model.Phone.APPLE_IPHONE_13;
+import static com.booking.model.Phone.SAMSUNG_GALAXY_S9;
+import static io.restassured.RestAssured.given;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Replicas copied once at startup and not again during the test, so every write leaves them behind.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "booking.replicas.urls=jdbc:hsqldb:mem:replicaA,jdbc:hsqldb:mem:replicaB",
+        "booking.replicas.sync-interval=1h",
+        "booking.replicas.max-staleness=1h",
+        "spring.datasource.url=jdbc:hsqldb:mem:replicaprimary"
+})
+public class ReplicaBookingControllerTest {
+    private static final String TEST_USER_ID = "replicaUser";
+    @LocalServerPort
+    private int port;
+    @Autowired
+    private MeterRegistry registry;
+    private String url;
+
+    @PostConstruct
+    public void init() {
+        url = "http://localhost:" + port + "/api/v1/phone";
+    }
+
+    @Test
+    public void testStaleReplicaReadHasNoETagAndCommitSequenceReadsTheWrite() throws Exception {
+        short deviceId = APPLE_IPHONE_13.getId();
+        List<BookingAvailabilityDto> before = awaitReplicaRead().get(deviceId);
+
+        BookingDto bookingDto = BookingDto.builder()
+                .deviceId(deviceId)
+                .timestamp(LocalDateTime.now().atZone(zoneId).toInstant().toEpochMilli())
+                .userName(TEST_USER_ID)
+                .build();
+        String sequence = post("/book", bookingDto).header(ReplicaRouting.HEADER);
+        assertNotNull(sequence);
+        try {
+            // the device's own listing waits for its latest commit, which no replica has
+            double replicaReads = replicaReads();
+            List<BookingAvailabilityDto> device = given()
+                    .when()
+                    .get(url + "/" + deviceId)
+                    .then()
+                    .statusCode(HttpStatus.SC_OK)
+                    .extract()
+                    .as(new TypeRef<>() {});
+            assertNotEquals(before, device);
+            assertEquals(replicaReads, replicaReads());
+
+            // a listing of every device is served within the staleness bound, but must not carry the current ETag
+            ExtractableResponse<Response> stale = given().when().get(url).then().statusCode(HttpStatus.SC_OK).extract();
+            assertTrue(replicaReads() > replicaReads);
+            assertEquals(before, availabilities(stale).get(deviceId));
+            assertNull(stale.header("ETag"));
+
+            // sending the sequence of the write back reads it, from the primary
+            replicaReads = replicaReads();
+            ExtractableResponse<Response> fresh = given()
+                    .header(ReplicaRouting.HEADER, sequence)
+                    .when()
+                    .get(url)
+                    .then()
+                    .statusCode(HttpStatus.SC_OK)
+                    .extract();
+            assertEquals(replicaReads, replicaReads());
+            assertEquals(device, availabilities(fresh).get(deviceId));
+            assertNotNull(fresh.header("ETag"));
+
+            // the sequence also covers reads of devices the client did not write
+            given()
+                    .header(ReplicaRouting.HEADER, sequence)
+                    .when()
+                    .get(url + "/" + SAMSUNG_GALAXY_S9.getId())
+                    .then()
+                    .statusCode(HttpStatus.SC_OK);
+            assertEquals(replicaReads, replicaReads());
+        } finally {
+            post("/return", bookingDto);
+        }
+    }
+
+    /**
+     * Reads every device until a replica serves the read, which it does once the startup copy is done.
+     */
+    private Map<Short, List<BookingAvailabilityDto>> awaitReplicaRead() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (true) {
+            double replicaReads = replicaReads();
+            ExtractableResponse<Response> response = given().when().get(url).then().statusCode(HttpStatus.SC_OK).extract();
+            if (replicaReads() > replicaReads) {
+                return availabilities(response);
+            }
+            assertTrue(System.currentTimeMillis() < deadline, "no replica caught up");
+            Thread.sleep(20);
+        }
+    }
+
+    private ExtractableResponse<Response> post(String path, BookingDto bookingDto) throws JsonProcessingException {
+        return given()
+                .contentType(ContentType.JSON)
+                .body(objectMapper.writeValueAsString(bookingDto))
+                .when()
+                .post(url + path)
+                .then()
+                .statusCode(HttpStatus.SC_OK)
+                .extract();
+    }
+
+    private double replicaReads() {
+        return registry.get("booking.replica.reads").tag("target", "replica").functionCounter().count();
+    }
+
+    private static Map<Short, List<BookingAvailabilityDto>> availabilities(ExtractableResponse<Response> response) {
+        return response.as(new TypeRef<>() {});
+    }
+}
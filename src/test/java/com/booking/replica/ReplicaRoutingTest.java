@@ -0,0 +1,125 @@
+package com.booking.replica;
+
+import com.booking.config.BookingProperties;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplicaRoutingTest {
+    private static final short DEVICE = 5;
+
+    private HikariDataSource primary;
+    private String replicaUrl;
+    private ReplicaRouting routing;
+
+    @BeforeEach
+    public void setUp() {
+        String name = UUID.randomUUID().toString();
+        primary = new HikariDataSource();
+        primary.setJdbcUrl("jdbc:hsqldb:mem:primary-" + name);
+        primary.setUsername("sa");
+        new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(primary);
+        replicaUrl = "jdbc:hsqldb:mem:replica-" + name;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (routing != null) {
+            routing.shutdown();
+        }
+        primary.close();
+    }
+
+    @Test
+    public void testDeviceIsReadFromThePrimaryUntilTheReplicaHasItsCommit() throws Exception {
+        // one sync at startup only
+        routing = routing(Duration.ofHours(1), Duration.ofSeconds(1));
+        awaitReplica(() -> routing.readConnection(DEVICE));
+
+        book("user", DEVICE);
+        assertFalse(isReplica(routing.readConnection(DEVICE)));
+        assertTrue(isReplica(routing.readConnection((short) 6)));
+        assertFalse(isReplica(routing.readConnection(List.of((short) 6, DEVICE))));
+        // a client that saw the commit needs it too; one that did not may read a recent enough replica
+        long seen = routing.currentSequence();
+        assertFalse(isReplica(routing.withSession(seen, this::readAll)));
+        assertTrue(isReplica(readAll()));
+        assertEquals(1, routing.maxLag());
+    }
+
+    @Test
+    public void testSyncCopiesCommittedDevices() throws Exception {
+        routing = routing(Duration.ofMillis(10), Duration.ZERO);
+        awaitReplica(() -> routing.readConnection(DEVICE));
+        // without a staleness bound reads of every device need a commit sequence
+        assertFalse(isReplica(readAll()));
+
+        book("user", DEVICE);
+        long seen = routing.currentSequence();
+        awaitReplica(() -> routing.readConnection(DEVICE));
+        awaitReplica(() -> routing.withSession(seen, this::readAll));
+
+        JdbcTemplate replica = new JdbcTemplate(new DriverManagerDataSource(replicaUrl, "sa", ""));
+        assertEquals(0, replica.queryForObject("select quantity from availability where device_id = ?", Integer.class, DEVICE));
+        assertEquals("user", replica.queryForObject("select user_id from booking where device_id = ?", String.class, DEVICE));
+        assertEquals(0, routing.maxLag());
+    }
+
+    private ReplicaRouting routing(Duration syncInterval, Duration maxStaleness) {
+        BookingProperties properties = new BookingProperties();
+        properties.getReplicas().setUrls(List.of(replicaUrl));
+        properties.getReplicas().setSyncInterval(syncInterval);
+        properties.getReplicas().setMaxStaleness(maxStaleness);
+        DataSourceProperties dataSourceProperties = new DataSourceProperties();
+        dataSourceProperties.setUsername("sa");
+        return new ReplicaRouting(primary, dataSourceProperties, properties, new SimpleMeterRegistry());
+    }
+
+    private void book(String user, short deviceId) {
+        JdbcTemplate jdbc = new JdbcTemplate(primary);
+        jdbc.update("update availability set quantity = quantity - 1 where device_id = ?", deviceId);
+        jdbc.update("insert into booking (user_id, device_id, booking_date) values (?, ?, current_timestamp)", user, deviceId);
+        routing.committed(deviceId);
+    }
+
+    private Connection readAll() {
+        try {
+            return routing.readConnection(null);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private boolean isReplica(Connection connection) throws SQLException {
+        try (connection) {
+            return connection.getMetaData().getURL().equals(replicaUrl);
+        }
+    }
+
+    private void awaitReplica(ConnectionSource source) throws Exception {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!isReplica(source.get())) {
+            assertTrue(System.currentTimeMillis() < deadline, "replica did not catch up");
+            Thread.sleep(5);
+        }
+    }
+
+    private interface ConnectionSource {
+        Connection get() throws SQLException;
+    }
+}
@@ -0,0 +1,66 @@
+package com.booking.reservation;
+
+import com.booking.model.Reservation;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IntervalTreeTest {
+    private static final Comparator<Reservation> BY_START = Comparator
+            .comparingLong(Reservation::getStart)
+            .thenComparingLong(Reservation::getId);
+
+    @Test
+    public void testOverlapsMatchScanAfterInsertsAndRemovals() {
+        Random random = new Random(7);
+        IntervalTree tree = new IntervalTree();
+        List<Reservation> all = new ArrayList<>();
+        for (long id = 1; id <= 20_000; id++) {
+            long start = random.nextInt(1_000_000);
+            Reservation reservation = new Reservation(id, (short) 1, "user" + id, start, start + 1 + random.nextInt(5_000));
+            tree.insert(reservation);
+            all.add(reservation);
+        }
+        for (int i = 0; i < 5_000; i++) {
+            Reservation removed = all.remove(random.nextInt(all.size()));
+            assertTrue(tree.remove(removed));
+            assertFalse(tree.remove(removed));
+        }
+        assertEquals(all.size(), tree.size());
+
+        for (int i = 0; i < 500; i++) {
+            long from = random.nextInt(1_010_000) - 5_000;
+            long to = from + 1 + random.nextInt(20_000);
+            List<Reservation> found = new ArrayList<>();
+            tree.forEachOverlapping(from, to, found::add);
+
+            List<Reservation> expected = new ArrayList<>();
+            for (Reservation reservation : all) {
+                if (reservation.overlaps(from, to)) {
+                    expected.add(reservation);
+                }
+            }
+            expected.sort(BY_START);
+            assertEquals(expected, found);
+        }
+    }
+
+    @Test
+    public void testWindowsTouchingAtTheEdgesDoNotOverlap() {
+        IntervalTree tree = new IntervalTree();
+        tree.insert(new Reservation(1, (short) 1, "user", 100, 200));
+
+        List<Reservation> found = new ArrayList<>();
+        tree.forEachOverlapping(0, 100, found::add);
+        tree.forEachOverlapping(200, 300, found::add);
+        assertTrue(found.isEmpty());
+
+        tree.forEachOverlapping(199, 201, found::add);
+        assertEquals(1, found.size());
+    }
+}
@@ -0,0 +1,50 @@
+package com.booking.startup;
+
+import com.booking.model.ActiveBooking;
+import com.booking.model.Availability;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AvailabilitySnapshotTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testRoundTripReplacesPreviousFile() throws IOException {
+        Path file = directory.resolve("snapshot").resolve("availability.snapshot");
+        new AvailabilitySnapshot(1, List.of(new Availability((short) 1, (short) 1, (short) 1)), List.of()).write(file);
+        AvailabilitySnapshot snapshot = new AvailabilitySnapshot(-42,
+                List.of(new Availability((short) 1, (short) 0, (short) 1), new Availability((short) 2, (short) 1, (short) 2)),
+                List.of(new ActiveBooking((short) 1, "user1", 1000), new ActiveBooking((short) 2, "user2", 2000)));
+        snapshot.write(file);
+
+        assertEquals(Optional.of(snapshot), AvailabilitySnapshot.read(file));
+    }
+
+    @Test
+    public void testMissingFileIsEmpty() throws IOException {
+        assertEquals(Optional.empty(), AvailabilitySnapshot.read(directory.resolve("missing.snapshot")));
+    }
+
+    @Test
+    public void testCorruptFileFailsChecksum() throws IOException {
+        Path file = directory.resolve("availability.snapshot");
+        new AvailabilitySnapshot(7, List.of(new Availability((short) 1, (short) 1, (short) 1)),
+                List.of(new ActiveBooking((short) 1, "user1", 1000))).write(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), 3);
+        }
+
+        assertThrows(IOException.class, () -> AvailabilitySnapshot.read(file));
+    }
+}
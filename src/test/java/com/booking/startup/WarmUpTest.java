@@ -0,0 +1,36 @@
+package com.booking.startup;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "booking.startup.warm-up-iterations=20",
+        "spring.datasource.url=jdbc:hsqldb:mem:warmup"
+})
+public class WarmUpTest {
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private MeterRegistry registry;
+
+    @Test
+    public void testWarmUpLeavesNoStateAndNoMeasurements() {
+        assertEquals(0, jdbcTemplate.queryForObject("select count(*) from booking", Integer.class));
+        assertEquals(0, jdbcTemplate.queryForObject("select count(*) from availability where quantity <> max_quantity",
+                Integer.class));
+
+        for (Timer timer : registry.find("booking.jdbc.execute").timers()) {
+            assertEquals(0, timer.count(), timer.getId().toString());
+        }
+        for (Timer timer : registry.find("booking.requests").timers()) {
+            assertEquals(0, timer.count(), timer.getId().toString());
+        }
+        assertTrue(registry.find("http.server.requests").meters().isEmpty());
+    }
+}